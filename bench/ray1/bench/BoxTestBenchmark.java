@@ -0,0 +1,104 @@
+package ray1.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import egl.math.Vector3d;
+import ray1.Ray;
+import ray1.accel.BvhNode;
+
+/**
+ * Compares the ray/box test BvhNode used to have (normalize the direction, six
+ * divisions, no clipping) against BvhNode.entryDistance, which uses the ray's cached
+ * inverse direction and clips to [start, end]. Each invocation tests one ray against
+ * every box, the way one traversal refreshes the inverse once and then tests many nodes.
+ *
+ * JMH is not part of deps/lib. To run, put src/ and this directory on the source path
+ * with jmh-core and jmh-generator-annprocess on the classpath, then run
+ * org.openjdk.jmh.Main BoxTestBenchmark.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BoxTestBenchmark {
+
+	static final int NUM_BOXES = 1024;
+	static final int NUM_RAYS = 64;
+
+	BvhNode[] boxes;
+	Ray[] rays;
+	int nextRay;
+
+	@Setup
+	public void setUp() {
+		Random rnd = new Random(4620);
+		boxes = new BvhNode[NUM_BOXES];
+		for (int i = 0; i < NUM_BOXES; i++) {
+			Vector3d min = new Vector3d(rnd.nextDouble() * 20 - 10, rnd.nextDouble() * 20 - 10, rnd.nextDouble() * 20 - 10);
+			Vector3d max = new Vector3d(min).add(rnd.nextDouble() * 2, rnd.nextDouble() * 2, rnd.nextDouble() * 2);
+			boxes[i] = new BvhNode(min, max, null, null, 0, 0);
+		}
+		rays = new Ray[NUM_RAYS];
+		for (int i = 0; i < NUM_RAYS; i++) {
+			Vector3d origin = new Vector3d(rnd.nextDouble() * 30 - 15, rnd.nextDouble() * 30 - 15, 20);
+			Vector3d direction = new Vector3d(rnd.nextDouble() - 0.5, rnd.nextDouble() - 0.5, -1);
+			rays[i] = new Ray(origin, direction.normalize());
+			rays[i].makeOffsetSegment(30);
+		}
+	}
+
+	@Benchmark
+	public int legacySlabTest() {
+		Ray ray = rays[nextRay++ & (NUM_RAYS - 1)];
+		int hits = 0;
+		for (BvhNode box : boxes)
+			if (legacyIntersects(box, ray)) hits++;
+		return hits;
+	}
+
+	@Benchmark
+	public int cachedInverseSlabTest() {
+		Ray ray = rays[nextRay++ & (NUM_RAYS - 1)];
+		ray.updateInverseDirection();
+		int hits = 0;
+		for (BvhNode box : boxes)
+			if (box.entryDistance(ray) != Double.POSITIVE_INFINITY) hits++;
+		return hits;
+	}
+
+	/** The test BvhNode.intersects performed before the inverse direction was cached. */
+	static boolean legacyIntersects(BvhNode node, Ray ray) {
+		ray.direction.normalize();
+		double txMin = (node.minBound.x - ray.origin.x) / ray.direction.x;
+		double tyMin = (node.minBound.y - ray.origin.y) / ray.direction.y;
+		double tzMin = (node.minBound.z - ray.origin.z) / ray.direction.z;
+
+		double txMax = (node.maxBound.x - ray.origin.x) / ray.direction.x;
+		double tyMax = (node.maxBound.y - ray.origin.y) / ray.direction.y;
+		double tzMax = (node.maxBound.z - ray.origin.z) / ray.direction.z;
+
+		double txEnter = Math.min(txMin, txMax);
+		double tyEnter = Math.min(tyMin, tyMax);
+		double tzEnter = Math.min(tzMin, tzMax);
+
+		double txExit = Math.max(txMin, txMax);
+		double tyExit = Math.max(tyMin, tyMax);
+		double tzExit = Math.max(tzMin, tzMax);
+
+		return Math.max(txEnter, Math.max(tyEnter, tzEnter)) <= Math.min(txExit, Math.min(tyExit, tzExit));
+	}
+}
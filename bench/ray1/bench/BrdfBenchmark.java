@@ -0,0 +1,101 @@
+package ray1.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import egl.math.Colorf;
+import egl.math.Vector2;
+import egl.math.Vector3d;
+import ray1.shader.BRDF;
+import ray1.shader.Lambertian;
+import ray1.shader.Microfacet;
+import ray1.shader.MicrofacetBeckmann;
+import ray1.shader.MicrofacetGGX;
+import ray1.shader.Phong;
+import ray1.shader.ReflectionShader;
+
+/**
+ * BRDF.EvalBRDF for each BRDF, with the materials of the fast_scenes. Each invocation
+ * evaluates NUM_SAMPLES random pairs of directions in the upper hemisphere of a
+ * random normal. The BRDFs are made by their shaders, as the parser would.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BrdfBenchmark {
+
+	static final int NUM_SAMPLES = 1024;
+
+	@Param({ "lambertian", "phong", "beckmann", "ggx" })
+	public String type;
+
+	BRDF brdf;
+	Vector3d[] incoming, outgoing, normals;
+	Vector2 uv = new Vector2(0.5f, 0.5f);
+	Colorf value = new Colorf();
+
+	@Setup
+	public void setUp() {
+		ReflectionShader shader;
+		if (type.equals("lambertian")) {
+			Lambertian lambertian = new Lambertian();
+			lambertian.setDiffuseColor(new Colorf(0.2f, 0.3f, 0.8f));
+			shader = lambertian;
+		} else if (type.equals("phong")) {
+			Phong phong = new Phong();
+			phong.setDiffuseColor(new Colorf(0.2f, 0.3f, 0.8f));
+			phong.setSpecularColor(new Colorf(1, 1, 1));
+			phong.setExponent(50);
+			shader = phong;
+		} else {
+			Microfacet microfacet = type.equals("ggx") ? new MicrofacetGGX() : new MicrofacetBeckmann();
+			microfacet.setDiffuseColor(new Colorf(0.2f, 0.3f, 0.8f));
+			microfacet.setNt(1.5f);
+			microfacet.setAlpha(0.1f);
+			shader = microfacet;
+		}
+		shader.init();
+		brdf = shader.getBRDF();
+
+		Random rnd = new Random(4620);
+		incoming = new Vector3d[NUM_SAMPLES];
+		outgoing = new Vector3d[NUM_SAMPLES];
+		normals = new Vector3d[NUM_SAMPLES];
+		for (int i = 0; i < NUM_SAMPLES; i++) {
+			normals[i] = randomDirection(rnd);
+			incoming[i] = randomDirection(rnd);
+			outgoing[i] = randomDirection(rnd);
+			if (incoming[i].dot(normals[i]) < 0) incoming[i].negate();
+			if (outgoing[i].dot(normals[i]) < 0) outgoing[i].negate();
+		}
+	}
+
+	static Vector3d randomDirection(Random rnd) {
+		return new Vector3d(rnd.nextGaussian(), rnd.nextGaussian(), rnd.nextGaussian()).normalize();
+	}
+
+	@Benchmark
+	public float evalBRDF() {
+		float sum = 0;
+		for (int i = 0; i < NUM_SAMPLES; i++) {
+			brdf.EvalBRDF(incoming[i], outgoing[i], normals[i], uv, value);
+			sum += value.x;
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,163 @@
+package ray1.bench;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import egl.math.Vector3d;
+import ray1.IntersectionRecord;
+import ray1.Ray;
+import ray1.accel.AccelStruct;
+import ray1.accel.Bvh;
+import ray1.accel.WideBvh;
+import ray1.surface.Mesh;
+import ray1.surface.Surface;
+
+/**
+ * Bvh.build with each build strategy, and Bvh.intersect for closest and any hits,
+ * as well as WideBvh.intersect over the SAH tree collapsed to 4 and 8 children,
+ * over the triangles of meshes in data/meshes stored as one Triangle surface each,
+ * which is the tree the BVH code builds itself rather than one loaded from a cache.
+ * Each intersect invocation traces NUM_RAYS rays from a sphere around the mesh
+ * toward random points of its bounding box.
+ *
+ * Run from the project root, the same way as BoxTestBenchmark. Mesh caches are
+ * neither read nor written.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BvhBenchmark {
+
+	static final int NUM_RAYS = 1024;
+
+	@Param({ "bunny.obj", "ico4.obj", "sphere.obj", "teapot.obj", "b1.obj" })
+	public String file;
+
+	Surface[] surfaces;
+	Bvh medianBvh, sahBvh, lbvh;
+	WideBvh wide4, wide8;
+	Ray[] rays;
+	IntersectionRecord record = new IntersectionRecord();
+
+	/**
+	 * Load a mesh from data/meshes as one Triangle per face.
+	 */
+	static Surface[] triangles(String file) throws Exception {
+		Mesh.setUseCache(false);
+		Mesh mesh = new Mesh();
+		mesh.setStorage(Mesh.TRIANGLES);
+		mesh.setData("data/meshes/" + file);
+		ArrayList<Surface> list = new ArrayList<Surface>();
+		mesh.appendRenderableSurfaces(list);
+		return list.toArray(new Surface[list.size()]);
+	}
+
+	@Setup
+	public void setUp() throws Exception {
+		surfaces = triangles(file);
+		medianBvh = build(Bvh.MEDIAN);
+		sahBvh = build(Bvh.SAH);
+		lbvh = build(Bvh.LBVH);
+		wide4 = new WideBvh();
+		wide4.collapse(sahBvh);
+		wide8 = new WideBvh();
+		wide8.setWidth(8);
+		wide8.collapse(sahBvh);
+
+		Vector3d min = new Vector3d(Double.POSITIVE_INFINITY), max = new Vector3d(Double.NEGATIVE_INFINITY);
+		for (Surface s : surfaces) {
+			Vector3d lo = s.getMinBound(), hi = s.getMaxBound();
+			min.set(Math.min(min.x, lo.x), Math.min(min.y, lo.y), Math.min(min.z, lo.z));
+			max.set(Math.max(max.x, hi.x), Math.max(max.y, hi.y), Math.max(max.z, hi.z));
+		}
+		Vector3d center = new Vector3d(min).add(max).mul(0.5);
+		double radius = new Vector3d(max).sub(min).len();
+		Random rnd = new Random(4620);
+		rays = new Ray[NUM_RAYS];
+		for (int i = 0; i < NUM_RAYS; i++) {
+			Vector3d origin = new Vector3d(rnd.nextGaussian(), rnd.nextGaussian(), rnd.nextGaussian())
+					.normalize().mul(radius).add(center);
+			Vector3d target = new Vector3d(min).add(new Vector3d(max).sub(min)
+					.mul(rnd.nextDouble(), rnd.nextDouble(), rnd.nextDouble()));
+			rays[i] = new Ray(origin, target.sub(origin).normalize());
+		}
+	}
+
+	/** Build on a copy of the surfaces, since a build reorders the array it is given. */
+	Bvh build(String strategy) {
+		Bvh bvh = new Bvh();
+		bvh.setBuildStrategy(strategy);
+		bvh.build(surfaces.clone());
+		return bvh;
+	}
+
+	@Benchmark
+	public Bvh buildMedian() {
+		return build(Bvh.MEDIAN);
+	}
+
+	@Benchmark
+	public Bvh buildSah() {
+		return build(Bvh.SAH);
+	}
+
+	@Benchmark
+	public Bvh buildLbvh() {
+		return build(Bvh.LBVH);
+	}
+
+	@Benchmark
+	public int intersectMedian() {
+		return trace(medianBvh, false);
+	}
+
+	@Benchmark
+	public int intersectSah() {
+		return trace(sahBvh, false);
+	}
+
+	@Benchmark
+	public int intersectLbvh() {
+		return trace(lbvh, false);
+	}
+
+	@Benchmark
+	public int intersectWide4() {
+		return trace(wide4, false);
+	}
+
+	@Benchmark
+	public int intersectWide8() {
+		return trace(wide8, false);
+	}
+
+	@Benchmark
+	public int occludedSah() {
+		return trace(sahBvh, true);
+	}
+
+	int trace(AccelStruct bvh, boolean any) {
+		int hits = 0;
+		for (Ray ray : rays) {
+			ray.makeOffsetRay();
+			if (any ? bvh.occluded(ray) : bvh.intersect(record, ray, false)) hits++;
+		}
+		return hits;
+	}
+}
@@ -0,0 +1,71 @@
+package ray1.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import egl.math.Vector3;
+import ray1.Ray;
+import ray1.camera.Camera;
+import ray1.camera.OrthographicCamera;
+import ray1.camera.PerspectiveCamera;
+
+/**
+ * Camera.getRay for each camera type, with the view of the fast_scenes. Each
+ * invocation generates the primary rays of one 32 x 32 tile, one per pixel center.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CameraBenchmark {
+
+	static final int TILE = 32;
+
+	@Param({ "perspective", "orthographic" })
+	public String type;
+
+	Camera camera;
+	Ray ray = new Ray();
+
+	@Setup
+	public void setUp() {
+		if (type.equals("perspective")) {
+			PerspectiveCamera perspective = new PerspectiveCamera();
+			perspective.setprojDistance(5);
+			camera = perspective;
+		} else {
+			camera = new OrthographicCamera();
+		}
+		camera.setViewPoint(new Vector3(2.5f, 2, 1.5f));
+		camera.setViewDir(new Vector3(-2.5f, -2, -1.5f));
+		camera.setViewUp(new Vector3(0, 1, 0));
+		camera.setViewWidth(5);
+		camera.setViewHeight(5);
+		camera.init();
+	}
+
+	@Benchmark
+	public double getRay() {
+		double sum = 0;
+		for (int y = 0; y < TILE; y++) {
+			for (int x = 0; x < TILE; x++) {
+				camera.getRay(ray, (x + 0.5f) / TILE, (y + 0.5f) / TILE);
+				sum += ray.direction.x;
+			}
+		}
+		return sum;
+	}
+}
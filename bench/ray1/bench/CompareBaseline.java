@@ -0,0 +1,147 @@
+package ray1.bench;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Compares a JMH run against bench/baseline.csv and reports the benchmarks that got
+ * slower. Both files are in the format JMH writes with -rf csv; lines starting with
+ * # are comments. Run the suite from the project root with
+ *
+ *   java -cp ... org.openjdk.jmh.Main ray1.bench -rf csv -rff results.csv
+ *
+ * then
+ *
+ *   java -cp ... ray1.bench.CompareBaseline bench/baseline.csv results.csv [tolerance]
+ *
+ * A benchmark counts as a regression when its score is more than tolerance (default
+ * 0.1, i.e. 10%) above the baseline and the two scores are further apart than their
+ * error bars, so noisy benchmarks are not flagged for noise alone. All scores are
+ * times per operation, so higher is slower. The exit status is 1 if any benchmark
+ * regressed. To take a new baseline, copy results.csv over bench/baseline.csv; the
+ * numbers only mean something against runs on the same machine and JVM.
+ */
+public class CompareBaseline {
+
+	/** One row of a JMH CSV file. */
+	static class Result {
+		String name;
+		double score, error;
+		String unit;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.out.println("Usage: CompareBaseline baseline.csv results.csv [tolerance]");
+			System.exit(2);
+		}
+		double tolerance = args.length > 2 ? Double.parseDouble(args[2]) : 0.1;
+		Map<String, Result> baseline = read(args[0]);
+		Map<String, Result> results = read(args[1]);
+
+		int regressions = 0, improvements = 0, compared = 0;
+		for (Result r : results.values()) {
+			Result b = baseline.get(r.name);
+			if (b == null) {
+				System.out.printf(Locale.ROOT, "  new        %-70s %12.3f %s%n", r.name, r.score, r.unit);
+				continue;
+			}
+			if (!b.unit.equals(r.unit)) {
+				System.out.println("  skipped    " + r.name + ": unit " + r.unit + " but baseline " + b.unit);
+				continue;
+			}
+			compared++;
+			double change = (r.score - b.score) / b.score;
+			boolean significant = Math.abs(r.score - b.score) > r.error + b.error;
+			String verdict = "";
+			if (significant && change > tolerance) {
+				verdict = "REGRESSION";
+				regressions++;
+			} else if (significant && change < -tolerance) {
+				verdict = "faster";
+				improvements++;
+			}
+			System.out.printf(Locale.ROOT, "  %-10s %-70s %12.3f -> %12.3f %s (%+.1f%%)%n",
+					verdict, r.name, b.score, r.score, r.unit, 100 * change);
+		}
+		for (String name : baseline.keySet()) {
+			if (!results.containsKey(name)) System.out.println("  missing    " + name);
+		}
+		System.out.printf(Locale.ROOT, "%d benchmarks compared: %d regressions, %d faster (tolerance %.0f%%)%n",
+				compared, regressions, improvements, 100 * tolerance);
+		if (regressions > 0) System.exit(1);
+	}
+
+	/**
+	 * Read a JMH CSV file into results keyed by benchmark name and parameters.
+	 */
+	static Map<String, Result> read(String file) throws IOException {
+		Map<String, Result> results = new LinkedHashMap<String, Result>();
+		List<String> header = null;
+		for (String line : Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8)) {
+			if (line.trim().isEmpty() || line.startsWith("#")) continue;
+			List<String> fields = split(line);
+			if (header == null) {
+				header = fields;
+				continue;
+			}
+			Result r = new Result();
+			StringBuilder name = new StringBuilder();
+			for (int i = 0; i < fields.size() && i < header.size(); i++) {
+				String column = header.get(i), value = fields.get(i);
+				if (column.equals("Benchmark")) name.insert(0, value);
+				else if (column.equals("Score")) r.score = parse(value);
+				else if (column.startsWith("Score Error")) r.error = parse(value);
+				else if (column.equals("Unit")) r.unit = value;
+				else if (column.startsWith("Param: ") && !value.isEmpty())
+					name.append(name.indexOf("(") < 0 ? " (" : ", ").append(column.substring(7)).append('=').append(value);
+			}
+			if (name.indexOf("(") >= 0) name.append(')');
+			r.name = name.toString();
+			results.put(r.name, r);
+		}
+		return results;
+	}
+
+	/** JMH writes NaN for the error of a single sample. */
+	private static double parse(String value) {
+		double v = Double.parseDouble(value);
+		return Double.isNaN(v) ? 0 : v;
+	}
+
+	/** Split a CSV line, dropping the quotes around fields. */
+	private static List<String> split(String line) {
+		List<String> fields = new ArrayList<String>();
+		StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (quoted) {
+				if (c != '"') {
+					field.append(c);
+				} else if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+					field.append(c);
+					i++;
+				} else {
+					quoted = false;
+				}
+			} else if (c == '"') {
+				quoted = true;
+			} else if (c == ',') {
+				fields.add(field.toString());
+				field.setLength(0);
+			} else {
+				field.append(c);
+			}
+		}
+		fields.add(field.toString());
+		return fields;
+	}
+}
@@ -0,0 +1,134 @@
+package ray1.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import egl.math.Vector3;
+import egl.math.Vector3d;
+import ray1.IntersectionRecord;
+import ray1.Ray;
+import ray1.accel.BvhNode;
+import ray1.surface.Sphere;
+import ray1.surface.Surface;
+import ray1.surface.Triangle;
+
+/**
+ * The primitive tests every traversal ends in: Sphere.intersect, Triangle.intersect
+ * and BvhNode.intersects. Each invocation runs NUM_RAYS tests, about half of them
+ * hits, so the score divided by NUM_RAYS is the cost of one test. The triangles are
+ * those of bunny.obj, each with a ray aimed near its centroid.
+ *
+ * Run from the project root, the same way as BoxTestBenchmark.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IntersectBenchmark {
+
+	static final int NUM_RAYS = 1024;
+
+	Sphere sphere;
+	Ray[] sphereRays;
+
+	Triangle[] triangles;
+	Ray[] triangleRays;
+
+	BvhNode[] boxes;
+	Ray[] boxRays;
+
+	IntersectionRecord record = new IntersectionRecord();
+
+	@Setup
+	public void setUp() throws Exception {
+		Random rnd = new Random(4620);
+
+		// Rays from a ring around the unit sphere, aimed within twice its radius of the center
+		sphere = new Sphere();
+		sphere.setCenter(new Vector3(0, 0, 0));
+		sphere.setRadius(1);
+		sphereRays = new Ray[NUM_RAYS];
+		for (int i = 0; i < NUM_RAYS; i++) {
+			double a = rnd.nextDouble() * 2 * Math.PI;
+			Vector3d origin = new Vector3d(5 * Math.cos(a), rnd.nextDouble() * 2 - 1, 5 * Math.sin(a));
+			Vector3d target = new Vector3d(rnd.nextDouble() * 4 - 2, rnd.nextDouble() * 4 - 2, rnd.nextDouble() * 4 - 2)
+					.mul(0.7);
+			sphereRays[i] = new Ray(origin, target.sub(origin).normalize());
+		}
+
+		// One ray per triangle, aimed at a point of the triangle's plane near its centroid
+		Surface[] surfaces = BvhBenchmark.triangles("bunny.obj");
+		triangles = new Triangle[NUM_RAYS];
+		triangleRays = new Ray[NUM_RAYS];
+		for (int i = 0; i < NUM_RAYS; i++) {
+			Triangle t = (Triangle) surfaces[rnd.nextInt(surfaces.length)];
+			Vector3 v0 = t.getVertex(0), v1 = t.getVertex(1), v2 = t.getVertex(2);
+			// Barycentric coordinates in [-0.25, 0.75] land inside about half the time
+			double b1 = rnd.nextDouble() - 0.25, b2 = rnd.nextDouble() - 0.25;
+			Vector3d target = new Vector3d(v0).addMultiple(b1, new Vector3d(v1).sub(new Vector3d(v0)))
+					.addMultiple(b2, new Vector3d(v2).sub(new Vector3d(v0)));
+			Vector3d direction = new Vector3d(rnd.nextDouble() - 0.5, rnd.nextDouble() - 0.5, rnd.nextDouble() - 0.5)
+					.normalize();
+			triangles[i] = t;
+			triangleRays[i] = new Ray(new Vector3d(target).addMultiple(-1, direction), direction);
+		}
+
+		// Random boxes, each with a ray aimed at a random point of the box grown to twice its size
+		boxes = new BvhNode[NUM_RAYS];
+		boxRays = new Ray[NUM_RAYS];
+		for (int i = 0; i < NUM_RAYS; i++) {
+			Vector3d min = new Vector3d(rnd.nextDouble() * 4 - 2, rnd.nextDouble() * 4 - 2, rnd.nextDouble() * 4 - 2);
+			Vector3d size = new Vector3d(rnd.nextDouble() + 0.1, rnd.nextDouble() + 0.1, rnd.nextDouble() + 0.1);
+			boxes[i] = new BvhNode(min, new Vector3d(min).add(size), null, null, 0, 0);
+			Vector3d target = new Vector3d(min).addMultiple(-0.5, size)
+					.add(new Vector3d(size).mul(2 * rnd.nextDouble(), 2 * rnd.nextDouble(), 2 * rnd.nextDouble()));
+			Vector3d origin = new Vector3d(rnd.nextDouble() * 4 - 2, rnd.nextDouble() * 4 - 2, 10);
+			boxRays[i] = new Ray(origin, target.sub(origin).normalize());
+		}
+	}
+
+	@Benchmark
+	public int sphereIntersect() {
+		int hits = 0;
+		for (Ray ray : sphereRays) {
+			ray.makeOffsetRay();
+			if (sphere.intersect(record, ray)) hits++;
+		}
+		return hits;
+	}
+
+	@Benchmark
+	public int triangleIntersect() {
+		int hits = 0;
+		for (int i = 0; i < NUM_RAYS; i++) {
+			Ray ray = triangleRays[i];
+			ray.makeOffsetRay();
+			if (triangles[i].intersect(record, ray)) hits++;
+		}
+		return hits;
+	}
+
+	@Benchmark
+	public int boxIntersects() {
+		int hits = 0;
+		for (int i = 0; i < NUM_RAYS; i++) {
+			Ray ray = boxRays[i];
+			ray.makeOffsetSegment(30);
+			if (boxes[i].intersects(ray)) hits++;
+		}
+		return hits;
+	}
+}
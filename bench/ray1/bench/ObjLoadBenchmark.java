@@ -0,0 +1,144 @@
+package ray1.bench;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import egl.math.Vector2;
+import egl.math.Vector3;
+import ray1.OBJData;
+import ray1.OBJFace;
+import ray1.OBJMesh;
+import ray1.OBJMesh.OBJFileFormatException;
+
+/**
+ * Compares loading each mesh in data/meshes with the OBJ parser OBJMesh used to have
+ * (split every line with regexes, then parse the tokens) against the streaming reader:
+ * OBJData.read alone, which is all a packed mesh needs, and OBJMesh.parseOBJ, which
+ * still boxes the result into Vector3s and OBJFaces.
+ *
+ * Run from the project root so that data/meshes resolves, the same way as
+ * BoxTestBenchmark, adding -prof gc to report the bytes allocated per load
+ * (gc.alloc.rate.norm) next to the load time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ObjLoadBenchmark {
+
+	@Param({ "b1.obj", "b2.obj", "box-offset.obj", "bunny-shadow-v2.obj", "bunny.obj", "bunny128v2.obj",
+			"bunnyNV.obj", "bunnyNV0.obj", "ico1.obj", "ico2.obj", "ico3.obj", "ico4.obj",
+			"plane-notex.obj", "plane.obj", "sphere.obj", "teapot.obj" })
+	public String file;
+
+	String path() {
+		return "data/meshes/" + file;
+	}
+
+	@Benchmark
+	public OBJMesh legacyParseOBJ() throws IOException {
+		OBJMesh mesh = new OBJMesh();
+		legacyParseOBJ(mesh, path());
+		return mesh;
+	}
+
+	@Benchmark
+	public OBJMesh parseOBJ() throws IOException {
+		return new OBJMesh(path());
+	}
+
+	@Benchmark
+	public OBJData readOBJData() throws IOException {
+		return OBJData.read(path());
+	}
+
+	/** OBJMesh.parseOBJ as it was before OBJData. */
+	static void legacyParseOBJ(OBJMesh mesh, String filename) throws IOException, OBJFileFormatException {
+		BufferedReader reader = Files.newBufferedReader(Paths.get(filename));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			String[] tokens = line.split("\\s+");
+			if (tokens[0].charAt(0) == '#') { // Comment
+				continue;
+			} else if (tokens[0].equals("s") || tokens[0].equals("o")) {
+				continue;
+			} else if (tokens[0].equals("v")) { // Vertex position
+				if (tokens.length != 4) {
+					throw new OBJFileFormatException("Malformed vertex position specification: " + line);
+				}
+				mesh.positions.add(new Vector3(
+					Float.parseFloat(tokens[1]),
+					Float.parseFloat(tokens[2]),
+					Float.parseFloat(tokens[3])));
+			} else if (tokens[0].equals("vt")) { // Vertex texture coordinate (UV)
+				if (tokens.length != 3) {
+					throw new OBJFileFormatException("Malformed vertex texture coordinate specification: " + line);
+				}
+				mesh.uvs.add(new Vector2(
+					Float.parseFloat(tokens[1]),
+					Float.parseFloat(tokens[2])));
+			} else if (tokens[0].equals("vn")) { // Vertex normal
+				if (tokens.length != 4) {
+					throw new OBJFileFormatException("Malformed vertex normal specification: " + line);
+				}
+				mesh.normals.add(new Vector3(
+					Float.parseFloat(tokens[1]),
+					Float.parseFloat(tokens[2]),
+					Float.parseFloat(tokens[3])));
+			} else if (tokens[0].equals("f")) { // Face
+				if (tokens.length < 4) {
+					throw new OBJFileFormatException("Malformed face specification: " + line);
+				}
+				int nVerts = tokens.length-1;
+				OBJFace f = new OBJFace(nVerts, false, false);
+				for (int i=0; i<nVerts; i++) {
+					String[] vertexTokens = tokens[i+1].split("/");
+					switch (vertexTokens.length) {
+					case 3:
+						if (!vertexTokens[2].equals("")) {
+							if (f.normals == null) {
+								f.normals = new int[nVerts];
+							}
+							f.normals[i] = Integer.parseInt(vertexTokens[2]) + OBJFace.indexBase - 1;
+						}
+						// Intentionally fall through
+					case 2:
+						if (!vertexTokens[1].equals("")) {
+							if (f.uvs == null) {
+								f.uvs = new int[nVerts];
+							}
+							f.uvs[i] = Integer.parseInt(vertexTokens[1]) + OBJFace.indexBase - 1;
+						}
+						// Intentionally fall through
+					case 1:
+						f.positions[i] = Integer.parseInt(vertexTokens[0]) + OBJFace.indexBase - 1;
+						break;
+
+					default:
+						throw new OBJFileFormatException("Malformed face specification: " + line);
+					}
+				}
+				mesh.faces.add(f);
+			} else {
+				System.err.println("Warning: ignored unrecognized OBJ specifier: " + tokens[0]);
+			}
+		}
+		reader.close();
+	}
+}
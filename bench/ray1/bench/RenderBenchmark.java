@@ -0,0 +1,66 @@
+package ray1.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ray1.Image;
+import ray1.Parser;
+import ray1.RayTracer;
+import ray1.Scene;
+
+/**
+ * One full frame of each of the fast_scenes, rendered on one thread so the score
+ * does not depend on the machine's core count. The scene is parsed and initialized
+ * once; each invocation traces every pixel again with the scene's own samples, the
+ * way RayTracer.renderImage does minus its timing printout. renderWavefront traces
+ * the same frame with the wavefront renderer.
+ *
+ * Run from the project root, the same way as BoxTestBenchmark.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RenderBenchmark extends RayTracer {
+
+	@Param({ "four-spheres.xml", "one-sphere-GGX.xml", "one-sphere-GGX2.xml", "one-sphere-beckmann.xml",
+			"one-sphere-beckmann2.xml", "one-sphere-lambertian.xml", "one-sphere-phong.xml",
+			"one-sphere-rgb-normals.xml", "two-boxes-rgb-normals.xml", "two-boxes.xml",
+			"wire-box-orthographic-phong.xml", "wire-box-orthographic.xml", "wire-box-phong.xml", "wire-box.xml" })
+	public String scene;
+
+	Scene parsed;
+
+	@Setup
+	public void setUp() {
+		setNumThreads(1);
+		parsed = (Scene) new Parser().parse(new ScenePath(directory, "fast_scenes/" + scene), Scene.class);
+		parsed.init();
+	}
+
+	@Benchmark
+	public Image render() {
+		renderPass(parsed, parsed.getSamples(), -1, null);
+		return parsed.getImage();
+	}
+
+	/** The same frame rendered bounce by bounce, for comparison with render(). */
+	@Benchmark
+	public Image renderWavefront() {
+		renderImageWavefront(parsed, parsed.getSamples(), -1, null);
+		return parsed.getImage();
+	}
+}
@@ -0,0 +1,103 @@
+package ray1;
+
+/**
+ * Gamma correction and quantization of linear color components to 8 bits, through a
+ * table instead of a Math.pow per component.
+ *
+ * The table holds, for every output value b from 1 to 255, the smallest float that
+ * Colorf.gammaCorrect followed by Colorf.toColor turns into b or more. Since that
+ * conversion never decreases as its input grows, the number of thresholds a value
+ * reaches is exactly the byte the Colorf path would give: finite negative values and
+ * NaN come out as 0, values whose corrected value is 1 or more as 255. A second table,
+ * indexed by the high bits of the float, gives the count to within a step or two, so
+ * a lookup costs only a few comparisons.
+ */
+public final class GammaTable {
+
+	/** The gamma this table corrects for. */
+	public final float gamma;
+
+	/** threshold[b] is the smallest input that quantizes to b or more; threshold[0] is unused. */
+	private final float[] threshold = new float[256];
+
+	/**
+	 * The output for the smallest float in each run of 2^COARSE_SHIFT consecutive bit
+	 * patterns, from which quantize steps up the thresholds; a run spans at most a
+	 * couple of output values.
+	 */
+	private final byte[] coarse;
+	private static final int COARSE_SHIFT = 16;
+
+	/** The most recently used table, since images are nearly always written with one gamma. */
+	private static volatile GammaTable last = null;
+
+	/**
+	 * @return a table for gamma, shared with earlier callers asking for the same gamma
+	 */
+	public static GammaTable get(float gamma) {
+		GammaTable table = last;
+		if (table == null || Float.floatToIntBits(table.gamma) != Float.floatToIntBits(gamma)) {
+			table = new GammaTable(gamma);
+			last = table;
+		}
+		return table;
+	}
+
+	public GammaTable(float gamma) {
+		this.gamma = gamma;
+		float inverseGamma = 1.0f / gamma;
+		threshold[0] = Float.NEGATIVE_INFINITY;
+		for (int b = 1; b < 256; b++) {
+			// Bisect over the bit patterns of the non-negative floats, which sort like the floats
+			int lo = 0, hi = Float.floatToIntBits(Float.POSITIVE_INFINITY);
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (reference(Float.intBitsToFloat(mid), inverseGamma) >= b) hi = mid;
+				else lo = mid + 1;
+			}
+			threshold[b] = Float.intBitsToFloat(lo);
+		}
+
+		coarse = new byte[(Float.floatToIntBits(threshold[255]) >>> COARSE_SHIFT) + 1];
+		for (int i = 0; i < coarse.length; i++)
+			coarse[i] = (byte) search(Float.intBitsToFloat(i << COARSE_SHIFT));
+	}
+
+	/** Binary search of the thresholds. */
+	private int search(float v) {
+		int b = 0;
+		for (int step = 128; step > 0; step >>= 1) {
+			if (v >= threshold[b + step]) b += step;
+		}
+		return b;
+	}
+
+	/**
+	 * The conversion the table reproduces: Colorf.gammaCorrect, then the clamping and
+	 * rounding of Colorf.toColor.
+	 */
+	static int reference(float v, float inverseGamma) {
+		float c = (float) Math.pow(v, inverseGamma);
+		c = Math.max(Math.min(c, 1.0f), 0.0f);
+		return ((byte) (c * 255f + 0.5f)) & 0xff;
+	}
+
+	/**
+	 * @return the 8-bit gamma-corrected value of a linear component v
+	 */
+	public int quantize(float v) {
+		// Math.pow takes negative infinity to the power 1/gamma to positive infinity
+		if (!(v > 0)) return v == Float.NEGATIVE_INFINITY ? 255 : 0;
+		if (v >= threshold[255]) return 255;
+		int b = coarse[Float.floatToRawIntBits(v) >>> COARSE_SHIFT] & 0xff;
+		while (v >= threshold[b + 1]) b++;
+		return b;
+	}
+
+	/**
+	 * @return r, g and b quantized and packed as 0xRRGGBB, as in BufferedImage.TYPE_INT_RGB
+	 */
+	public int toIntRGB(float r, float g, float b) {
+		return (quantize(r) << 16) | (quantize(g) << 8) | quantize(b);
+	}
+}
@@ -0,0 +1,184 @@
+package ray1;
+
+import java.util.Arrays;
+
+import egl.math.Colorf;
+
+/**
+ * What each pixel of a render cost, for finding the geometry and materials that make a
+ * scene slow. The cost is one of three metrics, summed over every ray of the pixel,
+ * shadow and secondary rays included:
+ *
+ * - NODES: BVH nodes visited, which is high where rays graze many overlapping boxes,
+ * - TESTS: surfaces and triangles tested, which is high in leaves that hold too much,
+ * - TIME: nanoseconds spent, which also shows the cost of shading.
+ *
+ * The render loops read the metric before rendering a pixel and add the difference
+ * afterwards (see read and add). Nodes and tests come from the calling thread's
+ * RenderStats.Counters, so they are as exact as the scene's statistics; time is
+ * wall-clock and so includes whatever else the machine was doing. Every pixel is
+ * rendered by one thread at a time, so the costs need no synchronization; passes of
+ * adaptive or progressive rendering add to the same pixels.
+ *
+ * The map is written as a false-color PNG running from black through purple, red and
+ * yellow to white at the 99th percentile of the costs, so that a few extreme pixels do
+ * not wash out the rest, and as an EXR holding the raw cost in every channel.
+ */
+public class HeatMap {
+
+	/** Metric: BVH nodes visited. */
+	public static final String NODES = "nodes";
+	/** Metric: surfaces and triangles tested for intersection. */
+	public static final String TESTS = "tests";
+	/** Metric: nanoseconds spent. */
+	public static final String TIME = "time";
+
+	/** The fraction of the pixels below the cost drawn as the hottest color. */
+	private static final double SCALE_PERCENTILE = 0.99;
+
+	/** The display gamma of the PNG, as used by Image.write. */
+	private static final float GAMMA = 2.2f;
+
+	/** The colors of the ramp in display units, evenly spaced from no cost to the top of the scale. */
+	private static final float[][] RAMP = {
+		{ 0.00f, 0.00f, 0.00f },
+		{ 0.16f, 0.04f, 0.42f },
+		{ 0.55f, 0.08f, 0.50f },
+		{ 0.89f, 0.27f, 0.20f },
+		{ 0.99f, 0.69f, 0.08f },
+		{ 1.00f, 1.00f, 0.85f }
+	};
+
+	protected final String metric;
+	protected final int width, height;
+
+	/** The cost of every pixel y * width + x. */
+	protected final float[] cost;
+
+	/**
+	 * @param metric NODES, TESTS or TIME, in any case
+	 * @param width the width of the image
+	 * @param height the height of the image
+	 */
+	public HeatMap(String metric, int width, int height) {
+		this.metric = checkMetric(metric);
+		this.width = width;
+		this.height = height;
+		cost = new float[width * height];
+	}
+
+	/**
+	 * @return the constant among NODES, TESTS and TIME that metric names
+	 * @throws IllegalArgumentException if it is not
+	 */
+	public static String checkMetric(String metric) {
+		String m = metric.trim().toLowerCase();
+		if (m.equals(NODES)) return NODES;
+		if (m.equals(TESTS)) return TESTS;
+		if (m.equals(TIME)) return TIME;
+		throw new IllegalArgumentException("Unknown heat map metric: " + metric);
+	}
+
+	public String getMetric() { return metric; }
+
+	/**
+	 * @return the calling thread's current reading of the metric, to pass to add once
+	 * the pixel is rendered
+	 */
+	public long read() {
+		if (metric == TIME) return System.nanoTime();
+		RenderStats.Counters counters = RenderStats.local();
+		return metric == NODES ? counters.nodesVisited : counters.primitiveTests;
+	}
+
+	/**
+	 * Add what rendering a pixel cost since a reading of the metric.
+	 *
+	 * @param x the pixel column
+	 * @param y the pixel row
+	 * @param before the value read returned before the pixel was rendered, on this thread
+	 */
+	public void add(int x, int y, long before) {
+		cost[y * width + x] += read() - before;
+	}
+
+	/** @return the cost of pixel (x, y) */
+	public float get(int x, int y) {
+		return cost[y * width + x];
+	}
+
+	/**
+	 * @return the cost below which the fraction q of the pixels lie
+	 */
+	public float percentile(double q) {
+		float[] sorted = cost.clone();
+		Arrays.sort(sorted);
+		return sorted[(int) Math.min(sorted.length - 1, Math.max(0, Math.floor(q * sorted.length)))];
+	}
+
+	/**
+	 * Set out to the display color of a point on the ramp.
+	 *
+	 * @param t the position on the ramp, 0 for no cost and 1 or more for the top of the scale
+	 * @param out the color, in display units
+	 */
+	public static void ramp(float t, Colorf out) {
+		float s = Math.max(0, Math.min(1, t)) * (RAMP.length - 1);
+		int i = Math.min((int) s, RAMP.length - 2);
+		float f = s - i;
+		float[] a = RAMP[i], b = RAMP[i + 1];
+		out.set(a[0] + f * (b[0] - a[0]), a[1] + f * (b[1] - a[1]), a[2] + f * (b[2] - a[2]));
+	}
+
+	/**
+	 * @param scale the cost drawn as the hottest color
+	 * @return the map in false color, in linear units, so that Image.write shows the
+	 * colors of the ramp
+	 */
+	public Image toImage(float scale) {
+		Image image = new Image(width, height);
+		Colorf c = new Colorf();
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				ramp(scale > 0 ? get(x, y) / scale : 0, c);
+				c.set((float) Math.pow(c.x, GAMMA), (float) Math.pow(c.y, GAMMA), (float) Math.pow(c.z, GAMMA));
+				image.setPixelColor(c, x, y);
+			}
+		}
+		return image;
+	}
+
+	/**
+	 * @return the raw costs, the same in all three channels
+	 */
+	public Image toRawImage() {
+		Image image = new Image(width, height);
+		Colorf c = new Colorf();
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				float v = get(x, y);
+				c.set(v, v, v);
+				image.setPixelColor(c, x, y);
+			}
+		}
+		return image;
+	}
+
+	/**
+	 * Write the false-color map to baseName.heat.png and, if hdr is set, the raw costs
+	 * to baseName.heat.exr, and print the scale.
+	 *
+	 * @param baseName the output file name without extension
+	 * @param hdr whether to write the EXR as well
+	 */
+	public void write(String baseName, boolean hdr) {
+		float scale = percentile(SCALE_PERCENTILE);
+		if (scale <= 0) scale = percentile(1);
+		double total = 0;
+		for (float v : cost) total += v;
+		System.out.printf("Heat map (%s per pixel): mean %.1f, white at %.1f (99th percentile), max %.1f%n",
+				metric == TIME ? "ns" : metric, total / cost.length, scale, percentile(1));
+		toImage(scale).write(baseName + ".heat.png");
+		if (hdr) toRawImage().writeHDR(baseName + ".heat.exr");
+	}
+}
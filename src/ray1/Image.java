@@ -1,9 +1,13 @@
 package ray1;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.File;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import javax.imageio.ImageIO;
 
@@ -18,9 +22,16 @@ import egl.math.Color;
 import egl.math.Colorf;
 
 /**
- * Basic image class, containing a 2D array of Colorfs. Simple functionality for
+ * Basic image class, containing the RGB value of each pixel. Simple functionality for
  * setting pixel colors and writing to a PNG/EXR file is provided.
  *
+ * Pixels are kept in one direct (off-heap) buffer of floats, three per pixel, row
+ * after row in the order an EXR file stores them: top row (y = height - 1) first,
+ * left to right within a row. writeHDR hands this buffer to the EXR writer as it is,
+ * and write() quantizes it straight into the int raster of the PNG image.
+ * Pixels are read and written with absolute indices only, so threads may set
+ * different pixels at the same time.
+ *
  * @author eschweic
  */
 public class Image {
@@ -31,8 +42,11 @@ public class Image {
 	/** Image height * */
 	protected int height;
 	
-	/** Data array* */
-	protected Colorf[][] data;
+	/** The pixel data, in the byte order the EXR writer reads */
+	protected ByteBuffer bytes;
+	
+	/** Data array: R, G, B of each pixel, top row first; a view of bytes */
+	protected FloatBuffer data;
 	
 	/**
 	 * Create an empty image
@@ -51,22 +65,17 @@ public class Image {
 	 */
 	public Image(Image oldImage) {
 		setSize(oldImage.getWidth(), oldImage.getHeight());
-		for (int i = 0; i < width; i++) {
-			for (int j = 0; j < height; j++) {
-				data[i][j].set(oldImage.data[i][j]);
-			}
-		}
+		data.duplicate().put(oldImage.data.duplicate());
 	}
 	
 	/**
 	 * Set the image to black
 	 */
 	public void clear() {
-		for (int i = 0; i < width; i++) {
-			for (int j = 0; j < height; j++) {
-				data[i][j] = new Colorf();
-			}
-		}
+		float[] zeros = new float[Math.min(data.capacity(), 3 * 4096)];
+		FloatBuffer out = data.duplicate();
+		while (out.hasRemaining())
+			out.put(zeros, 0, Math.min(zeros.length, out.remaining()));
 	}
 	
 	/**
@@ -91,12 +100,18 @@ public class Image {
 	public void setSize(int newWidth, int newHeight) {
 		width = newWidth;
 		height = newHeight;
-		data = new Colorf[width][height];
-		for (int i=0; i<width; i++) {
-			for (int j=0; j<height; j++) {
-				data[i][j] = new Colorf();
-			}
-		}
+		// Direct buffers start out zeroed, i.e. black
+		bytes = ByteBuffer.allocateDirect(4 * 3 * width * height).order(ByteOrder.LITTLE_ENDIAN);
+		data = bytes.asFloatBuffer();
+	}
+	
+	/**
+	 * @return the index in data of the red component of pixel (inX, inY)
+	 */
+	protected int index(int inX, int inY) {
+		if (inX < 0 || inY < 0 || inX >= width || inY >= height)
+			throw new IndexOutOfBoundsException();
+		return 3 * ((height - 1 - inY) * width + inX);
 	}
 	
 	/**
@@ -107,9 +122,15 @@ public class Image {
 	 * @param inY inY Coordinate
 	 */
 	public void getPixelColor(Color outPixel, int inX, int inY) {
-		if (inX < 0 || inY < 0 || inX >= width || inY >= height)
-			throw new IndexOutOfBoundsException();
-		outPixel.set(data[inX][inY]);
+		int i = index(inX, inY);
+		outPixel.R = toByte(data.get(i));
+		outPixel.G = toByte(data.get(i + 1));
+		outPixel.B = toByte(data.get(i + 2));
+	}
+	
+	/** Clamp to [0, 1] and round to a byte, as Color.set(Colorf) does. */
+	private static byte toByte(float v) {
+		return (byte)(Math.min(1.0f, Math.max(0.0f, v)) * 255f + 0.5f);
 	}
 	
 	/**
@@ -120,9 +141,8 @@ public class Image {
 	 * @param inY inY Coordinate
 	 */
 	public void getPixelColor(Colorf outPixel, int inX, int inY) {
-		if (inX < 0 || inY < 0 || inX >= width || inY >= height)
-			throw new IndexOutOfBoundsException();
-		outPixel.set(data[inX][inY]);
+		int i = index(inX, inY);
+		outPixel.set(data.get(i), data.get(i + 1), data.get(i + 2));
 	}
 	
 	/**
@@ -132,9 +152,10 @@ public class Image {
 	 * @param inY inY Coordinate
 	 */
 	public void setPixelColor(Color inPixel, int inX, int inY) {
-		if (inX < 0 || inY < 0 || inX >= width || inY >= height)
-			throw new IndexOutOfBoundsException();
-		data[inX][inY].set(inPixel);
+		int i = index(inX, inY);
+		data.put(i, inPixel.r() / 255.0f);
+		data.put(i + 1, inPixel.g() / 255.0f);
+		data.put(i + 2, inPixel.b() / 255.0f);
 	}
 	
 	/**
@@ -144,9 +165,54 @@ public class Image {
 	 * @param inY inY coordinate
 	 */
 	public void setPixelColor(Colorf inPixel, int inX, int inY) {
-		if (inX < 0 || inY < 0 || inX >= width || inY >= height)
-			throw new IndexOutOfBoundsException();
-		data[inX][inY].set(inPixel);
+		int i = index(inX, inY);
+		data.put(i, inPixel.x);
+		data.put(i + 1, inPixel.y);
+		data.put(i + 2, inPixel.z);
+	}
+	
+	/**
+	 * Gamma correct, clamp and quantize every pixel to 0xRRGGBB, in the order of data
+	 * (top row first), which is also the order of a TYPE_INT_RGB BufferedImage. The
+	 * result is the same as that of Colorf.gammaCorrect and Colorf.toColor on each
+	 * pixel, but is looked up in a GammaTable, and large images are split into blocks
+	 * of rows that are converted in parallel.
+	 *
+	 * @param out the output, at least width * height long
+	 * @param gamma the display gamma
+	 */
+	public void toIntRGB(int[] out, float gamma) {
+		ForkJoinPool.commonPool().invoke(new Quantize(data, out, GammaTable.get(gamma), 0, width * height));
+	}
+	
+	/** Converts the pixels [start, end) of data for toIntRGB, splitting large ranges. */
+	@SuppressWarnings("serial")
+	private static class Quantize extends RecursiveAction {
+		private static final int BLOCK_PIXELS = 1 << 16;
+		
+		private final FloatBuffer data;
+		private final int[] out;
+		private final GammaTable table;
+		private final int start, end;
+		
+		Quantize(FloatBuffer data, int[] out, GammaTable table, int start, int end) {
+			this.data = data;
+			this.out = out;
+			this.table = table;
+			this.start = start;
+			this.end = end;
+		}
+		
+		protected void compute() {
+			if (end - start > BLOCK_PIXELS) {
+				int mid = (start + end) >>> 1;
+				invokeAll(new Quantize(data, out, table, start, mid), new Quantize(data, out, table, mid, end));
+				return;
+			}
+			for (int p = start; p < end; p++) {
+				out[p] = table.toIntRGB(data.get(3 * p), data.get(3 * p + 1), data.get(3 * p + 2));
+			}
+		}
 	}
 	
 	/**
@@ -157,15 +223,9 @@ public class Image {
 	public void write(String fileName) {
 		BufferedImage bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
 		
-		Colorf pixelColor= new Colorf();
-		for (int y = 0; y < height; y++) {
-			for (int x = 0; x < width; x++) {
-				this.getPixelColor(pixelColor, x, y);
-				pixelColor.gammaCorrect(2.2f);
-				Color c = pixelColor.toColor();
-				bufferedImage.setRGB(x, (height - 1 - y), c.toIntRGB());
-			}
-		}
+		// A TYPE_INT_RGB image keeps its pixels in one int[], top row first like data
+		int[] raster = ((DataBufferInt) bufferedImage.getRaster().getDataBuffer()).getData();
+		toIntRGB(raster, 2.2f);
 		
 		try {
 			ImageIO.write(bufferedImage, "PNG", new File(fileName));
@@ -191,7 +251,6 @@ public class Image {
         final int numChannels = 3;
         final int elemSize    = pixelType.byteSize();
         final int pixelSize   = elemSize * numChannels;
-        final int numPixels   = width * height;
     
 		Header hdrHeader = new Header(width, height);
 		
@@ -200,18 +259,8 @@ public class Image {
         channels.insert("G", new Channel(pixelType));
         channels.insert("B", new Channel(pixelType));
         
-		Colorf pixelColor= new Colorf();
-        ByteBuffer pixels = ByteBuffer.allocateDirect(pixelSize * numPixels);
-        pixels.order(ByteOrder.LITTLE_ENDIAN);
-        for(int h = height-1; h >= 0; --h) {
-            for (int w = 0; w < width; ++w) {
-            	this.getPixelColor(pixelColor, w, h);
-                pixels.putFloat((float) pixelColor.x);
-                pixels.putFloat((float) pixelColor.y);
-                pixels.putFloat((float) pixelColor.z);
-            }
-        }
-        pixels.flip();
+        // The pixels are already in EXR order; the slices below read them in place
+        ByteBuffer pixels = bytes.duplicate().order(ByteOrder.LITTLE_ENDIAN);
         
      // Build the frame buffer
         FrameBuffer frameBuffer = new FrameBuffer();
@@ -232,7 +281,6 @@ public class Image {
              System.out.printf("  Wrote RGB32F file %s%n", outFile);
              
              //System.out.printf("  File size: %d%n", Files.size(outFile.toPath()));
-             pixels.rewind();
          }
 		catch (Exception e) {
 			System.out.println("Error occured while attempting to write file: "+fileName);
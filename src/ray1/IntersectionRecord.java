@@ -26,6 +26,14 @@ public class IntersectionRecord {
 
   /** The t value along the ray at which the intersection occurred. */
   public double t = 0;  
+
+  /**
+   * Hit data left by Surface.intersectT for the surface's own finalizeRecord, such as
+   * barycentric coordinates (u, v) and the index of the primitive that was hit.
+   * Their meaning is up to the surface.
+   */
+  public double u = 0, v = 0;
+  public int primitive = -1;
   
   /**
    * Set this intersection record to the value of inRecord
@@ -38,5 +46,21 @@ public class IntersectionRecord {
     texCoords.set(inRecord.texCoords);
     surface = inRecord.surface;   
     t = inRecord.t;
+    u = inRecord.u;
+    v = inRecord.v;
+    primitive = inRecord.primitive;
+  }
+
+  /**
+   * Clear this intersection record so that it can be reused for a new ray.
+   */
+  public void reset() {
+    location.setZero();
+    normal.setZero();
+    texCoords.setZero();
+    surface = null;
+    t = 0;
+    u = v = 0;
+    primitive = -1;
   }
 }
\ No newline at end of file
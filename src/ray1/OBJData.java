@@ -0,0 +1,375 @@
+package ray1;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import ray1.OBJMesh.OBJFileFormatException;
+
+/**
+ * The contents of an OBJ file in flat primitive arrays, as read by read(). This is
+ * what PackedMesh is built from, and what OBJMesh boxes into its lists.
+ *
+ * The file is memory mapped and scanned byte by byte: numbers are parsed in place,
+ * without splitting lines into Strings, and written straight into growable arrays.
+ * Only v, vt, vn and f lines carry data; comments, s and o lines are skipped, and
+ * any other specifier is reported once and ignored.
+ *
+ * Indices are 0 based. A face either gives a uv (or normal) index for every vertex or
+ * for none; where a file gives them for only some vertices of a face, the others get
+ * index 0, as OBJMesh always did.
+ *
+ * The arrays are shared with the meshes built from them and must not be modified.
+ */
+public class OBJData {
+
+	/** Vertex positions, 3 floats per vertex. */
+	public final float[] positions;
+
+	/** Vertex texture coordinates, 2 floats per uv. */
+	public final float[] uvs;
+
+	/** Vertex normals, 3 floats per normal. */
+	public final float[] normals;
+
+	/** The number of vertices of each face. */
+	public final int[] faceSizes;
+
+	/** For each vertex of each face, in order: its position index. */
+	public final int[] vertexPositions;
+
+	/** For each vertex of each face: its uv index, or -1 if the face has no uvs. */
+	public final int[] vertexUVs;
+
+	/** For each vertex of each face: its normal index, or -1 if the face has no normals. */
+	public final int[] vertexNormals;
+
+	private OBJData(Reader r) {
+		positions = Arrays.copyOf(r.positions, r.numPositions);
+		uvs = Arrays.copyOf(r.uvs, r.numUVs);
+		normals = Arrays.copyOf(r.normals, r.numNormals);
+		faceSizes = Arrays.copyOf(r.faceSizes, r.numFaces);
+		vertexPositions = Arrays.copyOf(r.vertexPositions, r.numVertices);
+		vertexUVs = Arrays.copyOf(r.vertexUVs, r.numVertices);
+		vertexNormals = Arrays.copyOf(r.vertexNormals, r.numVertices);
+	}
+
+	/**
+	 * Wrap arrays laid out as described for the fields, such as ones saved earlier.
+	 */
+	public OBJData(float[] positions, float[] uvs, float[] normals,
+			int[] faceSizes, int[] vertexPositions, int[] vertexUVs, int[] vertexNormals) {
+		this.positions = positions;
+		this.uvs = uvs;
+		this.normals = normals;
+		this.faceSizes = faceSizes;
+		this.vertexPositions = vertexPositions;
+		this.vertexUVs = vertexUVs;
+		this.vertexNormals = vertexNormals;
+	}
+
+	public int getNumPositions() { return positions.length / 3; }
+	public int getNumUVs() { return uvs.length / 2; }
+	public int getNumNormals() { return normals.length / 3; }
+	public int getNumFaces() { return faceSizes.length; }
+
+	/**
+	 * @return the number of bytes in the arrays of this mesh
+	 */
+	public long getMemoryBytes() {
+		return 4L * (positions.length + uvs.length + normals.length + faceSizes.length
+				+ vertexPositions.length + vertexUVs.length + vertexNormals.length);
+	}
+
+	/**
+	 * Read an OBJ file.
+	 * @throws IOException if there is a problem reading the file.
+	 * @throws OBJFileFormatException if the input OBJ file is malformed.
+	 */
+	public static OBJData read(String filename) throws IOException, OBJFileFormatException {
+		try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("OBJ file too large to map: " + filename);
+			}
+			Reader r = new Reader(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+			r.read();
+			return new OBJData(r);
+		}
+	}
+
+	/**
+	 * The tokenizer and the growing arrays it fills.
+	 */
+	private static class Reader {
+		private final MappedByteBuffer buf;
+		private final int limit;
+		private int pos = 0;
+		private int lineStart = 0;
+
+		float[] positions = new float[3 * 1024], uvs = new float[2 * 1024], normals = new float[3 * 1024];
+		int[] faceSizes = new int[1024];
+		int[] vertexPositions = new int[3 * 1024], vertexUVs = new int[3 * 1024], vertexNormals = new int[3 * 1024];
+		int numPositions, numUVs, numNormals, numFaces, numVertices;
+
+		private final HashSet<String> ignored = new HashSet<>();
+
+		Reader(MappedByteBuffer buf) {
+			this.buf = buf;
+			this.limit = buf.limit();
+		}
+
+		void read() throws OBJFileFormatException {
+			while (pos < limit) {
+				lineStart = pos;
+				skipSpaces();
+				if (atLineEnd()) {
+					nextLine();
+					continue;
+				}
+				byte c0 = buf.get(pos);
+				int start = pos;
+				while (pos < limit && !isSpace(buf.get(pos))) pos++;
+				int len = pos - start;
+				byte c1 = len > 1 ? buf.get(start + 1) : 0;
+
+				if (c0 == '#') { // Comment
+					// skipped below
+				} else if (len == 1 && (c0 == 's' || c0 == 'o')) {
+					// skipped below
+				} else if (len == 1 && c0 == 'v') { // Vertex position
+					positions = grow(positions, numPositions + 3);
+					readFloats(positions, numPositions, 3, "vertex position");
+					numPositions += 3;
+				} else if (len == 2 && c0 == 'v' && c1 == 't') { // Vertex texture coordinate (UV)
+					uvs = grow(uvs, numUVs + 2);
+					readFloats(uvs, numUVs, 2, "vertex texture coordinate");
+					numUVs += 2;
+				} else if (len == 2 && c0 == 'v' && c1 == 'n') { // Vertex normal
+					normals = grow(normals, numNormals + 3);
+					readFloats(normals, numNormals, 3, "vertex normal");
+					numNormals += 3;
+				} else if (len == 1 && c0 == 'f') { // Face
+					readFace();
+				} else {
+					String specifier = new String(bytes(start, pos), StandardCharsets.US_ASCII);
+					if (ignored.add(specifier)) {
+						System.err.println("Warning: ignored unrecognized OBJ specifier: " + specifier);
+					}
+				}
+				skipToNextLine();
+			}
+		}
+
+		/** Read exactly n numbers from the rest of the line into out[offset...]. */
+		private void readFloats(float[] out, int offset, int n, String what) throws OBJFileFormatException {
+			for (int i = 0; i < n; i++) {
+				skipSpaces();
+				if (atLineEnd()) throw malformed(what);
+				int start = pos;
+				while (pos < limit && !isSpace(buf.get(pos))) pos++;
+				out[offset + i] = parseFloat(start, pos, what);
+			}
+			skipSpaces();
+			if (!atLineEnd()) throw malformed(what);
+		}
+
+		/** Read the vertices of a face, each of the form p, p/t, p//n or p/t/n. */
+		private void readFace() throws OBJFileFormatException {
+			int first = numVertices;
+			boolean anyUVs = false, anyNormals = false;
+			while (true) {
+				skipSpaces();
+				if (atLineEnd()) break;
+				vertexPositions = grow(vertexPositions, numVertices + 1);
+				vertexUVs = grow(vertexUVs, numVertices + 1);
+				vertexNormals = grow(vertexNormals, numVertices + 1);
+
+				int p = readIndex(numPositions / 3, true), t = -1, n = -1;
+				if (pos < limit && buf.get(pos) == '/') {
+					pos++;
+					t = readIndex(numUVs / 2, false);
+					if (pos < limit && buf.get(pos) == '/') {
+						pos++;
+						n = readIndex(numNormals / 3, false);
+					}
+				}
+				if (pos < limit && !isSpace(buf.get(pos))) throw malformed("face");
+				vertexPositions[numVertices] = p;
+				vertexUVs[numVertices] = t;
+				vertexNormals[numVertices] = n;
+				anyUVs |= t >= 0;
+				anyNormals |= n >= 0;
+				numVertices++;
+			}
+			if (numVertices - first < 3) throw malformed("face");
+
+			for (int v = first; v < numVertices; v++) {
+				if (anyUVs && vertexUVs[v] < 0) vertexUVs[v] = 0;
+				if (anyNormals && vertexNormals[v] < 0) vertexNormals[v] = 0;
+			}
+			faceSizes = grow(faceSizes, numFaces + 1);
+			faceSizes[numFaces++] = numVertices - first;
+		}
+
+		/**
+		 * Read a 1-based (or, if negative, relative) index and make it 0 based.
+		 * @return the index, or -1 if it is optional and absent
+		 */
+		private int readIndex(int count, boolean required) throws OBJFileFormatException {
+			boolean negative = false;
+			if (pos < limit && buf.get(pos) == '-') {
+				negative = true;
+				pos++;
+			}
+			int start = pos;
+			long value = 0;
+			byte c;
+			while (pos < limit && (c = buf.get(pos)) >= '0' && c <= '9') {
+				value = value * 10 + (c - '0');
+				if (value > Integer.MAX_VALUE) throw malformed("face");
+				pos++;
+			}
+			if (pos == start) {
+				if (required || negative) throw malformed("face");
+				return -1;
+			}
+			if (value == 0) throw malformed("face");
+			return (int) (negative ? count - value : value - 1);
+		}
+
+		/**
+		 * Parse the number in [start, end). Numbers with at most 15 significant digits
+		 * and a small exponent are converted exactly in double precision and then
+		 * rounded to float, which gives the same float as Float.parseFloat unless the
+		 * double falls exactly halfway between two floats; that case, subnormals and
+		 * anything unusual are handed to Float.parseFloat.
+		 */
+		private float parseFloat(int start, int end, String what) throws OBJFileFormatException {
+			int i = start;
+			boolean negative = false;
+			byte c = buf.get(i);
+			if (c == '-' || c == '+') {
+				negative = c == '-';
+				i++;
+			}
+			long mantissa = 0;
+			int digits = 0, exponent = 0;
+			boolean any = false, exact = true;
+			while (i < end && (c = buf.get(i)) >= '0' && c <= '9') {
+				if (digits < 15) {
+					mantissa = mantissa * 10 + (c - '0');
+					if (mantissa != 0) digits++;
+				} else {
+					exact = false;
+				}
+				any = true;
+				i++;
+			}
+			if (i < end && buf.get(i) == '.') {
+				i++;
+				while (i < end && (c = buf.get(i)) >= '0' && c <= '9') {
+					if (digits < 15) {
+						mantissa = mantissa * 10 + (c - '0');
+						if (mantissa != 0) digits++;
+						exponent--;
+					} else if (c != '0') {
+						exact = false;
+					}
+					any = true;
+					i++;
+				}
+			}
+			if (any && i < end && ((c = buf.get(i)) == 'e' || c == 'E')) {
+				i++;
+				boolean negativeExponent = false;
+				if (i < end && ((c = buf.get(i)) == '-' || c == '+')) {
+					negativeExponent = c == '-';
+					i++;
+				}
+				int e = 0, expStart = i;
+				while (i < end && (c = buf.get(i)) >= '0' && c <= '9' && e < 1000) {
+					e = e * 10 + (c - '0');
+					i++;
+				}
+				if (i == expStart) any = false;
+				exponent += negativeExponent ? -e : e;
+			}
+
+			if (any && exact && i == end) {
+				double d = Double.NaN;
+				if (mantissa == 0) d = 0;
+				else if (exponent == 0) d = mantissa;
+				else if (exponent > 0 && exponent <= 22) d = mantissa * POWERS_OF_TEN[exponent];
+				else if (exponent < 0 && exponent >= -22) d = mantissa / POWERS_OF_TEN[-exponent];
+				float f = (float) d;
+				if (!Float.isNaN(f) && (f == 0 ? mantissa == 0 : Math.abs(f) >= Float.MIN_NORMAL)
+						&& (Double.doubleToRawLongBits(d) & 0x1FFFFFFFL) != 0x10000000L) {
+					return negative ? -f : f;
+				}
+			}
+
+			String s = new String(bytes(start, end), StandardCharsets.US_ASCII);
+			try {
+				return Float.parseFloat(s);
+			} catch (NumberFormatException e) {
+				throw malformed(what);
+			}
+		}
+
+		private static final double[] POWERS_OF_TEN = new double[23];
+		static {
+			POWERS_OF_TEN[0] = 1;
+			for (int i = 1; i < POWERS_OF_TEN.length; i++) POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+		}
+
+		private static boolean isSpace(byte c) {
+			return c == ' ' || c == '\t' || c == '\r' || c == '\n' || c == '\f';
+		}
+
+		private void skipSpaces() {
+			byte c;
+			while (pos < limit && ((c = buf.get(pos)) == ' ' || c == '\t' || c == '\r' || c == '\f')) pos++;
+		}
+
+		private boolean atLineEnd() {
+			return pos >= limit || buf.get(pos) == '\n';
+		}
+
+		private void nextLine() {
+			pos++;
+		}
+
+		private void skipToNextLine() {
+			while (pos < limit && buf.get(pos) != '\n') pos++;
+			pos++;
+		}
+
+		private byte[] bytes(int start, int end) {
+			byte[] b = new byte[end - start];
+			for (int i = start; i < end; i++) b[i - start] = buf.get(i);
+			return b;
+		}
+
+		/** The error for the current line, quoting it the way OBJMesh always has. */
+		private OBJFileFormatException malformed(String what) {
+			int end = lineStart;
+			while (end < limit && buf.get(end) != '\n') end++;
+			String line = new String(bytes(lineStart, end), StandardCharsets.US_ASCII).trim();
+			return new OBJFileFormatException("Malformed " + what + " specification: " + line);
+		}
+
+		private static float[] grow(float[] a, int size) {
+			return size <= a.length ? a : Arrays.copyOf(a, Math.max(size, 2 * a.length));
+		}
+
+		private static int[] grow(int[] a, int size) {
+			return size <= a.length ? a : Arrays.copyOf(a, Math.max(size, 2 * a.length));
+		}
+	}
+}
@@ -1,7 +1,6 @@
 package ray1;
 
 import java.util.ArrayList;
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.IOException;
 import java.nio.file.Files;
@@ -18,7 +17,7 @@ import egl.math.Vector3;
 public class OBJMesh {
 
 	@SuppressWarnings("serial")
-	public class OBJFileFormatException extends IOException {
+	public static class OBJFileFormatException extends IOException {
 		public OBJFileFormatException() {
 			super();
 		}
@@ -64,6 +63,14 @@ public class OBJMesh {
 		parseOBJ(filename);
 	}
 
+	/**
+	 * Constructs a mesh from the contents of an OBJ file that has already been read.
+	 */
+	public OBJMesh(OBJData data) {
+		this();
+		set(data);
+	}
+
 	/**
 	 * Returns the position associated with a vertex, given a face and the index of the vertex.
 	 */
@@ -89,89 +96,47 @@ public class OBJMesh {
 
 	/**
 	 * Parses an OBJ file and sets this to its contents.
+	 * The file is read by OBJData; see there for what is accepted.
 	 * @throws IOException if there is a problem reading the file.
 	 * @throws OBJFileFormatException if the input OBJ file is malformed.
 	 */
 	public void parseOBJ(String filename) throws IOException, OBJFileFormatException {
+		set(OBJData.read(filename));
+	}
+
+	/**
+	 * Sets this to the contents of an OBJ file that has already been read.
+	 */
+	public void set(OBJData data) {
 		positions.clear();
 		uvs.clear();
 		normals.clear();
 		faces.clear();
 
-		BufferedReader reader = Files.newBufferedReader(Paths.get(filename));
-		String line;
-		while ((line = reader.readLine()) != null) {
-			String[] tokens = line.split("\\s+");
-			if (tokens[0].charAt(0) == '#') { // Comment
-				continue;
-			} else if (tokens[0].equals("s") || tokens[0].equals("o")) {
-				continue;
-			} else if (tokens[0].equals("v")) { // Vertex position
-				if (tokens.length != 4) {
-					throw new OBJFileFormatException("Malformed vertex position specification: " + line);
-				}
-				Vector3 v = new Vector3(
-					Float.parseFloat(tokens[1]),
-					Float.parseFloat(tokens[2]),
-					Float.parseFloat(tokens[3]));
-				positions.add(v);
-			} else if (tokens[0].equals("vt")) { // Vertex texture coordinate (UV)
-				if (tokens.length != 3) {
-					throw new OBJFileFormatException("Malformed vertex texture coordinate specification: " + line);
-				}
-				Vector2 vt = new Vector2(
-					Float.parseFloat(tokens[1]),
-					Float.parseFloat(tokens[2]));
-				uvs.add(vt);
-			} else if (tokens[0].equals("vn")) { // Vertex normal
-				if (tokens.length != 4) {
-					throw new OBJFileFormatException("Malformed vertex normal specification: " + line);
-				}
-				Vector3 vn = new Vector3(
-					Float.parseFloat(tokens[1]),
-					Float.parseFloat(tokens[2]),
-					Float.parseFloat(tokens[3]));
-				normals.add(vn);
-			} else if (tokens[0].equals("f")) { // Face
-				if (tokens.length < 4) {
-					throw new OBJFileFormatException("Malformed face specification: " + line);
-				}
-				int nVerts = tokens.length-1;
-				OBJFace f = new OBJFace(nVerts, false, false);
-				for (int i=0; i<nVerts; i++) {
-					String[] vertexTokens = tokens[i+1].split("/");
-					switch (vertexTokens.length) {
-					case 3:
-						if (!vertexTokens[2].equals("")) {
-							if (f.normals == null) {
-								f.normals = new int[nVerts];
-							}
-							f.normals[i] = Integer.parseInt(vertexTokens[2]) + OBJFace.indexBase - 1;
-						}
-						// Intentionally fall through
-					case 2:
-						if (!vertexTokens[1].equals("")) {
-							if (f.uvs == null) {
-								f.uvs = new int[nVerts];
-							}
-							f.uvs[i] = Integer.parseInt(vertexTokens[1]) + OBJFace.indexBase - 1;
-						}
-						// Intentionally fall through
-					case 1:
-						f.positions[i] = Integer.parseInt(vertexTokens[0]) + OBJFace.indexBase - 1;
-						break;
+		positions.ensureCapacity(data.getNumPositions());
+		for (int i = 0; i < data.positions.length; i += 3) {
+			positions.add(new Vector3(data.positions[i], data.positions[i+1], data.positions[i+2]));
+		}
+		uvs.ensureCapacity(data.getNumUVs());
+		for (int i = 0; i < data.uvs.length; i += 2) {
+			uvs.add(new Vector2(data.uvs[i], data.uvs[i+1]));
+		}
+		normals.ensureCapacity(data.getNumNormals());
+		for (int i = 0; i < data.normals.length; i += 3) {
+			normals.add(new Vector3(data.normals[i], data.normals[i+1], data.normals[i+2]));
+		}
 
-					default:
-						throw new OBJFileFormatException("Malformed face specification: " + line);
-					}
-				}
-				faces.add(f);
-			} else {
-				System.err.println("Warning: ignored unrecognized OBJ specifier: " + tokens[0]);
+		faces.ensureCapacity(data.getNumFaces());
+		int v = 0;
+		for (int nVerts : data.faceSizes) {
+			OBJFace f = new OBJFace(nVerts, data.vertexUVs[v] >= 0, data.vertexNormals[v] >= 0);
+			for (int i=0; i<nVerts; i++, v++) {
+				f.positions[i] = data.vertexPositions[v] + OBJFace.indexBase;
+				if (f.uvs != null) f.uvs[i] = data.vertexUVs[v] + OBJFace.indexBase;
+				if (f.normals != null) f.normals[i] = data.vertexNormals[v] + OBJFace.indexBase;
 			}
+			faces.add(f);
 		}
-
-		reader.close();
 	}
 
 	/**
@@ -108,8 +108,22 @@ public class Parser {
 	/** Java document builder used to parse XML * */
 	private DocumentBuilder db;
 
-	/** Map of references to their names **/
-	public static HashMap<String, Object> references = new HashMap<String, Object>();
+	/** Map of references to their names, for the file being parsed **/
+	private final HashMap<String, Object> references = new HashMap<String, Object>();
+
+	/** The scene file being parsed, against which file names in it are resolved **/
+	private RayTracer.ScenePath workspace;
+
+	/**
+	 * Implemented by objects that load files named in the scene, such as meshes and
+	 * textures. Right after creating such an object, and before calling any of its
+	 * setters, the parser passes it the scene file's ScenePath, so that it can resolve
+	 * those names without any global state and scenes can be parsed concurrently (by
+	 * different parsers).
+	 */
+	public interface WorkspaceAware {
+		void setWorkspace(RayTracer.ScenePath workspace);
+	}
 
 	/** Creates a new Parser. */
 	public Parser() {
@@ -393,6 +407,9 @@ public class Parser {
 				throw new Error("Error instantiating object of class: "
 						+ c.getName());
 			}
+			if (resultingObject instanceof WorkspaceAware) {
+				((WorkspaceAware) resultingObject).setWorkspace(workspace);
+			}
 
 			// For each child
 			for (int i = 0; i < children.getLength(); i++) {
@@ -474,15 +491,31 @@ public class Parser {
 	}
 
 	/**
-	 * Parses a given file to generate an object of the given class.
+	 * Parses a given file to generate an object of the given class. File names in it
+	 * are resolved against the directory of the file.
 	 *
 	 * @param filename the name of the XML file to parse
 	 * @param c the class of the object to parse
 	 * @return a new object of the given class
 	 */
 	public Object parse(String filename, Class<?> c) {
+		return parse(new RayTracer.ScenePath(null, filename), c);
+	}
+
+	/**
+	 * Parses a scene file to generate an object of the given class. Names given
+	 * with ref="..." refer to objects named earlier in the same file only.
+	 *
+	 * @param path the XML file to parse, and the workspace to resolve file names in it against
+	 * @param c the class of the object to parse
+	 * @return a new object of the given class
+	 */
+	public Object parse(RayTracer.ScenePath path, Class<?> c) {
 
+		String filename = path.getFile();
 		File file = new File(filename);
+		references.clear();
+		workspace = path;
 
 		// Parse the XML
 		Object result = null;
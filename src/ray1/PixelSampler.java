@@ -0,0 +1,139 @@
+package ray1;
+
+import egl.math.Colorf;
+
+/**
+ * Where the camera rays of a pixel go, and which pixels adaptive anti-aliasing
+ * refines.
+ *
+ * A pixel with n * n samples is divided into an n by n grid of cells, and each cell
+ * gets one sample at a random position inside it (stratified, or jittered, sampling).
+ * The random positions come from a generator seeded with the pixel coordinates, so a
+ * pixel is always sampled the same way, whichever thread renders it and in whatever
+ * order. With n = 1 the single sample is the pixel center, as without anti-aliasing.
+ *
+ * Progressive rendering does not know in advance how many samples a pixel will get,
+ * so it takes them one per pass from an open-ended sequence instead: the pixel center
+ * first, then the R2 low-discrepancy sequence, shifted by a random offset per pixel.
+ * Any prefix of the sequence covers the pixel about evenly.
+ *
+ * Adaptive anti-aliasing first renders one sample per pixel, then supersamples only
+ * the pixels that differ visibly from a neighbour: those where some color channel,
+ * clamped to [0, 1] and gamma corrected for display, differs by more than a threshold
+ * from the same channel of one of the four adjacent pixels.
+ */
+public class PixelSampler {
+
+	/** The display gamma the contrast test assumes, as used by Image.write. */
+	private static final float GAMMA = 2.2f;
+
+	/**
+	 * Compute the sample positions of pixel (x, y).
+	 *
+	 * @param x the pixel column
+	 * @param y the pixel row
+	 * @param n the number of samples along each side of the pixel
+	 * @param out receives the offsets within the pixel, in [0, 1): the offset of the
+	 * sample in cell (i, j) is (out[2k], out[2k + 1]) with k = j * n + i; at least
+	 * 2 * n * n long
+	 */
+	public static void stratified(int x, int y, int n, float[] out) {
+		if (n == 1) {
+			out[0] = out[1] = 0.5f;
+			return;
+		}
+		long state = x * 0x9E3779B97F4A7C15L ^ y * 0xC2B2AE3D27D4EB4FL;
+		float cell = 1.0f / n;
+		for (int j = 0, k = 0; j < n; j++) {
+			for (int i = 0; i < n; i++, k += 2) {
+				state += 0x9E3779B97F4A7C15L;
+				long z1 = mix(state);
+				state += 0x9E3779B97F4A7C15L;
+				long z2 = mix(state);
+				// A uniform position within the cell, from 24 random bits
+				out[k] = (i + (z1 >>> 40) * 0x1.0p-24f) * cell;
+				out[k + 1] = (j + (z2 >>> 40) * 0x1.0p-24f) * cell;
+			}
+		}
+	}
+
+	/** The generalized golden ratio, the root of x^3 = x + 1, which R2 is built on. */
+	private static final double PLASTIC = 1.32471795724474602596;
+	private static final double R2_X = 1 / PLASTIC, R2_Y = 1 / (PLASTIC * PLASTIC);
+
+	/** The largest float below 1. */
+	private static final float BELOW_ONE = 0x1.fffffep-1f;
+
+	/**
+	 * Compute the position of the sample that progressive rendering takes from pixel
+	 * (x, y) in a given pass.
+	 *
+	 * @param x the pixel column
+	 * @param y the pixel row
+	 * @param pass the number of samples the pixel already has
+	 * @param out receives the offset within the pixel, in [0, 1), as (out[0], out[1])
+	 */
+	public static void progressive(int x, int y, int pass, float[] out) {
+		if (pass == 0) {
+			out[0] = out[1] = 0.5f;
+			return;
+		}
+		long state = x * 0x9E3779B97F4A7C15L ^ y * 0xC2B2AE3D27D4EB4FL;
+		double shiftX = (mix(state + 0x9E3779B97F4A7C15L) >>> 11) * 0x1.0p-53;
+		double shiftY = (mix(state + 2 * 0x9E3779B97F4A7C15L) >>> 11) * 0x1.0p-53;
+		double u = shiftX + pass * R2_X, v = shiftY + pass * R2_Y;
+		out[0] = Math.min((float) (u - Math.floor(u)), BELOW_ONE);
+		out[1] = Math.min((float) (v - Math.floor(v)), BELOW_ONE);
+	}
+
+	/** The SplitMix64 output function. */
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * Find the pixels that adaptive anti-aliasing should supersample.
+	 *
+	 * @param image an image rendered with one sample per pixel
+	 * @param threshold the smallest display-space difference that is refined
+	 * @return for pixel (x, y), at index y * width + x, whether it differs from one of
+	 * its four neighbours by more than threshold
+	 */
+	public static boolean[] contrastMask(Image image, float threshold) {
+		int width = image.getWidth(), height = image.getHeight();
+		float[] display = new float[3 * width * height];
+		Colorf c = new Colorf();
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				image.getPixelColor(c, x, y);
+				int p = 3 * (y * width + x);
+				display[p] = toDisplay(c.x);
+				display[p + 1] = toDisplay(c.y);
+				display[p + 2] = toDisplay(c.z);
+			}
+		}
+
+		boolean[] refine = new boolean[width * height];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int p = y * width + x;
+				// Compare with the right and upper neighbours; both pixels of a pair are refined
+				if (x + 1 < width && differs(display, p, p + 1, threshold)) refine[p] = refine[p + 1] = true;
+				if (y + 1 < height && differs(display, p, p + width, threshold)) refine[p] = refine[p + width] = true;
+			}
+		}
+		return refine;
+	}
+
+	private static float toDisplay(float v) {
+		return (float) Math.pow(Math.max(Math.min(v, 1.0f), 0.0f), 1.0f / GAMMA);
+	}
+
+	private static boolean differs(float[] display, int p, int q, float threshold) {
+		return Math.abs(display[3*p] - display[3*q]) > threshold
+				|| Math.abs(display[3*p + 1] - display[3*q + 1]) > threshold
+				|| Math.abs(display[3*p + 2] - display[3*q + 2]) > threshold;
+	}
+}
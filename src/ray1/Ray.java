@@ -21,6 +21,15 @@ public class Ray {
 
   /** The normalized direction in which the ray travels. */
   public final Vector3d direction = new Vector3d();
+
+  /**
+   * The componentwise inverse of direction, and for each axis 1 if direction is
+   * negative along it and 0 otherwise. These are only valid after the last call to
+   * updateInverseDirection(); acceleration structures refresh them once per query
+   * so that box tests need no divisions.
+   */
+  public final Vector3d invDirection = new Vector3d();
+  public int signX, signY, signZ;
   
 
   /**
@@ -59,6 +68,10 @@ public class Ray {
 	  direction.set(r.direction);
 	  start = r.start;
 	  end = r.end;
+	  invDirection.set(r.invDirection);
+	  signX = r.signX;
+	  signY = r.signY;
+	  signZ = r.signZ;
   }
 
   /**
@@ -72,6 +85,16 @@ public class Ray {
 	  direction.set(newDirection);
   }
 
+  /**
+   * Recompute invDirection and the sign bits from the current direction.
+   */
+  public void updateInverseDirection() {
+    invDirection.set(1 / direction.x, 1 / direction.y, 1 / direction.z);
+    signX = invDirection.x < 0 ? 1 : 0;
+    signY = invDirection.y < 0 ? 1 : 0;
+    signZ = invDirection.z < 0 ? 1 : 0;
+  }
+
   /**
    * Sets outPoint to the point on this ray t units from the origin.  Note that t can
    * be considered as distance along this ray only if the ray direction is normalized.
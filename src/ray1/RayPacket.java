@@ -0,0 +1,137 @@
+package ray1;
+
+/**
+ * A group of rays intersected with the scene together, such as the camera rays of a
+ * block of pixels, with room for the result of each. Rays 0 to size-1 are in use.
+ *
+ * For culling, computeBounds() gathers the interval of every ray's origin and inverse
+ * direction along each axis. If the direction of every ray has the same sign along
+ * each axis, every ray enters a box through the same three planes, and interval
+ * arithmetic on those planes bounds the distances at which any ray of the packet can
+ * enter and leave the box (see misses). Rays that are not coherent in this way can
+ * still be traced as a packet, just without the culling.
+ */
+public class RayPacket {
+
+	/** The rays; their inverse directions are brought up to date by computeBounds(). */
+	public final Ray[] rays;
+
+	/** The first intersection of each ray, valid where hit is set. */
+	public final IntersectionRecord[] records;
+
+	/** Whether each ray hit anything. */
+	public final boolean[] hit;
+
+	/** The number of rays in use. */
+	public int size;
+
+	/**
+	 * The bounds of the origins and inverse directions along each axis, and of the ray
+	 * intervals, as of the last call to computeBounds().
+	 */
+	private final double[] originMin = new double[3], originMax = new double[3];
+	private final double[] invMin = new double[3], invMax = new double[3];
+	private double startMin, endMax;
+
+	/** Whether the rays are coherent enough for the interval bounds to be used. */
+	private boolean coherent;
+
+	/** The end of every ray as of the last call to computeBounds(), for restoreEnds(). */
+	private final double[] ends;
+
+	/**
+	 * @param capacity the largest number of rays the packet will hold
+	 */
+	public RayPacket(int capacity) {
+		rays = new Ray[capacity];
+		records = new IntersectionRecord[capacity];
+		hit = new boolean[capacity];
+		ends = new double[capacity];
+		for (int i = 0; i < capacity; i++) {
+			rays[i] = new Ray();
+			records[i] = new IntersectionRecord();
+		}
+	}
+
+	/** @return the number of rays the packet can hold */
+	public int capacity() { return rays.length; }
+
+	/**
+	 * Update the inverse direction of every ray in use, compute the bounds used by
+	 * misses() and remember the end of every ray. Call this after setting the rays and
+	 * before tracing them.
+	 */
+	public void computeBounds() {
+		coherent = size > 0;
+		startMin = Double.POSITIVE_INFINITY;
+		endMax = Double.NEGATIVE_INFINITY;
+		for (int a = 0; a < 3; a++) {
+			originMin[a] = invMin[a] = Double.POSITIVE_INFINITY;
+			originMax[a] = invMax[a] = Double.NEGATIVE_INFINITY;
+		}
+		for (int i = 0; i < size; i++) {
+			Ray ray = rays[i];
+			ray.updateInverseDirection();
+			startMin = Math.min(startMin, ray.start);
+			endMax = Math.max(endMax, ray.end);
+			ends[i] = ray.end;
+			include(0, ray.origin.x, ray.invDirection.x);
+			include(1, ray.origin.y, ray.invDirection.y);
+			include(2, ray.origin.z, ray.invDirection.z);
+		}
+		// Directions must keep their sign along each axis, and lie in no axis plane
+		for (int a = 0; a < 3 && coherent; a++) {
+			coherent = (invMin[a] > 0 || invMax[a] < 0)
+					&& !Double.isInfinite(invMin[a]) && !Double.isInfinite(invMax[a]);
+		}
+	}
+
+	/** Widen the bounds along axis a to hold origin o and inverse direction inv. */
+	private void include(int a, double o, double inv) {
+		originMin[a] = Math.min(originMin[a], o);
+		originMax[a] = Math.max(originMax[a], o);
+		invMin[a] = Math.min(invMin[a], inv);
+		invMax[a] = Math.max(invMax[a], inv);
+	}
+
+	/** Set the end of every ray back to what it was at the last call to computeBounds(). */
+	public void restoreEnds() {
+		for (int i = 0; i < size; i++) rays[i].end = ends[i];
+	}
+
+	/** @return true if the bounds of the last computeBounds() can be used by misses() */
+	public boolean isCoherent() { return coherent; }
+
+	/**
+	 * Test the box against the whole packet with interval arithmetic. Each bound is
+	 * taken over the corners of the intervals with the same floating point operations
+	 * as the box test of a single ray (BvhNode.entryDistance), which are monotonic in
+	 * each operand, so a box reported as missed is missed by every ray.
+	 *
+	 * @return true if no ray of the packet can hit the box (min, max) within the
+	 * interval it had at computeBounds(); false if some might, or if the packet is not
+	 * coherent
+	 */
+	public boolean misses(double minX, double minY, double minZ, double maxX, double maxY, double maxZ) {
+		if (!coherent) return false;
+		double enter = startMin, exit = endMax;
+		for (int a = 0; a < 3; a++) {
+			double lo = a == 0 ? minX : a == 1 ? minY : minZ;
+			double hi = a == 0 ? maxX : a == 1 ? maxY : maxZ;
+			double near = invMin[a] > 0 ? lo : hi, far = invMin[a] > 0 ? hi : lo;
+			enter = Math.max(enter, cornerMin(near - originMax[a], near - originMin[a], invMin[a], invMax[a]));
+			exit = Math.min(exit, cornerMax(far - originMax[a], far - originMin[a], invMin[a], invMax[a]));
+		}
+		return enter > exit;
+	}
+
+	/** @return the least product of a value in [n0, n1] and one in [i0, i1] */
+	private static double cornerMin(double n0, double n1, double i0, double i1) {
+		return Math.min(Math.min(n0 * i0, n0 * i1), Math.min(n1 * i0, n1 * i1));
+	}
+
+	/** @return the greatest product of a value in [n0, n1] and one in [i0, i1] */
+	private static double cornerMax(double n0, double n1, double i0, double i1) {
+		return Math.max(Math.max(n0 * i0, n0 * i1), Math.max(n1 * i0, n1 * i1));
+	}
+}
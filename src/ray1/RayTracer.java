@@ -1,13 +1,28 @@
 package ray1;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import egl.math.Colorf;
-import ray1.camera.Camera;
+import ray1.accel.BvhCache;
 import ray1.shader.Shader;
+import ray1.surface.Mesh;
+import ray1.surface.Surface;
 
 public class RayTracer {
 	public static class ScenePath {
@@ -58,9 +73,24 @@ public class RayTracer {
 	}
 	
 	/**
-	 * The Workspace For The Scene
+	 * The outcome of rendering one scene in run(), for the summary printed at the end.
 	 */
-	public static ScenePath sceneWorkspace = null;
+	public static class SceneReport {
+		public final ScenePath path;
+		
+		/** The phase times and ray counts of the scene, or null if it could not be parsed. */
+		public RenderStats stats = null;
+		
+		/** Milliseconds spent waiting for memory before the build, in batch mode. */
+		public long waitMs;
+		
+		/** Why the scene was not rendered, or null if it was. */
+		public String error = null;
+		
+		public SceneReport(ScenePath path) {
+			this.path = path;
+		}
+	}
 	
 	/**
 	 * This directory precedes the arguments passed in via the command line.
@@ -77,6 +107,145 @@ public class RayTracer {
 	 */
 	public static final int MAX_DEPTH = 12;
 	
+	/**
+	 * The number of threads used to render an image. With a single thread the image
+	 * is rendered by the serial scanline loop instead of the tile scheduler.
+	 */
+	protected int numThreads = Runtime.getRuntime().availableProcessors();
+	public void setNumThreads(int numThreads) { this.numThreads = Math.max(1, numThreads); }
+	public int getNumThreads() { return numThreads; }
+	
+	/**
+	 * The edge length in pixels of the tiles handed out to the render threads.
+	 */
+	protected int tileSize = 32;
+	public void setTileSize(int tileSize) { this.tileSize = Math.max(1, tileSize); }
+	public int getTileSize() { return tileSize; }
+	
+	/**
+	 * The edge length in pixels of the blocks whose camera rays the tiled renderer
+	 * traces together as one RayPacket; 1 or less traces every camera ray on its own.
+	 * Packets are not used with a heat map, which needs the cost of each pixel.
+	 */
+	protected int packetSize = 8;
+	public void setPacketSize(int packetSize) { this.packetSize = Math.max(1, packetSize); }
+	public int getPacketSize() { return packetSize; }
+	
+	/**
+	 * If true, each tile is rendered by a WavefrontRenderer, which traces and shades
+	 * its rays one bounce at a time instead of following each ray's reflections
+	 * recursively. Not used with a heat map.
+	 */
+	protected boolean wavefront = false;
+	public void setWavefront(boolean wavefront) { this.wavefront = wavefront; }
+	public boolean getWavefront() { return wavefront; }
+	
+	/**
+	 * If true, per-tile render times are printed after each tiled render.
+	 */
+	protected boolean reportTileTimes = false;
+	public void setReportTileTimes(boolean report) { this.reportTileTimes = report; }
+	
+	/**
+	 * If greater than 0, replaces the anti-aliasing samples set by each scene.
+	 */
+	protected int samples = 0;
+	public void setSamples(int samples) { this.samples = samples; }
+	
+	/**
+	 * If not negative, replaces the adaptive anti-aliasing threshold set by each scene.
+	 */
+	protected float adaptiveThreshold = -1;
+	public void setAdaptiveThreshold(float threshold) { this.adaptiveThreshold = threshold; }
+	
+	/**
+	 * If true, scenes are rendered progressively: in passes of one sample per pixel,
+	 * averaged, until one of the limits below is reached. See renderProgressive.
+	 */
+	protected boolean progressive = false;
+	public void setProgressive(boolean progressive) { this.progressive = progressive; }
+	
+	/** The longest a progressive render may take, in seconds; 0 for no limit. */
+	protected float timeBudget = 0;
+	public void setTimeBudget(float seconds) { this.timeBudget = Math.max(0, seconds); }
+	
+	/**
+	 * A progressive render stops once its noise estimate (see SampleAccumulator.noise)
+	 * falls below this; 0 for no limit.
+	 */
+	protected float noiseThreshold = 0;
+	public void setNoiseThreshold(float threshold) { this.noiseThreshold = Math.max(0, threshold); }
+	
+	/** The most passes a progressive render takes. */
+	protected int maxPasses = 1024;
+	public void setMaxPasses(int passes) { this.maxPasses = Math.max(1, passes); }
+	
+	/**
+	 * The time in seconds between the intermediate images a progressive render writes
+	 * to its output file; 0 writes only the final image.
+	 */
+	protected float snapshotInterval = 5;
+	public void setSnapshotInterval(float seconds) { this.snapshotInterval = Math.max(0, seconds); }
+	
+	/**
+	 * If true, run() writes the RenderStats of each scene to <scene file>.stats.json.
+	 */
+	protected boolean writeStats = false;
+	public void setWriteStats(boolean write) { this.writeStats = write; }
+	
+	/**
+	 * If not null, one of the metrics of HeatMap; run() then also writes a map of what
+	 * each pixel cost by that metric to <scene file>.heat.png and .heat.exr.
+	 */
+	protected String heatMapMetric = null;
+	public void setHeatMapMetric(String metric) { this.heatMapMetric = metric == null ? null : HeatMap.checkMetric(metric); }
+	
+	/**
+	 * The number of scenes run() renders at the same time. The render threads of each
+	 * scene are then numThreads / batchSize, at least one.
+	 */
+	protected int batchSize = 1;
+	public void setBatchSize(int batchSize) { this.batchSize = Math.max(1, batchSize); }
+	
+	/**
+	 * The memory in bytes that the scenes being rendered at the same time may take
+	 * together, by the estimate of estimateMemory. A scene is built only once enough
+	 * of the budget is free; one that needs more than all of it waits for all of it.
+	 */
+	protected long batchMemory = Runtime.getRuntime().maxMemory() / 4 * 3;
+	public void setBatchMemory(long bytes) { this.batchMemory = Math.max(1024, bytes); }
+	
+	/**
+	 * A progressive render checks its noise estimate only from this pass on, as the
+	 * estimate of the first few passes is unreliable.
+	 */
+	private static final int MIN_NOISE_PASSES = 4;
+	
+	/**
+	 * Per-thread intersection records for shadeRay, one for each recursion depth, so
+	 * that shading a ray never allocates one and render threads never share one.
+	 */
+	private static final ThreadLocal<IntersectionRecord[]> records = new ThreadLocal<IntersectionRecord[]>() {
+		protected IntersectionRecord[] initialValue() {
+			IntersectionRecord[] r = new IntersectionRecord[MAX_DEPTH + 1];
+			for (int i = 0; i < r.length; i++) r[i] = new IntersectionRecord();
+			return r;
+		}
+	};
+	
+	/**
+	 * Wavefront renderers not in use. A tile takes one and puts it back when it is done,
+	 * so their buffers outlive the render threads, which every pass starts anew.
+	 */
+	private final ConcurrentLinkedQueue<WavefrontRenderer> wavefrontRenderers = new ConcurrentLinkedQueue<WavefrontRenderer>();
+	
+	/** Per-thread space for one sample of a supersampled pixel. */
+	private static final ThreadLocal<Colorf> SAMPLE_COLOR = new ThreadLocal<Colorf>() {
+		protected Colorf initialValue() {
+			return new Colorf();
+		}
+	};
+
 	/**
 	 * The main method takes all the parameters and assumes they are input files
 	 * for the ray tracer. It tries to render each one and write it out to a PNG
@@ -89,6 +258,7 @@ public class RayTracer {
 		ArrayList<ScenePath> pathArgs = new ArrayList<>();
 		ArrayList<ScenePath> scenesToRender = new ArrayList<>();
 		String currentRoot = directory;
+		RayTracer rayTracer = new RayTracer();
 				
 		// Use All The Arguments
 		for(int i = 0;i < args.length;i++) {
@@ -102,6 +272,95 @@ public class RayTracer {
 				// Use The CWD
 				currentRoot = null;
 				break;
+			case "-threads":
+				// Number Of Render Threads (1 Renders Serially)
+				i++;
+				if(i < args.length) rayTracer.setNumThreads(Integer.parseInt(args[i]));
+				break;
+			case "-tile":
+				// Tile Edge Length In Pixels
+				i++;
+				if(i < args.length) rayTracer.setTileSize(Integer.parseInt(args[i]));
+				break;
+			case "-packet":
+				// Camera Ray Packet Edge Length In Pixels (1 Disables Packets)
+				i++;
+				if(i < args.length) rayTracer.setPacketSize(Integer.parseInt(args[i]));
+				break;
+			case "-wavefront":
+				// Trace And Shade Each Tile One Bounce At A Time
+				rayTracer.setWavefront(true);
+				break;
+			case "-tiletimes":
+				// Print Per-Tile Timings
+				rayTracer.setReportTileTimes(true);
+				break;
+			case "-samples":
+				// Anti-Aliasing Samples Along Each Side Of A Pixel
+				i++;
+				if(i < args.length) rayTracer.setSamples(Integer.parseInt(args[i]));
+				break;
+			case "-adaptive":
+				// Only Supersample Pixels Above This Neighbour Contrast
+				i++;
+				if(i < args.length) rayTracer.setAdaptiveThreshold(Float.parseFloat(args[i]));
+				break;
+			case "-progressive":
+				// Render In Passes Of One Sample Per Pixel Until A Limit Is Reached
+				rayTracer.setProgressive(true);
+				break;
+			case "-budget":
+				// Progressive Time Limit In Seconds
+				i++;
+				if(i < args.length) rayTracer.setTimeBudget(Float.parseFloat(args[i]));
+				break;
+			case "-noise":
+				// Progressive Noise Limit
+				i++;
+				if(i < args.length) rayTracer.setNoiseThreshold(Float.parseFloat(args[i]));
+				break;
+			case "-passes":
+				// Progressive Pass Limit
+				i++;
+				if(i < args.length) rayTracer.setMaxPasses(Integer.parseInt(args[i]));
+				break;
+			case "-snapshot":
+				// Seconds Between Intermediate Progressive Images
+				i++;
+				if(i < args.length) rayTracer.setSnapshotInterval(Float.parseFloat(args[i]));
+				break;
+			case "-batch":
+				// Render This Many Scenes At Once
+				i++;
+				if(i < args.length) rayTracer.setBatchSize(Integer.parseInt(args[i]));
+				break;
+			case "-batchmem":
+				// Memory Budget Of The Scenes Rendered At Once, In Megabytes
+				i++;
+				if(i < args.length) rayTracer.setBatchMemory(Long.parseLong(args[i]) << 20);
+				break;
+			case "-stats":
+				// Write Timings And Ray Counts Of Each Scene As JSON
+				rayTracer.setWriteStats(true);
+				break;
+			case "-heatmap":
+				// Also Write A False-Color Map Of Nodes, Tests Or Time Per Pixel
+				i++;
+				if(i < args.length) rayTracer.setHeatMapMetric(args[i]);
+				break;
+			case "-nomeshcache":
+				// Always Parse OBJ Files, Ignoring And Not Writing .cache Files
+				Mesh.setUseCache(false);
+				break;
+			case "-bvhcache":
+				// Save Built BVHs In This Directory And Reuse Them For Unchanged Geometry
+				i++;
+				if(i < args.length) BvhCache.setDirectory(args[i]);
+				break;
+			case "-bvhvalidate":
+				// Check Reused BVHs Against A Fresh Build
+				BvhCache.setValidate(true);
+				break;
 			default:
 				// This Must Be A File
 				pathArgs.add(new ScenePath(currentRoot, args[i]));
@@ -140,18 +399,35 @@ public class RayTracer {
 		}
 				
 		System.out.println("Attempting To Render " + scenesToRender.size() + " Scene(s)");
-		RayTracer rayTracer = new RayTracer();
 		rayTracer.run(scenesToRender);
 	}
 	
 	public static void printUsage() {
-		System.out.println("Usage: java RayTracer [-p path] [directory1 directory2 ... | file1 file2 ...]");
+		System.out.println("Usage: java RayTracer [-p path] [-threads n] [-tile size] [-packet size] [-wavefront] [-tiletimes] [-samples n [-adaptive threshold]] [-progressive [-budget s] [-noise t] [-passes n] [-snapshot s]] [-batch n [-batchmem mb]] [-stats] [-heatmap nodes|tests|time] [-nomeshcache] [-bvhcache dir [-bvhvalidate]] [directory1 directory2 ... | file1 file2 ...]");
 		System.out.println("List each scene file you would like to render on the command line separated by spaces.");
 		System.out.println("You may also specify a directory, and all scene files in that directory will be rendered.");
 		System.out.println("By default, all files specified are prepended with a given path. Use the -p option to");
 		System.out.println("override this path. The path may be overriden multiple times or -pnull may be provided to set");
 		System.out.println("the path to the program's working directory. With no -p argument given, this path is: " + directory);
 		System.out.println("NB: the path is relative to the working directory of the application, which is normally the root of the CS4620 project.");
+		System.out.println("Images are rendered in tiles of -tile pixels (default 32) on -threads threads (default: one per core).");
+		System.out.println("-threads 1 renders with the serial scanline loop; -tiletimes prints the time spent on each tile.");
+		System.out.println("Tiles trace the camera rays of -packet x -packet pixel blocks together (default 8, 1 for single rays).");
+		System.out.println("-wavefront renders each tile bounce by bounce, tracing its sorted camera, shadow and mirror rays in batches.");
+		System.out.println("-samples n anti-aliases every pixel with n x n stratified samples; with -adaptive, only pixels whose");
+		System.out.println("color differs from a neighbour by more than threshold (e.g. 0.05, in display units) get them.");
+		System.out.println("Both replace the scene's <samples> and <adaptiveThreshold>.");
+		System.out.println("-progressive renders in passes of one sample per pixel and averages them, writing the image so far");
+		System.out.println("every -snapshot seconds (default 5, 0 for none). It stops after -budget seconds, once the estimated");
+		System.out.println("noise is below -noise (display units, e.g. 0.002), or after -passes passes (default 1024).");
+		System.out.println("-batch renders n scenes at once, splitting the -threads between them, as long as their estimated");
+		System.out.println("memory fits in -batchmem megabytes (default: 3/4 of the maximum heap).");
+		System.out.println("-stats writes the phase times and ray counts of each scene to <file>.stats.json.");
+		System.out.println("-heatmap also writes <file>.heat.png, coloring each pixel by the BVH nodes visited, primitives tested");
+		System.out.println("or nanoseconds spent on it, and <file>.heat.exr with the raw numbers.");
+		System.out.println("Meshes are cached in a binary <file>.obj.cache next to each OBJ file; -nomeshcache always parses the OBJ.");
+		System.out.println("-bvhcache saves each scene BVH in dir, keyed by a hash of the geometry, and reloads it when the geometry");
+		System.out.println("and BVH settings match; -bvhvalidate also rebuilds reloaded trees and checks that they are identical.");
 	}
 	
 	/**
@@ -159,89 +435,627 @@ public class RayTracer {
 	 * for the ray tracer. It tries to render each one and write it out to a PNG
 	 * file named <input_file>.png.
 	 *
+	 * With batchSize above 1 several scenes are parsed and rendered at the same time;
+	 * see runBatch. A scene that fails to parse or render is reported and skipped.
+	 * With more than one scene, the time each step took for each scene is printed at
+	 * the end.
+	 *
 	 * @param args
 	 */
 	public void run(ArrayList<ScenePath> args) {
-		Parser parser = new Parser();
-		for (ScenePath p : args) {
-			// Set The Current Workspace For The Scene
-			sceneWorkspace = p;
+		SceneReport[] reports = new SceneReport[args.size()];
+		for (int i = 0; i < reports.length; i++) reports[i] = new SceneReport(args.get(i));
+
+		long startTime = System.currentTimeMillis();
+		if (batchSize > 1 && reports.length > 1) {
+			runBatch(reports);
+		} else {
+			Parser parser = new Parser();
+			for (SceneReport report : reports) {
+				renderScene(parser, report, null);
+			}
+		}
+
+		if (reports.length > 1) {
+			printReport(reports, System.currentTimeMillis() - startTime);
+		}
+	}
+	
+	/**
+	 * Render the scenes of reports batchSize at a time, each with its own parser and
+	 * numThreads / batchSize render threads, and wait for all of them. The memory the
+	 * scenes take is bounded by batchMemory: each scene reserves the estimated memory of
+	 * its meshes before it is parsed, tops that up to its full estimate once it is
+	 * parsed and before it is built, and returns it all once its image is written.
+	 *
+	 * @param reports the scenes to render, in which their times are recorded
+	 */
+	protected void runBatch(final SceneReport[] reports) {
+		final int savedThreads = numThreads;
+		final int jobs = Math.min(batchSize, reports.length);
+		numThreads = Math.max(1, numThreads / jobs);
+		final Semaphore memory = new Semaphore(toKB(batchMemory), true);
+		final AtomicInteger nextWorker = new AtomicInteger(0);
+		ExecutorService pool = Executors.newFixedThreadPool(jobs, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "scene-worker-" + nextWorker.getAndIncrement());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		System.out.println("Rendering " + reports.length + " scenes " + jobs + " at a time, "
+				+ numThreads + " thread(s) each, in " + (batchMemory >> 20) + " MB");
+		try {
+			ArrayList<Future<?>> scenes = new ArrayList<Future<?>>();
+			for (final SceneReport report : reports) {
+				scenes.add(pool.submit(new Runnable() {
+					public void run() {
+						renderScene(new Parser(), report, memory);
+					}
+				}));
+			}
+			for (Future<?> f : scenes) {
+				try {
+					f.get();
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+					if (cause instanceof Error) throw (Error) cause;
+					throw new RuntimeException(cause);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException("Interrupted while rendering scenes", e);
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+			numThreads = savedThreads;
+		}
+	}
+	
+	/** A number of bytes in whole kilobytes, rounded up, as permits of the batch memory semaphore. */
+	private static int toKB(long bytes) {
+		return (int) Math.min(Integer.MAX_VALUE, (bytes + 1023) >> 10);
+	}
+	
+	/**
+	 * Parse, build, render and write out one scene, recording the time of each step in
+	 * the scene's RenderStats, which become report.stats, and writing them out if
+	 * writeStats is set. If the scene cannot be parsed or any step throws, the error is
+	 * recorded in report instead and printed.
+	 *
+	 * @param parser the parser to use, not used by any other thread meanwhile
+	 * @param report the scene to render
+	 * @param memory if not null, the batch memory budget, in kilobytes, to reserve the
+	 * scene's memory from
+	 */
+	protected void renderScene(Parser parser, SceneReport report, Semaphore memory) {
+		ScenePath p = report.path;
+		int reserved = 0;
+		try {
+			// Wait until the meshes the scene loads while it is parsed fit in the memory budget
+			if (memory != null) {
+				long waitStart = System.currentTimeMillis();
+				int needed = Math.min(toKB(estimateParseMemory(p)), toKB(batchMemory));
+				memory.acquire(needed);
+				reserved = needed;
+				report.waitMs = System.currentTimeMillis() - waitStart;
+			}
 
 			// Parse the input file
-			String inputFilename = sceneWorkspace.getFile();
 			System.out.println("Rendering " + p.file.getFileName() + "...");
-			Scene scene = (Scene) parser.parse(inputFilename, Scene.class);
-			
-			// Initialize the scene
+			long start = System.nanoTime();
+			Scene scene = (Scene) parser.parse(p, Scene.class);
+			long parseNanos = System.nanoTime() - start;
+			if (scene == null) {
+				report.error = "could not be parsed";
+				return;
+			}
+			RenderStats stats = scene.getStats();
+			report.stats = stats;
+			long meshNanos = 0;
+			for (Surface s : scene.getSurfaces()) {
+				if (s instanceof Mesh) meshNanos += ((Mesh) s).getLoadNanos();
+			}
+			stats.addPhase(RenderStats.PARSE, parseNanos - meshNanos);
+			stats.addPhase(RenderStats.MESH_LOAD, meshNanos);
+			if (samples > 0) scene.setSamples(samples);
+			if (adaptiveThreshold >= 0) scene.setAdaptiveThreshold(adaptiveThreshold);
+
+			// Wait until the whole scene fits in the memory budget
+			if (memory != null) {
+				long waitStart = System.currentTimeMillis();
+				int needed = Math.min(toKB(estimateMemory(scene)), toKB(batchMemory));
+				if (needed < reserved) {
+					memory.release(reserved - needed);
+				} else if (needed > reserved && !memory.tryAcquire(needed - reserved)) {
+					// Scenes that waited for more while holding part of the budget could block each other for good
+					memory.release(reserved);
+					reserved = 0;
+					memory.acquire(needed);
+				}
+				reserved = needed;
+				report.waitMs += System.currentTimeMillis() - waitStart;
+			}
+
+			// Initialize the scene; this times mesh packing and the BVH build itself
 			scene.init();
+			if (heatMapMetric != null) {
+				Image image = scene.getImage();
+				scene.setHeatMap(new HeatMap(heatMapMetric, image.getWidth(), image.getHeight()));
+			}
 
 			// Render the scene
-			renderImage(scene);
+			start = System.nanoTime();
+			if (progressive) {
+				renderProgressive(scene, p.getFile());
+			} else {
+				renderImage(scene);
+			}
+			stats.addPhase(RenderStats.RENDER, System.nanoTime() - start);
 
 			// Write the image out
-			if (writeHDR)
-			{
-				scene.getImage().writeHDR(sceneWorkspace.getFile() + ".exr");
+			start = System.nanoTime();
+			writeImage(scene.getImage(), p.getFile());
+			if (scene.getHeatMap() != null) scene.getHeatMap().write(p.getFile(), writeHDR);
+			stats.addPhase(RenderStats.WRITE, System.nanoTime() - start);
+
+			if (writeStats) {
+				Image image = scene.getImage();
+				stats.writeJSON(p.getFile() + ".stats.json", p.file.getFileName().toString(),
+						image.getWidth(), image.getHeight(), numThreads);
 			}
-			else
-			{
-				scene.getImage().write(sceneWorkspace.getFile() + ".png");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			report.error = "interrupted";
+		} catch (RuntimeException e) {
+			report.error = e.toString();
+			e.printStackTrace();
+		} catch (Error e) {
+			// The parser reports malformed scenes with Errors; anything worse is not ours to handle
+			if (e instanceof VirtualMachineError) throw e;
+			report.error = e.toString();
+			e.printStackTrace();
+		} finally {
+			if (reserved > 0) memory.release(reserved);
+		}
+	}
+	
+	/** The mesh files a scene file names, each in a <data> element. */
+	private static final Pattern MESH_DATA = Pattern.compile("<data>\\s*(.*?)\\s*</data>", Pattern.DOTALL);
+	
+	/**
+	 * Estimate the memory a scene will take while it is parsed, before parsing it: that
+	 * of the meshes named by its <data> elements (see Mesh.getLoadEstimate). Only used
+	 * to budget batch rendering.
+	 *
+	 * @param p the scene file
+	 * @return the estimate in bytes, or 0 if the file cannot be read
+	 */
+	protected long estimateParseMemory(ScenePath p) {
+		String xml;
+		try {
+			xml = new String(Files.readAllBytes(p.file), StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			return 0;
+		}
+		long bytes = 0;
+		Matcher m = MESH_DATA.matcher(xml);
+		while (m.find()) {
+			bytes += Mesh.getLoadEstimate(p.resolve(m.group(1)));
+		}
+		return bytes;
+	}
+	
+	/**
+	 * Estimate the memory a parsed scene will take while it is rendered: its image,
+	 * the sums of a progressive render and its meshes (see Mesh.getMemoryEstimate),
+	 * plus a little for every other surface. Only used to budget batch rendering.
+	 *
+	 * @param scene a scene that has been parsed but not initialized
+	 * @return the estimate in bytes
+	 */
+	protected long estimateMemory(Scene scene) {
+		Image image = scene.getImage();
+		long pixels = image == null ? 0 : (long) image.getWidth() * image.getHeight();
+		long bytes = 12 * pixels;
+		if (progressive) bytes += 24 * pixels;
+		for (Surface s : scene.getSurfaces()) {
+			bytes += s instanceof Mesh ? ((Mesh) s).getMemoryEstimate() : 1024;
+		}
+		return bytes;
+	}
+	
+	/**
+	 * Print the time each step took for each scene, and the scenes that failed.
+	 *
+	 * @param reports the scenes rendered
+	 * @param totalMs the wall time of the whole run
+	 */
+	protected static void printReport(SceneReport[] reports, long totalMs) {
+		final int[] phases = { RenderStats.PARSE, RenderStats.MESH_LOAD, -1, RenderStats.BVH_BUILD, RenderStats.RENDER, RenderStats.WRITE };
+		System.out.println();
+		System.out.printf("%-40s %9s %9s %9s %9s %9s %9s%n", "Scene", "parse", "mesh", "wait", "bvh", "render", "write");
+		double[] total = new double[phases.length];
+		int failed = 0;
+		for (SceneReport r : reports) {
+			String name = r.path.file.getFileName().toString();
+			if (r.error != null) {
+				failed++;
+				System.out.printf("%-40s FAILED: %s%n", name, r.error);
+				continue;
+			}
+			StringBuilder line = new StringBuilder(String.format("%-40s", name));
+			for (int i = 0; i < phases.length; i++) {
+				double seconds = phases[i] < 0 ? r.waitMs / 1000.0 : r.stats.getPhaseSeconds(phases[i]);
+				total[i] += seconds;
+				line.append(String.format(" %9.3f", seconds));
 			}
+			System.out.println(line);
+		}
+		StringBuilder line = new StringBuilder(String.format("%-40s", "Total (s)"));
+		for (double seconds : total) line.append(String.format(" %9.3f", seconds));
+		System.out.println(line);
+		System.out.println((reports.length - failed) + " of " + reports.length + " scenes rendered in "
+				+ (totalMs / 1000.0) + " seconds" + (failed > 0 ? ", " + failed + " failed" : ""));
+	}
+	
+	/**
+	 * Write an image as EXR or PNG, depending on writeHDR.
+	 *
+	 * @param image the image
+	 * @param baseName the output file name without the .exr or .png extension
+	 */
+	protected void writeImage(Image image, String baseName) {
+		if (writeHDR)
+		{
+			image.writeHDR(baseName + ".exr");
+		}
+		else
+		{
+			image.write(baseName + ".png");
 		}
 	}
 	
 	/**
 	 * The renderImage method renders the entire scene.
 	 *
+	 * With the scene's samples above 1, pixels are anti-aliased with samples x samples
+	 * stratified samples each (see PixelSampler); with an adaptive threshold as well,
+	 * every pixel is first rendered with one sample and only the pixels that the
+	 * contrast test picks out are rendered again with the full number of samples.
+	 *
 	 * @param scene The scene to be rendered
 	 */
 	public void renderImage(Scene scene) {
 
+		// Timing counters
+		long startTime = System.currentTimeMillis();
+
+		Image image = scene.getImage();
+		int samples = scene.getSamples();
+		float threshold = scene.getAdaptiveThreshold();
+		if (samples > 1 && threshold > 0) {
+			renderPass(scene, 1, -1, null);
+			boolean[] refine = PixelSampler.contrastMask(image, threshold);
+			int refined = 0;
+			for (boolean r : refine) if (r) refined++;
+			renderPass(scene, samples, -1, refine);
+			System.out.printf("Anti-aliasing: %dx%d samples in %d of %d pixels (%.1f%%), contrast above %s%n",
+					samples, samples, refined, refine.length, 100.0 * refined / Math.max(1, refine.length), threshold);
+		} else {
+			renderPass(scene, samples, -1, null);
+			if (samples > 1)
+				System.out.println("Anti-aliasing: " + samples + "x" + samples + " samples in every pixel");
+		}
+
+		printTimes(scene, startTime);
+	}
+
+	/**
+	 * Print the time since startTime and the number of shadow rays traced.
+	 */
+	private static void printTimes(Scene scene, long startTime) {
+		// Output time
+		long totalTime = (System.currentTimeMillis() - startTime);
+		System.out.println("Done.  Rendering time: "
+				+ (totalTime / 1000.0) + " seconds");
+		long shadowRays = scene.getShadowRayCount();
+		System.out.println("Shadow rays: " + shadowRays
+				+ (totalTime > 0 ? " (" + (shadowRays * 1000 / totalTime) + " per second)" : ""));
+		System.out.println(scene.getStats().rayReport());
+	}
+
+	/**
+	 * Render the scene progressively: in passes that each add one sample to every
+	 * pixel, at the positions given by PixelSampler.progressive, into a running average
+	 * kept by a SampleAccumulator. After each pass the image holds the average so far,
+	 * and every snapshotInterval seconds it is also written out, so a long render can be
+	 * watched as it converges. The first pass samples the pixel centers and so gives the
+	 * image renderImage would without anti-aliasing.
+	 *
+	 * Rendering stops after maxPasses passes, when the next pass would likely end past
+	 * the time budget, or once the accumulator's noise estimate is below noiseThreshold,
+	 * whichever comes first. The scene's samples and adaptive threshold are not used.
+	 *
+	 * @param scene The scene to be rendered
+	 * @param baseName the file intermediate images are written to, as for writeImage
+	 */
+	public void renderProgressive(Scene scene, String baseName) {
+		long startTime = System.currentTimeMillis();
+		long budgetMs = (long) (timeBudget * 1000);
+		long snapshotMs = (long) (snapshotInterval * 1000);
+		long lastSnapshot = startTime;
+
+		Image image = scene.getImage();
+		SampleAccumulator accumulator = new SampleAccumulator(image.getWidth(), image.getHeight());
+		String reason = "pass limit";
+		while (accumulator.getPasses() < maxPasses) {
+			long passStart = System.currentTimeMillis();
+			renderPass(scene, 1, accumulator.getPasses(), null);
+			accumulator.add(image);
+			accumulator.resolve(image);
+			long now = System.currentTimeMillis();
+
+			int passes = accumulator.getPasses();
+			double noise = accumulator.noise();
+			System.out.printf("Pass %d: noise %s, %.1f s%n", passes,
+					Double.isInfinite(noise) ? "-" : String.format("%.5f", noise), (now - startTime) / 1000.0);
+
+			if (noiseThreshold > 0 && passes >= MIN_NOISE_PASSES && noise < noiseThreshold) {
+				reason = "noise below " + noiseThreshold;
+				break;
+			}
+			if (budgetMs > 0 && now - startTime + (now - passStart) > budgetMs) {
+				reason = "time budget";
+				break;
+			}
+			if (snapshotMs > 0 && now - lastSnapshot >= snapshotMs && passes < maxPasses) {
+				writeImage(image, baseName);
+				lastSnapshot = System.currentTimeMillis();
+			}
+		}
+		System.out.println("Progressive: " + accumulator.getPasses() + " passes, stopped on " + reason);
+
+		printTimes(scene, startTime);
+	}
+
+	/**
+	 * Render the pixels of the scene's image with the serial or the tiled loop,
+	 * depending on numThreads, or with the wavefront renderer.
+	 *
+	 * @param scene The scene to be rendered
+	 * @param samples the number of samples along each side of a pixel
+	 * @param pass if not negative, the pass of a progressive render, which takes the
+	 * sample PixelSampler.progressive gives for it instead of samples x samples samples
+	 * @param refine if not null, only pixels (x, y) with refine[y * width + x] set are rendered
+	 */
+	protected void renderPass(Scene scene, int samples, int pass, boolean[] refine) {
+		if (wavefront && scene.getHeatMap() == null) {
+			renderImageWavefront(scene, samples, pass, refine);
+		} else if (numThreads <= 1) {
+			renderImageSerial(scene, samples, pass, refine);
+		} else {
+			renderImageTiled(scene, samples, pass, refine);
+		}
+	}
+
+	/**
+	 * Render the scene one scanline at a time on the calling thread.
+	 *
+	 * @param scene The scene to be rendered
+	 * @param samples the number of samples along each side of a pixel
+	 * @param pass if not negative, the progressive pass
+	 * @param refine if not null, the pixels to render
+	 */
+	protected void renderImageSerial(Scene scene, int samples, int pass, boolean[] refine) {
+
 		// Get the output image
 		Image image = scene.getImage();
-		Camera cam = scene.getCamera();
 
 		// Set the camera aspect ratio to match output image
 		int width = image.getWidth();
 		int height = image.getHeight();
 
-		// Timing counters
-		long startTime = System.currentTimeMillis();
-
 		// Do some basic setup
 		Ray ray = new Ray();
 		Colorf rayColor = new Colorf();
-
-		// Progress reporting
-		final int PROGRESS_INTERVAL_MS = 5000;
-		long lastShownTime = startTime;
-		
-		float exposure = scene.getExposure();
+		float[] offsets = new float[2 * samples * samples];
+		RenderStats.Counters counters = RenderStats.local();
+		counters.reset();
+		HeatMap heatMap = scene.getHeatMap();
 
 		for (int y = 0; y < height; y++) {
 			for (int x = 0; x < width; x++) {
+				if (refine != null && !refine[y * width + x]) continue;
+				long before = heatMap != null ? heatMap.read() : 0;
+				renderPixel(rayColor, ray, offsets, scene, x, y, samples, pass);
+				if (heatMap != null) heatMap.add(x, y, before);
+				image.setPixelColor(rayColor, x, y);
+			}
+		}
+		scene.getStats().collect(counters);
+	}
 
-				rayColor.setZero();
+	/**
+	 * Render the scene in tiles spread over numThreads threads. Every pixel is
+	 * computed exactly as in renderImageSerial, so the two produce identical images.
+	 * Unless packetSize is 1 or a heat map is being drawn, the camera rays of each
+	 * packetSize x packetSize block of a tile are traced as one packet (see renderPacket).
+	 *
+	 * @param scene The scene to be rendered
+	 * @param samples the number of samples along each side of a pixel
+	 * @param pass if not negative, the progressive pass
+	 * @param refine if not null, the pixels to render
+	 */
+	protected void renderImageTiled(final Scene scene, final int samples, final int pass, final boolean[] refine) {
+		final Image image = scene.getImage();
+		final int width = image.getWidth();
+		TileScheduler scheduler = new TileScheduler(image.getWidth(), image.getHeight(), tileSize, numThreads);
 
-				cam.getRay(ray, (float) (x + 0.5) / width, (float) (y + 0.5) / height);		
-				ray.makeOffsetRay();
-				
-				shadeRay(rayColor, scene, ray, 1);
-				
-				rayColor.mul(exposure);
-				image.setPixelColor(rayColor, x, y);
+		scheduler.run(new TileScheduler.TileRenderer() {
+			public void renderTile(TileScheduler.Tile tile) {
+				Ray ray = new Ray();
+				Colorf rayColor = new Colorf();
+				float[] offsets = new float[2 * samples * samples];
+				RenderStats.Counters counters = RenderStats.local();
+				counters.reset();
+				HeatMap heatMap = scene.getHeatMap();
+				if (packetSize > 1 && heatMap == null) {
+					RayPacket packet = new RayPacket(packetSize * packetSize * samples * samples);
+					for (int y = tile.y0; y < tile.y1; y += packetSize) {
+						for (int x = tile.x0; x < tile.x1; x += packetSize) {
+							renderPacket(packet, rayColor, offsets, scene, x, y, Math.min(x + packetSize, tile.x1),
+									Math.min(y + packetSize, tile.y1), samples, pass, refine);
+						}
+					}
+					scene.getStats().collect(counters);
+					return;
+				}
+				for (int y = tile.y0; y < tile.y1; y++) {
+					for (int x = tile.x0; x < tile.x1; x++) {
+						if (refine != null && !refine[y * width + x]) continue;
+						long before = heatMap != null ? heatMap.read() : 0;
+						renderPixel(rayColor, ray, offsets, scene, x, y, samples, pass);
+						if (heatMap != null) heatMap.add(x, y, before);
+						image.setPixelColor(rayColor, x, y);
+					}
+				}
+				scene.getStats().collect(counters);
+			}
+		});
+
+		if (reportTileTimes) {
+			scheduler.printTimings(5);
+		}
+	}
+
+	/**
+	 * Render the scene in tiles spread over numThreads threads, as renderImageTiled
+	 * does, but render each tile as a whole with a WavefrontRenderer from the pool: the
+	 * larger the waves, the more coherent the sorted secondary and shadow rays.
+	 *
+	 * @param scene The scene to be rendered
+	 * @param samples the number of samples along each side of a pixel
+	 * @param pass if not negative, the progressive pass
+	 * @param refine if not null, the pixels to render
+	 */
+	protected void renderImageWavefront(final Scene scene, final int samples, final int pass, final boolean[] refine) {
+		final Image image = scene.getImage();
+		TileScheduler scheduler = new TileScheduler(image.getWidth(), image.getHeight(), tileSize, numThreads);
+
+		scheduler.run(new TileScheduler.TileRenderer() {
+			public void renderTile(TileScheduler.Tile tile) {
+				float[] offsets = new float[2 * samples * samples];
+				RenderStats.Counters counters = RenderStats.local();
+				counters.reset();
+				WavefrontRenderer renderer = wavefrontRenderers.poll();
+				if (renderer == null) renderer = new WavefrontRenderer();
+				renderer.render(offsets, scene, tile.x0, tile.y0, tile.x1, tile.y1, samples, pass, refine);
+				wavefrontRenderers.add(renderer);
+				scene.getStats().collect(counters);
 			}
+		});
+
+		if (reportTileTimes) {
+			scheduler.printTimings(5);
+		}
+	}
+
+	/**
+	 * Compute the exposed color of pixel (x, y) as the average of samples x samples
+	 * camera rays placed by PixelSampler.stratified, or, in a progressive pass, of the
+	 * one ray placed by PixelSampler.progressive.
+	 *
+	 * @param outColor output space
+	 * @param ray scratch space for the camera ray
+	 * @param offsets scratch space for the sample positions, 2 * samples * samples long
+	 * @param scene the scene
+	 * @param x the pixel column
+	 * @param y the pixel row
+	 * @param samples the number of samples along each side of the pixel; 1 in a progressive pass
+	 * @param pass if not negative, the progressive pass
+	 */
+	protected void renderPixel(Colorf outColor, Ray ray, float[] offsets, Scene scene, int x, int y, int samples, int pass) {
+		Image image = scene.getImage();
+		int width = image.getWidth();
+		int height = image.getHeight();
+
+		outColor.setZero();
+		Colorf sampleColor = samples == 1 ? outColor : SAMPLE_COLOR.get();
+
+		if (pass < 0) PixelSampler.stratified(x, y, samples, offsets);
+		else PixelSampler.progressive(x, y, pass, offsets);
+		RenderStats.local().primaryRays += samples * samples;
+		for (int k = 0; k < 2 * samples * samples; k += 2) {
+			if (samples > 1) sampleColor.setZero();
+
+			scene.getCamera().getRay(ray, (x + offsets[k]) / width, (y + offsets[k + 1]) / height);
+			ray.makeOffsetRay();
 			
-			if (System.currentTimeMillis() - lastShownTime > PROGRESS_INTERVAL_MS) {
-				lastShownTime = System.currentTimeMillis();
-				System.out.println((int)(100.0*y / height) + "%");
+			shadeRay(sampleColor, scene, ray, 1);
+			
+			if (samples > 1) outColor.add(sampleColor);
+		}
+		if (samples > 1) outColor.mul(1.0f / (samples * samples));
+		
+		outColor.mul(scene.getExposure());
+	}
+
+	/**
+	 * Render the pixels of the block [x0, x1) x [y0, y1) of the image exactly as
+	 * renderPixel would, but find the first intersections of all their camera rays
+	 * together with Scene.getFirstIntersections before shading any of them. Secondary
+	 * and shadow rays are still traced one at a time by the shaders.
+	 *
+	 * @param packet scratch space for at least the block's camera rays
+	 * @param outColor scratch space for a pixel color
+	 * @param offsets scratch space for the sample positions, 2 * samples * samples long
+	 * @param scene the scene
+	 * @param samples the number of samples along each side of a pixel; 1 in a progressive pass
+	 * @param pass if not negative, the progressive pass
+	 * @param refine if not null, only pixels (x, y) with refine[y * width + x] set are rendered
+	 */
+	protected void renderPacket(RayPacket packet, Colorf outColor, float[] offsets, Scene scene,
+			int x0, int y0, int x1, int y1, int samples, int pass, boolean[] refine) {
+		Image image = scene.getImage();
+		int width = image.getWidth();
+		int height = image.getHeight();
+
+		int n = 0;
+		for (int y = y0; y < y1; y++) {
+			for (int x = x0; x < x1; x++) {
+				if (refine != null && !refine[y * width + x]) continue;
+				if (pass < 0) PixelSampler.stratified(x, y, samples, offsets);
+				else PixelSampler.progressive(x, y, pass, offsets);
+				for (int k = 0; k < 2 * samples * samples; k += 2) {
+					Ray ray = packet.rays[n++];
+					scene.getCamera().getRay(ray, (x + offsets[k]) / width, (y + offsets[k + 1]) / height);
+					ray.makeOffsetRay();
+				}
 			}
 		}
+		packet.size = n;
+		RenderStats.local().primaryRays += n;
+		scene.getFirstIntersections(packet);
 
-		// Output time
-		long totalTime = (System.currentTimeMillis() - startTime);
-		System.out.println("Done.  Rendering time: "
-				+ (totalTime / 1000.0) + " seconds");
+		Colorf sampleColor = samples == 1 ? outColor : SAMPLE_COLOR.get();
+		n = 0;
+		for (int y = y0; y < y1; y++) {
+			for (int x = x0; x < x1; x++) {
+				if (refine != null && !refine[y * width + x]) continue;
+				outColor.setZero();
+				for (int k = 0; k < samples * samples; k++, n++) {
+					if (samples > 1) sampleColor.setZero();
+					shadeHit(sampleColor, scene, packet.rays[n], packet.records[n], packet.hit[n], 1);
+					if (samples > 1) outColor.add(sampleColor);
+				}
+				if (samples > 1) outColor.mul(1.0f / (samples * samples));
+				outColor.mul(scene.getExposure());
+				image.setPixelColor(outColor, x, y);
+			}
+		}
 	}
 
 	/**
@@ -268,13 +1082,31 @@ public class RayTracer {
         {
         	return;
         }
+        if(depth > 1) RenderStats.local().secondaryRays++;
         
-        IntersectionRecord outRecord = new IntersectionRecord();
+        IntersectionRecord outRecord = records.get()[depth];
+        outRecord.reset();
         
-        if(scene.getFirstIntersection(outRecord, ray)) {
-            outRecord.surface.getShader().shade(outColor, scene, ray, outRecord, depth);
-        } else {
-            outColor.set(scene.getBackColor());
-        }
+        shadeHit(outColor, scene, ray, outRecord, scene.getFirstIntersection(outRecord, ray), depth);
+	}
+
+	/**
+	 * Set outColor to the color along a ray whose first intersection has already been
+	 * found: the shaded intersection if there is one, and the background otherwise.
+	 *
+	 * @param outColor output space
+	 * @param scene the scene
+	 * @param ray the ray to shade
+	 * @param record the first intersection of the ray, if hit is set
+	 * @param hit whether the ray hit anything
+	 * @param depth the recursion depth of the ray
+	 */
+	public static void shadeHit(Colorf outColor, Scene scene, Ray ray, IntersectionRecord record, boolean hit, int depth) {
+		outColor.setZero();
+		if (hit) {
+			record.surface.getShader().shade(outColor, scene, ray, record, depth);
+		} else {
+			outColor.set(scene.getBackColor());
+		}
 	}
 }
@@ -0,0 +1,182 @@
+package ray1;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Where the time went while rendering one scene, and how many rays it traced and how
+ * much work they took.
+ *
+ * Phases are timed by whoever runs them (the parser's caller, Scene.init, the renderer)
+ * and added with addPhase. Ray counts are gathered in two steps, so that the hot loops
+ * never touch shared memory: rays and traversals add to the plain fields of the calling
+ * thread's Counters (see local()), and each render loop hands its thread's counts to
+ * the scene's RenderStats with collect() when it finishes a tile or pass. The totals
+ * are LongAdders, so render threads collecting at the same time do not contend.
+ *
+ * Nodes visited and primitives tested are summed over every BVH a ray goes through:
+ * the scene's tree and the trees of the packed meshes inside it, where the mesh itself
+ * counts as one primitive of the scene's tree.
+ */
+public class RenderStats {
+
+	/** Phase: reading the scene file, not counting mesh loading. */
+	public static final int PARSE = 0;
+	/** Phase: reading OBJ files or their caches, and packing the meshes. */
+	public static final int MESH_LOAD = 1;
+	/** Phase: building (or loading) the scene's acceleration structure. */
+	public static final int BVH_BUILD = 2;
+	/** Phase: tracing the image. */
+	public static final int RENDER = 3;
+	/** Phase: writing the image file. */
+	public static final int WRITE = 4;
+
+	private static final String[] PHASE_NAMES = { "parse", "meshLoad", "bvhBuild", "render", "write" };
+
+	/**
+	 * The counts of one thread, not yet collected into any scene. Only that thread
+	 * reads or writes them.
+	 */
+	public static final class Counters {
+		/** Camera rays. */
+		public long primaryRays;
+		/** Any-hit queries of Scene.getAnyIntersection. */
+		public long shadowRays;
+		/** Rays shaded below the first recursion level, such as reflections. */
+		public long secondaryRays;
+		/** BVH nodes taken off a traversal stack. */
+		public long nodesVisited;
+		/** Surfaces and triangles tested for intersection. */
+		public long primitiveTests;
+
+		public void reset() {
+			primaryRays = shadowRays = secondaryRays = nodesVisited = primitiveTests = 0;
+		}
+	}
+
+	private static final ThreadLocal<Counters> LOCAL = new ThreadLocal<Counters>() {
+		protected Counters initialValue() {
+			return new Counters();
+		}
+	};
+
+	/**
+	 * @return the calling thread's uncollected counts
+	 */
+	public static Counters local() {
+		return LOCAL.get();
+	}
+
+	private final LongAdder[] phaseNanos = new LongAdder[PHASE_NAMES.length];
+	private final LongAdder primaryRays = new LongAdder(), shadowRays = new LongAdder(),
+			secondaryRays = new LongAdder(), nodesVisited = new LongAdder(), primitiveTests = new LongAdder();
+
+	public RenderStats() {
+		for (int i = 0; i < phaseNanos.length; i++) phaseNanos[i] = new LongAdder();
+	}
+
+	/**
+	 * Add time spent in a phase.
+	 *
+	 * @param phase one of PARSE, MESH_LOAD, BVH_BUILD, RENDER and WRITE
+	 * @param nanos the time in nanoseconds
+	 */
+	public void addPhase(int phase, long nanos) {
+		phaseNanos[phase].add(nanos);
+	}
+
+	/** @return the time spent in a phase, in seconds */
+	public double getPhaseSeconds(int phase) {
+		return phaseNanos[phase].sum() / 1e9;
+	}
+
+	/**
+	 * Add a thread's counts to this scene's totals and reset them.
+	 *
+	 * @param counters the calling thread's counts, from local()
+	 */
+	public void collect(Counters counters) {
+		primaryRays.add(counters.primaryRays);
+		shadowRays.add(counters.shadowRays);
+		secondaryRays.add(counters.secondaryRays);
+		nodesVisited.add(counters.nodesVisited);
+		primitiveTests.add(counters.primitiveTests);
+		counters.reset();
+	}
+
+	public long getPrimaryRays() { return primaryRays.sum(); }
+	public long getShadowRays() { return shadowRays.sum(); }
+	public long getSecondaryRays() { return secondaryRays.sum(); }
+	public long getRays() { return getPrimaryRays() + getShadowRays() + getSecondaryRays(); }
+	public long getNodesVisited() { return nodesVisited.sum(); }
+	public long getPrimitiveTests() { return primitiveTests.sum(); }
+
+	/**
+	 * @return a one-line summary of the rays traced and their cost
+	 */
+	public String rayReport() {
+		long rays = Math.max(1, getRays());
+		return String.format(Locale.ROOT, "Rays: %d primary, %d shadow, %d secondary; %.1f nodes and %.1f primitive tests per ray",
+				getPrimaryRays(), getShadowRays(), getSecondaryRays(),
+				(double) getNodesVisited() / rays, (double) getPrimitiveTests() / rays);
+	}
+
+	/**
+	 * Write these statistics as a JSON object.
+	 *
+	 * @param fileName the file to write
+	 * @param scene the name of the scene, recorded in the report
+	 * @param width the width of the image
+	 * @param height the height of the image
+	 * @param threads the number of render threads
+	 */
+	public void writeJSON(String fileName, String scene, int width, int height, int threads) {
+		try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(fileName), StandardCharsets.UTF_8))) {
+			long rays = getRays();
+			double render = getPhaseSeconds(RENDER);
+			out.println("{");
+			out.println("  \"scene\": \"" + escape(scene) + "\",");
+			out.println("  \"width\": " + width + ",");
+			out.println("  \"height\": " + height + ",");
+			out.println("  \"threads\": " + threads + ",");
+			out.println("  \"phaseSeconds\": {");
+			for (int i = 0; i < PHASE_NAMES.length; i++) {
+				out.printf(Locale.ROOT, "    \"%s\": %.6f%s%n", PHASE_NAMES[i], getPhaseSeconds(i),
+						i + 1 < PHASE_NAMES.length ? "," : "");
+			}
+			out.println("  },");
+			out.println("  \"rays\": {");
+			out.println("    \"primary\": " + getPrimaryRays() + ",");
+			out.println("    \"shadow\": " + getShadowRays() + ",");
+			out.println("    \"secondary\": " + getSecondaryRays() + ",");
+			out.println("    \"total\": " + rays);
+			out.println("  },");
+			out.printf(Locale.ROOT, "  \"raysPerSecond\": %.1f,%n", render > 0 ? rays / render : 0.0);
+			out.println("  \"nodesVisited\": " + getNodesVisited() + ",");
+			out.println("  \"primitiveTests\": " + getPrimitiveTests() + ",");
+			out.printf(Locale.ROOT, "  \"nodesPerRay\": %.3f,%n", rays > 0 ? (double) getNodesVisited() / rays : 0.0);
+			out.printf(Locale.ROOT, "  \"primitiveTestsPerRay\": %.3f%n", rays > 0 ? (double) getPrimitiveTests() / rays : 0.0);
+			out.println("}");
+			System.out.println("  Wrote statistics " + fileName);
+		} catch (IOException e) {
+			System.out.println("Error occured while attempting to write file: " + fileName);
+			System.err.println(e);
+		}
+	}
+
+	private static String escape(String s) {
+		StringBuilder b = new StringBuilder();
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') b.append('\\').append(c);
+			else if (c < 0x20) b.append(String.format("\\u%04x", (int) c));
+			else b.append(c);
+		}
+		return b.toString();
+	}
+}
@@ -0,0 +1,108 @@
+package ray1;
+
+import egl.math.Colorf;
+
+/**
+ * The running average of the passes of a progressive render, and an estimate of how
+ * far that average still is from converged.
+ *
+ * Each pass renders one sample per pixel into an Image, which add() folds into the
+ * per-pixel sums. Since progressive passes take low-discrepancy sample positions, the
+ * error falls faster than the sample variance would suggest, so instead of a variance
+ * the noise estimate compares two averages, as Cycles does for adaptive sampling: that
+ * of all passes and that of the even-numbered passes alone. The latter has half the
+ * samples and so more error, which makes the difference a conservative estimate of the
+ * error of the full average. noise() is the root mean square of that difference in
+ * display luminance, i.e. after clamping to [0, 1] and gamma correcting as for a PNG,
+ * in the same units as the adaptive anti-aliasing threshold.
+ */
+public class SampleAccumulator {
+
+	/** The display gamma of the noise estimate, as used by Image.write. */
+	private static final float GAMMA = 2.2f;
+
+	protected final int width, height;
+
+	/** The sums of R, G and B over all passes, three floats per pixel y * width + x. */
+	protected final float[] sum;
+
+	/** The same sums over the even-numbered passes (0, 2, 4, ...) only. */
+	protected final float[] evenSum;
+
+	/** The number of passes added. */
+	protected int passes = 0;
+
+	public SampleAccumulator(int width, int height) {
+		this.width = width;
+		this.height = height;
+		sum = new float[3 * width * height];
+		evenSum = new float[3 * width * height];
+	}
+
+	public int getPasses() { return passes; }
+
+	/**
+	 * Add one sample per pixel.
+	 *
+	 * @param image the samples of one pass, of the size of this accumulator
+	 */
+	public void add(Image image) {
+		boolean even = passes % 2 == 0;
+		passes++;
+		Colorf c = new Colorf();
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				image.getPixelColor(c, x, y);
+				int p = 3 * (y * width + x);
+				sum[p] += c.x;
+				sum[p + 1] += c.y;
+				sum[p + 2] += c.z;
+				if (even) {
+					evenSum[p] += c.x;
+					evenSum[p + 1] += c.y;
+					evenSum[p + 2] += c.z;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Set every pixel of image to the average of its samples so far.
+	 */
+	public void resolve(Image image) {
+		float scale = 1.0f / Math.max(1, passes);
+		Colorf c = new Colorf();
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int p = 3 * (y * width + x);
+				c.set(sum[p] * scale, sum[p + 1] * scale, sum[p + 2] * scale);
+				image.setPixelColor(c, x, y);
+			}
+		}
+	}
+
+	/**
+	 * @return the root mean square over all pixels of the difference in display
+	 * luminance between the average of all passes and that of the even passes, or
+	 * positive infinity before the second pass
+	 */
+	public double noise() {
+		if (passes < 2) return Double.POSITIVE_INFINITY;
+		float scale = 1.0f / passes, evenScale = 1.0f / ((passes + 1) / 2);
+		double total = 0;
+		for (int p = 0; p < sum.length; p += 3) {
+			float d = luminance(sum, p, scale) - luminance(evenSum, p, evenScale);
+			total += d * d;
+		}
+		return Math.sqrt(total / (width * height));
+	}
+
+	private static float luminance(float[] sums, int p, float scale) {
+		return 0.2126f * toDisplay(sums[p] * scale) + 0.7152f * toDisplay(sums[p + 1] * scale)
+				+ 0.0722f * toDisplay(sums[p + 2] * scale);
+	}
+
+	private static float toDisplay(float v) {
+		return (float) Math.pow(Math.max(Math.min(v, 1.0f), 0.0f), 1.0f / GAMMA);
+	}
+}
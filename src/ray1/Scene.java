@@ -45,6 +45,25 @@ public class Scene {
 	}
 	public float getExposure() { return this.exposure; }
 	
+	/**
+	 * The number of anti-aliasing samples along each side of a pixel: each pixel is
+	 * sampled samples * samples times (see PixelSampler). 1 traces one ray through the
+	 * pixel center.
+	 */
+	protected int samples = 1;
+	public void setSamples(int samples) { this.samples = Math.max(1, samples); }
+	public int getSamples() { return this.samples; }
+	
+	/**
+	 * If greater than 0, anti-aliasing is adaptive: every pixel is first sampled once,
+	 * and only pixels that differ from a neighbour by more than this much in display
+	 * space (a channel value in [0, 1] after gamma correction) are then supersampled.
+	 * 0 supersamples every pixel.
+	 */
+	protected float adaptiveThreshold = 0;
+	public void setAdaptiveThreshold(float threshold) { this.adaptiveThreshold = Math.max(0, threshold); }
+	public float getAdaptiveThreshold() { return this.adaptiveThreshold; }
+	
 	/** The list of lights for the scene. */
 	protected ArrayList<Light> lights = new ArrayList<Light>();
 	public void addLight(Light toAdd) { lights.add(toAdd); }
@@ -81,11 +100,24 @@ public class Scene {
 	public void setAccelStruct(AccelStruct accelStruct) { this.accelStruct = accelStruct; }
 	public AccelStruct getAccelStruct() { return accelStruct; }
 	
+	/** Timings and ray counts of this scene; see RenderStats for how render threads add to them. */
+	protected final RenderStats stats = new RenderStats();
+	public RenderStats getStats() { return stats; }
+	
+	/** If not null, the render loops add the cost of every pixel to this map. */
+	protected HeatMap heatMap = null;
+	public void setHeatMap(HeatMap heatMap) { this.heatMap = heatMap; }
+	public HeatMap getHeatMap() { return heatMap; }
+	
+	/** @return the number of any-intersection (shadow ray) queries collected into the stats so far */
+	public long getShadowRayCount() { return stats.getShadowRays(); }
+	
 	/**
 	* Initialize method
 	*/
 	public void init() {
 		// Create the acceleration structure.
+		long start = System.nanoTime();
 		ArrayList<Surface> renderableSurfaces = new ArrayList<Surface>();
 		List<Surface> surfaces = getSurfaces();
 		for (Iterator<Surface> iter = surfaces.iterator(); iter.hasNext();) {
@@ -94,7 +126,11 @@ public class Scene {
 		setSurfaces(renderableSurfaces);
 		Surface surfaceArray[] = new Surface[renderableSurfaces.size()];
 		renderableSurfaces.toArray(surfaceArray);
+		// Meshes are packed when they are first appended
+		stats.addPhase(RenderStats.MESH_LOAD, System.nanoTime() - start);
+		start = System.nanoTime();
 		getAccelStruct().build(surfaceArray);
+		stats.addPhase(RenderStats.BVH_BUILD, System.nanoTime() - start);
 		
 		// initialize camera
 		getCamera().init();
@@ -135,15 +171,26 @@ public class Scene {
 		
 	}
 	
+	/**
+	 * Find the first intersection of every ray in a packet; see AccelStruct.intersect(RayPacket).
+	 *
+	 * @param packet the rays to intersect, which receives the results
+	 */
+	public void getFirstIntersections(RayPacket packet) {
+		accelStruct.intersect(packet);
+	}
+	
 	/**
 	 * Shadow ray calculations can be considerably accelerated by not bothering to find the
 	 * first intersection.  This record returns any intersection of the ray and the surfaces
-	 * and returns true if one is found.
+	 * and returns true if one is found. It is answered by AccelStruct.occluded, which
+	 * needs no intersection record, and is counted in the shadow ray count.
 	 * @param ray the ray to intersect
 	 * @return true if any intersection is found
 	 */
 	public boolean getAnyIntersection(Ray ray) {
-		return intersect(new IntersectionRecord(), ray, true);	
+		RenderStats.local().shadowRays++;
+		return accelStruct.occluded(ray);
 	}
 	
 	private boolean intersect(IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection) {
@@ -0,0 +1,186 @@
+package ray1;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Splits an image into square tiles and renders them on a fixed pool of worker
+ * threads. Workers pull the next unrendered tile from a shared counter, so a
+ * worker that draws cheap tiles simply takes more of them.
+ *
+ * Every tile records the wall time spent rendering it, which can be printed
+ * after the render with printTimings().
+ */
+public class TileScheduler {
+
+	/**
+	 * A rectangular block of pixels, [x0, x1) x [y0, y1).
+	 */
+	public static class Tile {
+		/** The position of this tile in scheduling order. */
+		public final int index;
+		public final int x0, y0, x1, y1;
+
+		/** Time spent rendering this tile, in nanoseconds. */
+		public long nanos;
+
+		/** The worker that rendered this tile. */
+		public int worker;
+
+		public Tile(int index, int x0, int y0, int x1, int y1) {
+			this.index = index;
+			this.x0 = x0;
+			this.y0 = y0;
+			this.x1 = x1;
+			this.y1 = y1;
+		}
+
+		public int getWidth() { return x1 - x0; }
+		public int getHeight() { return y1 - y0; }
+
+		public String toString() {
+			return "tile " + index + " [" + x0 + "," + x1 + ")x[" + y0 + "," + y1 + ")";
+		}
+	}
+
+	/**
+	 * The work done for each tile. renderTile is called concurrently from several
+	 * worker threads, each time with a different tile.
+	 */
+	public interface TileRenderer {
+		void renderTile(Tile tile);
+	}
+
+	/** The tiles in scheduling order (row by row, bottom to top). */
+	protected final ArrayList<Tile> tiles = new ArrayList<Tile>();
+
+	/** The number of worker threads. */
+	protected final int numThreads;
+
+	/** The edge length of a (full) tile in pixels. */
+	protected final int tileSize;
+
+	/**
+	 * Create a scheduler for an image of the given size.
+	 *
+	 * @param width image width
+	 * @param height image height
+	 * @param tileSize the edge length of a tile in pixels; tiles on the right and top
+	 * border of the image may be smaller
+	 * @param numThreads the number of worker threads to render with
+	 */
+	public TileScheduler(int width, int height, int tileSize, int numThreads) {
+		this.tileSize = Math.max(1, tileSize);
+		this.numThreads = Math.max(1, numThreads);
+		for (int y = 0; y < height; y += this.tileSize) {
+			for (int x = 0; x < width; x += this.tileSize) {
+				tiles.add(new Tile(tiles.size(), x, y,
+						Math.min(x + this.tileSize, width), Math.min(y + this.tileSize, height)));
+			}
+		}
+	}
+
+	public List<Tile> getTiles() { return tiles; }
+	public int getNumThreads() { return numThreads; }
+	public int getTileSize() { return tileSize; }
+
+	/**
+	 * Render every tile with the given renderer and wait until all of them are done.
+	 * If any tile throws, the remaining tiles are abandoned and the exception is
+	 * rethrown on the calling thread.
+	 *
+	 * @param renderer the work to be done for each tile
+	 */
+	public void run(final TileRenderer renderer) {
+		final AtomicInteger nextTile = new AtomicInteger(0);
+		final AtomicInteger nextWorker = new AtomicInteger(0);
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "render-worker-" + nextWorker.getAndIncrement());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		try {
+			ArrayList<Future<?>> workers = new ArrayList<Future<?>>();
+			for (int w = 0; w < numThreads; w++) {
+				final int worker = w;
+				workers.add(pool.submit(new Runnable() {
+					public void run() {
+						int i;
+						while ((i = nextTile.getAndIncrement()) < tiles.size()) {
+							Tile tile = tiles.get(i);
+							long start = System.nanoTime();
+							renderer.renderTile(tile);
+							tile.nanos = System.nanoTime() - start;
+							tile.worker = worker;
+						}
+					}
+				}));
+			}
+			for (Future<?> f : workers) {
+				try {
+					f.get();
+				} catch (ExecutionException e) {
+					// Stop handing out tiles and surface the original failure
+					nextTile.set(tiles.size());
+					Throwable cause = e.getCause();
+					if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+					if (cause instanceof Error) throw (Error) cause;
+					throw new RuntimeException(cause);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while rendering tiles", e);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Print a summary of the per-tile timings of the last run: the spread of tile
+	 * times, the busy time of each worker and the slowest tiles.
+	 *
+	 * @param numSlowest the number of slowest tiles to list
+	 */
+	public void printTimings(int numSlowest) {
+		if (tiles.isEmpty()) return;
+
+		long total = 0, min = Long.MAX_VALUE, max = 0;
+		long[] busy = new long[numThreads];
+		for (Tile t : tiles) {
+			total += t.nanos;
+			min = Math.min(min, t.nanos);
+			max = Math.max(max, t.nanos);
+			busy[t.worker] += t.nanos;
+		}
+
+		System.out.printf("Tiles: %d of %dx%d px on %d threads%n", tiles.size(), tileSize, tileSize, numThreads);
+		System.out.printf("  tile time min %.2f ms, mean %.2f ms, max %.2f ms%n",
+				min / 1e6, total / 1e6 / tiles.size(), max / 1e6);
+		for (int w = 0; w < numThreads; w++) {
+			System.out.printf("  worker %d busy %.3f s%n", w, busy[w] / 1e9);
+		}
+
+		ArrayList<Tile> sorted = new ArrayList<Tile>(tiles);
+		Collections.sort(sorted, new Comparator<Tile>() {
+			public int compare(Tile a, Tile b) {
+				return Long.compare(b.nanos, a.nanos);
+			}
+		});
+		for (int i = 0; i < Math.min(numSlowest, sorted.size()); i++) {
+			Tile t = sorted.get(i);
+			System.out.printf("  %s: %.2f ms%n", t, t.nanos / 1e6);
+		}
+	}
+}
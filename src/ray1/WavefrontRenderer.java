@@ -0,0 +1,407 @@
+package ray1;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import egl.math.Colorf;
+import egl.math.Vector3;
+import egl.math.Vector3d;
+import ray1.shader.ReflectionShader;
+import ray1.shader.Shader;
+
+/**
+ * Renders blocks of pixels breadth-first, one bounce at a time, instead of following
+ * each ray's path depth-first through RayTracer.shadeRay and the shaders.
+ *
+ * The camera rays of the block form the first wave. Each wave is sorted by direction
+ * octant and then by the Morton code of the ray origins within the wave's bounds, and
+ * traced in that order in packets of PACKET_SIZE rays with Scene.getFirstIntersections.
+ * The hits are then grouped by shader, keeping that order within each group. For each
+ * ReflectionShader, the shadow rays of all its hits are generated, sorted the same way
+ * and traced, after which the direct light of every hit is added up and its mirror
+ * ray, if any, goes into the next wave. The sorts are LSD radix sorts, which cost a
+ * few passes over the rays instead of a comparison sort. Once
+ * a wave is empty, the color seen along each ray is added into its parent's, from the
+ * last wave back to the camera rays, scaled by the reflectance of the mirror bounce.
+ *
+ * Every color is computed with the same floating point operations in the same order
+ * as the recursive renderer, so the two produce identical images. Shaders other than
+ * ReflectionShader are called as usual, and trace whatever rays they need themselves.
+ *
+ * A WavefrontRenderer keeps its buffers from one block to the next and must only be
+ * used by one thread at a time.
+ */
+public class WavefrontRenderer {
+
+	/** The number of rays traced together as one RayPacket. */
+	public static final int PACKET_SIZE = 64;
+
+	/** Below this many rays, sort uses an insertion sort instead of the radix sort. */
+	static final int INSERTION_SORT_SIZE = 32;
+
+	/** The rays of one bounce, for every pixel of a block. */
+	private static final class Wave {
+		Ray[] rays = new Ray[0];
+		IntersectionRecord[] records = new IntersectionRecord[0];
+		boolean[] hit = new boolean[0];
+
+		/** The color seen along each ray, once it has been shaded. */
+		Colorf[] colors = new Colorf[0];
+
+		/** The index in the previous wave of the ray each ray is the reflection of. */
+		int[] parent = new int[0];
+
+		/** The factor each ray's color is scaled by before it is added to its parent's. */
+		Vector3[] reflectance = new Vector3[0];
+
+		int size;
+
+		void ensureCapacity(int capacity) {
+			int old = rays.length;
+			if (capacity <= old) return;
+			capacity = Math.max(capacity, 2 * old);
+			rays = Arrays.copyOf(rays, capacity);
+			records = Arrays.copyOf(records, capacity);
+			hit = Arrays.copyOf(hit, capacity);
+			colors = Arrays.copyOf(colors, capacity);
+			parent = Arrays.copyOf(parent, capacity);
+			reflectance = Arrays.copyOf(reflectance, capacity);
+			for (int i = old; i < capacity; i++) {
+				rays[i] = new Ray();
+				records[i] = new IntersectionRecord();
+				colors[i] = new Colorf();
+				reflectance[i] = new Vector3();
+			}
+		}
+	}
+
+	/** The waves of the current block; wave d holds the rays of depth d + 1. */
+	private final ArrayList<Wave> waves = new ArrayList<Wave>();
+
+	/**
+	 * The packet the rays of a wave are traced in. Its slots are pointed at the rays and
+	 * records of the wave, so that the results need no copying.
+	 */
+	private final RayPacket packet = new RayPacket(PACKET_SIZE);
+
+	/** The shaders of the current wave, in the order they were first hit. */
+	private final ArrayList<Shader> shaders = new ArrayList<Shader>();
+
+	/** The order the rays of a wave are traced in, its hits are shaded in and shadow rays are traced in. */
+	private int[] rayOrder = new int[0], hitOrder = new int[0], shadowOrder = new int[0];
+
+	/** The index in shaders of the shader of each hit, and where each shader's hits start in hitOrder. */
+	private int[] shaderOf = new int[0], shaderStart = new int[0];
+
+	/** Scratch space for sort. */
+	private int[] keys = new int[0], keyBuffer = new int[0], indexBuffer = new int[0];
+	private final int[] digitCount = new int[256];
+
+	private Ray[] shadowRays = new Ray[0];
+	private boolean[] shadowed = new boolean[0];
+
+	private final Vector3d outgoing = new Vector3d();
+	private final Colorf pixelColor = new Colorf();
+
+	/**
+	 * Render the pixels of the block [x0, x1) x [y0, y1) of the scene's image exactly
+	 * as RayTracer.renderPixel would.
+	 *
+	 * @param offsets scratch space for the sample positions, 2 * samples * samples long
+	 * @param scene the scene
+	 * @param samples the number of samples along each side of a pixel; 1 in a progressive pass
+	 * @param pass if not negative, the progressive pass
+	 * @param refine if not null, only pixels (x, y) with refine[y * width + x] set are rendered
+	 */
+	public void render(float[] offsets, Scene scene, int x0, int y0, int x1, int y1, int samples, int pass,
+			boolean[] refine) {
+		Image image = scene.getImage();
+		int width = image.getWidth();
+		int height = image.getHeight();
+
+		Wave wave = wave(0);
+		wave.ensureCapacity((x1 - x0) * (y1 - y0) * samples * samples);
+		int n = 0;
+		for (int y = y0; y < y1; y++) {
+			for (int x = x0; x < x1; x++) {
+				if (refine != null && !refine[y * width + x]) continue;
+				if (pass < 0) PixelSampler.stratified(x, y, samples, offsets);
+				else PixelSampler.progressive(x, y, pass, offsets);
+				for (int k = 0; k < 2 * samples * samples; k += 2) {
+					Ray ray = wave.rays[n++];
+					scene.getCamera().getRay(ray, (x + offsets[k]) / width, (y + offsets[k + 1]) / height);
+					ray.makeOffsetRay();
+				}
+			}
+		}
+		wave.size = n;
+		RenderStats.local().primaryRays += n;
+
+		// Trace and shade one bounce at a time until no ray is reflected
+		int depth = 1;
+		while (wave.size > 0) {
+			trace(scene, wave);
+			Wave next = wave(depth);
+			next.ensureCapacity(wave.size);
+			next.size = 0;
+			shade(scene, wave, next, depth);
+			wave = next;
+			depth++;
+		}
+
+		// Add the color seen along every reflected ray into its parent's
+		for (int d = depth - 2; d > 0; d--) {
+			Wave child = waves.get(d), parent = waves.get(d - 1);
+			for (int i = 0; i < child.size; i++) {
+				child.colors[i].mul(child.reflectance[i]);
+				parent.colors[child.parent[i]].add(child.colors[i]);
+			}
+		}
+
+		Colorf[] colors = waves.get(0).colors;
+		Colorf outColor = pixelColor;
+		n = 0;
+		for (int y = y0; y < y1; y++) {
+			for (int x = x0; x < x1; x++) {
+				if (refine != null && !refine[y * width + x]) continue;
+				if (samples == 1) {
+					outColor.set(colors[n++]);
+				} else {
+					outColor.setZero();
+					for (int k = 0; k < samples * samples; k++) outColor.add(colors[n++]);
+					outColor.mul(1.0f / (samples * samples));
+				}
+				outColor.mul(scene.getExposure());
+				image.setPixelColor(outColor, x, y);
+			}
+		}
+	}
+
+	/** @return wave d, creating it if this is the deepest block so far */
+	private Wave wave(int d) {
+		while (waves.size() <= d) waves.add(new Wave());
+		return waves.get(d);
+	}
+
+	/** Find the first intersection of every ray of the wave, in sorted order. */
+	private void trace(Scene scene, Wave wave) {
+		int n = wave.size;
+		rayOrder = grow(rayOrder, n);
+		sort(wave.rays, n, rayOrder);
+		for (int start = 0; start < n; start += PACKET_SIZE) {
+			int m = Math.min(PACKET_SIZE, n - start);
+			for (int j = 0; j < m; j++) {
+				int i = rayOrder[start + j];
+				packet.rays[j] = wave.rays[i];
+				packet.records[j] = wave.records[i];
+			}
+			packet.size = m;
+			scene.getFirstIntersections(packet);
+			for (int j = 0; j < m; j++) wave.hit[rayOrder[start + j]] = packet.hit[j];
+		}
+	}
+
+	/**
+	 * Set the color of every ray of the wave that missed to the background, and shade
+	 * the rest one shader at a time, putting their mirror rays into next.
+	 */
+	private void shade(Scene scene, Wave wave, Wave next, int depth) {
+		int n = wave.size;
+		shaderOf = grow(shaderOf, n);
+		hitOrder = grow(hitOrder, n);
+		shaders.clear();
+		for (int i = 0; i < n; i++) {
+			if (wave.hit[i]) {
+				shaderOf[i] = shaderIndex(wave.records[i].surface.getShader());
+			} else {
+				shaderOf[i] = -1;
+				wave.colors[i].set(scene.getBackColor());
+			}
+		}
+
+		// Counting sort of the hits by shader, in the order they were traced
+		int numShaders = shaders.size();
+		shaderStart = grow(shaderStart, numShaders + 1);
+		Arrays.fill(shaderStart, 0, numShaders + 1, 0);
+		for (int i = 0; i < n; i++) {
+			if (shaderOf[i] >= 0) shaderStart[shaderOf[i] + 1]++;
+		}
+		for (int s = 0; s < numShaders; s++) shaderStart[s + 1] += shaderStart[s];
+		for (int j = 0; j < n; j++) {
+			int i = rayOrder[j];
+			if (shaderOf[i] >= 0) hitOrder[shaderStart[shaderOf[i]]++] = i;
+		}
+
+		// Trace the shadow rays of every hit with a ReflectionShader together
+		List<Light> lights = scene.getLights();
+		int numLights = lights.size();
+		int m = 0;
+		for (int s = 0, start = 0; s < numShaders; s++) {
+			int end = shaderStart[s];
+			if (shaders.get(s) instanceof ReflectionShader) m += (end - start) * numLights;
+			start = end;
+		}
+		if (shadowRays.length < m) {
+			int old = shadowRays.length;
+			shadowRays = Arrays.copyOf(shadowRays, Math.max(m, 2 * old));
+			for (int i = old; i < shadowRays.length; i++) shadowRays[i] = new Ray();
+			shadowed = new boolean[shadowRays.length];
+			shadowOrder = new int[shadowRays.length];
+		}
+		m = 0;
+		for (int s = 0, start = 0; s < numShaders; s++) {
+			int end = shaderStart[s];
+			if (shaders.get(s) instanceof ReflectionShader) {
+				for (int k = start; k < end; k++) {
+					IntersectionRecord record = wave.records[hitOrder[k]];
+					for (int l = 0; l < numLights; l++) Shader.setShadowRay(shadowRays[m++], lights.get(l), record);
+				}
+			}
+			start = end;
+		}
+		sort(shadowRays, m, shadowOrder);
+		for (int j = 0; j < m; j++) {
+			int r = shadowOrder[j];
+			shadowed[r] = scene.getAnyIntersection(shadowRays[r]);
+		}
+
+		m = 0;
+		for (int s = 0, start = 0; s < numShaders; s++) {
+			int end = shaderStart[s];
+			Shader shader = shaders.get(s);
+			if (shader instanceof ReflectionShader) {
+				shadeReflection((ReflectionShader) shader, scene, wave, next, start, end, m, depth);
+				m += (end - start) * numLights;
+			} else {
+				for (int k = start; k < end; k++) {
+					int i = hitOrder[k];
+					wave.colors[i].setZero();
+					shader.shade(wave.colors[i], scene, wave.rays[i], wave.records[i], depth);
+				}
+			}
+			start = end;
+		}
+	}
+
+	/**
+	 * Shade the hits hitOrder[start, end), which all have the given shader, as
+	 * ReflectionShader.shade would, but with the results of their shadow rays, which
+	 * start at shadowed[shadowStart], and leaving their mirror rays for the next wave.
+	 */
+	private void shadeReflection(ReflectionShader shader, Scene scene, Wave wave, Wave next, int start, int end,
+			int shadowStart, int depth) {
+		int numLights = scene.getLights().size();
+		boolean reflect = depth < RayTracer.MAX_DEPTH;
+		RenderStats.Counters counters = RenderStats.local();
+		for (int k = start; k < end; k++) {
+			int i = hitOrder[k];
+			Ray ray = wave.rays[i];
+			IntersectionRecord record = wave.records[i];
+			Colorf color = wave.colors[i];
+			color.setZero();
+			outgoing.set(ray.origin).sub(record.location).normalize();
+			shader.addDirect(color, scene, record, outgoing, shadowed, shadowStart + (k - start) * numLights);
+			// A reflection deeper than MAX_DEPTH would be black
+			if (reflect && shader.mirrorRay(ray, record, outgoing, next.rays[next.size], next.reflectance[next.size])) {
+				next.parent[next.size++] = i;
+				counters.secondaryRays++;
+			}
+		}
+	}
+
+	/** @return the index of shader in shaders, adding it if it is not there yet */
+	private int shaderIndex(Shader shader) {
+		for (int s = 0; s < shaders.size(); s++) {
+			if (shaders.get(s) == shader) return s;
+		}
+		shaders.add(shader);
+		return shaders.size() - 1;
+	}
+
+	/**
+	 * Sort the first n rays by the octant of their direction and then by the Morton code
+	 * of their origin on a 512^3 grid over the bounds of the origins, so that rays
+	 * traced one after the other tend to start near each other and run the same way.
+	 * The sort is a stable LSD radix sort on 8-bit digits that skips the digits that
+	 * are the same for every ray, such as all but the octant for the camera rays of a
+	 * pinhole camera, or an insertion sort for few rays.
+	 *
+	 * @param order receives the indices of the rays in sorted order
+	 */
+	private void sort(Ray[] rays, int n, int[] order) {
+		double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY, minZ = Double.POSITIVE_INFINITY;
+		double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY, maxZ = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < n; i++) {
+			Vector3d o = rays[i].origin;
+			minX = Math.min(minX, o.x); maxX = Math.max(maxX, o.x);
+			minY = Math.min(minY, o.y); maxY = Math.max(maxY, o.y);
+			minZ = Math.min(minZ, o.z); maxZ = Math.max(maxZ, o.z);
+		}
+		double scaleX = maxX > minX ? 511 / (maxX - minX) : 0;
+		double scaleY = maxY > minY ? 511 / (maxY - minY) : 0;
+		double scaleZ = maxZ > minZ ? 511 / (maxZ - minZ) : 0;
+		keys = grow(keys, n);
+		keyBuffer = grow(keyBuffer, n);
+		indexBuffer = grow(indexBuffer, n);
+		int anyBits = 0, allBits = -1;
+		for (int i = 0; i < n; i++) {
+			Ray ray = rays[i];
+			int octant = (ray.direction.x < 0 ? 4 : 0) | (ray.direction.y < 0 ? 2 : 0) | (ray.direction.z < 0 ? 1 : 0);
+			keys[i] = octant << 27 | spreadBits((int) ((ray.origin.x - minX) * scaleX)) << 2
+					| spreadBits((int) ((ray.origin.y - minY) * scaleY)) << 1
+					| spreadBits((int) ((ray.origin.z - minZ) * scaleZ));
+			order[i] = i;
+			anyBits |= keys[i];
+			allBits &= keys[i];
+		}
+
+		if (n <= INSERTION_SORT_SIZE) {
+			for (int i = 1; i < n; i++) {
+				int key = keys[i], j = i;
+				for (; j > 0 && keys[j - 1] > key; j--) {
+					keys[j] = keys[j - 1];
+					order[j] = order[j - 1];
+				}
+				keys[j] = key;
+				order[j] = i;
+			}
+			return;
+		}
+
+		int[] fromKeys = keys, toKeys = keyBuffer, fromOrder = order, toOrder = indexBuffer;
+		for (int shift = 0; shift < 32; shift += 8) {
+			if (((anyBits ^ allBits) >>> shift & 0xFF) == 0) continue;
+			Arrays.fill(digitCount, 0);
+			for (int i = 0; i < n; i++) digitCount[fromKeys[i] >>> shift & 0xFF]++;
+			for (int d = 0, sum = 0; d < 256; d++) {
+				int c = digitCount[d];
+				digitCount[d] = sum;
+				sum += c;
+			}
+			for (int i = 0; i < n; i++) {
+				int p = digitCount[fromKeys[i] >>> shift & 0xFF]++;
+				toKeys[p] = fromKeys[i];
+				toOrder[p] = fromOrder[i];
+			}
+			int[] k = fromKeys; fromKeys = toKeys; toKeys = k;
+			int[] o = fromOrder; fromOrder = toOrder; toOrder = o;
+		}
+		if (fromOrder != order) System.arraycopy(fromOrder, 0, order, 0, n);
+	}
+
+	/** @return a, or a new array of at least n elements if a is shorter */
+	private static int[] grow(int[] a, int n) {
+		return a.length >= n ? a : new int[Math.max(n, 2 * a.length)];
+	}
+
+	/** Move bit i of the low 9 bits of v to bit 3i. */
+	static int spreadBits(int v) {
+		int x = v & 0x1FF;
+		x = (x | x << 16) & 0x30000FF;
+		x = (x | x << 8) & 0x300F00F;
+		x = (x | x << 4) & 0x30C30C3;
+		x = (x | x << 2) & 0x9249249;
+		return x;
+	}
+}
@@ -2,6 +2,7 @@ package ray1.accel;
 
 import ray1.IntersectionRecord;
 import ray1.Ray;
+import ray1.RayPacket;
 import ray1.surface.Surface;
 
 /**
@@ -29,4 +30,31 @@ public interface AccelStruct {
 	 * @return true if the ray intersects a surface in the scene; false otherwise.
 	 */
 	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection);
+	
+	/**
+	 * Given a ray, test whether any surface in the scene blocks it between rayIn.start and
+	 * rayIn.end. This is the query used for shadow rays, which make up most of the rays
+	 * traced, so it should stop at the first hit found, write no intersection record and
+	 * allocate nothing.
+	 * 
+	 * @param rayIn The ray that is tested against the scene; it is not modified.
+	 * @return true if the ray intersects a surface in the scene; false otherwise.
+	 */
+	public boolean occluded(Ray rayIn);
+
+	/**
+	 * Find the first intersection of every ray in a packet, setting packet.hit[i] and,
+	 * for the rays that hit, packet.records[i] as intersect(packet.records[i],
+	 * packet.rays[i], false) would. Coherent packets, such as the camera rays of a
+	 * block of pixels, can share most of a traversal; this default simply intersects
+	 * the rays one at a time.
+	 *
+	 * @param packet the rays to intersect; their start and end are unchanged afterwards
+	 */
+	public default void intersect(RayPacket packet) {
+		for (int i = 0; i < packet.size; i++) {
+			packet.records[i].reset();
+			packet.hit[i] = intersect(packet.records[i], packet.rays[i], false);
+		}
+	}
 }
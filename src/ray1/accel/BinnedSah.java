@@ -0,0 +1,222 @@
+package ray1.accel;
+
+import java.util.Arrays;
+
+/**
+ * The binned surface area heuristic (SAH) split search, shared by the tree builders.
+ * Primitives are only known by their bounding boxes and centroids. split() decides
+ * whether a range of them should become a leaf and, if not, partitions the range in
+ * place around the cheapest split. The permutation applied so far is kept in order[],
+ * so callers can rearrange their own primitives to match once the tree is built.
+ *
+ * For a range with bounding box area A, a split into two sides with areas A_left and
+ * A_right holding N_left and N_right primitives is estimated to cost
+ *   traversalCost + intersectionCost * (A_left * N_left + A_right * N_right) / A
+ * Candidate splits are the boundaries between numBins equal bins of the centroid
+ * extent along each axis.
+ */
+class BinnedSah {
+
+	/** Boxes (minx, miny, minz, maxx, maxy, maxz) of the primitives, in current order. */
+	private final double[] boxes;
+
+	/** Centroids (x, y, z) of the primitives, in current order. */
+	private final double[] centroids;
+
+	/** order[i] is the original index of the primitive now at position i. */
+	final int[] order;
+
+	private final float traversalCost, intersectionCost;
+	private final int maxLeafSize;
+
+	/** The bounding box of the range passed to the last call of split(). */
+	final double[] bound = new double[6];
+
+	/** The axis the range passed to the last call of split() was divided along. */
+	int axis;
+
+	// Scratch space for the split search
+	private final double[] centroidBound = new double[6];
+	private final int[] binCount;
+	private final double[] binBox;
+	private final double[] rightArea;
+	private final int[] rightCount;
+	private final double[] sweep = new double[6];
+
+	/**
+	 * @param boxes 6 values per primitive: minx, miny, minz, maxx, maxy, maxz. Not copied;
+	 * the array is permuted along with the primitives.
+	 * @param centroids 3 values per primitive, permuted likewise
+	 * @param numBins the number of candidate bins per axis
+	 * @param traversalCost the cost of visiting an interior node
+	 * @param intersectionCost the cost of intersecting one primitive
+	 * @param maxLeafSize the largest range that may be made a leaf
+	 */
+	BinnedSah(double[] boxes, double[] centroids, int numBins, float traversalCost, float intersectionCost, int maxLeafSize) {
+		this.boxes = boxes;
+		this.centroids = centroids;
+		this.traversalCost = traversalCost;
+		this.intersectionCost = intersectionCost;
+		this.maxLeafSize = maxLeafSize;
+		order = new int[centroids.length / 3];
+		for (int i = 0; i < order.length; i++) order[i] = i;
+		binCount = new int[numBins];
+		binBox = new double[6 * numBins];
+		rightArea = new double[numBins];
+		rightCount = new int[numBins];
+	}
+
+	/**
+	 * A split search over the same primitives, boxes, centroids and order as other,
+	 * with its own scratch space, so that another thread can split ranges disjoint
+	 * from those other splits at the same time.
+	 */
+	BinnedSah(BinnedSah other) {
+		this.boxes = other.boxes;
+		this.centroids = other.centroids;
+		this.traversalCost = other.traversalCost;
+		this.intersectionCost = other.intersectionCost;
+		this.maxLeafSize = other.maxLeafSize;
+		order = other.order;
+		int numBins = other.binCount.length;
+		binCount = new int[numBins];
+		binBox = new double[6 * numBins];
+		rightArea = new double[numBins];
+		rightCount = new int[numBins];
+	}
+
+	/**
+	 * Compute the bounds of the primitives in [start, end) into bound and choose how to
+	 * treat them. If they should be split, they are partitioned in place so that the
+	 * first child holds [start, mid) and the second [mid, end), and axis is set.
+	 *
+	 * If all the centroids coincide, no bin boundary separates them; such a range is
+	 * halved along its widest axis unless it fits in a leaf.
+	 *
+	 * @return mid, or -1 if the range should be a leaf
+	 */
+	int split(int start, int end) {
+		emptyBox(bound, 0);
+		emptyBox(centroidBound, 0);
+		for (int i = start; i < end; i++) {
+			growBox(bound, 0, boxes, 6 * i);
+			for (int a = 0; a < 3; a++) {
+				double c = centroids[3 * i + a];
+				centroidBound[a] = Math.min(centroidBound[a], c);
+				centroidBound[a + 3] = Math.max(centroidBound[a + 3], c);
+			}
+		}
+		int n = end - start;
+		if (n <= 1) return -1;
+
+		// Find the cheapest bin boundary over all three axes
+		int numBins = binCount.length;
+		int bestAxis = -1, bestBin = -1;
+		double bestCost = Double.POSITIVE_INFINITY;
+		for (int a = 0; a < 3; a++) {
+			double extent = centroidBound[a + 3] - centroidBound[a];
+			if (!(extent > 0)) continue;
+			Arrays.fill(binCount, 0);
+			for (int b = 0; b < numBins; b++) emptyBox(binBox, 6 * b);
+			for (int i = start; i < end; i++) {
+				int b = binIndex(centroids[3 * i + a], centroidBound[a], extent, numBins);
+				binCount[b]++;
+				growBox(binBox, 6 * b, boxes, 6 * i);
+			}
+			// Sweep from the right to get the area and count right of each boundary,
+			// then from the left to evaluate the cost of splitting at each boundary
+			emptyBox(sweep, 0);
+			int count = 0;
+			for (int b = numBins - 1; b > 0; b--) {
+				growBox(sweep, 0, binBox, 6 * b);
+				count += binCount[b];
+				rightArea[b] = boxArea(sweep, 0);
+				rightCount[b] = count;
+			}
+			emptyBox(sweep, 0);
+			count = 0;
+			for (int b = 1; b < numBins; b++) {
+				growBox(sweep, 0, binBox, 6 * (b - 1));
+				count += binCount[b - 1];
+				if (count == 0 || rightCount[b] == 0) continue;
+				double cost = boxArea(sweep, 0) * count + rightArea[b] * rightCount[b];
+				if (cost < bestCost) {
+					bestCost = cost;
+					bestAxis = a;
+					bestBin = b;
+				}
+			}
+		}
+
+		if (bestAxis < 0) {
+			if (n <= maxLeafSize) return -1;
+			axis = widestAxis(bound);
+			return start + n / 2;
+		}
+
+		double area = boxArea(bound, 0);
+		double splitCost = traversalCost + (area > 0 ? intersectionCost * bestCost / area : 0);
+		if (n <= maxLeafSize && intersectionCost * n <= splitCost) return -1;
+
+		// Partition in place: primitives left of the chosen boundary go first
+		double extent = centroidBound[bestAxis + 3] - centroidBound[bestAxis];
+		int i = start, j = end - 1;
+		while (i <= j) {
+			if (binIndex(centroids[3 * i + bestAxis], centroidBound[bestAxis], extent, numBins) < bestBin)
+				i++;
+			else
+				swap(i, j--);
+		}
+		axis = bestAxis;
+		return i;
+	}
+
+	private static int binIndex(double c, double min, double extent, int numBins) {
+		int b = (int) (numBins * ((c - min) / extent));
+		return Math.max(0, Math.min(numBins - 1, b));
+	}
+
+	private void swap(int i, int j) {
+		int o = order[i];
+		order[i] = order[j];
+		order[j] = o;
+		for (int k = 0; k < 6; k++) {
+			double t = boxes[6 * i + k];
+			boxes[6 * i + k] = boxes[6 * j + k];
+			boxes[6 * j + k] = t;
+		}
+		for (int k = 0; k < 3; k++) {
+			double t = centroids[3 * i + k];
+			centroids[3 * i + k] = centroids[3 * j + k];
+			centroids[3 * j + k] = t;
+		}
+	}
+
+	static void emptyBox(double[] box, int offset) {
+		for (int a = 0; a < 3; a++) {
+			box[offset + a] = Double.POSITIVE_INFINITY;
+			box[offset + a + 3] = Double.NEGATIVE_INFINITY;
+		}
+	}
+
+	static void growBox(double[] box, int offset, double[] other, int otherOffset) {
+		for (int a = 0; a < 3; a++) {
+			box[offset + a] = Math.min(box[offset + a], other[otherOffset + a]);
+			box[offset + a + 3] = Math.max(box[offset + a + 3], other[otherOffset + a + 3]);
+		}
+	}
+
+	static double boxArea(double[] box, int offset) {
+		double dx = box[offset + 3] - box[offset];
+		double dy = box[offset + 4] - box[offset + 1];
+		double dz = box[offset + 5] - box[offset + 2];
+		if (!(dx >= 0 && dy >= 0 && dz >= 0)) return 0;
+		return 2 * (dx * dy + dy * dz + dz * dx);
+	}
+
+	static int widestAxis(double[] box) {
+		double dx = box[3] - box[0], dy = box[4] - box[1], dz = box[5] - box[2];
+		if (dx >= dy && dx >= dz) return 0;
+		return dy >= dz ? 1 : 2;
+	}
+}
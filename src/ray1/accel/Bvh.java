@@ -1,12 +1,18 @@
 
 package ray1.accel;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
 import egl.math.Vector3d;
 import ray1.IntersectionRecord;
 import ray1.Ray;
+import ray1.RayPacket;
+import ray1.RenderStats;
 import ray1.surface.Surface;
 
 /**
@@ -15,138 +21,644 @@ import ray1.surface.Surface;
  * @author ss932, pramook
  */
 public class Bvh implements AccelStruct {
-	/**
-	 * Performance counter
-	 * */
-	public static int hitCount = 0;
-	public static int missCount = 0;
 	
 	/** A shared surfaces array that will be used across every node in the tree. */
 	private Surface[] surfaces;
 
-	/** A comparator class that can sort surfaces by x, y, or z coordinate.
-	 *  See the subclass declaration below for details.
+	/** Build strategy: split each node at the median centroid along its widest axis. */
+	public static final String MEDIAN = "median";
+
+	/** Build strategy: split each node where the binned surface area heuristic is lowest. */
+	public static final String SAH = "sah";
+
+	/**
+	 * Build strategy: a linear BVH, split where the Morton codes of the centroids
+	 * change in their highest bit; see Lbvh. The fastest to build, but the most
+	 * expensive to trace unless treeletPasses is set.
 	 */
-	static MyComparator cmp = new MyComparator();
+	public static final String LBVH = "lbvh";
+
+	/** The strategy used by build(): MEDIAN, SAH or LBVH. */
+	protected String buildStrategy = MEDIAN;
+	public void setBuildStrategy(String strategy) {
+		String s = strategy.trim().toLowerCase();
+		if (!s.equals(MEDIAN) && !s.equals(SAH) && !s.equals(LBVH))
+			throw new IllegalArgumentException("Unknown Bvh build strategy: " + strategy);
+		buildStrategy = s;
+	}
+	public String getBuildStrategy() { return buildStrategy; }
+
+	/** The number of centroid bins per axis evaluated by the SAH builder. */
+	protected int sahBins = 16;
+	public void setSahBins(int bins) { sahBins = Math.max(2, bins); }
+	public int getSahBins() { return sahBins; }
+
+	/** The SAH cost of visiting an interior node, relative to intersectionCost. */
+	protected float traversalCost = 1.0f;
+	public void setTraversalCost(float cost) { traversalCost = cost; }
+	public float getTraversalCost() { return traversalCost; }
+
+	/** The SAH cost of intersecting one surface. */
+	protected float intersectionCost = 1.0f;
+	public void setIntersectionCost(float cost) { intersectionCost = cost; }
+	public float getIntersectionCost() { return intersectionCost; }
+
+	/**
+	 * The largest number of surfaces the SAH builder may put in a leaf. Larger ranges
+	 * are always split, even if the heuristic would prefer a leaf. The LBVH builder
+	 * makes every range of at most this many surfaces a leaf.
+	 */
+	protected int sahMaxLeafSize = 8;
+	public void setSahMaxLeafSize(int size) { sahMaxLeafSize = Math.max(1, size); }
+	public int getSahMaxLeafSize() { return sahMaxLeafSize; }
+
+	/**
+	 * The number of passes of treelet restructuring (see TreeletOptimizer) run over an
+	 * LBVH after it is built, to lower its SAH cost; 0 for none. Passes stop early once
+	 * one changes nothing.
+	 */
+	protected int treeletPasses = 0;
+	public void setTreeletPasses(int passes) { treeletPasses = Math.max(0, passes); }
+	public int getTreeletPasses() { return treeletPasses; }
+
+	/**
+	 * Whether build() uses the common fork/join pool: surfaces have their bounding
+	 * boxes computed in blocks in parallel, and the subtrees of ranges of at least
+	 * PARALLEL_THRESHOLD surfaces are built concurrently. Each range is split exactly
+	 * as the serial build would split it, so the tree is the same either way.
+	 */
+	protected boolean parallelBuild = true;
+	public void setParallelBuild(boolean parallel) { parallelBuild = parallel; }
+	public boolean getParallelBuild() { return parallelBuild; }
+
+	/** The smallest range of surfaces whose two subtrees are built as separate tasks. */
+	static final int PARALLEL_THRESHOLD = 4096;
 	
 	/** The root of the BVH tree. */
 	BvhNode root;
 
+	/** The traversal stack size needed for this tree: one slot per level, plus one. */
+	private int stackSize = 1;
+
+	/**
+	 * A traversal stack of nodes and the distances at which the ray enters them, or for
+	 * a packet the range of its rays that may hit them.
+	 */
+	private static class TraversalStack {
+		final BvhNode[] nodes;
+		final double[] entry;
+		final int[] first, last;
+
+		TraversalStack(int size) {
+			nodes = new BvhNode[size];
+			entry = new double[size];
+			first = new int[size];
+			last = new int[size];
+		}
+	}
+
+	/** Per-thread traversal state, so that intersect() never allocates. */
+	private final ThreadLocal<TraversalStack> traversalStack = new ThreadLocal<TraversalStack>() {
+		protected TraversalStack initialValue() {
+			return new TraversalStack(stackSize);
+		}
+	};
+
+	/** @return this thread's traversal stack, grown if the tree has been rebuilt deeper. */
+	private TraversalStack traversalStack() {
+		TraversalStack stack = traversalStack.get();
+		if (stack.nodes.length < stackSize) {
+			stack = new TraversalStack(stackSize);
+			traversalStack.set(stack);
+		}
+		return stack;
+	}
+
+	private final ThreadLocal<IntersectionRecord> scratchRecord = new ThreadLocal<IntersectionRecord>() {
+		protected IntersectionRecord initialValue() {
+			return new IntersectionRecord();
+		}
+	};
+
 	public Bvh() { }
 
+	/** @return the surfaces in tree order; each leaf covers a contiguous range of them. */
+	Surface[] getSurfaces() { return surfaces; }
+
 	/**
 	 * Set outRecord to the first intersection of ray with the scene. Return true
 	 * if there was an intersection and false otherwise. If no intersection was
 	 * found outRecord is unchanged.
 	 *
+	 * The tree is walked iteratively with an explicit per-thread stack. Both children
+	 * of an interior node are box-tested together and pushed far one first, so the
+	 * nearer child is visited first and children the ray misses are never pushed.
+	 * Every hit shrinks rayIn.end to the hit distance, and a popped node whose entry
+	 * distance lies beyond it is skipped; rayIn.end is restored before returning.
+	 * Surfaces are tested with intersectT, and only the closest hit is completed with
+	 * finalizeRecord.
+	 *
 	 * @param outRecord the output IntersectionRecord
 	 * @param ray the ray to intersect
 	 * @param anyIntersection if true, will immediately return when found an intersection
 	 * @return true if and intersection is found.
 	 */
 	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection) {
-		return intersectHelper(root, outRecord, rayIn, anyIntersection);
+		if (root == null) return false;
+		rayIn.updateInverseDirection();
+		double rootEntry = root.entryDistance(rayIn);
+		if (rootEntry == Double.POSITIVE_INFINITY) return false;
+
+		// Surfaces only write their minimal hit data to the record when they are hit
+		// closer than rayIn.end, so hits can go straight into outRecord, which is
+		// finalized once for the closest hit. A closest-hit query without a record
+		// still needs somewhere to put that data.
+		IntersectionRecord record = outRecord;
+		if (record == null && !anyIntersection) record = scratchRecord.get();
+
+		TraversalStack stack = traversalStack();
+		BvhNode[] nodes = stack.nodes;
+		double[] entry = stack.entry;
+
+		double end = rayIn.end;
+		boolean hit = false;
+		int visited = 0, tests = 0;
+		int top = 0;
+		nodes[top] = root;
+		entry[top++] = rootEntry;
+		traversal:
+		while (top > 0) {
+			BvhNode node = nodes[--top];
+			visited++;
+			if (entry[top] > rayIn.end) continue;
+
+			if (node.isLeaf()) {
+				for (int i = node.surfaceIndexStart; i < node.surfaceIndexEnd; i++) {
+					tests++;
+					double t = surfaces[i].intersectT(rayIn, record);
+					if (!(t <= rayIn.end)) continue;
+					hit = true;
+					if (anyIntersection) break traversal;
+					rayIn.end = t;
+				}
+			} else {
+				BvhNode c0 = node.child[0], c1 = node.child[1];
+				double t0 = c0.entryDistance(rayIn);
+				double t1 = c1.entryDistance(rayIn);
+				if (t1 < t0) {
+					BvhNode c = c0; c0 = c1; c1 = c;
+					double t = t0; t0 = t1; t1 = t;
+				}
+				if (t1 != Double.POSITIVE_INFINITY) {
+					nodes[top] = c1;
+					entry[top++] = t1;
+				}
+				if (t0 != Double.POSITIVE_INFINITY) {
+					nodes[top] = c0;
+					entry[top++] = t0;
+				}
+			}
+		}
+
+		rayIn.end = end;
+		RenderStats.Counters counters = RenderStats.local();
+		counters.nodesVisited += visited;
+		counters.primitiveTests += tests;
+		if (hit && outRecord != null) outRecord.surface.finalizeRecord(outRecord, rayIn);
+		return hit;
 	}
-	
+
 	/**
-	 * A helper method to the main intersect method. It finds the intersection with
-	 * any of the surfaces under the given BVH node.  
-	 *   
-	 * @param node a BVH node that we would like to find an intersection with surfaces under it
-	 * @param outRecord the output InsersectionMethod
-	 * @param rayIn the ray to intersect
-	 * @param anyIntersection if true, will immediately return when found an intersection
-	 * @return true if an intersection is found with any surface under the given node
+	 * Test whether any surface blocks the ray. Any hit ends the search, so unlike
+	 * intersect() children are not ordered by distance and rayIn.end never shrinks;
+	 * children the ray misses are still never pushed.
+	 *
+	 * @param rayIn the ray to test
+	 * @return true if any surface is hit within [rayIn.start, rayIn.end]
 	 */
-	private boolean intersectHelper(BvhNode node, IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection)
-	{
-		// TODO#Ray Part 2 Task 3: fill in this function.
-		// Hint: For a leaf node, use a normal linear search. Otherwise, search in the left and right children.
-		// Another hint: save time by checking if the ray intersects the node first before checking the childrens.
-		
-		// ==== Step 1 ====
-		// Check whether the ray intersect with the current node's bounding box, if not return false
-		if(!node.intersects(rayIn)) {
-			return false;
-		}
-		
-		// ==== Step 2 ====
-		// Check if current node is leaf
-		// If current node is leaf, loop over all the surface in this leaf, do surface intersection check, find the first intersection
-		// If current node is not a leaf, call intersectHelper recursively for left and right child of the node, 
-		boolean intersection = false;
-		if(node.isLeaf()) {
-			double tMin = rayIn.end; // Starts as the max, then we record the min found with this variable 
-			IntersectionRecord tempRecord = new IntersectionRecord();
-
-			for(Surface surface : surfaces) {
-				if(anyIntersection) {
-					if(surface.intersect(null, rayIn)) return true;
-				} 
-				else {
-					if(surface.intersect(tempRecord, rayIn) && tempRecord.t < tMin) {
-						tMin = tempRecord.t;
-						outRecord.set(tempRecord);
-						intersection = true;
+	public boolean occluded(Ray rayIn) {
+		if (root == null) return false;
+		rayIn.updateInverseDirection();
+		if (root.entryDistance(rayIn) == Double.POSITIVE_INFINITY) return false;
+
+		BvhNode[] nodes = traversalStack().nodes;
+		boolean hit = false;
+		int visited = 0, tests = 0;
+		int top = 0;
+		nodes[top++] = root;
+		traversal:
+		while (top > 0) {
+			BvhNode node = nodes[--top];
+			visited++;
+			if (node.isLeaf()) {
+				for (int i = node.surfaceIndexStart; i < node.surfaceIndexEnd; i++) {
+					tests++;
+					if (surfaces[i].intersectT(rayIn, null) <= rayIn.end) {
+						hit = true;
+						break traversal;
 					}
 				}
-			}
-	    } else {
-			IntersectionRecord leftRecord = new IntersectionRecord();
-			IntersectionRecord rightRecord = new IntersectionRecord();
-			boolean left = intersectHelper(node.child[0], leftRecord, rayIn, anyIntersection);
-			boolean right = intersectHelper(node.child[1], rightRecord, rayIn, anyIntersection);
-			if(left && right) {
-				outRecord.set(leftRecord.t <= rightRecord.t ? leftRecord : rightRecord);
-				intersection = true;
-			} else if(left) {
-				outRecord.set(leftRecord);
-				intersection = true;
-			} else if(right) {
-				outRecord.set(rightRecord);
-				intersection = true;
+			} else {
+				if (node.child[1].entryDistance(rayIn) != Double.POSITIVE_INFINITY) nodes[top++] = node.child[1];
+				if (node.child[0].entryDistance(rayIn) != Double.POSITIVE_INFINITY) nodes[top++] = node.child[0];
 			}
 		}
-		return intersection;
+		RenderStats.Counters counters = RenderStats.local();
+		counters.nodesVisited += visited;
+		counters.primitiveTests += tests;
+		return hit;
 	}
 
+	/**
+	 * Find the first intersection of every ray in a packet; see
+	 * AccelStruct.intersect(RayPacket). The packet walks the tree once, carrying the
+	 * range of rays from the first to the last one that hit the current node: rays
+	 * outside it missed the node, and so everything below it. A node is tested against
+	 * the first ray of its parent's range; if it misses, the interval bounds of a
+	 * coherent packet (RayPacket.misses) can cull the node for every ray at once, and
+	 * otherwise the following rays are tested in turn. The last ray is found the same
+	 * way from the other end. In a leaf, every ray of the range that hits the leaf's
+	 * box tests its surfaces.
+	 * Children are visited near one first along the split axis, for the direction of
+	 * the first active ray.
+	 *
+	 * Each ray ends up with exactly the hit intersect() would find for it alone. The
+	 * node count in RenderStats is the number of nodes the packet visited.
+	 */
+	@Override
+	public void intersect(RayPacket packet) {
+		int n = packet.size;
+		Ray[] rays = packet.rays;
+		IntersectionRecord[] records = packet.records;
+		boolean[] hits = packet.hit;
+		for (int i = 0; i < n; i++) {
+			records[i].reset();
+			hits[i] = false;
+		}
+		if (root == null || n == 0) return;
+		packet.computeBounds();
+
+		TraversalStack stack = traversalStack();
+		BvhNode[] nodes = stack.nodes;
+		int[] first = stack.first, last = stack.last;
+
+		int visited = 0, tests = 0;
+		int top = 0;
+		nodes[top] = root;
+		first[top] = 0;
+		last[top++] = n - 1;
+		while (top > 0) {
+			BvhNode node = nodes[--top];
+			int f = first[top], l = last[top];
+			visited++;
+			if (node.entryDistance(rays[f]) == Double.POSITIVE_INFINITY) {
+				if (packet.misses(node.minBound.x, node.minBound.y, node.minBound.z,
+						node.maxBound.x, node.maxBound.y, node.maxBound.z))
+					continue;
+				do f++; while (f <= l && node.entryDistance(rays[f]) == Double.POSITIVE_INFINITY);
+				if (f > l) continue;
+			}
+			while (l > f && node.entryDistance(rays[l]) == Double.POSITIVE_INFINITY) l--;
+
+			if (node.isLeaf()) {
+				for (int r = f; r <= l; r++) {
+					Ray ray = rays[r];
+					if (r > f && r < l && node.entryDistance(ray) == Double.POSITIVE_INFINITY) continue;
+					for (int i = node.surfaceIndexStart; i < node.surfaceIndexEnd; i++) {
+						tests++;
+						double t = surfaces[i].intersectT(ray, records[r]);
+						if (!(t <= ray.end)) continue;
+						hits[r] = true;
+						ray.end = t;
+					}
+				}
+			} else {
+				BvhNode near = node.child[0], far = node.child[1];
+				if ((far.minBound.get(node.axis) < near.minBound.get(node.axis))
+						!= (rays[f].direction.get(node.axis) < 0)) {
+					near = node.child[1];
+					far = node.child[0];
+				}
+				nodes[top] = far;
+				first[top] = f;
+				last[top++] = l;
+				nodes[top] = near;
+				first[top] = f;
+				last[top++] = l;
+			}
+		}
+
+		packet.restoreEnds();
+		for (int i = 0; i < n; i++) {
+			if (hits[i]) records[i].surface.finalizeRecord(records[i], rays[i]);
+		}
+		RenderStats.Counters counters = RenderStats.local();
+		counters.nodesVisited += visited;
+		counters.primitiveTests += tests;
+	}
 
 	@Override
 	public void build(Surface[] surfaces) {
 		this.surfaces = surfaces;
-		for(Surface s:this.surfaces)
-			s.computeBoundingBox();
-		root = createTree(0, surfaces.length);
+		computeBoundingBoxes(surfaces);
+		if (BvhCache.isEnabled())
+			buildCached();
+		else
+			buildTree();
+	}
+
+	/** Build without the BvhCache, for FlatBvh, which saves the flattened tree instead. */
+	void buildUncached(Surface[] surfaces) {
+		this.surfaces = surfaces;
+		computeBoundingBoxes(surfaces);
+		buildTree();
+	}
+
+	/** Compute the bounding box of every surface, in parallel if parallelBuild is set. */
+	void computeBoundingBoxes(final Surface[] surfaces) {
+		forRange(surfaces.length, new RangeBody() {
+			public void run(int start, int end) {
+				for (int i = start; i < end; i++)
+					surfaces[i].computeBoundingBox();
+			}
+		});
+	}
+
+	/** The body of a loop over a range of indices, for forRange. */
+	interface RangeBody {
+		void run(int start, int end);
+	}
+
+	/**
+	 * Run body over [0, n): split into blocks run on the common fork/join pool if
+	 * parallelBuild is set and n is at least PARALLEL_THRESHOLD, and in one call on
+	 * the calling thread otherwise.
+	 */
+	void forRange(int n, RangeBody body) {
+		if (parallelBuild && n >= PARALLEL_THRESHOLD)
+			ForkJoinPool.commonPool().invoke(new RangeAction(body, 0, n));
+		else
+			body.run(0, n);
+	}
+
+	/** Runs a RangeBody over [start, end), halving ranges larger than BLOCK_SIZE. */
+	@SuppressWarnings("serial")
+	private static class RangeAction extends RecursiveAction {
+		private static final int BLOCK_SIZE = 1024;
+
+		private final RangeBody body;
+		private final int start, end;
+
+		RangeAction(RangeBody body, int start, int end) {
+			this.body = body;
+			this.start = start;
+			this.end = end;
+		}
+
+		protected void compute() {
+			if (end - start > BLOCK_SIZE) {
+				int mid = (start + end) >>> 1;
+				invokeAll(new RangeAction(body, start, mid), new RangeAction(body, mid, end));
+				return;
+			}
+			body.run(start, end);
+		}
+	}
+
+	/** @return true if the subtrees of a range of n surfaces should be built as separate tasks. */
+	private boolean forkSubtrees(int n) {
+		return parallelBuild && n >= PARALLEL_THRESHOLD;
+	}
+
+	/** Builds the subtree of createTree(start, end) on the fork/join pool. */
+	@SuppressWarnings("serial")
+	private class MedianTask extends RecursiveTask<BvhNode> {
+		private final int start, end;
+
+		MedianTask(int start, int end) {
+			this.start = start;
+			this.end = end;
+		}
+
+		protected BvhNode compute() {
+			return createTree(start, end);
+		}
+	}
+
+	/** Builds the subtree of createTreeSah(start, end, sah) on the fork/join pool. */
+	@SuppressWarnings("serial")
+	private class SahTask extends RecursiveTask<BvhNode> {
+		private final int start, end;
+		private final BinnedSah sah;
+
+		SahTask(int start, int end, BinnedSah sah) {
+			this.start = start;
+			this.end = end;
+			this.sah = sah;
+		}
+
+		protected BvhNode compute() {
+			return createTreeSah(start, end, sah);
+		}
+	}
+
+	/** Builds the subtree of createTreeLbvh(start, end, lbvh) on the fork/join pool. */
+	@SuppressWarnings("serial")
+	private class LbvhTask extends RecursiveTask<BvhNode> {
+		private final int start, end;
+		private final Lbvh lbvh;
+
+		LbvhTask(int start, int end, Lbvh lbvh) {
+			this.start = start;
+			this.end = end;
+			this.lbvh = lbvh;
+		}
+
+		protected BvhNode compute() {
+			return createTreeLbvh(start, end, lbvh);
+		}
+	}
+
+	/** Build the tree over surfaces, whose bounding boxes are already computed, and report on it. */
+	private void buildTree() {
+		long startTime = System.nanoTime();
+		if (buildStrategy.equals(SAH))
+			root = createTreeSah();
+		else if (buildStrategy.equals(LBVH))
+			root = createTreeLbvh();
+		else if (forkSubtrees(surfaces.length))
+			root = ForkJoinPool.commonPool().invoke(new MedianTask(0, surfaces.length));
+		else
+			root = createTree(0, surfaces.length);
+		long buildTime = System.nanoTime() - startTime;
+		int depth = maxDepth(root);
+		stackSize = depth + 2;
 		System.out.println("Bvh: " + surfaces.length + " surfaces");
+		System.out.println("Bvh: built with " + buildStrategy + " in " + (buildTime / 1e9) + " seconds");
 		System.out.println("Bvh: " + nodeCount(root) + " nodes, " + leafCount(root) + " leaves");
-		System.out.println("Bvh: max depth " + maxDepth(root));
+		System.out.println("Bvh: max depth " + depth);
 		System.out.println("Bvh: average child volume ratio " + volRatio(root).mean);
+		System.out.println("Bvh: SAH cost " + sahCost());
 	}
 
-	private class SurfaceComparator implements Comparator<Surface> {
-		public final int dim;
+	/**
+	 * Build through the BvhCache: use the saved tree for these surfaces and settings if
+	 * there is one, and otherwise build the tree and save it.
+	 */
+	private void buildCached() {
+		long hash = geometryHash(surfaces);
+		Surface[] input = surfaces.clone();
+		long startTime = System.nanoTime();
+		String loaded = load(hash);
+		if (loaded != null) {
+			System.out.println("Bvh: loaded " + nodeCount(root) + " nodes over " + surfaces.length + " surfaces from "
+					+ loaded + " in " + ((System.nanoTime() - startTime) / 1e9) + " seconds");
+			if (!BvhCache.getValidate()) return;
 
-		public SurfaceComparator(int dim) {
-			this.dim = (dim == 2 ? 2 : dim == 1 ? 1 : 0);
+			Bvh fresh = withSameSettings();
+			fresh.surfaces = input.clone();
+			fresh.buildTree();
+			if (Arrays.equals(surfaces, fresh.surfaces) && sameTree(root, fresh.root)) {
+				System.out.println("Bvh: the loaded tree matches a fresh build");
+				return;
+			}
+			System.err.println("Warning: " + loaded + " does not match a fresh build; using the fresh tree");
+			System.arraycopy(fresh.surfaces, 0, surfaces, 0, surfaces.length);
+			root = fresh.root;
+			stackSize = fresh.stackSize;
+		} else {
+			buildTree();
 		}
+		save(hash, input);
+	}
 
-		public int compare(Surface s1, Surface s2) {
-			if(dim == 0) {
-				return (int)(s1.getAveragePosition().x - s2.getAveragePosition().x);
-			} else if(dim == 1) {
-				return (int)(s1.getAveragePosition().y - s2.getAveragePosition().y);
-			} else {
-				return (int)(s1.getAveragePosition().z - s2.getAveragePosition().z);
+	/** @return a new Bvh with the build settings of this one. */
+	Bvh withSameSettings() {
+		Bvh bvh = new Bvh();
+		bvh.buildStrategy = buildStrategy;
+		bvh.sahBins = sahBins;
+		bvh.traversalCost = traversalCost;
+		bvh.intersectionCost = intersectionCost;
+		bvh.sahMaxLeafSize = sahMaxLeafSize;
+		bvh.treeletPasses = treeletPasses;
+		bvh.parallelBuild = parallelBuild;
+		return bvh;
+	}
+
+	/**
+	 * The BvhCache key for building this Bvh over surfaces, whose bounding boxes must
+	 * be computed and which must still be in the order build() received them.
+	 */
+	long geometryHash(Surface[] surfaces) {
+		return BvhCache.geometryHash(surfaces, buildStrategy, sahBins, traversalCost, intersectionCost, sahMaxLeafSize,
+				treeletPasses);
+	}
+
+	/** @return true if the two trees have the same shape, boxes, surface ranges and split axes. */
+	static boolean sameTree(BvhNode a, BvhNode b) {
+		if (a == null || b == null) return a == b;
+		if (!a.minBound.equals(b.minBound) || !a.maxBound.equals(b.maxBound)
+				|| a.surfaceIndexStart != b.surfaceIndexStart || a.surfaceIndexEnd != b.surfaceIndexEnd
+				|| a.isLeaf() != b.isLeaf())
+			return false;
+		if (a.isLeaf()) return true;
+		return a.axis == b.axis && sameTree(a.child[0], b.child[0]) && sameTree(a.child[1], b.child[1]);
+	}
+
+	/** The bytes save() writes per node. */
+	private static final int NODE_BYTES = 6 * 8 + 3 * 4 + 1;
+
+	/**
+	 * Save the tree with BvhCache. Nodes are written in depth-first order, so the first
+	 * child of an interior node is the next node and only the second is stored:
+	 *   double bounds[6 * nodes], int start[nodes], int end[nodes],
+	 *   int second child[nodes] (-1 for a leaf), byte axis[nodes]
+	 *
+	 * @param input the surfaces in the order build() received them
+	 */
+	private void save(long hash, Surface[] input) {
+		int n = nodeCount(root);
+		double[] bounds = new double[6 * n];
+		int[] start = new int[n], end = new int[n], second = new int[n];
+		byte[] axes = new byte[n];
+		int[] next = { 0 };
+		writeNodes(root, bounds, start, end, second, axes, next);
+
+		ByteBuffer buf = BvhCache.create(hash, BvhCache.order(input, surfaces), n, (long) NODE_BYTES * n);
+		if (buf == null) return;
+		BvhCache.putDoubles(buf, bounds);
+		BvhCache.putInts(buf, start);
+		BvhCache.putInts(buf, end);
+		BvhCache.putInts(buf, second);
+		buf.put(axes);
+		BvhCache.write("Bvh", hash, buf);
+	}
+
+	private static void writeNodes(BvhNode node, double[] bounds, int[] start, int[] end, int[] second,
+			byte[] axes, int[] next) {
+		int i = next[0]++;
+		bounds[6*i] = node.minBound.x; bounds[6*i+1] = node.minBound.y; bounds[6*i+2] = node.minBound.z;
+		bounds[6*i+3] = node.maxBound.x; bounds[6*i+4] = node.maxBound.y; bounds[6*i+5] = node.maxBound.z;
+		start[i] = node.surfaceIndexStart;
+		end[i] = node.surfaceIndexEnd;
+		second[i] = -1;
+		if (node.isLeaf()) return;
+		axes[i] = (byte) node.axis;
+		writeNodes(node.child[0], bounds, start, end, second, axes, next);
+		second[i] = next[0];
+		writeNodes(node.child[1], bounds, start, end, second, axes, next);
+	}
+
+	/**
+	 * Load the tree saved for hash, putting surfaces into its order.
+	 *
+	 * @return the file the tree was loaded from, or null if there was no usable one
+	 */
+	private String load(long hash) {
+		BvhCache.Header header = BvhCache.open("Bvh", hash, surfaces.length, NODE_BYTES);
+		if (header == null) return null;
+		int n = header.numNodes;
+		BvhNode[] nodes = new BvhNode[n];
+		int[] depth = new int[n];
+		try {
+			ByteBuffer buf = header.buffer;
+			double[] bounds = BvhCache.getDoubles(buf, 6 * n);
+			int[] start = BvhCache.getInts(buf, n), end = BvhCache.getInts(buf, n), second = BvhCache.getInts(buf, n);
+			byte[] axes = BvhCache.getBytes(buf, n);
+
+			// Children come after their parent, so build the nodes back to front
+			for (int i = n - 1; i >= 0; i--) {
+				if (start[i] < 0 || start[i] > end[i] || end[i] > surfaces.length)
+					throw new IllegalStateException("bad surface range at node " + i);
+				Vector3d minB = new Vector3d(bounds[6*i], bounds[6*i+1], bounds[6*i+2]);
+				Vector3d maxB = new Vector3d(bounds[6*i+3], bounds[6*i+4], bounds[6*i+5]);
+				if (second[i] < 0) {
+					nodes[i] = new BvhNode(minB, maxB, null, null, start[i], end[i]);
+					continue;
+				}
+				if (second[i] <= i + 1 || second[i] >= n)
+					throw new IllegalStateException("bad child index at node " + i);
+				nodes[i] = new BvhNode(minB, maxB, nodes[i + 1], nodes[second[i]], start[i], end[i]);
+				nodes[i].axis = axes[i];
+				depth[i] = 1 + Math.max(depth[i + 1], depth[second[i]]);
 			}
+		} catch (RuntimeException e) {
+			System.err.println("Warning: ignoring unreadable BVH file " + header.path + ": " + e);
+			return null;
 		}
+		BvhCache.applyOrder(surfaces, header.order);
+		root = n > 0 ? nodes[0] : null;
+		stackSize = n > 0 ? depth[0] + 2 : 1;
+		return header.path.toString();
 	}
-	
+
 	/**
 	 * Create a BVH [sub]tree.  This tree node will be responsible for storing
 	 * and processing surfaces[start] to surfaces[end-1]. If the range is small enough,
 	 * this will create a leaf BvhNode. Otherwise, the surfaces will be sorted according
 	 * to the axis of the axis-aligned bounding box that is widest, and split into 2
-	 * children.
+	 * children. Large ranges build their first child as a separate task (see
+	 * parallelBuild); the two children sort disjoint parts of surfaces.
 	 * 
 	 * @param start The start index of surfaces
 	 * @param end The end index of surfaces
@@ -188,9 +700,7 @@ public class Bvh implements AccelStruct {
 		// Check for the base case. 
 		// If the range [start, end) is small enough (e.g. less than or equal to 10), just return a new leaf node.
 		if((end - 1) - start <= 10) {
-			BvhNode node = new BvhNode(minBound, maxBound, null, null, start, end);
-			if(root == null) root = node;
-			return node;
+			return new BvhNode(minBound, maxBound, null, null, start, end);
 		}
 		
 		// ==== Step 3 ====
@@ -219,22 +729,190 @@ public class Bvh implements AccelStruct {
 		
 		// ==== Step 4 ====
 		// Sort surfaces according to the widest dimension.
-		
-		// Copy our array, sort that, then copy that array back to the original
-		SurfaceComparator comparator = new SurfaceComparator(widestDim);
-		Surface[] surfacesSlice = Arrays.copyOfRange(surfaces, start, end);
-		Arrays.sort(surfacesSlice, cmp);
-		for(int i = start; i < end; i++) {
-			surfaces[i] = surfacesSlice[i - start];
-		}
+		MyComparator cmp = new MyComparator();
+		cmp.setIndex(widestDim);
+		Arrays.sort(surfaces, start, end, cmp);
 
 		// ==== Step 5 ====
 		// Recursively create left and right children.
-		BvhNode node = new BvhNode(minBound, maxBound, createTree(start, (int)Math.ceil((start + end) / 2.0)), createTree((int)Math.ceil((start + end) / 2.0), end), start, end);
-		if(root == null) root = node;
+		int mid = (int)Math.ceil((start + end) / 2.0);
+		BvhNode left, right;
+		if (forkSubtrees(end - start)) {
+			MedianTask task = new MedianTask(start, mid);
+			task.fork();
+			right = createTree(mid, end);
+			left = task.join();
+		} else {
+			left = createTree(start, mid);
+			right = createTree(mid, end);
+		}
+		BvhNode node = new BvhNode(minBound, maxBound, left, right, start, end);
+		node.axis = widestDim;
 		return node;
 	}
-	
+
+	/**
+	 * Create a BVH tree with the binned surface area heuristic (SAH); see BinnedSah for
+	 * the cost model. A range is made a leaf if that is no more expensive than splitting
+	 * it and it fits in sahMaxLeafSize. Once the tree is built, surfaces is rearranged
+	 * into the order the leaves refer to.
+	 *
+	 * With parallelBuild, the boxes and centroids are gathered in parallel, and large
+	 * ranges build their first child as a separate task with its own BinnedSah scratch
+	 * space; the two children only partition their own parts of the shared arrays.
+	 */
+	private BvhNode createTreeSah() {
+		final double[] boxes = new double[6 * surfaces.length];
+		final double[] centroids = new double[3 * surfaces.length];
+		forRange(surfaces.length, new RangeBody() {
+			public void run(int start, int end) {
+				for (int i = start; i < end; i++) {
+					Vector3d minB = surfaces[i].getMinBound(), maxB = surfaces[i].getMaxBound();
+					Vector3d c = surfaces[i].getAveragePosition();
+					boxes[6*i] = minB.x; boxes[6*i+1] = minB.y; boxes[6*i+2] = minB.z;
+					boxes[6*i+3] = maxB.x; boxes[6*i+4] = maxB.y; boxes[6*i+5] = maxB.z;
+					centroids[3*i] = c.x; centroids[3*i+1] = c.y; centroids[3*i+2] = c.z;
+				}
+			}
+		});
+		BinnedSah sah = new BinnedSah(boxes, centroids, sahBins, traversalCost, intersectionCost, sahMaxLeafSize);
+		BvhNode node = forkSubtrees(surfaces.length)
+				? ForkJoinPool.commonPool().invoke(new SahTask(0, surfaces.length, sah))
+				: createTreeSah(0, surfaces.length, sah);
+
+		Surface[] unordered = surfaces.clone();
+		for (int i = 0; i < surfaces.length; i++)
+			surfaces[i] = unordered[sah.order[i]];
+		return node;
+	}
+
+	private BvhNode createTreeSah(int start, int end, BinnedSah sah) {
+		int mid = sah.split(start, end);
+		double[] b = sah.bound;
+		Vector3d minBound = new Vector3d(b[0], b[1], b[2]);
+		Vector3d maxBound = new Vector3d(b[3], b[4], b[5]);
+		if (mid < 0)
+			return new BvhNode(minBound, maxBound, null, null, start, end);
+
+		int axis = sah.axis;
+		BvhNode left, right;
+		if (forkSubtrees(end - start)) {
+			SahTask task = new SahTask(start, mid, new BinnedSah(sah));
+			task.fork();
+			right = createTreeSah(mid, end, sah);
+			left = task.join();
+		} else {
+			left = createTreeSah(start, mid, sah);
+			right = createTreeSah(mid, end, sah);
+		}
+		BvhNode node = new BvhNode(minBound, maxBound, left, right, start, end);
+		node.axis = axis;
+		return node;
+	}
+
+	/**
+	 * Create a linear BVH (see Lbvh): sort surfaces by the Morton codes of their
+	 * centroids, then split ranges top-down at the highest bit in which their codes
+	 * differ, down to leaves of at most sahMaxLeafSize surfaces. No surfaces move after
+	 * the sort, and each node's box is the union of its children's. If treeletPasses
+	 * is set, the finished tree is then restructured.
+	 *
+	 * With parallelBuild, the centroids are gathered in parallel and large ranges build
+	 * their first child as a separate task; the sorted codes are only read.
+	 */
+	private BvhNode createTreeLbvh() {
+		final double[] centroids = new double[3 * surfaces.length];
+		forRange(surfaces.length, new RangeBody() {
+			public void run(int start, int end) {
+				for (int i = start; i < end; i++) {
+					Vector3d c = surfaces[i].getAveragePosition();
+					centroids[3*i] = c.x; centroids[3*i+1] = c.y; centroids[3*i+2] = c.z;
+				}
+			}
+		});
+		Lbvh lbvh = new Lbvh(centroids);
+		Surface[] unordered = surfaces.clone();
+		for (int i = 0; i < surfaces.length; i++)
+			surfaces[i] = unordered[lbvh.order[i]];
+
+		BvhNode node = forkSubtrees(surfaces.length)
+				? ForkJoinPool.commonPool().invoke(new LbvhTask(0, surfaces.length, lbvh))
+				: createTreeLbvh(0, surfaces.length, lbvh);
+		if (treeletPasses > 0) {
+			TreeletOptimizer optimizer = new TreeletOptimizer(traversalCost, intersectionCost);
+			optimizer.optimize(node, surfaces, treeletPasses);
+			System.out.println("Bvh: restructured " + optimizer.restructured + " treelets");
+		}
+		return node;
+	}
+
+	private BvhNode createTreeLbvh(int start, int end, Lbvh lbvh) {
+		if (end - start <= sahMaxLeafSize) {
+			Vector3d minBound = new Vector3d(Double.POSITIVE_INFINITY);
+			Vector3d maxBound = new Vector3d(Double.NEGATIVE_INFINITY);
+			for (int i = start; i < end; i++) {
+				Vector3d lo = surfaces[i].getMinBound(), hi = surfaces[i].getMaxBound();
+				minBound.set(Math.min(minBound.x, lo.x), Math.min(minBound.y, lo.y), Math.min(minBound.z, lo.z));
+				maxBound.set(Math.max(maxBound.x, hi.x), Math.max(maxBound.y, hi.y), Math.max(maxBound.z, hi.z));
+			}
+			return new BvhNode(minBound, maxBound, null, null, start, end);
+		}
+
+		int mid = lbvh.split(start, end);
+		BvhNode left, right;
+		if (forkSubtrees(end - start)) {
+			LbvhTask task = new LbvhTask(start, mid, lbvh);
+			task.fork();
+			right = createTreeLbvh(mid, end, lbvh);
+			left = task.join();
+		} else {
+			left = createTreeLbvh(start, mid, lbvh);
+			right = createTreeLbvh(mid, end, lbvh);
+		}
+		Vector3d minBound = new Vector3d(
+				Math.min(left.minBound.x, right.minBound.x),
+				Math.min(left.minBound.y, right.minBound.y),
+				Math.min(left.minBound.z, right.minBound.z));
+		Vector3d maxBound = new Vector3d(
+				Math.max(left.maxBound.x, right.maxBound.x),
+				Math.max(left.maxBound.y, right.maxBound.y),
+				Math.max(left.maxBound.z, right.maxBound.z));
+		BvhNode node = new BvhNode(minBound, maxBound, left, right, start, end);
+		int axis = lbvh.axis(start, end);
+		if (axis < 0) {
+			// Coincident centroids: order the children along the widest axis of the box
+			Vector3d size = new Vector3d(maxBound).sub(minBound);
+			axis = size.x >= size.y ? (size.x >= size.z ? 0 : 2) : (size.y >= size.z ? 1 : 2);
+		}
+		node.axis = axis;
+		return node;
+	}
+
+	/**
+	 * The SAH cost of the current tree: the expected cost of a ray that hits the root
+	 * box, using traversalCost and intersectionCost. Lower is better; this is the
+	 * quantity the SAH builder minimizes greedily.
+	 */
+	public double sahCost() {
+		if (root == null || surfaces.length == 0) return 0;
+		double rootArea = nodeArea(root);
+		if (!(rootArea > 0)) return intersectionCost * surfaces.length;
+		return sahCost(root) / rootArea;
+	}
+
+	private double sahCost(BvhNode node) {
+		if (node.isLeaf())
+			return nodeArea(node) * intersectionCost * (node.surfaceIndexEnd - node.surfaceIndexStart);
+		return nodeArea(node) * traversalCost + sahCost(node.child[0]) + sahCost(node.child[1]);
+	}
+
+	private double nodeArea(BvhNode node) {
+		double dx = node.maxBound.x - node.minBound.x;
+		double dy = node.maxBound.y - node.minBound.y;
+		double dz = node.maxBound.z - node.minBound.z;
+		return 2 * (dx * dy + dy * dz + dz * dx);
+	}
+
 	private int maxDepth(BvhNode node) {
 		if (node.isLeaf())
 			return 0;
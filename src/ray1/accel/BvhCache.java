@@ -0,0 +1,235 @@
+package ray1.accel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.IdentityHashMap;
+
+import egl.math.Vector3d;
+import ray1.surface.Surface;
+
+/**
+ * Saved BVHs, so that rendering a scene whose geometry has not changed (another
+ * frame of an animation, or the same scene rendered again) can skip the build.
+ *
+ * A tree is keyed by a hash of everything the builders look at: the class, bounding
+ * box and average position of each surface in the order the scene hands them over,
+ * and the build settings. The same key therefore always builds the same tree, and
+ * the file holds the tree as the builder left it, together with the order it put the
+ * surfaces in. Files are named <kind>-<hash>.bvh in the directory given with
+ * setDirectory, and are read with FileChannel.map; caching is off until a directory
+ * is set.
+ *
+ * Every file starts with a little-endian header:
+ *   int magic, int version, long hash, int number of surfaces, int number of nodes,
+ *   int surface order[number of surfaces]
+ * followed by the node arrays of the structure that wrote it.
+ *
+ * With validation on, a loaded tree is also built from scratch and compared with
+ * the saved one, and the fresh tree is used if they differ.
+ */
+public class BvhCache {
+
+	private static final int MAGIC = 0x56425452; // "RTBV"
+	private static final int VERSION = 1;
+	static final int HEADER_BYTES = 24;
+
+	/** The directory trees are saved in, or null if they are not saved. */
+	private static Path directory = null;
+	public static void setDirectory(String dir) { directory = dir == null ? null : Paths.get(dir); }
+	public static Path getDirectory() { return directory; }
+
+	/** Whether loaded trees are checked against freshly built ones. */
+	private static boolean validate = false;
+	public static void setValidate(boolean v) { validate = v; }
+	public static boolean getValidate() { return validate; }
+
+	static boolean isEnabled() { return directory != null; }
+
+	/** The header of a loaded file; the buffer is positioned at the node arrays. */
+	static class Header {
+		final ByteBuffer buffer;
+		final int numNodes;
+		final int[] order;
+		final Path path;
+
+		Header(ByteBuffer buffer, int numNodes, int[] order, Path path) {
+			this.buffer = buffer;
+			this.numNodes = numNodes;
+			this.order = order;
+			this.path = path;
+		}
+	}
+
+	/**
+	 * Hash the build input: the surfaces, whose bounding boxes must be computed, and
+	 * the settings that affect the tree.
+	 */
+	static long geometryHash(Surface[] surfaces, Object... settings) {
+		long h = mix(0x52544256L, surfaces.length);
+		for (Object o : settings)
+			h = mix(h, o.toString().hashCode());
+		for (Surface s : surfaces) {
+			h = mix(h, s.getClass().getName().hashCode());
+			h = mix(h, s.getMinBound());
+			h = mix(h, s.getMaxBound());
+			h = mix(h, s.getAveragePosition());
+		}
+		return h ^ (h >>> 29);
+	}
+
+	private static long mix(long h, Vector3d v) {
+		h = mix(h, Double.doubleToLongBits(v.x));
+		h = mix(h, Double.doubleToLongBits(v.y));
+		return mix(h, Double.doubleToLongBits(v.z));
+	}
+
+	private static long mix(long h, long v) {
+		h = (h ^ v) * 0x9E3779B97F4A7C15L;
+		return h ^ (h >>> 32);
+	}
+
+	static Path file(String kind, long hash) {
+		return directory.resolve(String.format("%s-%016x.bvh", kind, hash));
+	}
+
+	/**
+	 * Map the saved tree for a hash.
+	 *
+	 * @param bytesPerNode the size of one node in the node arrays of kind, so that a
+	 * damaged node count is caught before the loader allocates arrays for it
+	 * @return the header, or null if there is no usable file for the hash
+	 */
+	static Header open(String kind, long hash, int numSurfaces, int bytesPerNode) {
+		Path path = file(kind, hash);
+		if (!Files.isRegularFile(path)) return null;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size < HEADER_BYTES || size > Integer.MAX_VALUE) return null;
+			ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+			if (buf.getInt() != MAGIC || buf.getInt() != VERSION || buf.getLong() != hash || buf.getInt() != numSurfaces)
+				return null;
+			int numNodes = buf.getInt();
+			int[] order = new int[numSurfaces];
+			buf.asIntBuffer().get(order);
+			buf.position(buf.position() + 4 * numSurfaces);
+
+			// A damaged order could put a surface in the tree twice
+			boolean[] seen = new boolean[numSurfaces];
+			for (int i : order) {
+				if (i < 0 || i >= numSurfaces || seen[i]) return null;
+				seen[i] = true;
+			}
+			if (numNodes < 0 || (long) numNodes * bytesPerNode > buf.remaining()) return null;
+			return new Header(buf, numNodes, order, path);
+		} catch (IOException | RuntimeException e) {
+			System.err.println("Warning: ignoring unreadable BVH file " + path + ": " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * Start a file: allocate a buffer for the header and bodyBytes of node arrays and
+	 * write the header into it.
+	 */
+	static ByteBuffer create(long hash, int[] order, int numNodes, long bodyBytes) {
+		long size = HEADER_BYTES + 4L * order.length + bodyBytes;
+		if (size > Integer.MAX_VALUE) return null;
+		ByteBuffer buf = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+		buf.putInt(MAGIC).putInt(VERSION).putLong(hash).putInt(order.length).putInt(numNodes);
+		buf.asIntBuffer().put(order);
+		buf.position(buf.position() + 4 * order.length);
+		return buf;
+	}
+
+	/**
+	 * Write a buffer filled in after create() to the file for a hash, by way of a
+	 * temporary file so that readers never see it half written. Failures are only
+	 * reported; the tree is still usable.
+	 */
+	static void write(String kind, long hash, ByteBuffer buf) {
+		Path path = file(kind, hash);
+		Path temp = null;
+		try {
+			Files.createDirectories(directory);
+			temp = Files.createTempFile(directory, path.getFileName().toString(), ".tmp");
+			buf.flip();
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+				while (buf.hasRemaining()) channel.write(buf);
+			}
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			System.out.println(kind + ": wrote " + path);
+		} catch (IOException e) {
+			System.err.println("Warning: could not write BVH file " + path + ": " + e);
+			try {
+				if (temp != null) Files.deleteIfExists(temp);
+			} catch (IOException ignored) { }
+		}
+	}
+
+	/** @return for each surface in ordered, its index in input. */
+	static int[] order(Surface[] input, Surface[] ordered) {
+		IdentityHashMap<Surface, Integer> index = new IdentityHashMap<Surface, Integer>(2 * input.length);
+		for (int i = 0; i < input.length; i++)
+			index.put(input[i], i);
+		int[] order = new int[ordered.length];
+		for (int i = 0; i < ordered.length; i++)
+			order[i] = index.get(ordered[i]);
+		return order;
+	}
+
+	/** Put surfaces into a saved order, in place. */
+	static void applyOrder(Surface[] surfaces, int[] order) {
+		Surface[] input = surfaces.clone();
+		for (int i = 0; i < surfaces.length; i++)
+			surfaces[i] = input[order[i]];
+	}
+
+	static double[] getDoubles(ByteBuffer buf, int n) {
+		double[] a = new double[n];
+		buf.asDoubleBuffer().get(a);
+		buf.position(buf.position() + 8 * n);
+		return a;
+	}
+
+	static float[] getFloats(ByteBuffer buf, int n) {
+		float[] a = new float[n];
+		buf.asFloatBuffer().get(a);
+		buf.position(buf.position() + 4 * n);
+		return a;
+	}
+
+	static int[] getInts(ByteBuffer buf, int n) {
+		int[] a = new int[n];
+		buf.asIntBuffer().get(a);
+		buf.position(buf.position() + 4 * n);
+		return a;
+	}
+
+	static byte[] getBytes(ByteBuffer buf, int n) {
+		byte[] a = new byte[n];
+		buf.get(a);
+		return a;
+	}
+
+	static void putDoubles(ByteBuffer buf, double[] a) {
+		buf.asDoubleBuffer().put(a);
+		buf.position(buf.position() + 8 * a.length);
+	}
+
+	static void putFloats(ByteBuffer buf, float[] a) {
+		buf.asFloatBuffer().put(a);
+		buf.position(buf.position() + 4 * a.length);
+	}
+
+	static void putInts(ByteBuffer buf, int[] a) {
+		buf.asIntBuffer().put(a);
+		buf.position(buf.position() + 4 * a.length);
+	}
+}
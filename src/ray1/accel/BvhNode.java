@@ -33,6 +33,12 @@ public class BvhNode {
 	 */
 	public int surfaceIndexEnd; 
 	
+	/**
+	 * The axis (0 = x, 1 = y, 2 = z) along which the surfaces of an interior node
+	 * were split between its children. Traversal uses it to visit the nearer child first.
+	 */
+	public int axis;
+	
 	/**
 	 * Default constructor
 	 */
@@ -78,33 +84,45 @@ public class BvhNode {
 	}
 	
 	/** 
-	 * Check if the ray intersects the bounding box.
+	 * Check if the ray intersects the bounding box between ray.start and ray.end.
+	 * Refreshes the ray's cached inverse direction first, so it is safe to call after
+	 * changing ray.direction.
 	 * @param ray
 	 * @return true if ray intersects the bounding box
 	 */
 	public boolean intersects(Ray ray) {
-		// TODO#Ray Part 2 Task 3: fill in this function.
-		// You can find this in the slides.
-	    ray.direction.normalize();
-		double txMin = (minBound.x - ray.origin.x) / ray.direction.x;
-		double tyMin = (minBound.y - ray.origin.y) / ray.direction.y;
-		double tzMin = (minBound.z - ray.origin.z) / ray.direction.z;
+		ray.updateInverseDirection();
+		return entryDistance(ray) != Double.POSITIVE_INFINITY;
+	}
 
-		double txMax = (maxBound.x - ray.origin.x) / ray.direction.x;
-		double tyMax = (maxBound.y - ray.origin.y) / ray.direction.y;
-		double tzMax = (maxBound.z - ray.origin.z) / ray.direction.z;
+	/**
+	 * Slab test of the bounding box against the segment [ray.start, ray.end], using the
+	 * ray's cached inverse direction and sign bits (see Ray.updateInverseDirection()).
+	 * Picking the near and far slab by sign saves the min/max per axis. A ray lying in
+	 * a slab plane produces NaNs, which fail every comparison and leave the interval
+	 * unchanged.
+	 * @param ray a ray whose inverse direction is up to date
+	 * @return the distance at which the ray enters the box, clipped to ray.start, or
+	 * Double.POSITIVE_INFINITY if the segment misses the box
+	 */
+	public double entryDistance(Ray ray) {
+		double tEnter = ray.start, tExit = ray.end;
 
-		double txEnter = Math.min(txMin, txMax);
-		double tyEnter = Math.min(tyMin, tyMax);
-		double tzEnter = Math.min(tzMin, tzMax);
+		double t0 = ((ray.signX == 0 ? minBound.x : maxBound.x) - ray.origin.x) * ray.invDirection.x;
+		double t1 = ((ray.signX == 0 ? maxBound.x : minBound.x) - ray.origin.x) * ray.invDirection.x;
+		if (t0 > tEnter) tEnter = t0;
+		if (t1 < tExit) tExit = t1;
 
-		double txExit = Math.max(txMin, txMax);
-		double tyExit = Math.max(tyMin, tyMax);
-		double tzExit = Math.max(tzMin, tzMax);
+		t0 = ((ray.signY == 0 ? minBound.y : maxBound.y) - ray.origin.y) * ray.invDirection.y;
+		t1 = ((ray.signY == 0 ? maxBound.y : minBound.y) - ray.origin.y) * ray.invDirection.y;
+		if (t0 > tEnter) tEnter = t0;
+		if (t1 < tExit) tExit = t1;
 
-		// tEnter <= t <= tExit
-		// max(tEnter) <= t <= min(tExit)
+		t0 = ((ray.signZ == 0 ? minBound.z : maxBound.z) - ray.origin.z) * ray.invDirection.z;
+		t1 = ((ray.signZ == 0 ? maxBound.z : minBound.z) - ray.origin.z) * ray.invDirection.z;
+		if (t0 > tEnter) tEnter = t0;
+		if (t1 < tExit) tExit = t1;
 
-		return Math.max(txEnter, Math.max(tyEnter, tzEnter)) <= Math.min(txExit, Math.min(tyExit, tzExit));
+		return tEnter <= tExit ? tEnter : Double.POSITIVE_INFINITY;
 	}
 }
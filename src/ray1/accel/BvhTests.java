@@ -1,6 +1,13 @@
 package ray1.accel;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Arrays;
+import java.util.Random;
 
 import static org.junit.Assert.*;
 
@@ -9,7 +16,10 @@ import org.junit.Test;
 
 import ray1.OBJMesh;
 import ray1.OBJFace;
+import ray1.IntersectionRecord;
 import ray1.Ray;
+import ray1.RayPacket;
+import ray1.RenderStats;
 import ray1.surface.Mesh;
 import ray1.surface.Sphere;
 import ray1.surface.Surface;
@@ -512,6 +522,587 @@ public class BvhTests {
                     !vectorsEqual(bvh40.root.child[0].child[0].maxBound, new Vector3d(31, 20, 1))));
     }
     
+    @Test
+    /**
+     * Shoots random rays at a scene of scattered spheres and triangles and checks that
+     * the Bvh reports exactly the same hits as a linear search over all surfaces.
+     */
+    public static void testBvhMatchesNaive() {
+        Random rnd = new Random(4620);
+        Surface[] scene = randomScene(rnd, 60, 400);
+        
+        Bvh bvh = new Bvh();
+        bvh.build(Arrays.copyOf(scene, scene.length));
+        assertMatchesNaive("Bvh", bvh, scene, rnd, 2000);
+    }
+    
+    @Test
+    /**
+     * An SAH-built Bvh must give the same answers as the naive search, and should not
+     * be more expensive by its own cost model than the median split.
+     */
+    public static void testSahBvhMatchesNaive() {
+        Random rnd = new Random(4621);
+        Surface[] scene = randomScene(rnd, 60, 400);
+        
+        Bvh sah = new Bvh();
+        sah.setBuildStrategy("SAH");
+        sah.build(Arrays.copyOf(scene, scene.length));
+        assertMatchesNaive("SAH Bvh", sah, scene, rnd, 2000);
+        
+        Bvh median = new Bvh();
+        median.build(Arrays.copyOf(scene, scene.length));
+        assertTrue("SAH cost " + sah.sahCost() + " is worse than median cost " + median.sahCost(),
+                sah.sahCost() <= median.sahCost());
+        
+        // All centroids in one place: no bin boundary separates them
+        Surface[] same = new Surface[40];
+        for (int i = 0; i < same.length; i++) {
+            Sphere s = new Sphere();
+            s.setCenter(new Vector3(0, 0, 0));
+            s.setRadius(1 + i * 0.01f);
+            same[i] = s;
+        }
+        Bvh stacked = new Bvh();
+        stacked.setBuildStrategy("sah");
+        stacked.setSahMaxLeafSize(4);
+        stacked.build(Arrays.copyOf(same, same.length));
+        assertMatchesNaive("SAH Bvh, coincident centroids", stacked, same, rnd, 200);
+    }
+    
+    @Test
+    /**
+     * A FlatBvh must keep every node of the Bvh it was flattened from and give the
+     * same answers as the naive search, for both build strategies.
+     */
+    public static void testFlatBvhMatchesNaive() {
+        Random rnd = new Random(4622);
+        Surface[] scene = randomScene(rnd, 60, 400);
+        
+        for (String strategy : new String[] { "median", "sah" }) {
+            Bvh bvh = new Bvh();
+            bvh.setBuildStrategy(strategy);
+            bvh.build(Arrays.copyOf(scene, scene.length));
+            FlatBvh flat = new FlatBvh();
+            flat.flatten(bvh);
+            assertTrue("FlatBvh lost nodes", flat.getNumNodes() == countNodes(bvh.root));
+            assertMatchesNaive("FlatBvh (" + strategy + ")", flat, scene, rnd, 2000);
+        }
+        
+        FlatBvh empty = new FlatBvh();
+        empty.build(new Surface[0]);
+        Ray ray = new Ray(new Vector3d(0, 0, 0), new Vector3d(1, 0, 0));
+        ray.start = 0;
+        ray.end = Double.POSITIVE_INFINITY;
+        assertTrue("Empty FlatBvh was hit", !empty.intersect(new IntersectionRecord(), ray, false));
+    }
+    
+    /** A sphere that counts how often its hit records are finalized. */
+    static class CountingSphere extends Sphere {
+        static int finalized = 0;
+        public void finalizeRecord(IntersectionRecord record, Ray ray) {
+            finalized++;
+            super.finalizeRecord(record, ray);
+        }
+    }
+    
+    @Test
+    /**
+     * A row of overlapping spheres gives every ray many candidate hits, but each
+     * acceleration structure must finalize only the closest one.
+     */
+    public static void testFinalizeOnlyClosestHit() {
+        Surface[] row = new Surface[20];
+        for (int i = 0; i < row.length; i++) {
+            Sphere s = new CountingSphere();
+            s.setCenter(new Vector3(0, 0, i));
+            s.computeBoundingBox();
+            row[i] = s;
+        }
+        Bvh bvh = new Bvh();
+        bvh.build(Arrays.copyOf(row, row.length));
+        FlatBvh flat = new FlatBvh();
+        flat.flatten(bvh);
+        NaiveAccelStruct naive = new NaiveAccelStruct();
+        naive.build(row);
+        
+        for (AccelStruct accel : new AccelStruct[] { bvh, flat, naive }) {
+            // Looking down the row from behind the last sphere
+            Ray ray = new Ray(new Vector3d(0.1, 0.2, 30), new Vector3d(0, 0, -1));
+            ray.makeOffsetRay();
+            IntersectionRecord record = new IntersectionRecord();
+            CountingSphere.finalized = 0;
+            assertTrue(accel.intersect(record, ray, false));
+            assertTrue(accel.getClass().getSimpleName() + " finalized " + CountingSphere.finalized + " records",
+                    CountingSphere.finalized == 1);
+            assertTrue("Wrong closest hit", record.surface == row[row.length - 1]);
+            assertTrue("Record was not finalized", vectorsEqual(record.location, new Vector3d(0.1, 0.2, 30 - record.t)));
+            
+            CountingSphere.finalized = 0;
+            assertTrue(accel.intersect(null, ray, true));
+            assertTrue("Any-hit query without a record finalized one", CountingSphere.finalized == 0);
+        }
+    }
+    
+    @Test
+    /**
+     * Traversals add the nodes they visit and the primitives they test to the calling
+     * thread's RenderStats counters, which collect() moves into a scene's totals.
+     */
+    public static void testTraversalCounters() {
+        Surface[] row = new Surface[20];
+        for (int i = 0; i < row.length; i++) {
+            Sphere s = new Sphere();
+            s.setCenter(new Vector3(0, 0, 3 * i));
+            s.computeBoundingBox();
+            row[i] = s;
+        }
+        Bvh bvh = new Bvh();
+        bvh.build(Arrays.copyOf(row, row.length));
+        FlatBvh flat = new FlatBvh();
+        flat.flatten(bvh);
+        NaiveAccelStruct naive = new NaiveAccelStruct();
+        naive.build(row);
+        
+        RenderStats.Counters counters = RenderStats.local();
+        for (AccelStruct accel : new AccelStruct[] { bvh, flat, naive }) {
+            String name = accel.getClass().getSimpleName();
+            // Looking down the row from behind the last sphere
+            Ray ray = new Ray(new Vector3d(0.1, 0.2, 100), new Vector3d(0, 0, -1));
+            ray.makeOffsetRay();
+            counters.reset();
+            assertTrue(accel.intersect(new IntersectionRecord(), ray, false));
+            if (accel == naive) {
+                assertTrue(name + " counted nodes", counters.nodesVisited == 0);
+                assertTrue(name + " tested " + counters.primitiveTests, counters.primitiveTests == row.length);
+            } else {
+                assertTrue(name + " visited no nodes", counters.nodesVisited > 0);
+                assertTrue(name + " tested " + counters.primitiveTests + " spheres",
+                        counters.primitiveTests > 0 && counters.primitiveTests < row.length);
+            }
+            
+            // A ray past the side of the row tests nothing but the root box
+            Ray miss = new Ray(new Vector3d(5, 0, 100), new Vector3d(0, 0, -1));
+            miss.makeOffsetRay();
+            counters.reset();
+            assertTrue(!accel.occluded(miss));
+            if (accel != naive) assertTrue(name + " tested a missed sphere", counters.primitiveTests == 0);
+        }
+        
+        RenderStats stats = new RenderStats();
+        Ray ray = new Ray(new Vector3d(0.1, 0.2, 100), new Vector3d(0, 0, -1));
+        ray.makeOffsetRay();
+        counters.reset();
+        assertTrue(naive.occluded(ray));
+        assertTrue("An any-hit search stops at the first hit", counters.primitiveTests == 1);
+        stats.collect(counters);
+        assertTrue("collect() did not reset the counters", counters.primitiveTests == 0);
+        assertTrue("collect() lost counts", stats.getPrimitiveTests() == 1);
+    }
+    
+    @Test
+    /**
+     * With a BvhCache directory set, a second build over the same geometry must load
+     * exactly the tree the first one built and saved, for both structures and build
+     * strategies; validation must replace a tampered tree with a fresh one, and
+     * changed geometry must not find the old tree.
+     */
+    public static void testSavedBvhMatchesFreshBuild() throws IOException {
+        Random rnd = new Random(4623);
+        Surface[] scene = randomScene(rnd, 60, 400);
+        Path dir = Files.createTempDirectory("bvhcache");
+        BvhCache.setDirectory(dir.toString());
+        try {
+            for (String strategy : new String[] { "median", "sah" }) {
+                Bvh built = new Bvh();
+                built.setBuildStrategy(strategy);
+                built.build(Arrays.copyOf(scene, scene.length));
+                Bvh loaded = new Bvh();
+                loaded.setBuildStrategy(strategy);
+                loaded.build(Arrays.copyOf(scene, scene.length));
+                assertTrue("Loaded " + strategy + " Bvh differs from the built one",
+                        Bvh.sameTree(built.root, loaded.root) && Arrays.equals(built.getSurfaces(), loaded.getSurfaces()));
+                assertMatchesNaive("Loaded Bvh (" + strategy + ")", loaded, scene, rnd, 500);
+
+                FlatBvh flatBuilt = new FlatBvh();
+                flatBuilt.setBuildStrategy(strategy);
+                flatBuilt.build(Arrays.copyOf(scene, scene.length));
+                FlatBvh flatLoaded = new FlatBvh();
+                flatLoaded.setBuildStrategy(strategy);
+                flatLoaded.build(Arrays.copyOf(scene, scene.length));
+                assertTrue(flatLoaded.getNumNodes() == flatBuilt.getNumNodes());
+                assertMatchesNaive("Loaded FlatBvh (" + strategy + ")", flatLoaded, scene, rnd, 500);
+            }
+            assertTrue(dir.toFile().list().length == 4);
+
+            // Move the root box of the saved median tree out of the way of every ray
+            Bvh reference = new Bvh();
+            reference.build(Arrays.copyOf(scene, scene.length));
+            Path file = BvhCache.file("Bvh", reference.geometryHash(scene));
+            ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file)).order(ByteOrder.LITTLE_ENDIAN);
+            bytes.putDouble(BvhCache.HEADER_BYTES + 4 * scene.length, 1e6);
+            Files.write(file, bytes.array());
+            BvhCache.setValidate(true);
+            Bvh validated = new Bvh();
+            validated.build(Arrays.copyOf(scene, scene.length));
+            assertTrue("Validation kept a tampered tree", Bvh.sameTree(validated.root, reference.root));
+            BvhCache.setValidate(false);
+            Bvh reloaded = new Bvh();
+            reloaded.build(Arrays.copyOf(scene, scene.length));
+            assertTrue("Validation did not rewrite a tampered tree", Bvh.sameTree(reloaded.root, reference.root));
+
+            // A damaged node count must make the file unusable, not fail the build
+            int countOffset = BvhCache.HEADER_BYTES - 4;
+            bytes = ByteBuffer.wrap(Files.readAllBytes(file)).order(ByteOrder.LITTLE_ENDIAN);
+            bytes.putInt(countOffset, -1);
+            Files.write(file, bytes.array());
+            Bvh negative = new Bvh();
+            negative.build(Arrays.copyOf(scene, scene.length));
+            assertTrue("A negative node count broke the build", Bvh.sameTree(negative.root, reference.root));
+            Path flatFile = BvhCache.file("FlatBvh", reference.geometryHash(scene));
+            assertTrue(Files.isRegularFile(flatFile));
+            bytes = ByteBuffer.wrap(Files.readAllBytes(flatFile)).order(ByteOrder.LITTLE_ENDIAN);
+            bytes.putInt(countOffset, Integer.MAX_VALUE);
+            Files.write(flatFile, bytes.array());
+            FlatBvh huge = new FlatBvh();
+            huge.build(Arrays.copyOf(scene, scene.length));
+            assertMatchesNaive("FlatBvh after a huge node count", huge, scene, rnd, 500);
+
+            Sphere moved = new Sphere();
+            moved.setCenter(new Vector3(0, 0, 0));
+            moved.computeBoundingBox();
+            Surface[] changed = Arrays.copyOf(scene, scene.length);
+            changed[0] = moved;
+            assertTrue(reference.geometryHash(changed) != reference.geometryHash(scene));
+            Bvh rebuilt = new Bvh();
+            rebuilt.build(Arrays.copyOf(changed, changed.length));
+            assertTrue(dir.toFile().list().length == 5);
+            assertMatchesNaive("Bvh over changed geometry", rebuilt, changed, rnd, 500);
+        } finally {
+            BvhCache.setDirectory(null);
+            BvhCache.setValidate(false);
+            for (File f : dir.toFile().listFiles()) f.delete();
+            Files.delete(dir);
+        }
+    }
+    
+    @Test
+    /**
+     * A parallel build must produce exactly the tree and surface order of a serial
+     * build, for both strategies, over enough surfaces that subtrees are forked.
+     */
+    public static void testParallelBuildMatchesSerial() {
+        Random rnd = new Random(4624);
+        Surface[] scene = randomScene(rnd, 3000, 3 * Bvh.PARALLEL_THRESHOLD);
+        for (String strategy : new String[] { "median", "sah" }) {
+            Bvh serial = new Bvh();
+            serial.setBuildStrategy(strategy);
+            serial.setParallelBuild(false);
+            serial.build(Arrays.copyOf(scene, scene.length));
+            Bvh parallel = new Bvh();
+            parallel.setBuildStrategy(strategy);
+            parallel.build(Arrays.copyOf(scene, scene.length));
+            assertTrue("Parallel " + strategy + " build differs from the serial one",
+                    Bvh.sameTree(serial.root, parallel.root) && Arrays.equals(serial.getSurfaces(), parallel.getSurfaces()));
+            assertMatchesNaive("Parallel Bvh (" + strategy + ")", parallel, scene, rnd, 300);
+        }
+    }
+    
+    @Test
+    /**
+     * The radix sort behind the LBVH must sort exactly like Arrays.sort and carry the
+     * values along, and Morton codes must interleave x, y and z from the top bit down.
+     */
+    public static void testMortonRadixSort() {
+        Random rnd = new Random(4625);
+        long[] keys = new long[5000];
+        int[] values = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            // Few distinct low digits, so some passes are skipped and ties are common
+            keys[i] = rnd.nextInt(1 << 21) * (long) (i % 3 == 0 ? 1 : 1 << 40) & Long.MAX_VALUE;
+            values[i] = i;
+        }
+        long[] original = keys.clone();
+        long[] expected = keys.clone();
+        Arrays.sort(expected);
+        Lbvh.radixSort(keys, values);
+        assertTrue("Radix sort disagrees with Arrays.sort", Arrays.equals(keys, expected));
+        for (int i = 0; i < keys.length; i++) {
+            assertTrue("Value " + i + " did not move with its key", original[values[i]] == keys[i]);
+            if (i > 0 && keys[i] == keys[i - 1])
+                assertTrue("Radix sort is not stable at " + i, values[i] > values[i - 1]);
+        }
+        
+        assertTrue("Morton code of x", Lbvh.mortonCode(1 << 20, 0, 0) == 1L << 62);
+        assertTrue("Morton code of y", Lbvh.mortonCode(0, 1 << 20, 0) == 1L << 61);
+        assertTrue("Morton code of z", Lbvh.mortonCode(0, 0, 1) == 1L);
+        assertTrue("Morton code of the far corner", Lbvh.mortonCode((1 << 21) - 1, (1 << 21) - 1, (1 << 21) - 1)
+                == Long.MAX_VALUE);
+    }
+    
+    @Test
+    /**
+     * An LBVH must give the same answers as the naive search with and without treelet
+     * restructuring, which must not raise its SAH cost; a parallel LBVH build must match
+     * a serial one.
+     */
+    public static void testLbvhMatchesNaive() {
+        Random rnd = new Random(4626);
+        Surface[] scene = randomScene(rnd, 60, 400);
+        
+        Bvh lbvh = new Bvh();
+        lbvh.setBuildStrategy("LBVH");
+        lbvh.build(Arrays.copyOf(scene, scene.length));
+        assertMatchesNaive("LBVH", lbvh, scene, rnd, 2000);
+        
+        Bvh optimized = new Bvh();
+        optimized.setBuildStrategy("lbvh");
+        optimized.setTreeletPasses(3);
+        optimized.build(Arrays.copyOf(scene, scene.length));
+        assertMatchesNaive("LBVH with treelets", optimized, scene, rnd, 2000);
+        assertTrue("Treelets raised the SAH cost from " + lbvh.sahCost() + " to " + optimized.sahCost(),
+                optimized.sahCost() <= lbvh.sahCost());
+        assertTrue("Treelets left surface ranges wrong", rangesNested(optimized.root));
+        
+        FlatBvh flat = new FlatBvh();
+        flat.setBuildStrategy("lbvh");
+        flat.setTreeletPasses(1);
+        flat.build(Arrays.copyOf(scene, scene.length));
+        assertMatchesNaive("FlatBvh (lbvh)", flat, scene, rnd, 500);
+        
+        // All centroids in one place: every Morton code is the same
+        Surface[] same = new Surface[40];
+        for (int i = 0; i < same.length; i++) {
+            Sphere s = new Sphere();
+            s.setCenter(new Vector3(0, 0, 0));
+            s.setRadius(1 + i * 0.01f);
+            same[i] = s;
+        }
+        Bvh stacked = new Bvh();
+        stacked.setBuildStrategy("lbvh");
+        stacked.setSahMaxLeafSize(4);
+        stacked.build(Arrays.copyOf(same, same.length));
+        assertMatchesNaive("LBVH, coincident centroids", stacked, same, rnd, 200);
+        
+        Surface[] large = randomScene(rnd, 3000, 3 * Bvh.PARALLEL_THRESHOLD);
+        Bvh serial = new Bvh();
+        serial.setBuildStrategy("lbvh");
+        serial.setParallelBuild(false);
+        serial.build(Arrays.copyOf(large, large.length));
+        Bvh parallel = new Bvh();
+        parallel.setBuildStrategy("lbvh");
+        parallel.build(Arrays.copyOf(large, large.length));
+        assertTrue("Parallel LBVH build differs from the serial one",
+                Bvh.sameTree(serial.root, parallel.root) && Arrays.equals(serial.getSurfaces(), parallel.getSurfaces()));
+    }
+    
+    @Test
+    /**
+     * A WideBvh of either width must give the same answers as the naive search and
+     * need fewer nodes than the binary tree it was collapsed from has interior nodes.
+     */
+    public static void testWideBvhMatchesNaive() {
+        Random rnd = new Random(4627);
+        Surface[] scene = randomScene(rnd, 60, 400);
+        
+        for (int width : new int[] { 4, 8 }) {
+            for (String strategy : new String[] { "median", "sah" }) {
+                Bvh bvh = new Bvh();
+                bvh.setBuildStrategy(strategy);
+                bvh.build(Arrays.copyOf(scene, scene.length));
+                WideBvh wide = new WideBvh();
+                wide.setWidth(width);
+                wide.collapse(bvh);
+                int interior = countNodes(bvh.root) - countLeaves(bvh.root);
+                assertTrue("WideBvh of width " + width + " has " + wide.getNumNodes() + " nodes for "
+                        + interior + " binary interior nodes", wide.getNumNodes() < interior);
+                assertMatchesNaive("WideBvh (" + width + ", " + strategy + ")", wide, scene, rnd, 1000);
+            }
+        }
+        
+        // A tree that is a single leaf
+        WideBvh small = new WideBvh();
+        small.build(Arrays.copyOf(scene, 3));
+        assertMatchesNaive("WideBvh, one leaf", small, Arrays.copyOf(scene, 3), rnd, 200);
+        
+        WideBvh empty = new WideBvh();
+        empty.build(new Surface[0]);
+        Ray ray = new Ray(new Vector3d(0, 0, 0), new Vector3d(1, 0, 0));
+        ray.start = 0;
+        ray.end = Double.POSITIVE_INFINITY;
+        assertTrue("Empty WideBvh was hit", !empty.intersect(new IntersectionRecord(), ray, false));
+        
+        boolean rejected = false;
+        try {
+            empty.setWidth(3);
+        } catch (IllegalArgumentException e) {
+            rejected = true;
+        }
+        assertTrue("Widths other than 4 and 8 must be rejected", rejected);
+    }
+    
+    @Test
+    /**
+     * Tracing rays as a packet must give every ray the hit it gets on its own, for
+     * coherent packets from one point, parallel packets and scattered rays, and the
+     * interval culling of a packet must never cull a box that one of its rays hits.
+     */
+    public static void testPacketMatchesSingleRays() {
+        Random rnd = new Random(4628);
+        Surface[] scene = randomScene(rnd, 60, 400);
+        Bvh bvh = new Bvh();
+        bvh.setBuildStrategy("sah");
+        bvh.build(Arrays.copyOf(scene, scene.length));
+        NaiveAccelStruct naive = new NaiveAccelStruct();
+        naive.build(scene);
+        
+        RayPacket packet = new RayPacket(64);
+        IntersectionRecord expected = new IntersectionRecord();
+        for (int p = 0; p < 300; p++) {
+            int kind = p % 3;
+            Vector3d eye = new Vector3d(randomPoint(rnd, 15));
+            Vector3d target = new Vector3d(randomPoint(rnd, 8));
+            Vector3d step = new Vector3d(randomPoint(rnd, 0.3f));
+            packet.size = 1 + rnd.nextInt(packet.capacity());
+            for (int i = 0; i < packet.size; i++) {
+                Ray ray = packet.rays[i];
+                Vector3d to = new Vector3d(target).addMultiple(i % 8, step).addMultiple(i / 8, new Vector3d(step.y, step.z, step.x));
+                if (kind == 0) ray.set(eye, to.clone().sub(eye).normalize());
+                else if (kind == 1) ray.set(new Vector3d(to).sub(target).add(eye), target.clone().sub(eye).normalize());
+                else ray.set(new Vector3d(randomPoint(rnd, 15)), new Vector3d(randomPoint(rnd, 10)).sub(eye).normalize());
+                ray.makeOffsetRay();
+            }
+            // Rays of different lengths
+            if (p % 2 == 1) packet.rays[0].makeOffsetSegment(rnd.nextDouble() * 20);
+            
+            bvh.intersect(packet);
+            for (int i = 0; i < packet.size; i++) {
+                Ray ray = packet.rays[i];
+                double end = ray.end;
+                expected.reset();
+                boolean hit = bvh.intersect(expected, new Ray(ray), false);
+                assertTrue("Packet " + p + " disagrees on ray " + i, packet.hit[i] == hit);
+                assertTrue("Packet " + p + " changed the end of ray " + i, ray.end == end);
+                if (hit) {
+                    assertTrue("Packet " + p + " found a different hit on ray " + i,
+                            packet.records[i].t == expected.t && packet.records[i].surface == expected.surface
+                            && vectorsEqual(packet.records[i].location, expected.location));
+                }
+            }
+            
+            naive.intersect(packet);
+            for (int i = 0; i < packet.size; i++) {
+                expected.reset();
+                assertTrue("Default packet intersect disagrees on ray " + i,
+                        packet.hit[i] == bvh.intersect(expected, new Ray(packet.rays[i]), false));
+            }
+            
+            packet.computeBounds();
+            for (int b = 0; b < 20; b++) {
+                Vector3d min = new Vector3d(randomPoint(rnd, 10));
+                BvhNode box = new BvhNode(min, new Vector3d(min).add(new Vector3d(randomPoint(rnd, 2)).abs()), null, null, 0, 0);
+                if (!packet.misses(box.minBound.x, box.minBound.y, box.minBound.z, box.maxBound.x, box.maxBound.y, box.maxBound.z))
+                    continue;
+                for (int i = 0; i < packet.size; i++)
+                    assertTrue("Packet " + p + " culled a box that ray " + i + " hits", !box.intersects(packet.rays[i]));
+            }
+        }
+    }
+    
+    private static int countLeaves(BvhNode node) {
+        if (node.isLeaf()) return 1;
+        return countLeaves(node.child[0]) + countLeaves(node.child[1]);
+    }
+    
+    /** @return true if every interior node covers exactly the surfaces of its two children. */
+    private static boolean rangesNested(BvhNode node) {
+        if (node.isLeaf()) return node.surfaceIndexStart <= node.surfaceIndexEnd;
+        BvhNode l = node.child[0], r = node.child[1];
+        return node.surfaceIndexStart == l.surfaceIndexStart && l.surfaceIndexEnd == r.surfaceIndexStart
+                && r.surfaceIndexEnd == node.surfaceIndexEnd && rangesNested(l) && rangesNested(r);
+    }
+    
+    private static int countNodes(BvhNode node) {
+        if (node.isLeaf()) return 1;
+        return 1 + countNodes(node.child[0]) + countNodes(node.child[1]);
+    }
+    
+    /**
+     * Build a scene of numSpheres small spheres and numTriangles triangles (one mesh)
+     * scattered through the cube [-10, 10]^3.
+     */
+    static Surface[] randomScene(Random rnd, int numSpheres, int numTriangles) {
+        Surface[] surfaces = new Surface[numSpheres + numTriangles];
+        for (int i = 0; i < numSpheres; i++) {
+            Sphere s = new Sphere();
+            s.setCenter(randomPoint(rnd, 10));
+            s.setRadius(0.2f + rnd.nextFloat());
+            surfaces[i] = s;
+        }
+        
+        OBJMesh md = new OBJMesh();
+        Mesh mesh = new Mesh(md);
+        for (int i = 0; i < numTriangles; i++) {
+            Vector3 v0 = randomPoint(rnd, 10);
+            md.positions.add(v0);
+            md.positions.add(v0.clone().add(randomPoint(rnd, 1.5f)));
+            md.positions.add(v0.clone().add(randomPoint(rnd, 1.5f)));
+            OBJFace f = new OBJFace(3, false, false);
+            f.positions[0] = 3 * i;
+            f.positions[1] = 3 * i + 1;
+            f.positions[2] = 3 * i + 2;
+            md.faces.add(f);
+            surfaces[numSpheres + i] = new Triangle(mesh, f, null);
+        }
+        
+        for (Surface s : surfaces) s.computeBoundingBox();
+        return surfaces;
+    }
+    
+    static Vector3 randomPoint(Random rnd, float extent) {
+        return new Vector3((2 * rnd.nextFloat() - 1) * extent,
+                           (2 * rnd.nextFloat() - 1) * extent,
+                           (2 * rnd.nextFloat() - 1) * extent);
+    }
+    
+    /**
+     * Compare first intersections, any intersections and occlusion queries of accel against
+     * a NaiveAccelStruct over the same surfaces for numRays random rays, half of them
+     * segments that end inside the scene.
+     */
+    static void assertMatchesNaive(String name, AccelStruct accel, Surface[] surfaces, Random rnd, int numRays) {
+        NaiveAccelStruct naive = new NaiveAccelStruct();
+        naive.build(surfaces);
+        
+        IntersectionRecord expected = new IntersectionRecord();
+        IntersectionRecord actual = new IntersectionRecord();
+        for (int i = 0; i < numRays; i++) {
+            Vector3d origin = new Vector3d(randomPoint(rnd, 15));
+            Vector3d target = new Vector3d(randomPoint(rnd, 10));
+            Ray ray = new Ray(origin, target.clone().sub(origin).normalize());
+            if (i % 2 == 0) ray.makeOffsetRay();
+            else ray.makeOffsetSegment(origin.dist(target));
+            double end = ray.end;
+            
+            boolean hitExpected = naive.intersect(expected, new Ray(ray), false);
+            boolean hitActual = accel.intersect(actual, ray, false);
+            assertTrue(name + " disagrees with the naive search on ray " + i, hitExpected == hitActual);
+            assertTrue(name + " must restore the ray end on ray " + i, ray.end == end);
+            if (hitExpected) {
+                assertTrue(name + " found a different first hit on ray " + i + ": t = " + actual.t + ", expected " + expected.t,
+                           Math.abs(expected.t - actual.t) < 1e-9);
+                assertTrue(name + " found the wrong surface on ray " + i, expected.surface == actual.surface);
+                assertTrue(name + " found the wrong hit location on ray " + i, vectorsEqual(expected.location, actual.location));
+            }
+            
+            assertTrue(name + " any-intersection query disagrees on ray " + i,
+                       accel.intersect(new IntersectionRecord(), ray, true) == hitExpected);
+            assertTrue(name + " occlusion query disagrees on ray " + i, accel.occluded(ray) == hitExpected);
+            assertTrue("Naive occlusion query disagrees on ray " + i, naive.occluded(ray) == hitExpected);
+            assertTrue(name + " occlusion query changed the ray end on ray " + i, ray.end == end);
+        }
+    }
+    
     // Simple element-wise comparison.
     private static boolean vectorsEqual(Vector3d v0, Vector3d v1) {
         double epsilon = 1e-4;
@@ -527,6 +1118,18 @@ public class BvhTests {
     	testBvhNodeIntersection();
     	System.out.print("Build Tree Test: \n");
     	testBvhTreeCreation();
+    	System.out.print("Bvh Traversal Test: \n");
+    	testBvhMatchesNaive();
+    	testSahBvhMatchesNaive();
+    	testFlatBvhMatchesNaive();
+    	testFinalizeOnlyClosestHit();
+    	testTraversalCounters();
+    	testSavedBvhMatchesFreshBuild();
+    	testParallelBuildMatchesSerial();
+    	testMortonRadixSort();
+    	testLbvhMatchesNaive();
+    	testWideBvhMatchesNaive();
+    	testPacketMatchesSingleRays();
     }
 
 }
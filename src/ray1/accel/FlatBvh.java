@@ -0,0 +1,378 @@
+package ray1.accel;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import ray1.IntersectionRecord;
+import ray1.Ray;
+import ray1.RenderStats;
+import ray1.surface.Surface;
+
+/**
+ * A bounding volume hierarchy stored as flat primitive arrays instead of linked
+ * BvhNode objects. The tree is first built as a Bvh, then its nodes are written out
+ * in depth-first order: the first child of node i is node i+1, and only the index of
+ * the second child has to be stored. Node boxes are kept as floats, rounded outwards
+ * so that they still contain everything the double-precision boxes did.
+ *
+ * A node costs 6 floats and 2 ints plus one byte (33 bytes), against two Vector3d
+ * objects, a child array and the node object itself for a BvhNode.
+ */
+public class FlatBvh implements AccelStruct {
+
+	/** The Bvh used to build the tree before it is flattened; its settings apply. */
+	protected final Bvh builder;
+
+	public void setBuildStrategy(String strategy) { builder.setBuildStrategy(strategy); }
+	public void setSahBins(int bins) { builder.setSahBins(bins); }
+	public void setTraversalCost(float cost) { builder.setTraversalCost(cost); }
+	public void setIntersectionCost(float cost) { builder.setIntersectionCost(cost); }
+	public void setSahMaxLeafSize(int size) { builder.setSahMaxLeafSize(size); }
+	public void setTreeletPasses(int passes) { builder.setTreeletPasses(passes); }
+	public void setParallelBuild(boolean parallel) { builder.setParallelBuild(parallel); }
+
+	/** The surfaces in tree order; a leaf covers a contiguous range of them. */
+	private Surface[] surfaces;
+
+	/** Node boxes: minx, miny, minz, maxx, maxy, maxz for each node. */
+	private float[] bounds;
+
+	/** For a leaf the index of its first surface; for an interior node the index of its second child. */
+	private int[] offset;
+
+	/** The number of surfaces in a leaf, or 0 for an interior node. */
+	private int[] count;
+
+	/**
+	 * The split axis of an interior node. The children are ordered so that the first
+	 * one has the lower minimum along this axis.
+	 */
+	private byte[] axis;
+
+	/** The number of nodes in the tree. */
+	private int numNodes;
+
+	/** The traversal stack size needed for this tree. */
+	private int stackSize = 1;
+
+	private final ThreadLocal<int[]> traversalStack = new ThreadLocal<int[]>() {
+		protected int[] initialValue() {
+			return new int[stackSize];
+		}
+	};
+	private final ThreadLocal<IntersectionRecord> scratchRecord = new ThreadLocal<IntersectionRecord>() {
+		protected IntersectionRecord initialValue() {
+			return new IntersectionRecord();
+		}
+	};
+
+	public FlatBvh() {
+		this(new Bvh());
+	}
+
+	private FlatBvh(Bvh builder) {
+		this.builder = builder;
+	}
+
+	@Override
+	public void build(Surface[] surfaces) {
+		if (BvhCache.isEnabled()) {
+			buildCached(surfaces);
+			return;
+		}
+		builder.build(surfaces);
+		flatten(builder);
+	}
+
+	/**
+	 * Build through the BvhCache, which for a FlatBvh holds the flattened arrays, so
+	 * that a loaded tree needs neither the Bvh build nor any BvhNodes.
+	 */
+	private void buildCached(Surface[] surfaces) {
+		builder.computeBoundingBoxes(surfaces);
+		long hash = builder.geometryHash(surfaces);
+		Surface[] input = surfaces.clone();
+		long startTime = System.nanoTime();
+		String loaded = load(hash, surfaces);
+		if (loaded != null) {
+			System.out.println("FlatBvh: loaded " + numNodes + " nodes over " + surfaces.length + " surfaces from "
+					+ loaded + " in " + ((System.nanoTime() - startTime) / 1e9) + " seconds");
+			if (!BvhCache.getValidate()) return;
+
+			FlatBvh fresh = new FlatBvh(builder.withSameSettings());
+			fresh.builder.buildUncached(input.clone());
+			fresh.flatten(fresh.builder);
+			if (Arrays.equals(this.surfaces, fresh.surfaces) && Arrays.equals(bounds, fresh.bounds)
+					&& Arrays.equals(offset, fresh.offset) && Arrays.equals(count, fresh.count)
+					&& Arrays.equals(axis, fresh.axis)) {
+				System.out.println("FlatBvh: the loaded tree matches a fresh build");
+				return;
+			}
+			System.err.println("Warning: " + loaded + " does not match a fresh build; using the fresh tree");
+			System.arraycopy(fresh.surfaces, 0, surfaces, 0, surfaces.length);
+			this.surfaces = surfaces;
+			bounds = fresh.bounds;
+			offset = fresh.offset;
+			count = fresh.count;
+			axis = fresh.axis;
+			numNodes = fresh.numNodes;
+			stackSize = fresh.stackSize;
+		} else {
+			builder.buildUncached(surfaces);
+			flatten(builder);
+		}
+		save(hash, input);
+	}
+
+	/** The bytes save() writes per node. */
+	private static final int NODE_BYTES = 6 * 4 + 2 * 4 + 1;
+
+	/**
+	 * Save the flattened arrays with BvhCache:
+	 *   float bounds[6 * nodes], int offset[nodes], int count[nodes], byte axis[nodes]
+	 *
+	 * @param input the surfaces in the order build() received them
+	 */
+	private void save(long hash, Surface[] input) {
+		ByteBuffer buf = BvhCache.create(hash, BvhCache.order(input, surfaces), numNodes, (long) NODE_BYTES * numNodes);
+		if (buf == null) return;
+		BvhCache.putFloats(buf, bounds);
+		BvhCache.putInts(buf, offset);
+		BvhCache.putInts(buf, count);
+		buf.put(axis);
+		BvhCache.write("FlatBvh", hash, buf);
+	}
+
+	/**
+	 * Load the arrays saved for hash, putting surfaces into their order.
+	 *
+	 * @return the file the tree was loaded from, or null if there was no usable one
+	 */
+	private String load(long hash, Surface[] surfaces) {
+		BvhCache.Header header = BvhCache.open("FlatBvh", hash, surfaces.length, NODE_BYTES);
+		if (header == null) return null;
+		int n = header.numNodes;
+		float[] bounds;
+		int[] offset, count;
+		byte[] axis;
+		int[] depth = new int[n];
+		try {
+			ByteBuffer buf = header.buffer;
+			bounds = BvhCache.getFloats(buf, 6 * n);
+			offset = BvhCache.getInts(buf, n);
+			count = BvhCache.getInts(buf, n);
+			axis = BvhCache.getBytes(buf, n);
+
+			// Children come after their parent, so check the nodes back to front
+			for (int i = n - 1; i >= 0; i--) {
+				if (count[i] > 0) {
+					if (offset[i] < 0 || offset[i] > surfaces.length - count[i])
+						throw new IllegalStateException("bad surface range at node " + i);
+				} else if (count[i] < 0 || offset[i] <= i + 1 || offset[i] >= n || axis[i] < 0 || axis[i] > 2) {
+					throw new IllegalStateException("bad interior node " + i);
+				} else {
+					depth[i] = 1 + Math.max(depth[i + 1], depth[offset[i]]);
+				}
+			}
+		} catch (RuntimeException e) {
+			System.err.println("Warning: ignoring unreadable BVH file " + header.path + ": " + e);
+			return null;
+		}
+		BvhCache.applyOrder(surfaces, header.order);
+		this.surfaces = surfaces;
+		this.bounds = bounds;
+		this.offset = offset;
+		this.count = count;
+		this.axis = axis;
+		numNodes = n;
+		stackSize = n > 0 ? depth[0] + 2 : 1;
+		return header.path.toString();
+	}
+
+	/**
+	 * Replace the contents of this structure with a flattened copy of an already built
+	 * Bvh. The Bvh is not modified and can be discarded afterwards.
+	 *
+	 * @param bvh a built Bvh
+	 */
+	public void flatten(Bvh bvh) {
+		surfaces = bvh.getSurfaces();
+		numNodes = 0;
+		stackSize = 1;
+		if (bvh.root == null || surfaces.length == 0) {
+			bounds = new float[0];
+			offset = count = new int[0];
+			axis = new byte[0];
+			return;
+		}
+
+		int n = countNodes(bvh.root);
+		bounds = new float[6 * n];
+		offset = new int[n];
+		count = new int[n];
+		axis = new byte[n];
+		stackSize = flatten(bvh.root, 0) + 2;
+
+		System.out.println("FlatBvh: " + numNodes + " nodes in " + (n * 33 / 1024) + " KB");
+	}
+
+	private int countNodes(BvhNode node) {
+		if (node.isLeaf()) return 1;
+		return 1 + countNodes(node.child[0]) + countNodes(node.child[1]);
+	}
+
+	/**
+	 * Write node and its subtree out in depth-first order.
+	 *
+	 * @return the depth of the subtree below node
+	 */
+	private int flatten(BvhNode node, int depth) {
+		int i = numNodes++;
+		bounds[6*i]   = roundDown(node.minBound.x);
+		bounds[6*i+1] = roundDown(node.minBound.y);
+		bounds[6*i+2] = roundDown(node.minBound.z);
+		bounds[6*i+3] = roundUp(node.maxBound.x);
+		bounds[6*i+4] = roundUp(node.maxBound.y);
+		bounds[6*i+5] = roundUp(node.maxBound.z);
+
+		if (node.isLeaf()) {
+			offset[i] = node.surfaceIndexStart;
+			count[i] = node.surfaceIndexEnd - node.surfaceIndexStart;
+			return depth;
+		}
+
+		BvhNode first = node.child[0], second = node.child[1];
+		if (second.minBound.get(node.axis) < first.minBound.get(node.axis)) {
+			first = node.child[1];
+			second = node.child[0];
+		}
+		axis[i] = (byte) node.axis;
+		int d0 = flatten(first, depth + 1);
+		offset[i] = numNodes;
+		int d1 = flatten(second, depth + 1);
+		return Math.max(d0, d1);
+	}
+
+	static float roundDown(double v) {
+		float f = (float) v;
+		return f > v ? Math.nextDown(f) : f;
+	}
+
+	static float roundUp(double v) {
+		float f = (float) v;
+		return f < v ? Math.nextUp(f) : f;
+	}
+
+	/**
+	 * Set outRecord to the first intersection of ray with the scene. Return true
+	 * if there was an intersection and false otherwise. If no intersection was
+	 * found outRecord is unchanged.
+	 *
+	 * Traversal works like Bvh.intersect, but node boxes are tested directly from the
+	 * bounds array and clipped to [rayIn.start, rayIn.end].
+	 *
+	 * @param outRecord the output IntersectionRecord
+	 * @param ray the ray to intersect
+	 * @param anyIntersection if true, will immediately return when found an intersection
+	 * @return true if and intersection is found.
+	 */
+	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection) {
+		if (numNodes == 0) return false;
+
+		IntersectionRecord record = outRecord;
+		if (record == null && !anyIntersection) record = scratchRecord.get();
+
+		int[] stack = traversalStack.get();
+		if (stack.length < stackSize) {
+			stack = new int[stackSize];
+			traversalStack.set(stack);
+		}
+
+		double ox = rayIn.origin.x, oy = rayIn.origin.y, oz = rayIn.origin.z;
+		double dx = rayIn.direction.x, dy = rayIn.direction.y, dz = rayIn.direction.z;
+		rayIn.updateInverseDirection();
+		double ix = rayIn.invDirection.x, iy = rayIn.invDirection.y, iz = rayIn.invDirection.z;
+
+		double end = rayIn.end;
+		boolean hit = false;
+		int visited = 0, tests = 0;
+		int top = 0;
+		stack[top++] = 0;
+		traversal:
+		while (top > 0) {
+			int i = stack[--top];
+			visited++;
+			if (!intersectsBox(i, ox, oy, oz, ix, iy, iz, rayIn.start, rayIn.end)) continue;
+
+			int n = count[i];
+			if (n > 0) {
+				for (int s = offset[i], e = offset[i] + n; s < e; s++) {
+					tests++;
+					double t = surfaces[s].intersectT(rayIn, record);
+					if (!(t <= rayIn.end)) continue;
+					hit = true;
+					if (anyIntersection) break traversal;
+					rayIn.end = t;
+				}
+			} else {
+				// The first child is the lower one along the split axis
+				double d = axis[i] == 0 ? dx : axis[i] == 1 ? dy : dz;
+				if (d >= 0) {
+					stack[top++] = offset[i];
+					stack[top++] = i + 1;
+				} else {
+					stack[top++] = i + 1;
+					stack[top++] = offset[i];
+				}
+			}
+		}
+
+		rayIn.end = end;
+		RenderStats.Counters counters = RenderStats.local();
+		counters.nodesVisited += visited;
+		counters.primitiveTests += tests;
+		if (hit && outRecord != null) outRecord.surface.finalizeRecord(outRecord, rayIn);
+		return hit;
+	}
+
+	/**
+	 * Test whether any surface blocks the ray. Without a record and with
+	 * anyIntersection set, intersect() already writes nothing and stops at the first
+	 * hit, and the near-first order costs only a sign test per node here.
+	 *
+	 * @param rayIn the ray to test
+	 * @return true if any surface is hit within [rayIn.start, rayIn.end]
+	 */
+	public boolean occluded(Ray rayIn) {
+		return intersect(null, rayIn, true);
+	}
+
+	/**
+	 * Slab test of node i against the ray segment [tStart, tEnd]. NaNs from a ray
+	 * lying in a slab plane fail every comparison and so leave the interval unchanged.
+	 */
+	private boolean intersectsBox(int i, double ox, double oy, double oz,
+			double ix, double iy, double iz, double tStart, double tEnd) {
+		int b = 6 * i;
+		double t0 = (bounds[b] - ox) * ix, t1 = (bounds[b+3] - ox) * ix;
+		if (t0 > t1) { double t = t0; t0 = t1; t1 = t; }
+		if (t0 > tStart) tStart = t0;
+		if (t1 < tEnd) tEnd = t1;
+		if (tStart > tEnd) return false;
+
+		t0 = (bounds[b+1] - oy) * iy; t1 = (bounds[b+4] - oy) * iy;
+		if (t0 > t1) { double t = t0; t0 = t1; t1 = t; }
+		if (t0 > tStart) tStart = t0;
+		if (t1 < tEnd) tEnd = t1;
+		if (tStart > tEnd) return false;
+
+		t0 = (bounds[b+2] - oz) * iz; t1 = (bounds[b+5] - oz) * iz;
+		if (t0 > t1) { double t = t0; t0 = t1; t1 = t; }
+		if (t0 > tStart) tStart = t0;
+		if (t1 < tEnd) tEnd = t1;
+		return tStart <= tEnd;
+	}
+
+	/** @return the number of nodes in the flattened tree. */
+	public int getNumNodes() { return numNodes; }
+}
@@ -0,0 +1,149 @@
+package ray1.accel;
+
+/**
+ * The ordering behind a linear BVH (LBVH) build. Every primitive's centroid is
+ * quantized to 21 bits per axis within the bounds of all the centroids, and the bits
+ * are interleaved into a 63-bit Morton code (x, y, z from the most significant bit
+ * down), so that sorting by code lays the primitives out along a Z-order curve. The
+ * codes are sorted with an LSD radix sort on primitive arrays, which takes a fixed
+ * number of O(n) passes instead of a comparison sort.
+ *
+ * In the sorted order, a range of primitives is split where the highest bit in which
+ * its first and last codes differ changes from 0 to 1, found by binary search; that
+ * is the plane of the coarsest Morton grid cell the range straddles. Each split costs
+ * O(log n) and a tree has O(n) nodes, with no sorting or partitioning after the first
+ * sort, which is what makes the build fast. Ranges whose codes are all equal are
+ * halved. Nothing changes after construction, so the subtrees of a parallel build can
+ * share one Lbvh.
+ */
+class Lbvh {
+
+	/** Bits per axis of a Morton code. */
+	static final int BITS = 21;
+
+	/** The Morton codes of the primitives, in sorted order. */
+	final long[] codes;
+
+	/** order[i] is the original index of the primitive with the i-th smallest code. */
+	final int[] order;
+
+	/**
+	 * Compute and sort the Morton codes of the primitives.
+	 *
+	 * @param centroids 3 values per primitive
+	 */
+	Lbvh(double[] centroids) {
+		int n = centroids.length / 3;
+		double[] min = { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY };
+		double[] max = { Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY };
+		for (int i = 0; i < n; i++) {
+			for (int a = 0; a < 3; a++) {
+				min[a] = Math.min(min[a], centroids[3 * i + a]);
+				max[a] = Math.max(max[a], centroids[3 * i + a]);
+			}
+		}
+		double[] scale = new double[3];
+		for (int a = 0; a < 3; a++) {
+			double extent = max[a] - min[a];
+			scale[a] = extent > 0 ? ((1 << BITS) - 1) / extent : 0;
+		}
+
+		codes = new long[n];
+		order = new int[n];
+		for (int i = 0; i < n; i++) {
+			codes[i] = mortonCode(
+					(int) ((centroids[3 * i] - min[0]) * scale[0]),
+					(int) ((centroids[3 * i + 1] - min[1]) * scale[1]),
+					(int) ((centroids[3 * i + 2] - min[2]) * scale[2]));
+			order[i] = i;
+		}
+		radixSort(codes, order);
+	}
+
+	/**
+	 * @return the Morton code of grid cell (x, y, z), each in [0, 2^BITS)
+	 */
+	static long mortonCode(int x, int y, int z) {
+		return (spreadBits(x) << 2) | (spreadBits(y) << 1) | spreadBits(z);
+	}
+
+	/** Move bit i of the low BITS bits of v to bit 3i. */
+	static long spreadBits(int v) {
+		long x = v & 0x1FFFFFL;
+		x = (x | x << 32) & 0x1F00000000FFFFL;
+		x = (x | x << 16) & 0x1F0000FF0000FFL;
+		x = (x | x << 8) & 0x100F00F00F00F00FL;
+		x = (x | x << 4) & 0x10C30C30C30C30C3L;
+		x = (x | x << 2) & 0x1249249249249249L;
+		return x;
+	}
+
+	/**
+	 * Sort keys, which must not be negative, into ascending order, and apply the same
+	 * permutation to values. The sort is stable: an LSD radix sort on 8-bit digits,
+	 * skipping the digits that are the same in every key.
+	 */
+	static void radixSort(long[] keys, int[] values) {
+		int n = keys.length;
+		long[] keyBuffer = new long[n];
+		int[] valueBuffer = new int[n];
+		int[] count = new int[256];
+		long[] fromKeys = keys, toKeys = keyBuffer;
+		int[] fromValues = values, toValues = valueBuffer;
+		for (int shift = 0; shift < 64; shift += 8) {
+			java.util.Arrays.fill(count, 0);
+			for (int i = 0; i < n; i++) count[(int) (fromKeys[i] >>> shift) & 0xFF]++;
+			if (n == 0 || count[(int) (fromKeys[0] >>> shift) & 0xFF] == n) continue;
+			for (int d = 0, sum = 0; d < 256; d++) {
+				int c = count[d];
+				count[d] = sum;
+				sum += c;
+			}
+			for (int i = 0; i < n; i++) {
+				int p = count[(int) (fromKeys[i] >>> shift) & 0xFF]++;
+				toKeys[p] = fromKeys[i];
+				toValues[p] = fromValues[i];
+			}
+			long[] k = fromKeys; fromKeys = toKeys; toKeys = k;
+			int[] v = fromValues; fromValues = toValues; toValues = v;
+		}
+		if (fromKeys != keys) {
+			System.arraycopy(fromKeys, 0, keys, 0, n);
+			System.arraycopy(fromValues, 0, values, 0, n);
+		}
+	}
+
+	/**
+	 * Find where to split the sorted primitives [start, end), which must hold at least
+	 * two. Ranges whose codes are all equal are halved.
+	 *
+	 * @return mid, so that the children hold [start, mid) and [mid, end)
+	 */
+	int split(int start, int end) {
+		long first = codes[start], last = codes[end - 1];
+		if (first == last) return (start + end) >>> 1;
+		// The highest differing bit is 0 in a prefix of the range and 1 in the rest
+		int bit = highestDifferingBit(first, last);
+		int lo = start, hi = end - 1;
+		while (hi - lo > 1) {
+			int m = (lo + hi) >>> 1;
+			if ((codes[m] >>> bit & 1) == 0) lo = m;
+			else hi = m;
+		}
+		return hi;
+	}
+
+	/**
+	 * @return the axis (0 = x, 1 = y, 2 = z) of the plane split() divides [start, end)
+	 * along, or -1 if the codes in the range are all equal
+	 */
+	int axis(int start, int end) {
+		long first = codes[start], last = codes[end - 1];
+		if (first == last) return -1;
+		return 2 - highestDifferingBit(first, last) % 3;
+	}
+
+	private static int highestDifferingBit(long a, long b) {
+		return 63 - Long.numberOfLeadingZeros(a ^ b);
+	}
+}
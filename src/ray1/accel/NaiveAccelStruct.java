@@ -2,6 +2,7 @@ package ray1.accel;
 
 import ray1.IntersectionRecord;
 import ray1.Ray;
+import ray1.RenderStats;
 import ray1.surface.Surface;
 /**
  * Provide a fake AABB that performs a linear search.
@@ -27,22 +28,38 @@ public class NaiveAccelStruct implements AccelStruct {
 	 */
 	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection) {
 		boolean ret = false;
-		IntersectionRecord tmp = new IntersectionRecord();
-		Ray ray = new Ray(rayIn.origin, rayIn.direction);
-		ray.start = rayIn.start;
-		ray.end = rayIn.end;
+		IntersectionRecord record = outRecord;
+		if (record == null && !anyIntersection) record = new IntersectionRecord();
+		double end = rayIn.end;
+		int tests = 0;
 		for(int i = 0; i < surfaces.length; i++) {
-			if(surfaces[i].intersect(tmp, ray) && tmp.t < ray.end ) {
-				if(anyIntersection) return true;
+			tests++;
+			double t = surfaces[i].intersectT(rayIn, record);
+			if(t <= rayIn.end) {
 				ret = true;
-				ray.end = tmp.t;
-				if(outRecord != null)
-					outRecord.set(tmp);
+				if(anyIntersection) break;
+				rayIn.end = t;
 			}
 		}
+		rayIn.end = end;
+		RenderStats.local().primitiveTests += tests;
+		if(ret && outRecord != null)
+			outRecord.surface.finalizeRecord(outRecord, rayIn);
 		return ret;
 	}
 	
+	@Override
+	public boolean occluded(Ray rayIn) {
+		for(int i = 0; i < surfaces.length; i++) {
+			if(surfaces[i].intersectT(rayIn, null) <= rayIn.end) {
+				RenderStats.local().primitiveTests += i + 1;
+				return true;
+			}
+		}
+		RenderStats.local().primitiveTests += surfaces.length;
+		return false;
+	}
+	
 	@Override
 	public void build(Surface[] surfaces) {
 		this.surfaces = surfaces;
@@ -0,0 +1,314 @@
+package ray1.accel;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import ray1.Ray;
+import ray1.RenderStats;
+
+/**
+ * A flat bounding volume hierarchy over primitives that are not Surfaces, such as the
+ * triangles of a packed mesh. The owner supplies the primitive boxes to build it and
+ * a PrimitiveIntersector to test primitives during traversal; the tree itself only
+ * deals in primitive indices.
+ *
+ * The tree is built with the binned SAH and stored in the same depth-first layout as
+ * FlatBvh. Building permutes the primitives so that every leaf covers a contiguous
+ * range of them; getPrimitiveOrder() reports the permutation, and the owner must
+ * rearrange its primitive data to match before intersecting.
+ */
+public class PrimitiveBvh {
+
+	/**
+	 * Ray test for the primitives of a PrimitiveBvh.
+	 */
+	public interface PrimitiveIntersector {
+		/**
+		 * @param primitive the index of the primitive, in tree order
+		 * @param ray the ray to test
+		 * @return the distance at which ray hits the primitive, if that lies within
+		 * [ray.start, ray.end]; otherwise Double.NaN
+		 */
+		double intersect(int primitive, Ray ray);
+	}
+
+	/** The default number of SAH bins, cost ratio and leaf size for primitive trees. */
+	public static final int DEFAULT_BINS = 16;
+	public static final float DEFAULT_TRAVERSAL_COST = 1.0f;
+	public static final int DEFAULT_MAX_LEAF_SIZE = 4;
+
+	/** Node boxes: minx, miny, minz, maxx, maxy, maxz for each node. */
+	private float[] bounds;
+
+	/** For a leaf the index of its first primitive; for an interior node the index of its second child. */
+	private int[] offset;
+
+	/** The number of primitives in a leaf, or 0 for an interior node. */
+	private int[] count;
+
+	/**
+	 * The split axis of an interior node, plus SECOND_IS_LOWER if its second child
+	 * has the lower minimum along that axis.
+	 */
+	private byte[] axis;
+	private static final int SECOND_IS_LOWER = 4;
+
+	private int numNodes;
+	private final int numPrimitives;
+
+	/** order[i] is the original index of the primitive at position i. Dropped after the owner has read it. */
+	private int[] order;
+
+	private final int stackSize;
+	private final ThreadLocal<int[]> traversalStack = new ThreadLocal<int[]>() {
+		protected int[] initialValue() {
+			return new int[stackSize];
+		}
+	};
+
+	/**
+	 * Build a tree over primitives with the given boxes and centroids, using the default
+	 * SAH settings.
+	 *
+	 * @param boxes 6 values per primitive: minx, miny, minz, maxx, maxy, maxz. The array
+	 * is permuted during the build.
+	 * @param centroids 3 values per primitive, permuted likewise
+	 */
+	public PrimitiveBvh(double[] boxes, double[] centroids) {
+		numPrimitives = centroids.length / 3;
+		if (numPrimitives == 0) {
+			bounds = new float[0];
+			offset = count = order = new int[0];
+			axis = new byte[0];
+			stackSize = 1;
+			return;
+		}
+
+		int maxNodes = 2 * numPrimitives - 1;
+		bounds = new float[6 * maxNodes];
+		offset = new int[maxNodes];
+		count = new int[maxNodes];
+		axis = new byte[maxNodes];
+		BinnedSah sah = new BinnedSah(boxes, centroids, DEFAULT_BINS, DEFAULT_TRAVERSAL_COST, 1.0f, DEFAULT_MAX_LEAF_SIZE);
+		stackSize = build(sah, 0, numPrimitives, 0) + 2;
+		order = sah.order;
+
+		bounds = Arrays.copyOf(bounds, 6 * numNodes);
+		offset = Arrays.copyOf(offset, numNodes);
+		count = Arrays.copyOf(count, numNodes);
+		axis = Arrays.copyOf(axis, numNodes);
+	}
+
+	/**
+	 * Reload a tree saved with writeTo. The owner's primitives must already be in the
+	 * tree's order, as they were when it was saved.
+	 *
+	 * @param in a buffer positioned at the saved tree; it is left just past it
+	 * @return the tree, or null if the saved data does not fit in or does not describe a
+	 * well formed tree
+	 */
+	public static PrimitiveBvh readFrom(ByteBuffer in) {
+		if (in.remaining() < 12) return null;
+		int numNodes = in.getInt(), numPrimitives = in.getInt(), stackSize = in.getInt();
+		if (numNodes < 0 || numPrimitives < 0 || 33L * numNodes + padding(numNodes) > in.remaining()) return null;
+		PrimitiveBvh bvh = new PrimitiveBvh(in, numNodes, numPrimitives, stackSize);
+		return bvh.isWellFormed() ? bvh : null;
+	}
+
+	private PrimitiveBvh(ByteBuffer in, int numNodes, int numPrimitives, int stackSize) {
+		this.numNodes = numNodes;
+		this.numPrimitives = numPrimitives;
+		this.stackSize = stackSize;
+		bounds = new float[6 * numNodes];
+		offset = new int[numNodes];
+		count = new int[numNodes];
+		axis = new byte[numNodes];
+		in.asFloatBuffer().get(bounds);
+		in.position(in.position() + 4 * bounds.length);
+		in.asIntBuffer().get(offset);
+		in.position(in.position() + 4 * numNodes);
+		in.asIntBuffer().get(count);
+		in.position(in.position() + 4 * numNodes);
+		in.get(axis);
+		in.position(in.position() + padding(numNodes));
+	}
+
+	/**
+	 * Check a reloaded tree before anything traverses it: every child must come after
+	 * its parent, every leaf must cover primitives that exist, and the traversal stack
+	 * must be deep enough for the longest path.
+	 */
+	private boolean isWellFormed() {
+		if (numNodes == 0) return numPrimitives == 0;
+		int[] depth = new int[numNodes];
+		int maxDepth = 0;
+		for (int i = 0; i < numNodes; i++) {
+			maxDepth = Math.max(maxDepth, depth[i]);
+			if (count[i] > 0) {
+				if (offset[i] < 0 || offset[i] > numPrimitives - count[i]) return false;
+			} else {
+				int second = offset[i];
+				if (count[i] < 0 || second <= i + 1 || second >= numNodes) return false;
+				depth[i + 1] = Math.max(depth[i + 1], depth[i] + 1);
+				depth[second] = Math.max(depth[second], depth[i] + 1);
+			}
+		}
+		return stackSize >= maxDepth + 2 && stackSize <= numNodes + 2;
+	}
+
+	/** @return the number of bytes writeTo will write. */
+	public int getSerializedSize() {
+		return 12 + 33 * numNodes + padding(numNodes);
+	}
+
+	/**
+	 * Save the tree: its size, then the node arrays, padded to a multiple of 4 bytes
+	 * so that whatever follows stays aligned. The byte order is that of out.
+	 */
+	public void writeTo(ByteBuffer out) {
+		out.putInt(numNodes);
+		out.putInt(numPrimitives);
+		out.putInt(stackSize);
+		out.asFloatBuffer().put(bounds);
+		out.position(out.position() + 4 * bounds.length);
+		out.asIntBuffer().put(offset);
+		out.position(out.position() + 4 * numNodes);
+		out.asIntBuffer().put(count);
+		out.position(out.position() + 4 * numNodes);
+		out.put(axis);
+		for (int i = padding(numNodes); i > 0; i--) out.put((byte) 0);
+	}
+
+	private static int padding(int numBytes) {
+		return (4 - numBytes % 4) % 4;
+	}
+
+	/**
+	 * Write the subtree for primitives [start, end) in depth-first order.
+	 *
+	 * @return the depth of the subtree
+	 */
+	private int build(BinnedSah sah, int start, int end, int depth) {
+		int i = numNodes++;
+		int mid = sah.split(start, end);
+		double[] b = sah.bound;
+		for (int k = 0; k < 3; k++) {
+			bounds[6*i+k] = roundDown(b[k]);
+			bounds[6*i+k+3] = roundUp(b[k+3]);
+		}
+		if (mid < 0) {
+			offset[i] = start;
+			count[i] = end - start;
+			return depth;
+		}
+
+		int a = sah.axis;
+		int d0 = build(sah, start, mid, depth + 1);
+		int second = numNodes;
+		int d1 = build(sah, mid, end, depth + 1);
+		offset[i] = second;
+		axis[i] = (byte) (bounds[6*second+a] < bounds[6*(i+1)+a] ? a | SECOND_IS_LOWER : a);
+		return Math.max(d0, d1);
+	}
+
+	private static float roundDown(double v) {
+		float f = (float) v;
+		return f > v ? Math.nextDown(f) : f;
+	}
+
+	private static float roundUp(double v) {
+		float f = (float) v;
+		return f < v ? Math.nextUp(f) : f;
+	}
+
+	/**
+	 * @return order, where order[i] is the original index of the primitive the tree
+	 * now expects at position i. The owner should rearrange its data accordingly.
+	 */
+	public int[] getPrimitiveOrder() { return order; }
+
+	/** Release the primitive order once the owner has applied it. */
+	public void clearPrimitiveOrder() { order = null; }
+
+	public int getNumNodes() { return numNodes; }
+	public int getNumPrimitives() { return numPrimitives; }
+
+	/** @return the approximate memory used by the tree, in bytes. */
+	public long getMemoryBytes() {
+		return 33L * numNodes;
+	}
+
+	/**
+	 * Find the closest primitive the ray hits within [ray.start, ray.end], or any hit
+	 * if anyIntersection is set. ray.end is shrunk to each hit while traversing and
+	 * restored before returning.
+	 *
+	 * @param ray the ray to intersect
+	 * @param primitives the test for individual primitives
+	 * @param anyIntersection if true, return as soon as any primitive is hit
+	 * @return the (tree order) index of the hit primitive, or -1 if there is none
+	 */
+	public int intersect(Ray ray, PrimitiveIntersector primitives, boolean anyIntersection) {
+		if (numNodes == 0) return -1;
+
+		int[] stack = traversalStack.get();
+		ray.updateInverseDirection();
+		double ox = ray.origin.x, oy = ray.origin.y, oz = ray.origin.z;
+		double ix = ray.invDirection.x, iy = ray.invDirection.y, iz = ray.invDirection.z;
+
+		double end = ray.end;
+		int hit = -1;
+		int visited = 0, tests = 0;
+		int top = 0;
+		stack[top++] = 0;
+		traversal:
+		while (top > 0) {
+			int i = stack[--top];
+			visited++;
+			int b = 6 * i;
+			double tEnter = ray.start, tExit = ray.end;
+			double t0 = (bounds[b] - ox) * ix, t1 = (bounds[b+3] - ox) * ix;
+			if (t0 > t1) { double t = t0; t0 = t1; t1 = t; }
+			if (t0 > tEnter) tEnter = t0;
+			if (t1 < tExit) tExit = t1;
+			t0 = (bounds[b+1] - oy) * iy; t1 = (bounds[b+4] - oy) * iy;
+			if (t0 > t1) { double t = t0; t0 = t1; t1 = t; }
+			if (t0 > tEnter) tEnter = t0;
+			if (t1 < tExit) tExit = t1;
+			t0 = (bounds[b+2] - oz) * iz; t1 = (bounds[b+5] - oz) * iz;
+			if (t0 > t1) { double t = t0; t0 = t1; t1 = t; }
+			if (t0 > tEnter) tEnter = t0;
+			if (t1 < tExit) tExit = t1;
+			if (tEnter > tExit) continue;
+
+			int n = count[i];
+			if (n > 0) {
+				for (int p = offset[i], e = offset[i] + n; p < e; p++) {
+					tests++;
+					double t = primitives.intersect(p, ray);
+					if (!(t <= ray.end)) continue;
+					hit = p;
+					if (anyIntersection) break traversal;
+					ray.end = t;
+				}
+			} else {
+				// Visit the child on the near side of the split first
+				int a = axis[i] & 3;
+				double d = a == 0 ? ray.direction.x : a == 1 ? ray.direction.y : ray.direction.z;
+				if ((d >= 0) != ((axis[i] & SECOND_IS_LOWER) != 0)) {
+					stack[top++] = offset[i];
+					stack[top++] = i + 1;
+				} else {
+					stack[top++] = i + 1;
+					stack[top++] = offset[i];
+				}
+			}
+		}
+
+		ray.end = end;
+		RenderStats.Counters counters = RenderStats.local();
+		counters.nodesVisited += visited;
+		counters.primitiveTests += tests;
+		return hit;
+	}
+}
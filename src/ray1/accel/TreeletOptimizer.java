@@ -0,0 +1,227 @@
+package ray1.accel;
+
+import java.util.IdentityHashMap;
+
+import ray1.surface.Surface;
+
+/**
+ * Treelet restructuring (Karras and Aila, "Fast Parallel Construction of High-Quality
+ * Bounding Volume Hierarchies", 2013), which improves the SAH cost of a finished tree,
+ * typically one built quickly by the LBVH builder.
+ *
+ * A treelet is a node together with the nodes below it found by repeatedly opening the
+ * interior treelet leaf with the largest box, until it has MAX_LEAVES leaves. Every
+ * binary tree over those leaves is searched with dynamic programming over subsets of
+ * them: the best tree over a set S costs
+ *   traversalCost * area(S) + min over splits of S into P and S - P of cost(P) + cost(S - P)
+ * and if it beats the current treelet, the treelet's interior nodes are rewired into
+ * it. Each pass visits every interior node bottom-up, so a treelet's leaves are
+ * already optimized when it is. Costs are those of Bvh.sahCost(), before dividing by
+ * the root area.
+ *
+ * Rewiring moves subtrees, so afterwards the surfaces are rearranged to make every
+ * subtree cover a contiguous range of them again.
+ */
+class TreeletOptimizer {
+
+	/** The number of leaves of a treelet; the search takes 3^MAX_LEAVES steps. */
+	static final int MAX_LEAVES = 7;
+
+	private final float traversalCost, intersectionCost;
+
+	/** The SAH cost of every subtree visited in the current pass. */
+	private final IdentityHashMap<BvhNode, Double> costs = new IdentityHashMap<BvhNode, Double>();
+
+	// Scratch space for one treelet
+	private final BvhNode[] leaves = new BvhNode[MAX_LEAVES];
+	private final BvhNode[] interior = new BvhNode[MAX_LEAVES - 1];
+	private final double[] area = new double[1 << MAX_LEAVES];
+	private final double[] bestCost = new double[1 << MAX_LEAVES];
+	private final int[] bestSplit = new int[1 << MAX_LEAVES];
+	private final double[] box = new double[6];
+	private int numLeaves, numInterior, nextInterior;
+
+	/** The number of treelets rewired so far. */
+	int restructured;
+
+	TreeletOptimizer(float traversalCost, float intersectionCost) {
+		this.traversalCost = traversalCost;
+		this.intersectionCost = intersectionCost;
+	}
+
+	/**
+	 * Run passes of treelet restructuring over the tree at root, then rearrange surfaces
+	 * so that every subtree covers a contiguous range. The root stays the root.
+	 */
+	void optimize(BvhNode root, Surface[] surfaces, int passes) {
+		if (root == null || root.isLeaf()) return;
+		for (int pass = 0; pass < passes; pass++) {
+			int before = restructured;
+			costs.clear();
+			visit(root);
+			if (restructured == before) break;
+		}
+		costs.clear();
+		relayout(root, surfaces.clone(), surfaces, 0);
+	}
+
+	/** Optimize the subtree at node bottom-up and return its cost. */
+	private double visit(BvhNode node) {
+		double cost;
+		if (node.isLeaf()) {
+			cost = intersectionCost * area(node) * (node.surfaceIndexEnd - node.surfaceIndexStart);
+		} else {
+			cost = traversalCost * area(node) + visit(node.child[0]) + visit(node.child[1]);
+			cost = restructure(node, cost);
+		}
+		costs.put(node, cost);
+		return cost;
+	}
+
+	/**
+	 * Rewire the treelet at node into the cheapest tree over its leaves if that is
+	 * cheaper than cost, its current cost.
+	 *
+	 * @return the cost of the treelet afterwards
+	 */
+	private double restructure(BvhNode node, double cost) {
+		formTreelet(node);
+		if (numLeaves < 3) return cost;
+
+		int full = (1 << numLeaves) - 1;
+		for (int s = 1; s <= full; s++) {
+			setUnionBox(s);
+			area[s] = boxArea(box);
+			if ((s & (s - 1)) == 0) {
+				bestCost[s] = costs.get(leaves[Integer.numberOfTrailingZeros(s)]);
+				continue;
+			}
+			// Every split of s is a subset p holding its lowest leaf, and the rest
+			int low = s & -s, rest = s ^ low;
+			double best = Double.POSITIVE_INFINITY;
+			int split = 0;
+			for (int q = (rest - 1) & rest; ; q = (q - 1) & rest) {
+				int p = q | low;
+				double c = bestCost[p] + bestCost[s ^ p];
+				if (c < best) {
+					best = c;
+					split = p;
+				}
+				if (q == 0) break;
+			}
+			bestCost[s] = traversalCost * area[s] + best;
+			bestSplit[s] = split;
+		}
+		if (!(bestCost[full] < cost * (1 - 1e-9))) return cost;
+
+		nextInterior = 0;
+		rebuild(full);
+		restructured++;
+		return bestCost[full];
+	}
+
+	/** Collect the leaves and interior nodes of the treelet at node. */
+	private void formTreelet(BvhNode node) {
+		interior[0] = node;
+		numInterior = 1;
+		leaves[0] = node.child[0];
+		leaves[1] = node.child[1];
+		numLeaves = 2;
+		while (numLeaves < MAX_LEAVES) {
+			int largest = -1;
+			double largestArea = -1;
+			for (int i = 0; i < numLeaves; i++) {
+				if (leaves[i].isLeaf()) continue;
+				double a = area(leaves[i]);
+				if (a > largestArea) {
+					largestArea = a;
+					largest = i;
+				}
+			}
+			if (largest < 0) break;
+			BvhNode open = leaves[largest];
+			interior[numInterior++] = open;
+			leaves[largest] = open.child[0];
+			leaves[numLeaves++] = open.child[1];
+		}
+	}
+
+	/**
+	 * Rewire the next unused interior node of the treelet into the best tree over the
+	 * leaves in s, or return the leaf if s holds only one.
+	 */
+	private BvhNode rebuild(int s) {
+		if ((s & (s - 1)) == 0) return leaves[Integer.numberOfTrailingZeros(s)];
+		BvhNode node = interior[nextInterior++];
+		BvhNode left = rebuild(bestSplit[s]), right = rebuild(s ^ bestSplit[s]);
+		node.child[0] = left;
+		node.child[1] = right;
+		setUnionBox(s);
+		node.minBound.set(box[0], box[1], box[2]);
+		node.maxBound.set(box[3], box[4], box[5]);
+		node.axis = separatingAxis(left, right);
+		costs.put(node, bestCost[s]);
+		return node;
+	}
+
+	/** Set box to the union of the boxes of the leaves in s. */
+	private void setUnionBox(int s) {
+		box[0] = box[1] = box[2] = Double.POSITIVE_INFINITY;
+		box[3] = box[4] = box[5] = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < numLeaves; i++) {
+			if ((s >> i & 1) == 0) continue;
+			BvhNode l = leaves[i];
+			box[0] = Math.min(box[0], l.minBound.x); box[1] = Math.min(box[1], l.minBound.y);
+			box[2] = Math.min(box[2], l.minBound.z);
+			box[3] = Math.max(box[3], l.maxBound.x); box[4] = Math.max(box[4], l.maxBound.y);
+			box[5] = Math.max(box[5], l.maxBound.z);
+		}
+	}
+
+	/** @return the axis along which the centers of the two boxes are farthest apart. */
+	private static int separatingAxis(BvhNode a, BvhNode b) {
+		int axis = 0;
+		double widest = -1;
+		for (int i = 0; i < 3; i++) {
+			double d = Math.abs(a.minBound.get(i) + a.maxBound.get(i) - b.minBound.get(i) - b.maxBound.get(i));
+			if (d > widest) {
+				widest = d;
+				axis = i;
+			}
+		}
+		return axis;
+	}
+
+	/**
+	 * Copy the surfaces of the subtree at node from old into surfaces in depth-first
+	 * order starting at next, and update the surface ranges of its nodes to match.
+	 *
+	 * @return the index after the subtree's last surface
+	 */
+	private static int relayout(BvhNode node, Surface[] old, Surface[] surfaces, int next) {
+		int start = next;
+		if (node.isLeaf()) {
+			int n = node.surfaceIndexEnd - node.surfaceIndexStart;
+			System.arraycopy(old, node.surfaceIndexStart, surfaces, start, n);
+			next += n;
+		} else {
+			next = relayout(node.child[0], old, surfaces, next);
+			next = relayout(node.child[1], old, surfaces, next);
+		}
+		node.surfaceIndexStart = start;
+		node.surfaceIndexEnd = next;
+		return next;
+	}
+
+	private static double area(BvhNode node) {
+		double dx = node.maxBound.x - node.minBound.x;
+		double dy = node.maxBound.y - node.minBound.y;
+		double dz = node.maxBound.z - node.minBound.z;
+		return 2 * (dx * dy + dy * dz + dz * dx);
+	}
+
+	private static double boxArea(double[] b) {
+		double dx = b[3] - b[0], dy = b[4] - b[1], dz = b[5] - b[2];
+		return 2 * (dx * dy + dy * dz + dz * dx);
+	}
+}
@@ -0,0 +1,334 @@
+package ray1.accel;
+
+import java.util.Arrays;
+
+import ray1.IntersectionRecord;
+import ray1.Ray;
+import ray1.RenderStats;
+import ray1.surface.Surface;
+
+/**
+ * A bounding volume hierarchy with 4 or 8 children per node, collapsed from a binary
+ * Bvh. Each wide node takes the place of a binary node and the binary nodes below it:
+ * the interior child with the largest box is repeatedly replaced by its two children
+ * until the node has width children or only leaves are left. A tree of n binary
+ * nodes then needs about a third (width 4) or a seventh (width 8) as many nodes, and
+ * as many fewer traversal steps.
+ *
+ * Child boxes are stored as floats, rounded outwards, in structure-of-arrays order:
+ * for node i, bounds[6 * width * i + k * width + c] holds coordinate k (minx, miny,
+ * minz, maxx, maxy, maxz) of child c. A node's children are all tested in one loop
+ * over these arrays, which has no dependence between iterations, so the JIT is free
+ * to unroll and vectorize it. Unused child slots have empty boxes, which every ray
+ * misses.
+ *
+ * A node costs 32 bytes per child slot: 24 of bounds and 8 of child index and count.
+ */
+public class WideBvh implements AccelStruct {
+
+	/** The Bvh used to build the binary tree before it is collapsed; its settings apply. */
+	protected final Bvh builder = new Bvh();
+
+	public void setBuildStrategy(String strategy) { builder.setBuildStrategy(strategy); }
+	public void setSahBins(int bins) { builder.setSahBins(bins); }
+	public void setTraversalCost(float cost) { builder.setTraversalCost(cost); }
+	public void setIntersectionCost(float cost) { builder.setIntersectionCost(cost); }
+	public void setSahMaxLeafSize(int size) { builder.setSahMaxLeafSize(size); }
+	public void setTreeletPasses(int passes) { builder.setTreeletPasses(passes); }
+	public void setParallelBuild(boolean parallel) { builder.setParallelBuild(parallel); }
+
+	/** The number of child slots per node, 4 or 8. */
+	protected int width = 4;
+	public void setWidth(int width) {
+		if (width != 4 && width != 8)
+			throw new IllegalArgumentException("WideBvh width must be 4 or 8, not " + width);
+		this.width = width;
+	}
+	public int getWidth() { return width; }
+
+	/** The surfaces in tree order; a leaf covers a contiguous range of them. */
+	private Surface[] surfaces;
+
+	/** Child boxes of every node, in the layout described above. */
+	private float[] bounds;
+
+	/**
+	 * For child slot i * width + c of node i: the index of the child node if it is
+	 * interior, or of its first surface if it is a leaf.
+	 */
+	private int[] child;
+
+	/** For every child slot: the number of surfaces of a leaf, 0 for an interior node, -1 if unused. */
+	private int[] count;
+
+	/** The number of nodes in the tree. */
+	private int numNodes;
+
+	/** The traversal stack size needed for this tree. */
+	private int stackSize = 1;
+
+	/**
+	 * A traversal stack of entries and the distances at which the ray enters them, and
+	 * room for the children of one node. An entry is a node index, or ~slot for a leaf.
+	 */
+	private static class TraversalStack {
+		final int[] items;
+		final double[] entry;
+		final double[] childEntry = new double[8];
+		final int[] hitItems = new int[8];
+		final double[] hitEntry = new double[8];
+
+		TraversalStack(int size) {
+			items = new int[size];
+			entry = new double[size];
+		}
+	}
+
+	private final ThreadLocal<TraversalStack> traversalStack = new ThreadLocal<TraversalStack>() {
+		protected TraversalStack initialValue() {
+			return new TraversalStack(stackSize);
+		}
+	};
+	private final ThreadLocal<IntersectionRecord> scratchRecord = new ThreadLocal<IntersectionRecord>() {
+		protected IntersectionRecord initialValue() {
+			return new IntersectionRecord();
+		}
+	};
+
+	public WideBvh() { }
+
+	@Override
+	public void build(Surface[] surfaces) {
+		builder.build(surfaces);
+		collapse(builder);
+	}
+
+	/**
+	 * Replace the contents of this structure with a wide copy of an already built Bvh.
+	 * The Bvh is not modified and can be discarded afterwards.
+	 *
+	 * @param bvh a built Bvh
+	 */
+	public void collapse(Bvh bvh) {
+		surfaces = bvh.getSurfaces();
+		numNodes = 0;
+		stackSize = 1;
+		if (bvh.root == null || surfaces.length == 0) {
+			bounds = new float[0];
+			child = count = new int[0];
+			return;
+		}
+
+		// Every wide node but a leaf root replaces at least one binary interior node
+		int n = Math.max(1, interiorCount(bvh.root));
+		bounds = new float[6 * width * n];
+		child = new int[width * n];
+		count = new int[width * n];
+		BvhNode[] children = new BvhNode[width];
+		int depth = collapse(bvh.root, children);
+		bounds = Arrays.copyOf(bounds, 6 * width * numNodes);
+		child = Arrays.copyOf(child, width * numNodes);
+		count = Arrays.copyOf(count, width * numNodes);
+		stackSize = depth * (width - 1) + 2;
+
+		System.out.println("WideBvh: " + numNodes + " nodes of width " + width + " in "
+				+ (numNodes * width * 32 / 1024) + " KB");
+	}
+
+	private static int interiorCount(BvhNode node) {
+		if (node.isLeaf()) return 0;
+		return 1 + interiorCount(node.child[0]) + interiorCount(node.child[1]);
+	}
+
+	/**
+	 * Write the wide node standing for the binary node and its subtree out in
+	 * depth-first order.
+	 *
+	 * @param children scratch space for width nodes
+	 * @return the number of wide nodes on the longest path down from this one
+	 */
+	private int collapse(BvhNode node, BvhNode[] children) {
+		int numChildren = 1;
+		children[0] = node;
+		while (numChildren < width) {
+			int largest = -1;
+			double largestArea = -1;
+			for (int c = 0; c < numChildren; c++) {
+				if (children[c].isLeaf()) continue;
+				double a = area(children[c]);
+				if (a > largestArea) {
+					largestArea = a;
+					largest = c;
+				}
+			}
+			if (largest < 0) break;
+			BvhNode open = children[largest];
+			children[largest] = open.child[0];
+			children[numChildren++] = open.child[1];
+		}
+
+		int i = numNodes++;
+		BvhNode[] mine = Arrays.copyOf(children, numChildren);
+		int b = 6 * width * i, depth = 1;
+		for (int c = 0; c < width; c++) {
+			int slot = width * i + c;
+			if (c >= numChildren) {
+				for (int k = 0; k < 3; k++) {
+					bounds[b + k * width + c] = Float.POSITIVE_INFINITY;
+					bounds[b + (k + 3) * width + c] = Float.NEGATIVE_INFINITY;
+				}
+				count[slot] = -1;
+				continue;
+			}
+			BvhNode ch = mine[c];
+			for (int k = 0; k < 3; k++) {
+				bounds[b + k * width + c] = FlatBvh.roundDown(ch.minBound.get(k));
+				bounds[b + (k + 3) * width + c] = FlatBvh.roundUp(ch.maxBound.get(k));
+			}
+			if (ch.isLeaf()) {
+				child[slot] = ch.surfaceIndexStart;
+				count[slot] = ch.surfaceIndexEnd - ch.surfaceIndexStart;
+			} else {
+				child[slot] = numNodes;
+				count[slot] = 0;
+				depth = Math.max(depth, 1 + collapse(ch, children));
+			}
+		}
+		return depth;
+	}
+
+	private static double area(BvhNode node) {
+		double dx = node.maxBound.x - node.minBound.x;
+		double dy = node.maxBound.y - node.minBound.y;
+		double dz = node.maxBound.z - node.minBound.z;
+		return 2 * (dx * dy + dy * dz + dz * dx);
+	}
+
+	/**
+	 * Set outRecord to the first intersection of ray with the scene. Return true
+	 * if there was an intersection and false otherwise. If no intersection was
+	 * found outRecord is unchanged.
+	 *
+	 * Traversal works like Bvh.intersect, but all children of a node are box-tested
+	 * in one pass and the ones the ray hits are pushed in order of entry distance, far
+	 * ones first. Leaves are pushed like nodes, so their surfaces are only tested once
+	 * nothing nearer is left.
+	 *
+	 * @param outRecord the output IntersectionRecord
+	 * @param ray the ray to intersect
+	 * @param anyIntersection if true, will immediately return when found an intersection
+	 * @return true if and intersection is found.
+	 */
+	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection) {
+		if (numNodes == 0) return false;
+
+		IntersectionRecord record = outRecord;
+		if (record == null && !anyIntersection) record = scratchRecord.get();
+
+		TraversalStack stack = traversalStack.get();
+		if (stack.items.length < stackSize) {
+			stack = new TraversalStack(stackSize);
+			traversalStack.set(stack);
+		}
+		int[] items = stack.items;
+		double[] entry = stack.entry;
+		double[] childEntry = stack.childEntry;
+		int[] hitItems = stack.hitItems;
+		double[] hitEntry = stack.hitEntry;
+
+		rayIn.updateInverseDirection();
+		double ox = rayIn.origin.x, oy = rayIn.origin.y, oz = rayIn.origin.z;
+		double ix = rayIn.invDirection.x, iy = rayIn.invDirection.y, iz = rayIn.invDirection.z;
+		// Offsets of the near and far planes along each axis within a node's bounds
+		int w = width;
+		int nearX = rayIn.signX == 0 ? 0 : 3 * w, farX = 3 * w - nearX;
+		int nearY = w + (rayIn.signY == 0 ? 0 : 3 * w), farY = 5 * w - nearY;
+		int nearZ = 2 * w + (rayIn.signZ == 0 ? 0 : 3 * w), farZ = 7 * w - nearZ;
+
+		double end = rayIn.end;
+		boolean hit = false;
+		int visited = 0, tests = 0;
+		int top = 0;
+		items[top] = 0;
+		entry[top++] = rayIn.start;
+		traversal:
+		while (top > 0) {
+			int item = items[--top];
+			visited++;
+			if (entry[top] > rayIn.end) continue;
+
+			if (item < 0) {
+				int slot = ~item;
+				for (int s = child[slot], e = s + count[slot]; s < e; s++) {
+					tests++;
+					double t = surfaces[s].intersectT(rayIn, record);
+					if (!(t <= rayIn.end)) continue;
+					hit = true;
+					if (anyIntersection) break traversal;
+					rayIn.end = t;
+				}
+				continue;
+			}
+
+			// Slab test of every child; NaNs from a ray lying in a slab plane fail
+			// every comparison and leave the interval unchanged
+			int b = 6 * w * item;
+			double tStart = rayIn.start, tEnd = rayIn.end;
+			for (int c = 0; c < w; c++) {
+				double tEnter = tStart, tExit = tEnd;
+				double t0 = (bounds[b + nearX + c] - ox) * ix, t1 = (bounds[b + farX + c] - ox) * ix;
+				tEnter = t0 > tEnter ? t0 : tEnter;
+				tExit = t1 < tExit ? t1 : tExit;
+				t0 = (bounds[b + nearY + c] - oy) * iy;
+				t1 = (bounds[b + farY + c] - oy) * iy;
+				tEnter = t0 > tEnter ? t0 : tEnter;
+				tExit = t1 < tExit ? t1 : tExit;
+				t0 = (bounds[b + nearZ + c] - oz) * iz;
+				t1 = (bounds[b + farZ + c] - oz) * iz;
+				tEnter = t0 > tEnter ? t0 : tEnter;
+				tExit = t1 < tExit ? t1 : tExit;
+				childEntry[c] = tEnter <= tExit ? tEnter : Double.POSITIVE_INFINITY;
+			}
+
+			// Sort the children hit by entry distance, then push the nearest last
+			int hits = 0;
+			for (int c = 0; c < w; c++) {
+				double t = childEntry[c];
+				if (t == Double.POSITIVE_INFINITY) continue;
+				int slot = w * item + c;
+				int j = hits++;
+				while (j > 0 && hitEntry[j - 1] > t) {
+					hitEntry[j] = hitEntry[j - 1];
+					hitItems[j] = hitItems[j - 1];
+					j--;
+				}
+				hitEntry[j] = t;
+				hitItems[j] = count[slot] == 0 ? child[slot] : ~slot;
+			}
+			for (int j = hits - 1; j >= 0; j--) {
+				items[top] = hitItems[j];
+				entry[top++] = hitEntry[j];
+			}
+		}
+
+		rayIn.end = end;
+		RenderStats.Counters counters = RenderStats.local();
+		counters.nodesVisited += visited;
+		counters.primitiveTests += tests;
+		if (hit && outRecord != null) outRecord.surface.finalizeRecord(outRecord, rayIn);
+		return hit;
+	}
+
+	/**
+	 * Test whether any surface blocks the ray; the first hit found ends the search.
+	 *
+	 * @param rayIn the ray to test
+	 * @return true if any surface is hit within [rayIn.start, rayIn.end]
+	 */
+	public boolean occluded(Ray rayIn) {
+		return intersect(null, rayIn, true);
+	}
+
+	/** @return the number of nodes in the wide tree. */
+	public int getNumNodes() { return numNodes; }
+}
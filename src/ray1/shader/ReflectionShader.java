@@ -15,6 +15,7 @@ public abstract class ReflectionShader extends Shader {
 
 	/** BEDF used by this shader. */
 	protected BRDF brdf = null;
+	public BRDF getBRDF() { return brdf; }
 
 	/** Coefficient for mirror reflection. */
 	protected final Colorf mirrorCoefficient = new Colorf();
@@ -36,12 +37,9 @@ public abstract class ReflectionShader extends Shader {
 	 */
 	@Override
 	public void shade(Colorf outIntensity, Scene scene, Ray ray, IntersectionRecord record, int depth) {
-		Vector3d incoming = new Vector3d();
 		Vector3d outgoing = new Vector3d();
 				
 		outgoing.set(ray.origin).sub(record.location).normalize();
-		Vector3d surfaceNormal = record.normal;
-		Vector2 texCoords = new Vector2(record.texCoords);
 		
 		Colorf BRDFVal = new Colorf();
 		
@@ -65,30 +63,15 @@ public abstract class ReflectionShader extends Shader {
 				// 		6d) call RayTracer.shadeRay() with the mirror reflection ray and (depth+1)
 				// 		6e) add returned color value in 6d) to output
 		
-		for(Light light : scene.getLights()) {
-		    if(this.isShadowed(scene, light, record)) continue;
-		    incoming = new Vector3d(light.position).sub(record.location);
-		    Colorf color = new Colorf();
-		    brdf.EvalBRDF(incoming, outgoing, surfaceNormal, texCoords, color);
-		    color.mul(new Vector3(
-		            new Vector3d(light.intensity).mul(Math.max(surfaceNormal.clone().dot(incoming.clone().normalize()), 0) / incoming.lenSq())));
-		    BRDFVal.add(color);
-		}
+		addDirect(BRDFVal, scene, record, outgoing, null, 0);
 		
 		// recursive reflection
 		
-		if(!mirrorCoefficient.isZero()) {
-			surfaceNormal.normalize();
-	        Vector3d reflectionDirection = ray.direction.clone().sub(surfaceNormal.clone().normalize().mul(ray.direction.clone().dot(surfaceNormal.clone().normalize()) * 2.0));
-	        Ray mirrorRay = new Ray(record.location, reflectionDirection);
-	        mirrorRay.makeOffsetRay();
-	        
+		Ray mirrorRay = new Ray();
+		Vector3 reflectance = new Vector3();
+		if(mirrorRay(ray, record, outgoing, mirrorRay, reflectance)) {
 	        Colorf reflectedColor = new Colorf();
 
-	        double cosTheta = surfaceNormal.clone().normalize().dot(outgoing);
-
-            Vector3 reflectance = mirrorCoefficient.clone().add(mirrorCoefficient.clone().mul(-1).add(1).mul((float)Math.pow(1 - cosTheta, 5)));
-	        
             RayTracer.shadeRay(reflectedColor, scene, mirrorRay, depth + 1);
 
             Colorf color = new Colorf((Colorf) reflectedColor.mul(reflectance));
@@ -102,4 +85,63 @@ public abstract class ReflectionShader extends Shader {
 		
 	}
 
+	/**
+	 * Add the light reflected toward the viewer from every light in the scene that
+	 * reaches the intersection. This is the direct part of shade(), split out so that
+	 * the wavefront renderer can trace the shadow rays of many intersections together.
+	 *
+	 * @param outSum the color to add to
+	 * @param scene The scene in which the surface exists.
+	 * @param record The intersection record of where the ray intersected the surface.
+	 * @param outgoing the normalized direction toward the viewer, which BRDFs may
+	 * renormalize in place; pass the same vector to mirrorRay()
+	 * @param shadowed if not null, shadowed[offset + i] tells whether light i of the
+	 * scene is blocked; if null, every light is tested with isShadowed
+	 * @param offset the index in shadowed of the first light
+	 */
+	public void addDirect(Colorf outSum, Scene scene, IntersectionRecord record, Vector3d outgoing,
+			boolean[] shadowed, int offset) {
+		Vector3d surfaceNormal = record.normal;
+		Vector2 texCoords = new Vector2(record.texCoords);
+		Vector3d incoming;
+		
+		int i = offset;
+		for(Light light : scene.getLights()) {
+		    boolean blocked = shadowed != null ? shadowed[i++] : this.isShadowed(scene, light, record);
+		    if(blocked) continue;
+		    incoming = new Vector3d(light.position).sub(record.location);
+		    Colorf color = new Colorf();
+		    brdf.EvalBRDF(incoming, outgoing, surfaceNormal, texCoords, color);
+		    color.mul(new Vector3(
+		            new Vector3d(light.intensity).mul(Math.max(surfaceNormal.clone().dot(incoming.clone().normalize()), 0) / incoming.lenSq())));
+		    outSum.add(color);
+		}
+	}
+
+	/**
+	 * Set up the mirror reflection of a ray at an intersection, if this shader has
+	 * one. Normalizes record.normal, so call it after addDirect().
+	 *
+	 * @param ray The ray which intersected the surface.
+	 * @param record The intersection record of where the ray intersected the surface.
+	 * @param outgoing the direction toward the viewer passed to addDirect()
+	 * @param outRay the reflected ray, offset from the surface
+	 * @param outReflectance the Fresnel reflectance (Schlick's approximation) that
+	 * scales the color seen along outRay
+	 * @return false if mirrorCoefficient is zero, in which case nothing is set
+	 */
+	public boolean mirrorRay(Ray ray, IntersectionRecord record, Vector3d outgoing, Ray outRay, Vector3 outReflectance) {
+		if(mirrorCoefficient.isZero()) return false;
+		Vector3d surfaceNormal = record.normal;
+		surfaceNormal.normalize();
+        Vector3d reflectionDirection = ray.direction.clone().sub(surfaceNormal.clone().normalize().mul(ray.direction.clone().dot(surfaceNormal.clone().normalize()) * 2.0));
+        outRay.set(record.location, reflectionDirection);
+        outRay.makeOffsetRay();
+
+        double cosTheta = surfaceNormal.clone().normalize().dot(outgoing);
+
+        outReflectance.set(mirrorCoefficient.clone().add(mirrorCoefficient.clone().mul(-1).add(1).mul((float)Math.pow(1 - cosTheta, 5))));
+        return true;
+	}
+
 }
\ No newline at end of file
@@ -53,7 +53,20 @@ public abstract class Shader {
 	 */
 	protected boolean isShadowed(Scene scene, Light light, IntersectionRecord record) {	
 		
-		Ray shadowRay = new Ray();
+		Ray shadowRay = SHADOW_RAY.get();
+		setShadowRay(shadowRay, light, record);
+		return scene.getAnyIntersection(shadowRay);
+	}
+	
+	/**
+	 * Set shadowRay to the segment isShadowed tests: from the intersection point to the
+	 * light, offset from the surface.
+	 * 
+	 * @param shadowRay The ray to set.
+	 * @param light A light in the scene.
+	 * @param record The intersection point on a surface.
+	 */
+	public static void setShadowRay(Ray shadowRay, Light light, IntersectionRecord record) {
 		
 		// Setup the shadow ray to start at surface and end at light
 		shadowRay.origin.set(record.location);
@@ -64,8 +77,13 @@ public abstract class Shader {
 		
 		// Set the ray to end at the light
 		shadowRay.makeOffsetSegment(end);
-		
-		return scene.getAnyIntersection(shadowRay);
 	}
 	
+	/** Reused by isShadowed, which runs once per light per shading point on every render thread. */
+	private static final ThreadLocal<Ray> SHADOW_RAY = new ThreadLocal<Ray>() {
+		protected Ray initialValue() {
+			return new Ray();
+		}
+	};
+	
 }
\ No newline at end of file
@@ -6,6 +6,7 @@ import java.io.File;
 import javax.imageio.ImageIO;
 
 import ray1.shader.Texture;
+import ray1.Parser;
 import ray1.RayTracer;
 import egl.math.Colorf;
 import egl.math.Vector2;
@@ -17,16 +18,20 @@ import egl.math.Vector2;
  * @author eschweickart zz335
  *
  */
-public abstract class Texture {
+public abstract class Texture implements Parser.WorkspaceAware {
 	/** The image used when looking up UV coordinates. */
 	protected BufferedImage image;
 	/** Return the BufferedImage used for lookup. */
 	public BufferedImage getImage() { return image; }
+	/** The scene file that names the image file, or null to take the name as it is. */
+	protected RayTracer.ScenePath workspace = null;
+	public void setWorkspace(RayTracer.ScenePath workspace) { this.workspace = workspace; }
 	/** Set the BufferedImage from a given file on disk. */
 	public void setImage(String filename) {
-		System.out.println("Loading: " + RayTracer.sceneWorkspace.resolve(filename));
+		String resolved = workspace != null ? workspace.resolve(filename) : filename;
+		System.out.println("Loading: " + resolved);
 		try {
-			File f = new File(RayTracer.sceneWorkspace.resolve(filename));
+			File f = new File(resolved);
 			image = ImageIO.read(f);
 		} catch (Exception e) {
 			System.err.println("Error loading texture: " + e);
@@ -134,15 +134,16 @@ public class Box extends Surface {
     this.mesh.shader = this.shader;
   }
   
+  /**
+   * Intersect the triangle mesh of this box, building it on first use.
+   */
   public boolean intersect(IntersectionRecord outRecord, Ray ray) {
-		for(int i = 0; i< mesh.getMesh().faces.size();i++) {
-			OBJFace tface = mesh.getMesh().faces.get(i);
-			Triangle triangle = new Triangle(this.mesh, tface, this.shader);
-			if(triangle.intersect(outRecord, ray)) {
-				return true;
-			}
-		}; 
-		return false;
+    return intersectAndFinalize(outRecord, ray);
+  }
+
+  public double intersectT(Ray ray, IntersectionRecord hit) {
+    if (mesh == null) buildMesh();
+    return mesh.intersectT(ray, hit);
   }
   
   public void appendRenderableSurfaces(ArrayList<Surface> in) {
@@ -1,30 +1,76 @@
 package ray1.surface;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 
+import ray1.OBJData;
 import ray1.OBJMesh;
 import ray1.OBJMesh.OBJFileFormatException;
 import ray1.OBJFace;
 import ray1.IntersectionRecord;
+import ray1.Parser;
 import ray1.Ray;
 import ray1.RayTracer;
 import ray1.surface.*;
 
 /**
  * An interface between a MeshData and the ray tracer. When the Scene calls
- * appendRenderableSurfaces on this object, it appends all Triangles on the
- * mesh onto the given ArrayList. This way, the Scene has direct access to
- * all intersectable Surfaces in the scene.
+ * appendRenderableSurfaces on this object, it appends the mesh onto the given
+ * ArrayList: by default as one PackedMesh with its own BVH over the triangles,
+ * or with storage set to "triangles" as one Triangle per face. This way, the
+ * Scene has direct access to all intersectable Surfaces in the scene.
  * 
  * @author eschweic
  *
  */
-public class Mesh extends Surface {
+public class Mesh extends Surface implements Parser.WorkspaceAware {
 
-	/** The underlying data of this Mesh. */
+	/** The underlying data of this Mesh, built on first use if the mesh was loaded with setData. */
 	private OBJMesh mesh = null;
 
+	/** The arrays read by setData, from which the packed mesh is built directly. */
+	private OBJData data = null;
+
+	/** Storage mode: the whole mesh as one PackedMesh. */
+	public static final String PACKED = "packed";
+
+	/** Storage mode: one Triangle surface per face. */
+	public static final String TRIANGLES = "triangles";
+
+	/** How the mesh is handed to the scene, PACKED or TRIANGLES. */
+	protected String storage = PACKED;
+	public void setStorage(String storage) {
+		String s = storage.trim().toLowerCase();
+		if (!s.equals(PACKED) && !s.equals(TRIANGLES))
+			throw new IllegalArgumentException("Unknown mesh storage: " + storage);
+		this.storage = s;
+	}
+	public String getStorage() { return storage; }
+
+	/** The packed form of this mesh, created on first use. */
+	private PackedMesh packed = null;
+
+	/** Whether setData reads and writes binary mesh caches (see MeshCache). */
+	private static boolean useCache = true;
+	public static void setUseCache(boolean use) { useCache = use; }
+
+	/** The OBJ file read by setData, or null if there is no cache to keep up to date. */
+	private String cacheFile = null;
+
+	/** Whether the cache for cacheFile holds the OBJ arrays, and whether it holds the packed mesh too. */
+	private boolean cachedData = false, cachedPacked = false;
+
+	/** The scene file that names this mesh's OBJ file, or null to take names as they are. */
+	private RayTracer.ScenePath workspace = null;
+	public void setWorkspace(RayTracer.ScenePath workspace) { this.workspace = workspace; }
+
+	/** The time setData took to read the OBJ file or its cache, in nanoseconds. */
+	private long loadNanos = 0;
+	public long getLoadNanos() { return loadNanos; }
+
 	/**
 	 * Default constructor; creates an empty mesh.
 	 */
@@ -40,43 +86,127 @@ public class Mesh extends Surface {
 	
 	/**
 	 * Set the data in this mesh to the data of a mesh on disk.
-	 * @param fileName the name of a .obj file on disk.
+	 * @param fileName the name of a .obj file on disk, relative to the workspace if there is one.
 	 * @throws IOException 
 	 * @throws OBJFileFormatException 
 	 */
 	public void setData(String fileName) throws OBJFileFormatException, IOException {
-		System.out.println("Loading " + RayTracer.sceneWorkspace.resolve(fileName));
-		this.mesh = new OBJMesh(RayTracer.sceneWorkspace.resolve(fileName));
+		long start = System.nanoTime();
+		String file = workspace != null ? workspace.resolve(fileName) : fileName;
+		this.mesh = null;
+		this.packed = null;
+		this.cacheFile = useCache ? file : null;
+		this.cachedData = this.cachedPacked = false;
+
+		MeshCache cache = useCache ? MeshCache.load(file) : null;
+		if (cache != null) {
+			System.out.println("Loading " + MeshCache.cacheFile(file));
+			this.data = cache.data;
+			this.packed = cache.packed;
+			this.cachedData = true;
+			this.cachedPacked = cache.packed != null;
+		} else {
+			System.out.println("Loading " + file);
+			this.data = OBJData.read(file);
+		}
+		this.loadNanos = System.nanoTime() - start;
 	}
 	
 	public boolean intersect(IntersectionRecord outRecord, Ray rayIn) {	
-		for(int i = 0; i< mesh.faces.size();i++) {
-			OBJFace tface = mesh.faces.get(i);
-			Triangle triangle = new Triangle(this, tface, this.shader);
-			if(triangle.intersect(outRecord, rayIn)) {
-				return true;
-			}
-		}; 
-		return false;
+		return getPackedMesh().intersect(outRecord, rayIn);
+	}
+
+	/**
+	 * Intersect the packed mesh, which is also the surface recorded for finalizeRecord.
+	 */
+	public double intersectT(Ray rayIn, IntersectionRecord hit) {
+		return getPackedMesh().intersectT(rayIn, hit);
+	}
+
+	public void computeBoundingBox() {
+		PackedMesh p = getPackedMesh();
+		p.computeBoundingBox();
+		minBound = p.getMinBound();
+		maxBound = p.getMaxBound();
+		averagePosition = p.getAveragePosition();
 	}
 
-	public void computeBoundingBox() {	}
+	/**
+	 * @return this mesh as a PackedMesh with this mesh's shader, packing it on first use.
+	 */
+	public PackedMesh getPackedMesh() {
+		if (packed == null) {
+			packed = data != null ? PackedMesh.fromOBJ(data) : PackedMesh.fromOBJ(mesh);
+			System.out.println("PackedMesh: " + packed.getNumTriangles() + " triangles in "
+					+ (packed.getMemoryBytes() / 1024) + " KB");
+		}
+		if (cacheFile != null && !cachedPacked) {
+			MeshCache.write(cacheFile, data, packed);
+			cachedData = cachedPacked = true;
+		}
+		packed.setShader(shader);
+		return packed;
+	}
 
 	/**
 	* append the mesh surface to a surface ArrayList in.
+	* With packed storage, append the PackedMesh for this mesh. Otherwise:
 	* 1) convert the faces of this mesh to a triangle surface object
 	* 2) append the triangle surface object to the surface arraylist in
 	* @param in the Surface ArrayList to be appended
 	*/
 	public void appendRenderableSurfaces (ArrayList<Surface> in) {
+		if (storage.equals(PACKED)) {
+			in.add(getPackedMesh());
+			return;
+		}
+		if (cacheFile != null && !cachedData) {
+			MeshCache.write(cacheFile, data, null);
+			cachedData = true;
+		}
 
-		for (OBJFace f : mesh.faces) {
+		for (OBJFace f : getMesh().faces) {
 			Triangle t = new Triangle(this,f,shader);
 			in.add(t);
 		}
 	}
 	
+	/**
+	 * Roughly how much memory setData(file) will take, before it is called: the size of
+	 * the mesh cache it would load, or else the size of the OBJ file, which is about
+	 * that of the arrays parsed from it.
+	 *
+	 * @param file the resolved path of the OBJ file
+	 * @return the estimate in bytes, or 0 if the file cannot be read
+	 */
+	public static long getLoadEstimate(String file) {
+		try {
+			Path cache = MeshCache.cacheFile(file);
+			return useCache && Files.isRegularFile(cache) ? Files.size(cache) : Files.size(Paths.get(file));
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+	
+	/**
+	 * Roughly how much memory this mesh will take once the scene is initialized: the
+	 * OBJ arrays plus the packed mesh and its BVH, or plus one Triangle per face, with
+	 * faces taken to be triangles.
+	 *
+	 * @return the estimate in bytes
+	 */
+	public long getMemoryEstimate() {
+		if (data == null && mesh == null) return 0;
+		long faces = data != null ? data.getNumFaces() : mesh.faces.size();
+		long bytes = data != null ? data.getMemoryBytes() : 80 * faces;
+		if (storage.equals(PACKED)) {
+			return bytes + (packed != null ? packed.getMemoryBytes() : 2 * bytes);
+		}
+		return bytes + 300 * faces;
+	}
+	
 	public OBJMesh getMesh() {
+		if (mesh == null && data != null) mesh = new OBJMesh(data);
 		return this.mesh;
 	}
 }
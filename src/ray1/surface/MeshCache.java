@@ -0,0 +1,262 @@
+package ray1.surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+import ray1.OBJData;
+import ray1.accel.PrimitiveBvh;
+
+/**
+ * A binary copy of a loaded OBJ file, kept next to it as <obj file>.cache so that
+ * later renders can skip parsing. It holds the OBJData arrays and, once the mesh has
+ * been packed, the packed triangle indices in BVH order together with the BVH, so
+ * that the tree need not be rebuilt either.
+ *
+ * The file is little-endian:
+ *   int magic, int version, long OBJ size, int CRC-32C of the OBJ bytes, int flags
+ *   int lengths of the 7 OBJData arrays, each array in turn (floats, then ints)
+ *   if flags has PACKED: int lengths of the triangle, triangle normal and triangle uv
+ *   arrays (-1 for none), the arrays, then the PrimitiveBvh as saved by writeTo
+ *
+ * A cache is only used if its magic, version, size and checksum match the OBJ file
+ * and its contents hold together: every length must fit in the file, every index
+ * must refer to something that exists, and the BVH must be well formed. Anything else
+ * is treated as a miss and the OBJ is parsed again. Caches are read through
+ * FileChannel.map and written to a temporary file that is then moved into place, so
+ * a render never sees a partly written cache.
+ */
+class MeshCache {
+
+	private static final int MAGIC = 0x434d5452; // "RTMC"
+	private static final int VERSION = 1;
+	private static final int PACKED = 1;
+	private static final int HEADER_BYTES = 24 + 7 * 4;
+
+	/** The cached OBJ contents. */
+	final OBJData data;
+
+	/** The cached packed mesh, or null if the cache was written before the mesh was packed. */
+	final PackedMesh packed;
+
+	private MeshCache(OBJData data, PackedMesh packed) {
+		this.data = data;
+		this.packed = packed;
+	}
+
+	/** @return the cache file for an OBJ file. */
+	static Path cacheFile(String objFile) {
+		return Paths.get(objFile + ".cache");
+	}
+
+	/**
+	 * Load the cache for objFile.
+	 *
+	 * @return the cached contents, or null if there is no cache or it does not match
+	 * the OBJ file as it is now
+	 */
+	static MeshCache load(String objFile) {
+		Path path = cacheFile(objFile);
+		if (!Files.isRegularFile(path)) return null;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			if (channel.size() < HEADER_BYTES || channel.size() > Integer.MAX_VALUE) return null;
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			buf.order(ByteOrder.LITTLE_ENDIAN);
+			if (buf.getInt() != MAGIC || buf.getInt() != VERSION) return null;
+			long objSize = buf.getLong();
+			int objChecksum = buf.getInt();
+			int flags = buf.getInt();
+			if (objSize != Files.size(Paths.get(objFile)) || objChecksum != checksum(objFile)) return null;
+
+			// Check the lengths against the file before allocating anything for them
+			int[] lengths = new int[7];
+			long bytes = 0;
+			for (int i = 0; i < lengths.length; i++) {
+				lengths[i] = buf.getInt();
+				if (lengths[i] < 0) return null;
+				bytes += 4L * lengths[i];
+			}
+			if (bytes > buf.remaining()) return null;
+			OBJData data = new OBJData(getFloats(buf, lengths[0]), getFloats(buf, lengths[1]), getFloats(buf, lengths[2]),
+					getInts(buf, lengths[3]), getInts(buf, lengths[4]), getInts(buf, lengths[5]), getInts(buf, lengths[6]));
+			if (!isWellFormed(data)) return null;
+
+			PackedMesh packed = null;
+			if ((flags & PACKED) != 0) {
+				int numTriangles = buf.getInt(), numNormals = buf.getInt(), numUVs = buf.getInt();
+				if (numTriangles < 0 || numTriangles % 3 != 0 || numNormals < -1 || numUVs < -1
+						|| 4L * numTriangles + 4L * Math.max(numNormals, 0) + 4L * Math.max(numUVs, 0) > buf.remaining())
+					return null;
+				int[] triangles = getInts(buf, numTriangles);
+				int[] triangleNormals = numNormals < 0 ? null : getInts(buf, numNormals);
+				int[] triangleUVs = numUVs < 0 ? null : getInts(buf, numUVs);
+				PrimitiveBvh bvh = PrimitiveBvh.readFrom(buf);
+				if (bvh == null || bvh.getNumPrimitives() != numTriangles / 3
+						|| !inRange(triangles, 0, data.getNumPositions())
+						|| !isCornerArray(triangleNormals, numTriangles, data.getNumNormals())
+						|| !isCornerArray(triangleUVs, numTriangles, data.getNumUVs()))
+					return null;
+				packed = new PackedMesh(data.positions,
+						data.normals.length > 0 ? data.normals : null,
+						data.uvs.length > 0 ? data.uvs : null,
+						triangles, triangleNormals, triangleUVs, bvh);
+			}
+			if (buf.hasRemaining()) return null;
+			return new MeshCache(data, packed);
+		} catch (IOException | RuntimeException e) {
+			System.err.println("Warning: ignoring unreadable mesh cache " + path + ": " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * Write the cache for objFile. Failing to write it is only worth a warning, since
+	 * the mesh can always be loaded from the OBJ file.
+	 *
+	 * @param data the contents of objFile
+	 * @param packed the mesh packed from data, or null if it has not been packed
+	 */
+	static void write(String objFile, OBJData data, PackedMesh packed) {
+		Path path = cacheFile(objFile);
+		Path temp = null;
+		try {
+			long size = HEADER_BYTES + 4L * (data.positions.length + data.uvs.length + data.normals.length
+					+ data.faceSizes.length + 3 * data.vertexPositions.length);
+			if (packed != null) {
+				size += 12 + 4L * length(packed.getTriangles()) + 4L * length(packed.getTriangleNormals())
+						+ 4L * length(packed.getTriangleUVs()) + packed.getBvh().getSerializedSize();
+			}
+			if (size > Integer.MAX_VALUE) return;
+
+			ByteBuffer buf = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+			buf.putInt(MAGIC).putInt(VERSION);
+			buf.putLong(Files.size(Paths.get(objFile))).putInt(checksum(objFile));
+			buf.putInt(packed != null ? PACKED : 0);
+			for (int length : new int[] { data.positions.length, data.uvs.length, data.normals.length,
+					data.faceSizes.length, data.vertexPositions.length, data.vertexUVs.length, data.vertexNormals.length }) {
+				buf.putInt(length);
+			}
+			putFloats(buf, data.positions);
+			putFloats(buf, data.uvs);
+			putFloats(buf, data.normals);
+			putInts(buf, data.faceSizes);
+			putInts(buf, data.vertexPositions);
+			putInts(buf, data.vertexUVs);
+			putInts(buf, data.vertexNormals);
+			if (packed != null) {
+				int[] normals = packed.getTriangleNormals(), uvs = packed.getTriangleUVs();
+				buf.putInt(packed.getTriangles().length);
+				buf.putInt(normals == null ? -1 : normals.length);
+				buf.putInt(uvs == null ? -1 : uvs.length);
+				putInts(buf, packed.getTriangles());
+				if (normals != null) putInts(buf, normals);
+				if (uvs != null) putInts(buf, uvs);
+				packed.getBvh().writeTo(buf);
+			}
+			buf.flip();
+
+			temp = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp");
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+				while (buf.hasRemaining()) channel.write(buf);
+			}
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			System.out.println("MeshCache: wrote " + path + " (" + (size / 1024) + " KB)");
+		} catch (IOException e) {
+			System.err.println("Warning: could not write mesh cache " + path + ": " + e);
+			try {
+				if (temp != null) Files.deleteIfExists(temp);
+			} catch (IOException ignored) { }
+		}
+	}
+
+	/** @return the CRC-32C of the contents of a file. */
+	static int checksum(String file) throws IOException {
+		try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+			CRC32C crc = new CRC32C();
+			long size = channel.size();
+			for (long pos = 0; pos < size; pos += Integer.MAX_VALUE) {
+				crc.update(channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(Integer.MAX_VALUE, size - pos)));
+			}
+			return (int) crc.getValue();
+		}
+	}
+
+	/**
+	 * @return whether data is laid out as OBJData.read leaves it: whole vertices, faces
+	 * of at least 3 vertices that account for every vertex, and indices that exist
+	 */
+	private static boolean isWellFormed(OBJData data) {
+		if (data.positions.length % 3 != 0 || data.uvs.length % 2 != 0 || data.normals.length % 3 != 0) return false;
+		int numVertices = data.vertexPositions.length;
+		if (data.vertexUVs.length != numVertices || data.vertexNormals.length != numVertices) return false;
+		int first = 0;
+		for (int size : data.faceSizes) {
+			if (size < 3 || size > numVertices - first) return false;
+			// A face has uvs (or normals) at all of its vertices or at none of them
+			for (int v = first + 1; v < first + size; v++) {
+				if ((data.vertexUVs[v] < 0) != (data.vertexUVs[first] < 0)
+						|| (data.vertexNormals[v] < 0) != (data.vertexNormals[first] < 0)) return false;
+			}
+			first += size;
+		}
+		return first == numVertices && inRange(data.vertexPositions, 0, data.getNumPositions())
+				&& inRange(data.vertexUVs, -1, data.getNumUVs()) && inRange(data.vertexNormals, -1, data.getNumNormals());
+	}
+
+	/**
+	 * @return whether a is null, or has n entries that are, for each triangle, either
+	 * all -1 or all indices below limit, as PackedMesh expects
+	 */
+	private static boolean isCornerArray(int[] a, int n, int limit) {
+		if (a == null) return true;
+		if (a.length != n || !inRange(a, -1, limit)) return false;
+		for (int i = 0; i < n; i += 3) {
+			if ((a[i] < 0) != (a[i+1] < 0) || (a[i] < 0) != (a[i+2] < 0)) return false;
+		}
+		return true;
+	}
+
+	/** @return whether every entry of a lies in [min, max). */
+	private static boolean inRange(int[] a, int min, int max) {
+		for (int i : a) {
+			if (i < min || i >= max) return false;
+		}
+		return true;
+	}
+
+	private static int length(int[] a) {
+		return a == null ? 0 : a.length;
+	}
+
+	private static float[] getFloats(ByteBuffer buf, int n) {
+		float[] a = new float[n];
+		buf.asFloatBuffer().get(a);
+		buf.position(buf.position() + 4 * n);
+		return a;
+	}
+
+	private static int[] getInts(ByteBuffer buf, int n) {
+		int[] a = new int[n];
+		buf.asIntBuffer().get(a);
+		buf.position(buf.position() + 4 * n);
+		return a;
+	}
+
+	private static void putFloats(ByteBuffer buf, float[] a) {
+		buf.asFloatBuffer().put(a);
+		buf.position(buf.position() + 4 * a.length);
+	}
+
+	private static void putInts(ByteBuffer buf, int[] a) {
+		buf.asIntBuffer().put(a);
+		buf.position(buf.position() + 4 * a.length);
+	}
+}
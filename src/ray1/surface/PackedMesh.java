@@ -0,0 +1,350 @@
+package ray1.surface;
+
+import egl.math.Vector2;
+import egl.math.Vector3;
+import egl.math.Vector3d;
+import ray1.IntersectionRecord;
+import ray1.OBJData;
+import ray1.OBJFace;
+import ray1.OBJMesh;
+import ray1.Ray;
+import ray1.accel.PrimitiveBvh;
+
+/**
+ * A triangle mesh stored in flat primitive arrays, intersected as a single Surface.
+ * Vertex data lives in float arrays and each triangle is three int indices into them,
+ * so a triangle costs a few dozen bytes instead of a Triangle object with its bounds.
+ * The triangles are organized in their own PrimitiveBvh, whose leaves refer to
+ * triangle indices; the scene's acceleration structure only sees the mesh as a whole.
+ *
+ * Normals and texture coordinates are optional per triangle. A triangle without
+ * vertex normals uses its geometric normal, with the vertices taken counterclockwise.
+ */
+public class PackedMesh extends Surface {
+
+	/** Vertex positions, 3 floats per vertex. */
+	private final float[] positions;
+
+	/** Vertex normals, 3 floats per normal, or null. */
+	private final float[] normals;
+
+	/** Texture coordinates, 2 floats per uv, or null. */
+	private final float[] uvs;
+
+	/** Position indices, 3 per triangle, in the order of the triangle BVH. */
+	private final int[] triangles;
+
+	/** Normal indices, 3 per triangle (-1 if the triangle has none), or null if no triangle has normals. */
+	private final int[] triangleNormals;
+
+	/** UV indices, 3 per triangle (-1 if the triangle has none), or null if no triangle has uvs. */
+	private final int[] triangleUVs;
+
+	/** The BVH over the triangles. */
+	private final PrimitiveBvh bvh;
+
+	/** The per-triangle test handed to the BVH. */
+	private final PrimitiveBvh.PrimitiveIntersector triangleTest = new PrimitiveBvh.PrimitiveIntersector() {
+		public double intersect(int triangle, Ray ray) {
+			return intersectTriangle(triangle, ray);
+		}
+	};
+
+	/**
+	 * Create a packed mesh and build its BVH. The index arrays are reordered in place
+	 * to match the BVH.
+	 *
+	 * @param positions 3 floats per vertex
+	 * @param normals 3 floats per normal, or null
+	 * @param uvs 2 floats per texture coordinate, or null
+	 * @param triangles 3 position indices per triangle
+	 * @param triangleNormals 3 normal indices per triangle (-1 for none), or null
+	 * @param triangleUVs 3 uv indices per triangle (-1 for none), or null
+	 */
+	public PackedMesh(float[] positions, float[] normals, float[] uvs,
+			int[] triangles, int[] triangleNormals, int[] triangleUVs) {
+		this.positions = positions;
+		this.normals = normals;
+		this.uvs = uvs;
+		this.triangles = triangles;
+		this.triangleNormals = triangleNormals;
+		this.triangleUVs = triangleUVs;
+
+		int n = getNumTriangles();
+		double[] boxes = new double[6 * n];
+		double[] centroids = new double[3 * n];
+		for (int t = 0; t < n; t++) {
+			for (int a = 0; a < 3; a++) {
+				float p0 = positions[3 * triangles[3*t] + a];
+				float p1 = positions[3 * triangles[3*t+1] + a];
+				float p2 = positions[3 * triangles[3*t+2] + a];
+				boxes[6*t+a] = Math.min(p0, Math.min(p1, p2));
+				boxes[6*t+a+3] = Math.max(p0, Math.max(p1, p2));
+				centroids[3*t+a] = (p0 + p1 + (double) p2) / 3.0;
+			}
+		}
+		bvh = new PrimitiveBvh(boxes, centroids);
+		int[] order = bvh.getPrimitiveOrder();
+		reorder(triangles, order);
+		if (triangleNormals != null) reorder(triangleNormals, order);
+		if (triangleUVs != null) reorder(triangleUVs, order);
+		bvh.clearPrimitiveOrder();
+	}
+
+	/**
+	 * Create a packed mesh around a BVH that was built for it earlier, such as one
+	 * reloaded from a MeshCache. The index arrays must already be in the BVH's order.
+	 */
+	PackedMesh(float[] positions, float[] normals, float[] uvs,
+			int[] triangles, int[] triangleNormals, int[] triangleUVs, PrimitiveBvh bvh) {
+		this.positions = positions;
+		this.normals = normals;
+		this.uvs = uvs;
+		this.triangles = triangles;
+		this.triangleNormals = triangleNormals;
+		this.triangleUVs = triangleUVs;
+		this.bvh = bvh;
+	}
+
+	/** Rearrange 3-int records so that record i becomes the old record order[i]. */
+	private static void reorder(int[] data, int[] order) {
+		int[] old = data.clone();
+		for (int i = 0; i < order.length; i++) {
+			System.arraycopy(old, 3 * order[i], data, 3 * i, 3);
+		}
+	}
+
+	/**
+	 * Pack the faces of an OBJMesh. Faces with more than three vertices are split into
+	 * a fan of triangles around their first vertex.
+	 */
+	public static PackedMesh fromOBJ(OBJMesh mesh) {
+		float[] positions = new float[3 * mesh.positions.size()];
+		for (int i = 0; i < mesh.positions.size(); i++) {
+			Vector3 p = mesh.positions.get(i);
+			positions[3*i] = p.x; positions[3*i+1] = p.y; positions[3*i+2] = p.z;
+		}
+		float[] normals = null;
+		if (!mesh.normals.isEmpty()) {
+			normals = new float[3 * mesh.normals.size()];
+			for (int i = 0; i < mesh.normals.size(); i++) {
+				Vector3 n = mesh.normals.get(i);
+				normals[3*i] = n.x; normals[3*i+1] = n.y; normals[3*i+2] = n.z;
+			}
+		}
+		float[] uvs = null;
+		if (!mesh.uvs.isEmpty()) {
+			uvs = new float[2 * mesh.uvs.size()];
+			for (int i = 0; i < mesh.uvs.size(); i++) {
+				Vector2 uv = mesh.uvs.get(i);
+				uvs[2*i] = uv.x; uvs[2*i+1] = uv.y;
+			}
+		}
+
+		int numTriangles = 0;
+		boolean anyNormals = false, anyUVs = false;
+		for (OBJFace f : mesh.faces) {
+			numTriangles += f.numVerts() - 2;
+			anyNormals |= f.hasNormals();
+			anyUVs |= f.hasUVs();
+		}
+		int[] triangles = new int[3 * numTriangles];
+		int[] triangleNormals = anyNormals ? new int[3 * numTriangles] : null;
+		int[] triangleUVs = anyUVs ? new int[3 * numTriangles] : null;
+		int t = 0;
+		for (OBJFace f : mesh.faces) {
+			for (int k = 1; k + 1 < f.numVerts(); k++, t++) {
+				int[] corners = { 0, k, k + 1 };
+				for (int c = 0; c < 3; c++) {
+					int v = corners[c];
+					triangles[3*t+c] = f.positions[v] - OBJFace.indexBase;
+					if (anyNormals)
+						triangleNormals[3*t+c] = f.hasNormals() ? f.normals[v] - OBJFace.indexBase : -1;
+					if (anyUVs)
+						triangleUVs[3*t+c] = f.hasUVs() ? f.uvs[v] - OBJFace.indexBase : -1;
+				}
+			}
+		}
+		return new PackedMesh(positions, normals, uvs, triangles, triangleNormals, triangleUVs);
+	}
+
+	/**
+	 * Pack an OBJ file read by OBJData, splitting faces into fans as fromOBJ(OBJMesh)
+	 * does. The vertex arrays are shared with data rather than copied.
+	 */
+	public static PackedMesh fromOBJ(OBJData data) {
+		int numTriangles = 0;
+		boolean anyNormals = false, anyUVs = false;
+		for (int v = 0, f = 0; f < data.faceSizes.length; v += data.faceSizes[f++]) {
+			numTriangles += data.faceSizes[f] - 2;
+			anyNormals |= data.vertexNormals[v] >= 0;
+			anyUVs |= data.vertexUVs[v] >= 0;
+		}
+		int[] triangles = new int[3 * numTriangles];
+		int[] triangleNormals = anyNormals ? new int[3 * numTriangles] : null;
+		int[] triangleUVs = anyUVs ? new int[3 * numTriangles] : null;
+		int t = 0;
+		for (int first = 0, f = 0; f < data.faceSizes.length; first += data.faceSizes[f++]) {
+			for (int k = 1; k + 1 < data.faceSizes[f]; k++, t++) {
+				int[] corners = { first, first + k, first + k + 1 };
+				for (int c = 0; c < 3; c++) {
+					int v = corners[c];
+					triangles[3*t+c] = data.vertexPositions[v];
+					if (anyNormals) triangleNormals[3*t+c] = data.vertexNormals[v];
+					if (anyUVs) triangleUVs[3*t+c] = data.vertexUVs[v];
+				}
+			}
+		}
+		return new PackedMesh(data.positions,
+				data.normals.length > 0 ? data.normals : null,
+				data.uvs.length > 0 ? data.uvs : null,
+				triangles, triangleNormals, triangleUVs);
+	}
+
+	public int getNumTriangles() { return triangles.length / 3; }
+
+	// The raw arrays, for MeshCache
+	int[] getTriangles() { return triangles; }
+	int[] getTriangleNormals() { return triangleNormals; }
+	int[] getTriangleUVs() { return triangleUVs; }
+	PrimitiveBvh getBvh() { return bvh; }
+
+	/** @return the approximate memory used by the vertex data, indices and BVH, in bytes. */
+	public long getMemoryBytes() {
+		long bytes = 4L * positions.length + 4L * triangles.length + bvh.getMemoryBytes();
+		if (normals != null) bytes += 4L * normals.length;
+		if (uvs != null) bytes += 4L * uvs.length;
+		if (triangleNormals != null) bytes += 4L * triangleNormals.length;
+		if (triangleUVs != null) bytes += 4L * triangleUVs.length;
+		return bytes;
+	}
+
+	/**
+	 * Tests this surface for intersection with ray. If an intersection is found
+	 * record is filled out with the information about the intersection and the
+	 * method returns true. It returns false otherwise and the information in
+	 * outRecord is not modified.
+	 *
+	 * @param outRecord the output IntersectionRecord
+	 * @param rayIn the ray to intersect
+	 * @return true if the surface intersects the ray
+	 */
+	public boolean intersect(IntersectionRecord outRecord, Ray rayIn) {
+		return intersectAndFinalize(outRecord, rayIn);
+	}
+
+	/**
+	 * Find the closest triangle hit through the BVH; only its index is recorded, in
+	 * hit.primitive. Without a record the first triangle hit is enough, so the BVH stops
+	 * early.
+	 */
+	public double intersectT(Ray rayIn, IntersectionRecord hit) {
+		int tri = bvh.intersect(rayIn, triangleTest, hit == null);
+		if (tri < 0) return Double.NaN;
+		if (hit == null) return rayIn.end;
+		hit.t = intersectTriangle(tri, rayIn);
+		hit.surface = this;
+		hit.primitive = tri;
+		return hit.t;
+	}
+
+	/**
+	 * Fill in the record for a hit on triangle record.primitive.
+	 */
+	public void finalizeRecord(IntersectionRecord record, Ray rayIn) {
+		fillRecord(record.primitive, rayIn, record);
+	}
+
+	/**
+	 * Moller-Trumbore test of one triangle against [ray.start, ray.end].
+	 *
+	 * @return the hit distance, or Double.NaN if the triangle is missed
+	 */
+	private double intersectTriangle(int tri, Ray ray) {
+		int i0 = 3 * triangles[3*tri], i1 = 3 * triangles[3*tri+1], i2 = 3 * triangles[3*tri+2];
+		double p0x = positions[i0], p0y = positions[i0+1], p0z = positions[i0+2];
+		double e1x = positions[i1] - p0x, e1y = positions[i1+1] - p0y, e1z = positions[i1+2] - p0z;
+		double e2x = positions[i2] - p0x, e2y = positions[i2+1] - p0y, e2z = positions[i2+2] - p0z;
+		double dx = ray.direction.x, dy = ray.direction.y, dz = ray.direction.z;
+
+		// p = d x e2
+		double px = dy * e2z - dz * e2y, py = dz * e2x - dx * e2z, pz = dx * e2y - dy * e2x;
+		double det = e1x * px + e1y * py + e1z * pz;
+		if (det == 0) return Double.NaN;
+		double invDet = 1 / det;
+
+		double sx = ray.origin.x - p0x, sy = ray.origin.y - p0y, sz = ray.origin.z - p0z;
+		double u = (sx * px + sy * py + sz * pz) * invDet;
+		if (u < 0 || u > 1) return Double.NaN;
+
+		// q = s x e1
+		double qx = sy * e1z - sz * e1y, qy = sz * e1x - sx * e1z, qz = sx * e1y - sy * e1x;
+		double v = (dx * qx + dy * qy + dz * qz) * invDet;
+		if (v < 0 || u + v > 1) return Double.NaN;
+
+		double t = (e2x * qx + e2y * qy + e2z * qz) * invDet;
+		if (t < ray.start || t > ray.end) return Double.NaN;
+		return t;
+	}
+
+	/**
+	 * Fill outRecord for a hit on triangle tri, interpolating the vertex normals and
+	 * texture coordinates with the barycentric coordinates of the hit point.
+	 */
+	private void fillRecord(int tri, Ray ray, IntersectionRecord outRecord) {
+		int i0 = 3 * triangles[3*tri], i1 = 3 * triangles[3*tri+1], i2 = 3 * triangles[3*tri+2];
+		double p0x = positions[i0], p0y = positions[i0+1], p0z = positions[i0+2];
+		double e1x = positions[i1] - p0x, e1y = positions[i1+1] - p0y, e1z = positions[i1+2] - p0z;
+		double e2x = positions[i2] - p0x, e2y = positions[i2+1] - p0y, e2z = positions[i2+2] - p0z;
+		double dx = ray.direction.x, dy = ray.direction.y, dz = ray.direction.z;
+
+		double px = dy * e2z - dz * e2y, py = dz * e2x - dx * e2z, pz = dx * e2y - dy * e2x;
+		double invDet = 1 / (e1x * px + e1y * py + e1z * pz);
+		double sx = ray.origin.x - p0x, sy = ray.origin.y - p0y, sz = ray.origin.z - p0z;
+		double u = (sx * px + sy * py + sz * pz) * invDet;
+		double qx = sy * e1z - sz * e1y, qy = sz * e1x - sx * e1z, qz = sx * e1y - sy * e1x;
+		double v = (dx * qx + dy * qy + dz * qz) * invDet;
+		double t = (e2x * qx + e2y * qy + e2z * qz) * invDet;
+		double w = 1 - u - v;
+
+		outRecord.t = t;
+		outRecord.surface = this;
+		outRecord.location.set(ray.origin.x + t * dx, ray.origin.y + t * dy, ray.origin.z + t * dz);
+
+		if (triangleNormals != null && triangleNormals[3*tri] >= 0) {
+			int n0 = 3 * triangleNormals[3*tri], n1 = 3 * triangleNormals[3*tri+1], n2 = 3 * triangleNormals[3*tri+2];
+			outRecord.normal.set(
+					w * normals[n0] + u * normals[n1] + v * normals[n2],
+					w * normals[n0+1] + u * normals[n1+1] + v * normals[n2+1],
+					w * normals[n0+2] + u * normals[n1+2] + v * normals[n2+2]);
+		} else {
+			outRecord.normal.set(e1y * e2z - e1z * e2y, e1z * e2x - e1x * e2z, e1x * e2y - e1y * e2x);
+		}
+		outRecord.normal.normalize();
+
+		if (triangleUVs != null && triangleUVs[3*tri] >= 0) {
+			int t0 = 2 * triangleUVs[3*tri], t1 = 2 * triangleUVs[3*tri+1], t2 = 2 * triangleUVs[3*tri+2];
+			outRecord.texCoords.set(
+					w * uvs[t0] + u * uvs[t1] + v * uvs[t2],
+					w * uvs[t0+1] + u * uvs[t1+1] + v * uvs[t2+1]);
+		}
+	}
+
+	public void computeBoundingBox() {
+		minBound = new Vector3d(Double.POSITIVE_INFINITY);
+		maxBound = new Vector3d(Double.NEGATIVE_INFINITY);
+		for (int i = 0; i < triangles.length; i++) {
+			int p = 3 * triangles[i];
+			minBound.set(Math.min(minBound.x, positions[p]), Math.min(minBound.y, positions[p+1]), Math.min(minBound.z, positions[p+2]));
+			maxBound.set(Math.max(maxBound.x, positions[p]), Math.max(maxBound.y, positions[p+1]), Math.max(maxBound.z, positions[p+2]));
+		}
+		averagePosition = new Vector3d(minBound).add(maxBound).mul(0.5);
+	}
+
+	/**
+	 * @see Object#toString()
+	 */
+	public String toString() {
+		return "PackedMesh " + getNumTriangles() + " triangles";
+	}
+}
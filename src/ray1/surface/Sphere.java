@@ -2,7 +2,6 @@ package ray1.surface;
 
 import ray1.IntersectionRecord;
 import ray1.Ray;
-import egl.math.Vector2d;
 import egl.math.Vector3;
 import egl.math.Vector3d;
 import ray1.accel.BboxUtils;
@@ -39,33 +38,59 @@ public class Sphere extends Surface {
    * @return true if the surface intersects the ray
    */
   public boolean intersect(IntersectionRecord outRecord, Ray rayIn) {
-    // TODO#Ray Task 2: fill in this function.
+    return intersectAndFinalize(outRecord, rayIn);
+  }
+
+  /**
+   * Solve for the nearer root of |e + t d - c|^2 = R^2 within the ray segment.
+   * Only t and the surface are recorded; see finalizeRecord.
+   */
+  public double intersectT(Ray rayIn, IntersectionRecord hit) {
+    // t = ( -d*(e - c) +- sqrt( (d*(e - c))^2 - (d*d)((e - c)*(e - c) - R^2) ) ) / (d*d)
+    Vector3d d = rayIn.direction;
+    double ecx = rayIn.origin.x - center.x;
+    double ecy = rayIn.origin.y - center.y;
+    double ecz = rayIn.origin.z - center.z;
+    double dd = d.x * d.x + d.y * d.y + d.z * d.z;
+    double dec = d.x * ecx + d.y * ecy + d.z * ecz;
+    double discriminant = dec * dec - dd * (ecx * ecx + ecy * ecy + ecz * ecz - radius * radius);
+    if (discriminant < 0) {
+      return Double.NaN;
+    }
+
+    // Check tNeg first, because it will be closer than tPos
+    double root = Math.sqrt(discriminant);
+    double t = (-dec - root) / dd;
+    if (!(t <= rayIn.end && t >= rayIn.start)) {
+      t = (-dec + root) / dd;
+      if (!(t <= rayIn.end && t >= rayIn.start)) {
+        return Double.NaN;
+      }
+    }
+
+    if (hit != null) {
+      hit.t = t;
+      hit.surface = this;
+    }
+    return t;
+  }
 
-        // t = ( -d*(e - c) +- sqrt( (d*(e - c))^2 - (d*d)((e - c)*(e - c) - R^2) ) ) / (d*d)
-        
-        Vector3d d = rayIn.direction;
-        Vector3d e = rayIn.origin;
-        Vector3d c = new Vector3d(center);
-        
-        // disc = (d*(e - c))^2 - (d*d)((e - c)*(e - c) - R^2)
-        double discriminant = Math.pow((d.clone().dot(e.clone().sub(c))), 2) - (d.clone().dot(d)) * ((e.clone().sub(c)).dot(e.clone().sub(c)) - (radius * radius));
-        if (discriminant < 0) {
-            return false;
-        }
-        
-        double tPos = ( d.clone().mul(-1).dot(e.clone().sub(c)) + Math.sqrt(discriminant) ) / d.clone().dot(d);
-        double tNeg = ( d.clone().mul(-1).dot(e.clone().sub(c)) - Math.sqrt(discriminant) ) / d.clone().dot(d);
-        
-        // If there was an intersection, fill out the intersection record
-        if(tNeg <= rayIn.end && tNeg >= rayIn.start) { // Check tNeg first, because it will be closer than tPos
-            setIntersectionRecord(outRecord, rayIn, tNeg);
-        } else if(tPos <= rayIn.end && tPos >= rayIn.start) {
-            setIntersectionRecord(outRecord, rayIn, tPos);
-        } else {
-            return false;
-        }
+  /**
+   * Fill in the location, normal and texture coordinates of the hit at record.t.
+   */
+  public void finalizeRecord(IntersectionRecord outRecord, Ray rayIn) {
+    // The point on the ray that intersects the sphere
+    rayIn.evaluate(outRecord.location, outRecord.t);
 
-        return true;
+    // Normal is the direction from center to point on sphere
+    Vector3d normal = outRecord.normal;
+    normal.set(outRecord.location.x - center.x, outRecord.location.y - center.y, outRecord.location.z - center.z);
+    normal.normalize();
+
+    // Calculate the texture coordinates
+    double theta = Math.asin(normal.y);
+    double phi = Math.asin(normal.x / Math.cos(theta));
+    outRecord.texCoords.set((theta / Math.PI) + 0.5, phi / 2.0 / Math.PI + 0.5);
   }
   
   /**
@@ -82,33 +107,4 @@ public class Sphere extends Surface {
     return "sphere " + center + " " + radius + " " + shader + " end";
   }
 
-  private void setIntersectionRecord(IntersectionRecord outRecord, Ray rayIn, double t) {
-      if(outRecord == null) return;
-      
-      // The point on the ray that intersects the sphere
-      Vector3d point = new Vector3d();
-      rayIn.evaluate(point, t);
-      
-      outRecord.location.set(point);
-      
-      // Normal is the direction from center to point on sphere
-      outRecord.normal.set(point.clone().sub(center).normalize());
-      
-      // Calculate the texture coordinates
-      Vector3d intersection = point.clone().sub(center).normalize();
-      double theta = Math.asin(intersection.y);
-      double phi = Math.asin(intersection.x / Math.cos(theta));
-      
-      Vector2d texCoords = new Vector2d((theta / Math.PI) + 0.5, phi / 2.0 / Math.PI + 0.5);
-      outRecord.texCoords.set(texCoords);
-
-//        System.out.println("intersection: " + intersection + ", texCoords: " + texCoords);
-      
-      // The intersected object is this sphere
-      outRecord.surface = this;
-
-      // save the t value
-      outRecord.t = t;
-  }
-
-}
\ No newline at end of file
+}
@@ -57,6 +57,50 @@ public abstract class Surface {
 	 */
 	public abstract boolean intersect(IntersectionRecord outRecord, Ray ray);
 	
+	/**
+	 * The first half of the two-phase intersection used by the acceleration structures:
+	 * find the closest hit of ray within [ray.start, ray.end] without computing any
+	 * shading data. On a hit, if hit is not null, set hit.t and hit.surface and leave in
+	 * hit whatever finalizeRecord will need (hit.u, hit.v, hit.primitive); hit.surface is
+	 * the surface whose finalizeRecord must be called. Nothing is written on a miss.
+	 * 
+	 * This default falls back on intersect(), which does all the work up front. When hit
+	 * is null only whether there is a hit matters, and ray.end is returned for a hit.
+	 *
+	 * @param ray the ray to intersect
+	 * @param hit the record for the minimal hit data, or null for an any-hit test
+	 * @return the t value of the hit, or Double.NaN if there is none
+	 */
+	public double intersectT(Ray ray, IntersectionRecord hit) {
+		if (!intersect(hit, ray)) return Double.NaN;
+		return hit == null ? ray.end : hit.t;
+	}
+	
+	/**
+	 * The second half of the two-phase intersection: complete record, which holds the
+	 * data left by intersectT for the closest hit, with the location, normal and texture
+	 * coordinates. Called once per ray, on record.surface.
+	 * 
+	 * This default does nothing, matching the default intersectT.
+	 *
+	 * @param record the record to complete
+	 * @param ray the ray that produced the hit
+	 */
+	public void finalizeRecord(IntersectionRecord record, Ray ray) {
+		// do nothing
+	}
+	
+	/**
+	 * An implementation of intersect() for surfaces that override intersectT and
+	 * finalizeRecord.
+	 */
+	protected final boolean intersectAndFinalize(IntersectionRecord outRecord, Ray ray) {
+		double t = intersectT(ray, outRecord);
+		if (Double.isNaN(t)) return false;
+		if (outRecord != null) outRecord.surface.finalizeRecord(outRecord, ray);
+		return true;
+	}
+	
 	/**
 	 * Add this surface (and any child surfaces) to the array list in.
 	 */
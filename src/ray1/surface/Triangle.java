@@ -2,12 +2,12 @@ package ray1.surface;
 
 import ray1.IntersectionRecord;
 import ray1.Ray;
-import egl.math.Matrix3d;
-import egl.math.Vector2d;
+import egl.math.Vector2;
 import egl.math.Vector3;
 import egl.math.Vector3d;
 import ray1.shader.Shader;
 import ray1.OBJFace;
+import ray1.OBJMesh;
 import ray1.accel.BboxUtils;
 
 /**
@@ -16,8 +16,8 @@ import ray1.accel.BboxUtils;
  * @author ags
  */
 public class Triangle extends Surface {
-  /** The normal vector of this triangle, if vertex normals are not specified */
-  Vector3 norm;
+  /** The geometric normal of this triangle, used if vertex normals are not specified */
+  final Vector3d norm = new Vector3d();
   
   /** The mesh that contains this triangle */
   public Mesh owner;
@@ -25,7 +25,11 @@ public class Triangle extends Surface {
   /** The face that contains this triangle */
   public OBJFace face = null;
   
-  double a, b, c, d, e, f;
+  /** Vertex 0 and the edges from it to vertices 1 and 2, fixed at construction */
+  final double v0x, v0y, v0z;
+  final double e1x, e1y, e1z;
+  final double e2x, e2y, e2z;
+
   public Triangle(Mesh owner, OBJFace face, Shader shader) {
     this.owner = owner;
     this.face = face;
@@ -33,22 +37,12 @@ public class Triangle extends Surface {
     Vector3 v0 = owner.getMesh().getPosition(face,0);
     Vector3 v1 = owner.getMesh().getPosition(face,1);
     Vector3 v2 = owner.getMesh().getPosition(face,2);
-    
-    if (!face.hasNormals()) {
-      Vector3 e0 = new Vector3(), e1 = new Vector3();
-      e0.set(v1).sub(v0);
-      e1.set(v2).sub(v0);
-      norm = new Vector3();
-      norm.set(e0).cross(e1).normalize();
-    }
 
-    a = v0.x-v1.x;
-    b = v0.y-v1.y;
-    c = v0.z-v1.z;
-    
-    d = v0.x-v2.x;
-    e = v0.y-v2.y;
-    f = v0.z-v2.z;
+    v0x = v0.x; v0y = v0.y; v0z = v0.z;
+    e1x = v1.x - v0x; e1y = v1.y - v0y; e1z = v1.z - v0z;
+    e2x = v2.x - v0x; e2y = v2.y - v0y; e2z = v2.z - v0z;
+
+    norm.set(e1y * e2z - e1z * e2y, e1z * e2x - e1x * e2z, e1x * e2y - e1y * e2x).normalize();
     
     this.setShader(shader);
   }
@@ -75,74 +69,74 @@ public class Triangle extends Surface {
    * @return true if the surface intersects the ray
    */
   public boolean intersect(IntersectionRecord outRecord, Ray rayIn) {
-    // TODO#Ray Task 2: fill in this function.
-    
-    
-    Vector3d dir = rayIn.direction.clone();
-
-    Vector3d xe = rayIn.origin.clone();
-
-    Vector3d xa = new Vector3d(owner.getMesh().getPosition(face,0).clone());
-
-    Vector3d xae = xa.clone().sub(xe);
-    
-    double g = dir.x;
-    double h = dir.y;
-    double i = dir.z;
-    
-    double j = xae.x;
-    double k = xae.y;
-    double l = xae.z;
-    
-    double M = a*(e*i - h*f) + b*(g*f-d*i) + c*(d*h - e*g);
-    
-    double t = -(f*(a*k-j*b)+e*(j*c-a*l)+d*(b*l-k*c))/M;
-    
-    if(t < rayIn.start || t > rayIn.end) {
-        return false;
-    }	
-
-    double gamma = (i*(a*k-j*b) + h*(j*c-a*l) + g*(b*l-k*c))/M;
-    if(gamma < 0 || gamma > 1) {
-        return false;
-    }
+    return intersectAndFinalize(outRecord, rayIn);
+  }
 
-    double beta = (j*(e*i - h*f) + k*(g*f-d*i) + l*(d*h-e*g))/M;
-    if(beta < 0 || beta > 1 - gamma) {
-        return false;
+  /**
+   * Uses the Moller-Trumbore test on the precomputed edges, without allocating.
+   * The barycentric weights of vertices 1 and 2 are recorded in hit.u and hit.v.
+   */
+  public double intersectT(Ray rayIn, IntersectionRecord hit) {
+    double dx = rayIn.direction.x, dy = rayIn.direction.y, dz = rayIn.direction.z;
+
+    // p = d x e2
+    double px = dy * e2z - dz * e2y, py = dz * e2x - dx * e2z, pz = dx * e2y - dy * e2x;
+    double det = e1x * px + e1y * py + e1z * pz;
+    if (det == 0) return Double.NaN;
+    double invDet = 1 / det;
+
+    // beta and gamma are the barycentric weights of vertices 1 and 2
+    double sx = rayIn.origin.x - v0x, sy = rayIn.origin.y - v0y, sz = rayIn.origin.z - v0z;
+    double beta = (sx * px + sy * py + sz * pz) * invDet;
+    if (beta < 0 || beta > 1) return Double.NaN;
+
+    // q = s x e1
+    double qx = sy * e1z - sz * e1y, qy = sz * e1x - sx * e1z, qz = sx * e1y - sy * e1x;
+    double gamma = (dx * qx + dy * qy + dz * qz) * invDet;
+    if (gamma < 0 || beta + gamma > 1) return Double.NaN;
+
+    double t = (e2x * qx + e2y * qy + e2z * qz) * invDet;
+    if (t < rayIn.start || t > rayIn.end) return Double.NaN;
+
+    if (hit != null) {
+      hit.t = t;
+      hit.surface = this;
+      hit.u = beta;
+      hit.v = gamma;
     }
+    return t;
+  }
 
+  /**
+   * Fill in the location and interpolate the normal and texture coordinates from
+   * the barycentric weights left by intersectT.
+   */
+  public void finalizeRecord(IntersectionRecord outRecord, Ray rayIn) {
+    double t = outRecord.t, beta = outRecord.u, gamma = outRecord.v;
     double alpha = 1 - beta - gamma;
-   
-    if(outRecord!=null) {
-        outRecord.t = t;
-        outRecord.surface = this;
-//            outRecord.location.set(xe.clone().add(dir.clone().mul(t)));
-        rayIn.evaluate(outRecord.location, t);
-        
-//            outRecord.location.set(rayIn.evaluate(, t));
-
-        if(this.face.hasNormals()) {
-            Vector3 n0 =  owner.getMesh().getNormal(face, 0).clone().mul((float)alpha);
-            Vector3 n1 =  owner.getMesh().getNormal(face, 1).clone().mul((float)beta);
-            Vector3 n2 =  owner.getMesh().getNormal(face, 2).clone().mul((float)gamma);
-            outRecord.normal.set(n0.clone().add(n1).clone().add(n2).normalize());
-            this.norm =  n0.clone().add(n1).clone().add(n2).normalize();
-        }
-        
-        if(this.face.hasUVs()) {
-            egl.math.Vector2 v0 = owner.getMesh().getUV(face, 0).clone().mul((float)alpha);
-            egl.math.Vector2 v1 = owner.getMesh().getUV(face, 1).clone().mul((float)beta);
-            egl.math.Vector2 v2 = owner.getMesh().getUV(face, 2).clone().mul((float)gamma);
-            outRecord.texCoords.set(v0.add(v1).add(v2).normalize());
-        }
-
-//            outRecord.normal.set(this.norm);
+    outRecord.location.set(
+        rayIn.origin.x + t * rayIn.direction.x,
+        rayIn.origin.y + t * rayIn.direction.y,
+        rayIn.origin.z + t * rayIn.direction.z);
+
+    OBJMesh mesh = owner.getMesh();
+    if (face.hasNormals()) {
+      Vector3 n0 = mesh.getNormal(face, 0), n1 = mesh.getNormal(face, 1), n2 = mesh.getNormal(face, 2);
+      outRecord.normal.set(
+          alpha * n0.x + beta * n1.x + gamma * n2.x,
+          alpha * n0.y + beta * n1.y + gamma * n2.y,
+          alpha * n0.z + beta * n1.z + gamma * n2.z).normalize();
+    } else {
+      outRecord.normal.set(norm);
     }
-    
-    return true;
 
-}
+    if (face.hasUVs()) {
+      Vector2 uv0 = mesh.getUV(face, 0), uv1 = mesh.getUV(face, 1), uv2 = mesh.getUV(face, 2);
+      outRecord.texCoords.set(
+          alpha * uv0.x + beta * uv1.x + gamma * uv2.x,
+          alpha * uv0.y + beta * uv1.y + gamma * uv2.y);
+    }
+  }
   
   public void computeBoundingBox(){
 	  BboxUtils.triangleBBox(this);
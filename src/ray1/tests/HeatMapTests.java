@@ -0,0 +1,80 @@
+package ray1.tests;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import egl.math.Colorf;
+import ray1.HeatMap;
+import ray1.Image;
+import ray1.RenderStats;
+
+public class HeatMapTests {
+
+    @Test
+    public void testCosts() {
+        System.out.println("\nTesting heat map costs.");
+        System.out.println("==============================================");
+        HeatMap nodes = new HeatMap(" Nodes", 4, 3), tests = new HeatMap("tests", 4, 3);
+        assertTrue("Metric names are not case sensitive", nodes.getMetric() == HeatMap.NODES);
+
+        // Only what happens between read and add counts, and passes add up
+        RenderStats.Counters counters = RenderStats.local();
+        counters.nodesVisited += 100;
+        for (int pass = 0; pass < 2; pass++) {
+            long beforeNodes = nodes.read(), beforeTests = tests.read();
+            counters.nodesVisited += 7;
+            counters.primitiveTests += 2;
+            nodes.add(3, 2, beforeNodes);
+            tests.add(3, 2, beforeTests);
+        }
+        counters.reset();
+        assertTrue("Node cost " + nodes.get(3, 2), nodes.get(3, 2) == 14);
+        assertTrue("Test cost " + tests.get(3, 2), tests.get(3, 2) == 4);
+        assertTrue("Other pixels cost nothing", nodes.get(2, 2) == 0 && nodes.get(3, 1) == 0);
+        assertTrue("Most pixels cost nothing", nodes.percentile(0.5) == 0 && nodes.percentile(1) == 14);
+
+        boolean rejected = false;
+        try {
+            new HeatMap("colors", 1, 1);
+        } catch (IllegalArgumentException e) {
+            rejected = true;
+        }
+        assertTrue("Unknown metrics must be rejected", rejected);
+        System.out.println("Heat map costs passed.\n");
+    }
+
+    @Test
+    public void testRamp() {
+        System.out.println("\nTesting the heat map color ramp.");
+        System.out.println("==============================================");
+        Colorf c = new Colorf();
+        HeatMap.ramp(0, c);
+        assertTrue("No cost must be black: " + c, c.x == 0 && c.y == 0 && c.z == 0);
+        float last = -1;
+        for (int i = 0; i <= 100; i++) {
+            HeatMap.ramp(i / 100.0f, c);
+            float luminance = 0.2126f * c.x + 0.7152f * c.y + 0.0722f * c.z;
+            assertTrue("The ramp must get brighter at " + i + "%", luminance > last);
+            last = luminance;
+        }
+        Colorf top = new Colorf();
+        HeatMap.ramp(1, top);
+        HeatMap.ramp(5, c);
+        assertTrue("Costs above the scale take the hottest color", c.x == top.x && c.y == top.y && c.z == top.z);
+
+        // The PNG shows the ramp's colors once Image.write gamma corrects them
+        HeatMap map = new HeatMap(HeatMap.TESTS, 2, 1);
+        RenderStats.Counters counters = RenderStats.local();
+        long before = map.read();
+        counters.primitiveTests += 10;
+        map.add(1, 0, before);
+        counters.reset();
+        Image image = map.toImage(10);
+        image.getPixelColor(c, 1, 0);
+        c.gammaCorrect(2.2f);
+        assertTrue("Hottest pixel " + c, Math.abs(c.x - top.x) < 1e-4f && Math.abs(c.y - top.y) < 1e-4f
+                && Math.abs(c.z - top.z) < 1e-4f);
+        System.out.println("Heat map ramp passed.\n");
+    }
+}
@@ -0,0 +1,79 @@
+package ray1.tests;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import egl.math.Colorf;
+import ray1.GammaTable;
+import ray1.Image;
+
+public class ImageTests {
+
+    /** The conversion Image.write used per pixel before it had a GammaTable. */
+    private static int colorfToIntRGB(Colorf c) {
+        Colorf corrected = new Colorf(c);
+        corrected.gammaCorrect(2.2f);
+        return corrected.toColor().toIntRGB();
+    }
+
+    @Test
+    public void testGammaTableMatchesColorf() {
+        System.out.println("\nTesting the gamma table against Colorf.");
+        System.out.println("==============================================");
+        GammaTable table = GammaTable.get(2.2f);
+        Random rnd = new Random(4620);
+        int checked = 0;
+        for (int i = 0; i < 200000; i++) {
+            float v = i % 2 == 0 ? rnd.nextFloat() * 1.2f - 0.1f : (float) Math.pow(10, rnd.nextDouble() * 8 - 7);
+            Colorf c = new Colorf(v, v, v);
+            assertTrue("Quantized " + v + " differently", table.toIntRGB(v, v, v) == colorfToIntRGB(c));
+            checked++;
+        }
+
+        // Every float within a few ulps of each 1/255 step, where rounding is decided
+        for (int b = 0; b <= 255; b++) {
+            float corrected = (b - 0.5f) / 255f;
+            float v = (float) Math.pow(Math.max(corrected, 0), 2.2);
+            for (int k = -64; k <= 64; k++) {
+                float u = Float.intBitsToFloat(Float.floatToIntBits(v) + k);
+                assertTrue("Quantized " + u + " differently", table.toIntRGB(u, u, u) == colorfToIntRGB(new Colorf(u, u, u)));
+                checked++;
+            }
+        }
+
+        float[] special = { 0f, -0f, -1f, 1f, 2f, Float.NaN, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.MIN_VALUE };
+        for (float v : special) {
+            assertTrue("Quantized " + v + " differently", table.toIntRGB(v, v, v) == colorfToIntRGB(new Colorf(v, v, v)));
+        }
+        System.out.println(checked + " values matched.\n");
+    }
+
+    @Test
+    public void testIntRGBRowOrder() {
+        System.out.println("\nTesting Image.toIntRGB.");
+        System.out.println("==============================================");
+        int width = 301, height = 257;
+        Image image = new Image(width, height);
+        Random rnd = new Random(4621);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setPixelColor(new Colorf(rnd.nextFloat() * 1.5f, rnd.nextFloat(), rnd.nextFloat() * 0.1f), x, y);
+            }
+        }
+        int[] raster = new int[width * height];
+        image.toIntRGB(raster, 2.2f);
+
+        Colorf c = new Colorf();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.getPixelColor(c, x, y);
+                // Row 0 of the raster is the top of the image
+                assertTrue("Pixel " + x + ", " + y, raster[(height - 1 - y) * width + x] == colorfToIntRGB(c));
+            }
+        }
+        System.out.println("toIntRGB passed.\n");
+    }
+}
@@ -0,0 +1,117 @@
+package ray1.tests;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import egl.math.Vector3d;
+import ray1.IntersectionRecord;
+import ray1.Ray;
+import ray1.RayTracer;
+import ray1.surface.Mesh;
+import ray1.surface.PackedMesh;
+
+public class MeshCacheTests {
+
+    /** Load an OBJ file into a Mesh the way the parser does, through the scene workspace. */
+    private static Mesh load(Path obj) throws IOException {
+        Mesh mesh = new Mesh();
+        mesh.setWorkspace(new RayTracer.ScenePath(null, obj.resolveSibling("scene.xml").toString()));
+        mesh.setData(obj.getFileName().toString());
+        return mesh;
+    }
+
+    private static void deleteAll(Path dir) throws IOException {
+        for (File f : dir.toFile().listFiles()) f.delete();
+        Files.delete(dir);
+    }
+
+    @Test
+    public void testCachedMeshMatches() throws IOException {
+        System.out.println("\nTesting meshes loaded from the binary mesh cache.");
+        System.out.println("==============================================");
+        Path dir = Files.createTempDirectory("meshcache");
+        try {
+            Path obj = dir.resolve("teapot.obj");
+            Files.copy(Paths.get("data/meshes/teapot.obj"), obj);
+            Path cache = Paths.get(obj + ".cache");
+
+            PackedMesh parsed = load(obj).getPackedMesh();
+            assertTrue("Packing the mesh did not write a cache", Files.isRegularFile(cache));
+            long modified = Files.getLastModifiedTime(cache).toMillis();
+            PackedMesh cached = load(obj).getPackedMesh();
+            assertTrue("A mesh loaded from its cache rewrote it", Files.getLastModifiedTime(cache).toMillis() == modified);
+            assertTrue(cached.getNumTriangles() == parsed.getNumTriangles());
+
+            Random rnd = new Random(4620);
+            IntersectionRecord expected = new IntersectionRecord();
+            IntersectionRecord actual = new IntersectionRecord();
+            int hits = 0;
+            for (int i = 0; i < 2000; i++) {
+                Vector3d origin = new Vector3d(rnd.nextDouble() * 16 - 8, rnd.nextDouble() * 16 - 8, rnd.nextDouble() * 16 - 8);
+                Vector3d target = new Vector3d(rnd.nextDouble() * 4 - 2, rnd.nextDouble() * 4 - 2, rnd.nextDouble() * 4 - 2);
+                Ray ray = new Ray(origin, target.sub(origin));
+                ray.makeOffsetRay();
+                boolean hit = parsed.intersect(expected, ray);
+                assertTrue("Ray " + i + " hit mismatch", cached.intersect(actual, ray) == hit);
+                if (!hit) continue;
+                hits++;
+                assertTrue("Ray " + i + " t mismatch", actual.t == expected.t);
+                TestUtils.assertVector3dEqual(actual.normal, expected.normal);
+            }
+            assertTrue("Too few rays hit the mesh", hits > 100);
+            System.out.println(hits + " of 2000 rays hit; all matched.");
+
+            // An edited OBJ file no longer matches its cache
+            Files.write(obj, "v 100 100 100\nf 1 2 3\n".getBytes(StandardCharsets.US_ASCII), StandardOpenOption.APPEND);
+            PackedMesh edited = load(obj).getPackedMesh();
+            assertTrue("A stale cache was used", edited.getNumTriangles() == parsed.getNumTriangles() + 1);
+
+            // A damaged cache is ignored too, rather than failing the render
+            byte[] bytes = Files.readAllBytes(cache);
+            ByteBuffer in = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+            int packed = 52;
+            for (int i = 0; i < 7; i++) packed += 4 * in.getInt(24 + 4 * i);
+            int vertexPositions = 52 + 4 * (in.getInt(24) + in.getInt(28) + in.getInt(32) + in.getInt(36));
+            int bvh = packed + 12 + 4 * (in.getInt(packed) + Math.max(in.getInt(packed + 4), 0) + Math.max(in.getInt(packed + 8), 0));
+            int[][] damage = {
+                { 24, Integer.MAX_VALUE },                   // the number of positions
+                { 24, -1 },
+                { vertexPositions, 1 << 20 },                // the position index of a face vertex
+                { packed, Integer.MAX_VALUE },               // the number of packed triangle indices
+                { packed + 12, -5 },                         // the position index of a packed triangle
+                { bvh, -1 },                                 // the number of BVH nodes
+                { bvh + 8, 0 },                              // the BVH traversal stack size
+                { bvh + 12 + 24 * in.getInt(bvh), 1 << 20 }, // the second child of the BVH root
+            };
+            // Only a miss parses the OBJ again and rewrites the cache
+            for (int[] d : damage) {
+                ByteBuffer damaged = ByteBuffer.wrap(bytes.clone()).order(ByteOrder.LITTLE_ENDIAN);
+                damaged.putInt(d[0], d[1]);
+                Files.write(cache, damaged.array());
+                assertTrue(load(obj).getPackedMesh().getNumTriangles() == edited.getNumTriangles());
+                assertTrue("A cache damaged at byte " + d[0] + " was used", Arrays.equals(Files.readAllBytes(cache), bytes));
+            }
+            Files.write(cache, Arrays.copyOf(bytes, bytes.length + 4));
+            load(obj).getPackedMesh();
+            assertTrue("A cache with trailing bytes was used", Arrays.equals(Files.readAllBytes(cache), bytes));
+            Files.write(cache, Arrays.copyOf(bytes, bytes.length / 2));
+            assertTrue(load(obj).getPackedMesh().getNumTriangles() == edited.getNumTriangles());
+            System.out.println("Mesh cache passed.\n");
+        } finally {
+            deleteAll(dir);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package ray1.tests;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ray1.OBJData;
+import ray1.OBJFace;
+import ray1.OBJMesh;
+import ray1.OBJMesh.OBJFileFormatException;
+
+public class OBJDataTests {
+
+    /** Write text to a temporary .obj file and read it back. */
+    private static OBJData readText(String text) throws IOException {
+        File file = File.createTempFile("objdata", ".obj");
+        try {
+            Files.write(file.toPath(), text.getBytes(StandardCharsets.US_ASCII));
+            return OBJData.read(file.getPath());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testNumbersMatchFloatParse() throws IOException {
+        System.out.println("\nTesting OBJ number parsing against Float.parseFloat.");
+        System.out.println("==============================================");
+        Random rnd = new Random(4620);
+        String[] numbers = new String[3 * 3000];
+        for (int i = 0; i < numbers.length; i++) {
+            double d = (rnd.nextDouble() - 0.5) * Math.pow(10, rnd.nextInt(12) - 6);
+            switch (i % 5) {
+            case 0: numbers[i] = Float.toString((float) d); break;
+            case 1: numbers[i] = String.format(Locale.ROOT, "%.6f", d); break;
+            case 2: numbers[i] = String.format(Locale.ROOT, "%.3e", d); break;
+            case 3: numbers[i] = Double.toString(d); break;
+            default: numbers[i] = Long.toString(rnd.nextLong() % 100000); break;
+            }
+        }
+        // Shapes a tokenizer can trip over
+        String[] special = { "0", "-0", "+1.5", ".5", "-.25", "5.", "1E3", "2.5e+2", "1e-5", "-0.000000",
+                "123456789012345678", "0.1000000000000000055511151231257827", "3.4028235e38", "1e-40", "1.17549435E-38" };
+        System.arraycopy(special, 0, numbers, 0, special.length);
+
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < numbers.length; i += 3) {
+            text.append("v ").append(numbers[i]).append(' ').append(numbers[i + 1]).append('\t').append(numbers[i + 2]).append('\n');
+        }
+        OBJData data = readText(text.toString());
+        assertTrue(data.getNumPositions() == numbers.length / 3);
+        for (int i = 0; i < numbers.length; i++) {
+            float expected = Float.parseFloat(numbers[i]);
+            assertTrue("Parsed " + numbers[i] + " as " + data.positions[i] + ", expected " + expected,
+                    Float.floatToIntBits(data.positions[i]) == Float.floatToIntBits(expected));
+        }
+        System.out.println("All " + numbers.length + " numbers matched.\n");
+    }
+
+    @Test
+    public void testFaces() throws IOException {
+        System.out.println("\nTesting OBJ face parsing.");
+        System.out.println("==============================================");
+        OBJData data = readText(
+                "# a comment\r\n" +
+                "\n" +
+                "   \n" +
+                "o quad\r\n" +
+                "mtllib none.mtl\n" +
+                "v 0 0 0\nv 1 0 0\nv 1 1 0\nv 0 1 0\n" +
+                "vt 0 0\nvt 1 1\n" +
+                "vn 0 0 1\n" +
+                "s off\n" +
+                "f 1 2 3 4\n" +
+                "f 1/1 2/2 3/1\n" +
+                "f 1//1 3//1 4//1\n" +
+                "f -4/-2/-1 -3/-1/-1 -2/-2/-1");
+        assertTrue(data.getNumPositions() == 4 && data.getNumUVs() == 2 && data.getNumNormals() == 1);
+        assertTrue(data.getNumFaces() == 4);
+        assertTrue(data.faceSizes[0] == 4 && data.faceSizes[1] == 3);
+        int[] positions = { 0, 1, 2, 3,  0, 1, 2,  0, 2, 3,  0, 1, 2 };
+        int[] uvs =       { -1, -1, -1, -1,  0, 1, 0,  -1, -1, -1,  0, 1, 0 };
+        int[] normals =   { -1, -1, -1, -1,  -1, -1, -1,  0, 0, 0,  0, 0, 0 };
+        for (int v = 0; v < positions.length; v++) {
+            assertTrue("Position index of vertex " + v, data.vertexPositions[v] == positions[v]);
+            assertTrue("UV index of vertex " + v, data.vertexUVs[v] == uvs[v]);
+            assertTrue("Normal index of vertex " + v, data.vertexNormals[v] == normals[v]);
+        }
+
+        // The same faces as OBJMesh sees them
+        OBJMesh mesh = new OBJMesh(data);
+        OBJFace quad = mesh.faces.get(0), textured = mesh.faces.get(1), lit = mesh.faces.get(2);
+        assertTrue(quad.numVerts() == 4 && !quad.hasUVs() && !quad.hasNormals());
+        assertTrue(textured.hasUVs() && !textured.hasNormals());
+        assertTrue(!lit.hasUVs() && lit.hasNormals());
+        assertTrue(mesh.getPosition(lit, 1).x == 1 && mesh.getPosition(lit, 1).y == 1);
+        assertTrue(mesh.getUV(textured, 1).x == 1);
+        System.out.println("Faces passed.\n");
+    }
+
+    @Test
+    public void testMalformed() throws IOException {
+        System.out.println("\nTesting malformed OBJ lines.");
+        System.out.println("==============================================");
+        String[] bad = { "v 1 2\n", "v 1 2 3 4\n", "vt 1\n", "vn 0 x 1\n", "v 1 2 3\nf 1 1\n", "v 1 2 3\nf 1 a 1\n", "v 1 2 3\nf 0 1 1\n" };
+        for (String text : bad) {
+            boolean thrown = false;
+            try {
+                readText(text);
+            } catch (OBJFileFormatException e) {
+                thrown = true;
+                System.out.println(e.getMessage());
+            }
+            assertTrue("Accepted malformed OBJ: " + text, thrown);
+        }
+        System.out.println("Malformed lines passed.\n");
+    }
+}
@@ -0,0 +1,158 @@
+package ray1.tests;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import egl.math.Vector3;
+import egl.math.Vector3d;
+import ray1.IntersectionRecord;
+import ray1.OBJFace;
+import ray1.OBJMesh;
+import ray1.Ray;
+import ray1.surface.Mesh;
+import ray1.surface.PackedMesh;
+import ray1.surface.Triangle;
+
+public class PackedMeshTests {
+
+    /** The single triangle used by TriangleTests, with or without vertex normals. */
+    private static OBJMesh testTriangle(boolean withNormals) {
+        OBJMesh meshData = new OBJMesh();
+        meshData.positions.add(new Vector3(-5, -3, 2));
+        meshData.positions.add(new Vector3(1, -1, 0));
+        meshData.positions.add(new Vector3(3, 8, 6));
+        OBJFace face = new OBJFace(3, false, withNormals);
+        face.positions[0] = 0;
+        face.positions[1] = 1;
+        face.positions[2] = 2;
+        if (withNormals) {
+            meshData.normals.add(new Vector3(1, 0, 0));
+            meshData.normals.add(new Vector3(0, 1, 0));
+            meshData.normals.add(new Vector3(0, 0, 1));
+            face.normals[0] = 0;
+            face.normals[1] = 1;
+            face.normals[2] = 2;
+        }
+        meshData.faces.add(face);
+        return meshData;
+    }
+
+    @Test
+    public void testIntersectNoNormals() {
+        System.out.println("\nTesting packed mesh intersection: no normals.");
+        System.out.println("==============================================");
+        PackedMesh mesh = PackedMesh.fromOBJ(testTriangle(false));
+
+        IntersectionRecord its = new IntersectionRecord();
+        Ray ray = new Ray(new Vector3d(0, 0, -1), new Vector3d(0, 0, 1));
+        ray.makeOffsetRay();
+        assertTrue(mesh.intersect(its, ray));
+        TestUtils.assertVector3dEqual(its.location, new Vector3d(0.0, 0.0, 1.4));
+        TestUtils.assertVector3dEqual(its.normal, new Vector3d(0.4242640687119285, -0.565685424949238, 0.7071067811865476));
+        TestUtils.assertDoublesEqual(its.t, 2.4);
+        assertTrue(its.surface == mesh);
+
+        ray.makeOffsetSegment(2.0);
+        assertTrue("Hit beyond the end of the segment", !mesh.intersect(new IntersectionRecord(), ray));
+        System.out.println("Packed mesh without normals passed.\n");
+    }
+
+    @Test
+    public void testIntersectNormals() {
+        System.out.println("\nTesting packed mesh intersection: interpolated normals.");
+        System.out.println("==============================================");
+        PackedMesh mesh = PackedMesh.fromOBJ(testTriangle(true));
+
+        IntersectionRecord its = new IntersectionRecord();
+        Vector3d rayDirection = new Vector3d(-3.5, 1.0, 2.4);
+        rayDirection.normalize();
+        Ray ray = new Ray(new Vector3d(3.5, -1.3, -1.0), rayDirection);
+        ray.makeOffsetRay();
+        assertTrue(mesh.intersect(its, ray));
+        TestUtils.assertVector3dEqual(its.location, new Vector3d(-1.6799999999999953, 0.17999999999999883, 2.551999999999997));
+        TestUtils.assertVector3dEqual(its.normal, new Vector3d(0.8464296715703657, 0.3541707236027082, 0.397642942384266));
+        TestUtils.assertDoublesEqual(its.t, 6.45286788955112);
+
+        // An any-hit query without a record must not need one
+        assertTrue(mesh.intersect(null, ray));
+        System.out.println("Packed mesh with normals passed.\n");
+    }
+
+    @Test
+    public void testQuadIsSplit() {
+        System.out.println("\nTesting packed mesh intersection: quad face.");
+        System.out.println("==============================================");
+        OBJMesh meshData = new OBJMesh();
+        meshData.positions.add(new Vector3(0, 0, 0));
+        meshData.positions.add(new Vector3(1, 0, 0));
+        meshData.positions.add(new Vector3(1, 1, 0));
+        meshData.positions.add(new Vector3(0, 1, 0));
+        OBJFace face = new OBJFace(4, false, false);
+        for (int i = 0; i < 4; i++) face.positions[i] = i;
+        meshData.faces.add(face);
+        PackedMesh mesh = PackedMesh.fromOBJ(meshData);
+        assertTrue(mesh.getNumTriangles() == 2);
+
+        // (0.25, 0.75) is only covered by the second triangle of the fan
+        IntersectionRecord its = new IntersectionRecord();
+        Ray ray = new Ray(new Vector3d(0.25, 0.75, 1), new Vector3d(0, 0, -1));
+        ray.makeOffsetRay();
+        assertTrue(mesh.intersect(its, ray));
+        TestUtils.assertVector3dEqual(its.location, new Vector3d(0.25, 0.75, 0));
+        TestUtils.assertVector3dEqual(its.normal, new Vector3d(0, 0, 1));
+        System.out.println("Quad face passed.\n");
+    }
+
+    @Test
+    public void testMatchesTriangles() {
+        System.out.println("\nTesting packed mesh against per-face triangles.");
+        System.out.println("==============================================");
+        Random rnd = new Random(4620);
+        OBJMesh meshData = new OBJMesh();
+        for (int i = 0; i < 300; i++) {
+            Vector3 c = new Vector3(rnd.nextFloat() * 10 - 5, rnd.nextFloat() * 10 - 5, rnd.nextFloat() * 10 - 5);
+            OBJFace face = new OBJFace(3, false, false);
+            for (int k = 0; k < 3; k++) {
+                face.positions[k] = meshData.positions.size();
+                meshData.positions.add(new Vector3(c.x + rnd.nextFloat() - 0.5f, c.y + rnd.nextFloat() - 0.5f, c.z + rnd.nextFloat() - 0.5f));
+            }
+            meshData.faces.add(face);
+        }
+        Mesh owner = new Mesh(meshData);
+        Triangle[] triangles = new Triangle[meshData.faces.size()];
+        for (int i = 0; i < triangles.length; i++)
+            triangles[i] = new Triangle(owner, meshData.faces.get(i), owner.getShader());
+        PackedMesh packed = PackedMesh.fromOBJ(meshData);
+
+        IntersectionRecord expected = new IntersectionRecord();
+        IntersectionRecord actual = new IntersectionRecord();
+        int hits = 0;
+        for (int i = 0; i < 2000; i++) {
+            Vector3d origin = new Vector3d(rnd.nextDouble() * 16 - 8, rnd.nextDouble() * 16 - 8, rnd.nextDouble() * 16 - 8);
+            Vector3d target = new Vector3d(rnd.nextDouble() * 8 - 4, rnd.nextDouble() * 8 - 4, rnd.nextDouble() * 8 - 4);
+            Ray ray = new Ray(origin, target.sub(origin));
+            ray.makeOffsetRay();
+
+            boolean expectHit = false;
+            Ray closest = new Ray(ray);
+            for (Triangle t : triangles) {
+                if (t.intersect(expected, closest)) {
+                    expectHit = true;
+                    closest.end = expected.t;
+                }
+            }
+            boolean hit = packed.intersect(actual, ray);
+            assertTrue("Ray " + i + " hit mismatch", hit == expectHit);
+            assertTrue("Ray " + i + " end was not restored", ray.end == Float.POSITIVE_INFINITY);
+            if (!hit) continue;
+            hits++;
+            assertTrue("Ray " + i + " t mismatch", Math.abs(actual.t - expected.t) < 1e-6);
+            TestUtils.assertVector3dEqual(actual.location, expected.location);
+        }
+        assertTrue("Too few rays hit the mesh", hits > 100);
+        System.out.println(hits + " of 2000 rays hit; all matched.\n");
+    }
+}
@@ -0,0 +1,106 @@
+package ray1.tests;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import egl.math.Colorf;
+import ray1.Image;
+import ray1.PixelSampler;
+import ray1.SampleAccumulator;
+
+public class PixelSamplerTests {
+
+    @Test
+    public void testStratified() {
+        System.out.println("\nTesting stratified pixel samples.");
+        System.out.println("==============================================");
+        float[] center = new float[2];
+        PixelSampler.stratified(7, 3, 1, center);
+        assertTrue("One sample must be the pixel center", center[0] == 0.5f && center[1] == 0.5f);
+
+        for (int n = 2; n <= 5; n++) {
+            float[] a = new float[2 * n * n], b = new float[2 * n * n], other = new float[2 * n * n];
+            PixelSampler.stratified(12, 34, n, a);
+            PixelSampler.stratified(12, 34, n, b);
+            PixelSampler.stratified(34, 12, n, other);
+            assertTrue("Samples must not depend on when they are computed", Arrays.equals(a, b));
+            assertTrue("Different pixels should get different samples", !Arrays.equals(a, other));
+            for (int j = 0, k = 0; j < n; j++) {
+                for (int i = 0; i < n; i++, k += 2) {
+                    assertTrue("Sample " + k / 2 + " of " + n + "x" + n + " left its cell",
+                            a[k] >= (float) i / n && a[k] <= (float) (i + 1) / n
+                            && a[k + 1] >= (float) j / n && a[k + 1] <= (float) (j + 1) / n);
+                }
+            }
+        }
+        System.out.println("Stratified samples passed.\n");
+    }
+
+    @Test
+    public void testContrastMask() {
+        System.out.println("\nTesting the adaptive anti-aliasing contrast test.");
+        System.out.println("==============================================");
+        // A dim image with a bright vertical edge between columns 4 and 5, and faint noise at (1, 1)
+        int width = 10, height = 6;
+        Image image = new Image(width, height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setPixelColor(x < 5 ? new Colorf(0.1f, 0.1f, 0.1f) : new Colorf(0.1f, 0.9f, 0.1f), x, y);
+            }
+        }
+        image.setPixelColor(new Colorf(0.101f, 0.1f, 0.1f), 1, 1);
+
+        boolean[] refine = PixelSampler.contrastMask(image, 0.05f);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                assertTrue("Pixel " + x + ", " + y, refine[y * width + x] == (x == 4 || x == 5));
+            }
+        }
+        System.out.println("Contrast test passed.\n");
+    }
+
+    @Test
+    public void testProgressive() {
+        System.out.println("\nTesting progressive samples and their accumulation.");
+        System.out.println("==============================================");
+        float[] a = new float[2], b = new float[2];
+        PixelSampler.progressive(5, 9, 0, a);
+        assertTrue("The first sample must be the pixel center", a[0] == 0.5f && a[1] == 0.5f);
+
+        // Any prefix of the sequence should put about as many samples in each quarter of the pixel
+        int[] quarters = new int[4];
+        for (int pass = 0; pass < 64; pass++) {
+            PixelSampler.progressive(5, 9, pass, a);
+            PixelSampler.progressive(5, 9, pass, b);
+            assertTrue("Samples must not depend on when they are computed", Arrays.equals(a, b));
+            assertTrue("Sample " + pass + " left the pixel", a[0] >= 0 && a[0] < 1 && a[1] >= 0 && a[1] < 1);
+            quarters[(a[0] < 0.5f ? 0 : 1) + (a[1] < 0.5f ? 0 : 2)]++;
+        }
+        for (int q : quarters) assertTrue("Uneven samples: " + Arrays.toString(quarters), q >= 12 && q <= 20);
+
+        // Passes of constant color average to that color with no noise; alternating ones are noisy
+        SampleAccumulator flat = new SampleAccumulator(3, 2), edge = new SampleAccumulator(3, 2);
+        Image dark = new Image(3, 2), light = new Image(3, 2);
+        for (int y = 0; y < 2; y++) {
+            for (int x = 0; x < 3; x++) {
+                dark.setPixelColor(new Colorf(0.2f, 0.2f, 0.2f), x, y);
+                light.setPixelColor(new Colorf(0.6f, 0.6f, 0.6f), x, y);
+            }
+        }
+        for (int pass = 0; pass < 3; pass++) {
+            flat.add(dark);
+            edge.add(pass % 2 == 0 ? dark : light);
+        }
+        Image result = new Image(3, 2);
+        edge.resolve(result);
+        Colorf c = new Colorf();
+        result.getPixelColor(c, 2, 1);
+        assertTrue("Average of 0.2, 0.6, 0.2 is " + c.x, Math.abs(c.x - 1.0f / 3) < 1e-6f);
+        assertTrue("Constant passes must have no noise", flat.noise() == 0);
+        assertTrue("Alternating passes must be noisy", edge.noise() > 0.05);
+        System.out.println("Progressive samples passed.\n");
+    }
+}
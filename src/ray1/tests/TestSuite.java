@@ -9,6 +9,13 @@ import org.junit.runners.Suite;
     CameraTests.class,
     SphereTests.class,
     TriangleTests.class,
+    PackedMeshTests.class,
+    OBJDataTests.class,
+    MeshCacheTests.class,
+    ImageTests.class,
+    PixelSamplerTests.class,
+    HeatMapTests.class,
+    WavefrontTests.class,
     SceneTests.class,
     LambertianTests.class
     })
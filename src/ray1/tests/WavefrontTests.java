@@ -0,0 +1,71 @@
+package ray1.tests;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import egl.math.Colorf;
+import ray1.Image;
+import ray1.Parser;
+import ray1.RayTracer;
+import ray1.RenderStats;
+import ray1.Scene;
+
+public class WavefrontTests {
+
+    /** Gives the test access to RayTracer's render loop. */
+    private static class Renderer extends RayTracer {
+        void render(Scene scene, int samples) {
+            renderPass(scene, samples, -1, null);
+        }
+    }
+
+    @Test
+    public void testMatchesRecursive() {
+        System.out.println("\nTesting the wavefront renderer against the recursive one.");
+        System.out.println("==============================================");
+        // Mirrors several bounces deep, a mesh with shadows, and a shader that is not a ReflectionShader
+        String[] files = { "four-spheres.xml", "wire-box-phong.xml", "two-boxes-rgb-normals.xml" };
+        for (String file : files) {
+            Scene scene = (Scene) new Parser().parse(
+                    new RayTracer.ScenePath(RayTracer.directory, "fast_scenes/" + file), Scene.class);
+            scene.init();
+            Image image = scene.getImage();
+            int width = image.getWidth(), height = image.getHeight();
+
+            Renderer renderer = new Renderer();
+            renderer.setNumThreads(2);
+            renderer.setTileSize(24);
+            RenderStats stats = scene.getStats();
+            renderer.render(scene, 2);
+            long primary = stats.getPrimaryRays(), secondary = stats.getSecondaryRays(), shadow = stats.getShadowRays();
+            float[] expected = new float[3 * width * height];
+            Colorf c = new Colorf();
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    image.getPixelColor(c, x, y);
+                    expected[3 * (y * width + x)] = c.x;
+                    expected[3 * (y * width + x) + 1] = c.y;
+                    expected[3 * (y * width + x) + 2] = c.z;
+                }
+            }
+
+            renderer.setWavefront(true);
+            renderer.render(scene, 2);
+            assertTrue(file + " traced a different number of rays",
+                    stats.getPrimaryRays() == 2 * primary && stats.getSecondaryRays() == 2 * secondary
+                    && stats.getShadowRays() == 2 * shadow);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    image.getPixelColor(c, x, y);
+                    int i = 3 * (y * width + x);
+                    assertTrue(file + " differs at (" + x + ", " + y + ")",
+                            c.x == expected[i] && c.y == expected[i + 1] && c.z == expected[i + 2]);
+                }
+            }
+            System.out.println(file + ": " + primary + " camera, " + secondary + " mirror and " + shadow
+                    + " shadow rays match");
+        }
+        System.out.println("Wavefront rendering passed.\n");
+    }
+}